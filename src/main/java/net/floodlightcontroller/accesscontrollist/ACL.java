@@ -65,7 +65,8 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 	private Map<Integer, ACLRule> aclRules;
 	private Map<String, Integer> dpid2FlowPriority;
 	private Map<Integer, Set<String>> ruleId2Dpid;
-	private Map<Integer, Set<String>> ruleId2FlowName;
+	private Map<String, Map<Integer, Integer>> dpid2RulePriority;
+	private Map<String, Set<String>> dpid2FlowName;
 	private Map<Integer, List<Integer>> deny2Allow;
 
 	private final int DEFAULT_PRIORITY = 30000;
@@ -78,24 +79,16 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 				&& ruleId2Dpid.get(ruleId).contains(dpid);
 	}
 
-	/**
-	 * Adds a new mapping from ACL rule to ACL flow.
-	 */
-	private void addRuleToFlowMapping(int ruleId, String flowName) {
-		if (!ruleId2FlowName.containsKey(ruleId)) {
-			ruleId2FlowName.put(ruleId, new HashSet<String>());
-		}
-		ruleId2FlowName.get(ruleId).add(flowName);
-	}
-
 	/**
 	 * Adds a new mapping from ACL rule to switch.
+	 * 
+	 * @return true if the rule did not work in the switch before
 	 */
-	private void addRuleToSwitchMapping(int ruleId, String dpid) {
+	private boolean addRuleToSwitchMapping(int ruleId, String dpid) {
 		if (!ruleId2Dpid.containsKey(ruleId)) {
 			ruleId2Dpid.put(ruleId, new HashSet<String>());
 		}
-		ruleId2Dpid.get(ruleId).add(dpid);
+		return ruleId2Dpid.get(ruleId).add(dpid);
 	}
 
 	/**
@@ -113,7 +106,7 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 	}
 
 	@Override
-	public List<ACLRule> getRules() {
+	public synchronized List<ACLRule> getRules() {
 		return new ArrayList<ACLRule>(aclRules.values());
 	}
 
@@ -143,7 +136,7 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 	}
 
 	@Override
-	public boolean addRule(ACLRule rule) {
+	public synchronized boolean addRule(ACLRule rule) {
 		rule.setId(lastRuleId++);
 		if (checkRuleMatch(rule)) {
 			lastRuleId--;
@@ -158,52 +151,50 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 	}
 
 	@Override
-	public void removeRule(int ruleId) {
+	public synchronized void removeRule(int ruleId) {
 		aclRules.remove(ruleId);
 		logger.info("ACL rule(id:{}) is removed.", ruleId);
 		enforceRemovedRule(ruleId);
 	}
 
 	@Override
-	public void removeAllRules() {
+	public synchronized void removeAllRules() {
 		this.lastRuleId = 1;
 		this.aclRules = new TreeMap<>();
 		this.dpid2FlowPriority = new HashMap<>();
 		this.ruleId2Dpid = new HashMap<>();
+		this.dpid2RulePriority = new HashMap<>();
 		this.deny2Allow = new HashMap<>();
 
-		for (Set<String> flowNameSet : ruleId2FlowName.values()) {
-			for (String flowName : flowNameSet) {
-				storageSource.deleteRowAsync(StaticEntryPusher.TABLE_NAME,
-						flowName);
-				logger.debug("ACL flow(id:{}) is removed.", flowName);
-			}
+		for (Set<String> flowNameSet : dpid2FlowName.values()) {
+			storageSource.deleteRowsAsync(StaticEntryPusher.TABLE_NAME,
+					new HashSet<Object>(flowNameSet));
+			logger.debug("ACL flows(id:{}) are removed.", flowNameSet);
 		}
-		this.ruleId2FlowName = new HashMap<>();
+		this.dpid2FlowName = new HashMap<>();
 	}
 
 	/**
-	 * Enforces denying ACL rule by ACL flow.
+	 * Gets the switches that the hosts an ACL rule applies to
+	 * are attached to.
 	 */
-	private void enforceAddedRule(ACLRule denyRule) {
-		Set<String> dpidSet;
-		if (denyRule.getNw_src() != null) {
-			dpidSet = apManager.getDpidSet(denyRule.getNw_src_prefix(),
-					denyRule.getNw_src_maskbits());
+	private Set<String> getDpidSet(ACLRule rule) {
+		if (rule.getNw_src() != null) {
+			return apManager.getDpidSet(rule.getNw_src_prefix(),
+					rule.getNw_src_maskbits());
 		} else {
-			dpidSet = apManager.getDpidSet(denyRule.getNw_dst_prefix(),
-					denyRule.getNw_dst_maskbits());
+			return apManager.getDpidSet(rule.getNw_dst_prefix(),
+					rule.getNw_dst_maskbits());
 		}
+	}
 
-		for (String dpid : dpidSet) {
-			String flowName;
-			List<Integer> allowRuleList = deny2Allow.get(denyRule.getId());
-			for (int allowRuleId : allowRuleList) {
-				flowName = "ACLRule_" + allowRuleId + "_" + dpid;
-				generateFlow(aclRules.get(allowRuleId), dpid, flowName);
-			}
-			flowName = "ACLRule_" + denyRule.getId() + "_" + dpid;
-			generateFlow(denyRule, dpid, flowName);
+	/**
+	 * Enforces denying ACL rule by ACL flow.
+	 */
+	private void enforceAddedRule(ACLRule denyRule) {
+		for (String dpid : getDpidSet(denyRule)) {
+			addRuleToSwitchMapping(denyRule.getId(), dpid);
+			syncSwitch(dpid);
 		}
 	}
 
@@ -211,97 +202,136 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 	 * Enforces removing an existing ACL rule.
 	 */
 	private void enforceRemovedRule(int ruleId) {
-		if (ruleId2FlowName.containsKey(ruleId)) {
-			for (String flowName : ruleId2FlowName.get(ruleId)) {
-				storageSource.deleteRowAsync(StaticEntryPusher.TABLE_NAME,
-						flowName);
-				logger.debug("ACL flow(id:{}) is removed.", flowName);
-			}
-			ruleId2FlowName.remove(ruleId);
-		}
 		ruleId2Dpid.remove(ruleId);
 		deny2Allow.remove(ruleId);
+		for (Map.Entry<String, Map<Integer, Integer>> e : new ArrayList<>(
+				dpid2RulePriority.entrySet())) {
+			if (e.getValue().containsKey(ruleId)) {
+				syncSwitch(e.getKey());
+			}
+		}
 	}
 
 	/**
-	 * Generates ACL flow rule according to ACL rule 
-	 * and installs it into switch.
+	 * Brings the ACL flows of a switch in line with the ACL rules that
+	 * work in it: the denying rules, each preceded by the allowing rules
+	 * it was added with, are compressed into as few flows as treat all
+	 * traffic the same, and the flows the switch lacks are added and the
+	 * ones it no longer needs removed, each in a single storage operation.
 	 */
-	private void generateFlow(ACLRule rule, String dpid, String flowName) {
-		if (rule == null || checkIfRuleWorksInSwitch(rule.getId(), dpid)) {
-			return;
+	private void syncSwitch(String dpid) {
+		Map<Integer, Integer> priorities = dpid2RulePriority.get(dpid);
+		if (priorities == null) {
+			priorities = new HashMap<>();
+			dpid2RulePriority.put(dpid, priorities);
 		}
 
-		int priority = getPriorityBySwitch(dpid);
-		if (rule.getNw_src() != null) {
-
-			HashMap<String, Object> flow = new HashMap<String, Object>();
-
-			flow.put(StaticEntryPusher.Columns.COLUMN_SWITCH, dpid);
-			flow.put(StaticEntryPusher.Columns.COLUMN_NAME, flowName);
-			flow.put(StaticEntryPusher.Columns.COLUMN_ACTIVE,
-					Boolean.toString(true));
-			flow.put(StaticEntryPusher.Columns.COLUMN_COOKIE, "0");
-			flow.put(StaticEntryPusher.Columns.COLUMN_PRIORITY,
-					Integer.toString(priority));
-
-			flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.ETH_TYPE), "2048");
-			flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.IPV4_SRC), rule.getNw_src());
-
-			if (rule.getNw_dst() != null) {
-				flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.IPV4_DST), rule.getNw_dst());
-			}
-			if (rule.getNw_proto() != 0) {
-				flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.IP_PROTO),
-						Integer.toString(rule.getNw_proto()));
+		List<ACLFlow> flows = new ArrayList<>();
+		Set<Integer> ruleIds = new HashSet<>();
+		for (ACLRule rule : aclRules.values()) {
+			if (rule.getAction() == Action.ALLOW
+					|| !checkIfRuleWorksInSwitch(rule.getId(), dpid)) {
+				continue;
 			}
-			if (rule.getAction() == Action.ALLOW) {
-				flow.put(StaticEntryPusher.Columns.COLUMN_ACTIONS,
-						"output=controller");
+			for (int allowRuleId : deny2Allow.get(rule.getId())) {
+				ACLRule allowRule = aclRules.get(allowRuleId);
+				if (allowRule != null && ruleIds.add(allowRuleId)) {
+					flows.add(new ACLFlow(allowRule,
+							getRulePriority(priorities, allowRuleId, dpid)));
+				}
 			}
-			if (rule.getTp_dst() != 0) {
-				flow.put(StaticEntryPusher.Columns.COLUMN_TP_DST,
-						Integer.toString(rule.getTp_dst()));
+			if (ruleIds.add(rule.getId())) {
+				flows.add(new ACLFlow(rule,
+						getRulePriority(priorities, rule.getId(), dpid)));
 			}
+		}
+		priorities.keySet().retainAll(ruleIds);
 
-			storageSource
-					.insertRowAsync(StaticEntryPusher.TABLE_NAME, flow);
+		Set<String> installed = dpid2FlowName.get(dpid);
+		if (installed == null) {
+			installed = new HashSet<>();
+		}
+		Set<String> flowNames = new HashSet<>();
+		List<Map<String, Object>> added = new ArrayList<>();
+		for (ACLFlow flow : ACLFlow.compress(flows)) {
+			String flowName = flow.getName(dpid);
+			flowNames.add(flowName);
+			if (!installed.contains(flowName)) {
+				added.add(generateFlow(flow, dpid, flowName));
+				logger.debug("ACL flow(id:{}) is added in {}.", flowName, dpid);
+			}
+		}
+		Set<Object> removed = new HashSet<>();
+		for (String flowName : installed) {
+			if (!flowNames.contains(flowName)) {
+				removed.add(flowName);
+				logger.debug("ACL flow(id:{}) is removed.", flowName);
+			}
+		}
 
+		/* add before removing, so no traffic slips through while a flow is replaced by a merged one */
+		if (!added.isEmpty()) {
+			storageSource.updateRowsAsync(StaticEntryPusher.TABLE_NAME, added);
+		}
+		if (!removed.isEmpty()) {
+			storageSource.deleteRowsAsync(StaticEntryPusher.TABLE_NAME, removed);
+		}
+		if (flowNames.isEmpty()) {
+			dpid2FlowName.remove(dpid);
+			dpid2RulePriority.remove(dpid);
 		} else {
+			dpid2FlowName.put(dpid, flowNames);
+		}
+	}
 
-			HashMap<String, Object> flow = new HashMap<String, Object>();
-
-			flow.put(StaticEntryPusher.Columns.COLUMN_SWITCH, dpid);
-			flow.put(StaticEntryPusher.Columns.COLUMN_NAME, flowName);
-			flow.put(StaticEntryPusher.Columns.COLUMN_ACTIVE,
-					Boolean.toString(true));
-			flow.put(StaticEntryPusher.Columns.COLUMN_COOKIE, "0");
-			flow.put(StaticEntryPusher.Columns.COLUMN_PRIORITY,
-					Integer.toString(priority));
+	/**
+	 * Gets the priority of the flows of an ACL rule in a switch, which is
+	 * fixed when they are first added.
+	 */
+	private int getRulePriority(Map<Integer, Integer> priorities, int ruleId, String dpid) {
+		Integer priority = priorities.get(ruleId);
+		if (priority == null) {
+			priority = getPriorityBySwitch(dpid);
+			priorities.put(ruleId, priority);
+		}
+		return priority;
+	}
 
-			flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.ETH_TYPE), "2048");
+	/**
+	 * Generates the static flow entry of an ACL flow.
+	 */
+	private Map<String, Object> generateFlow(ACLFlow aclFlow, String dpid, String flowName) {
+		ACLRule rule = aclFlow.getRule();
+		HashMap<String, Object> flow = new HashMap<String, Object>();
+
+		flow.put(StaticEntryPusher.Columns.COLUMN_SWITCH, dpid);
+		flow.put(StaticEntryPusher.Columns.COLUMN_NAME, flowName);
+		flow.put(StaticEntryPusher.Columns.COLUMN_ACTIVE,
+				Boolean.toString(true));
+		flow.put(StaticEntryPusher.Columns.COLUMN_COOKIE, "0");
+		flow.put(StaticEntryPusher.Columns.COLUMN_PRIORITY,
+				Integer.toString(aclFlow.getPriority()));
+
+		flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.ETH_TYPE), "2048");
+		if (rule.getNw_src() != null) {
+			flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.IPV4_SRC), rule.getNw_src());
+		}
+		if (rule.getNw_dst() != null) {
 			flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.IPV4_DST), rule.getNw_dst());
-
-			if (rule.getNw_proto() != 0) {
-				flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.IP_PROTO),
-						Integer.toString(rule.getNw_proto()));
-			}
-			if (rule.getAction() == Action.ALLOW) {
-				flow.put(StaticEntryPusher.Columns.COLUMN_ACTIONS,
-						"output=controller");
-			}
-			if (rule.getTp_dst() != 0) {
-				flow.put(StaticEntryPusher.Columns.COLUMN_TP_DST,
-						Integer.toString(rule.getTp_dst()));
-			}
-
-			storageSource
-					.insertRowAsync(StaticEntryPusher.TABLE_NAME, flow);
-
 		}
-		addRuleToSwitchMapping(rule.getId(), dpid);
-		addRuleToFlowMapping(rule.getId(), flowName);
-		logger.debug("ACL flow(id:{}) is added in {}.", flowName, dpid);
+		if (rule.getNw_proto() != 0) {
+			flow.put(StaticEntryPusher.matchFieldToColumnName(MatchFields.IP_PROTO),
+					Integer.toString(rule.getNw_proto()));
+		}
+		if (rule.getAction() == Action.ALLOW) {
+			flow.put(StaticEntryPusher.Columns.COLUMN_ACTIONS,
+					"output=controller");
+		}
+		if (rule.getTp_dst() != 0) {
+			flow.put(StaticEntryPusher.Columns.COLUMN_TP_DST,
+					Integer.toString(rule.getTp_dst()));
+		}
+		return flow;
 	}
 
 	@Override
@@ -337,8 +367,9 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 
 		aclRules = new TreeMap<>();
 		apManager = new APManager();
-		ruleId2FlowName = new HashMap<>();
 		ruleId2Dpid = new HashMap<>();
+		dpid2RulePriority = new HashMap<>();
+		dpid2FlowName = new HashMap<>();
 		dpid2FlowPriority = new HashMap<>();
 		deny2Allow = new HashMap<>();
 	}
@@ -377,45 +408,67 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 	 * Generates new ACL flow when a new device appears
 	 * and existing ACL rules denies its traffic.
 	 */
-	private void processAPAdded(AP ap) {
+	private synchronized void processAPAdded(AP ap) {
 		String dpid = ap.getDpid();
 		int ip = IPv4.toIPv4Address(ap.getIp());
 
-		for (ACLRule rule : getRules()) {
+		boolean changed = false;
+		for (ACLRule rule : aclRules.values()) {
 			if (rule.getAction() != Action.ALLOW) {
 				if (rule.getNw_src() != null) {
 					if (IPAddressUtil.containIP(rule.getNw_src_prefix(),
 							rule.getNw_src_maskbits(), ip)) {
-						if (checkIfRuleWorksInSwitch(rule.getId(), dpid)) {
-							continue;
-						}
-						String flowName = "ACLRule_" + rule.getId() + "_"
-								+ dpid;
-						generateFlow(rule, dpid, flowName);
+						changed |= addRuleToSwitchMapping(rule.getId(), dpid);
 					}
 				} else {
 					if (IPAddressUtil.containIP(rule.getNw_dst_prefix(),
 							rule.getNw_dst_maskbits(), ip)) {
-						if (checkIfRuleWorksInSwitch(rule.getId(), dpid)) {
-							continue;
-						}
-						String flowName = "ACLRule_" + rule.getId() + "_"
-								+ dpid;
-						generateFlow(rule, dpid, flowName);
+						changed |= addRuleToSwitchMapping(rule.getId(), dpid);
 					}
 				}
 			}
 		}
+		if (changed) {
+			syncSwitch(dpid);
+		}
 	}
 
 	@Override
 	public void deviceRemoved(IDevice device) {
-
+		for (IPv4Address i : device.getIPv4Addresses()) {
+			if (i.getInt() == 0) {
+				continue;
+			}
+			String ip = IPv4.fromIPv4Address(i.getInt());
+			String dpid = apManager.getDpid(ip);
+			if (dpid != null && apManager.removeAP(new AP(ip, dpid))) {
+				logger.debug("AP(dpid:{},ip:{}) is removed", dpid, ip);
+			}
+		}
 	}
 
 	@Override
 	public void deviceMoved(IDevice device) {
+		SwitchPort[] switchPort = device.getAttachmentPoints();
+		if (switchPort.length == 0) {
+			return;
+		}
 
+		String dpid = HexString.toHexString(switchPort[0].getNodeId()
+				.getLong());
+		for (IPv4Address i : device.getIPv4Addresses()) {
+			if (i.getInt() == 0) {
+				continue;
+			}
+			String ip = IPv4.fromIPv4Address(i.getInt());
+			if (dpid.equals(apManager.getDpid(ip))) {
+				continue;
+			}
+			logger.debug("AP(dpid:{},ip:{}) is moved", dpid, ip);
+			AP ap = new AP(ip, dpid);
+			apManager.addAP(ap);
+			processAPAdded(ap);
+		}
 	}
 
 	@Override
@@ -428,6 +481,9 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 
 		SwitchPort[] switchPort = device.getAttachmentPoints();
 		IPv4Address[] ips = device.getIPv4Addresses();
+		if (switchPort.length == 0) {
+			return;
+		}
 
 		String dpid = HexString.toHexString(switchPort[0].getNodeId()
 				.getLong());
@@ -440,6 +496,9 @@ public class ACL implements IACLService, IFloodlightModule, IDeviceListener {
 				break;
 			}
 		}
+		if (ip == null) {
+			return;
+		}
 
 		logger.debug("AP(dpid:{},ip:{}) is added", dpid, ip);
 		AP ap = new AP(ip, dpid);
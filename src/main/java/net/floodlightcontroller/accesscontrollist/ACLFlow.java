@@ -0,0 +1,244 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.accesscontrollist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * A flow entry the ACL installs in a switch: the match and action of one
+ * ACL rule, or of several rules merged into one entry, at a priority.
+ *
+ * The flow is named after the rules it was made from, which fixes its
+ * contents, so a flow under a name that is already installed need not be
+ * pushed again.
+ */
+public class ACLFlow {
+
+	private final ACLRule rule;
+	private final int priority;
+	private final List<Integer> ruleIds;
+
+	public ACLFlow(ACLRule rule, int priority) {
+		this(rule, priority, Collections.singletonList(rule.getId()));
+	}
+
+	private ACLFlow(ACLRule rule, int priority, List<Integer> ruleIds) {
+		this.rule = rule;
+		this.priority = priority;
+		this.ruleIds = ruleIds;
+	}
+
+	/**
+	 * @return the match and action of the flow
+	 */
+	public ACLRule getRule() {
+		return rule;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * @return the ids of the ACL rules the flow enforces, in ascending order
+	 */
+	public List<Integer> getRuleIds() {
+		return ruleIds;
+	}
+
+	/**
+	 * @return the name of the flow in the static flow table of a switch
+	 */
+	public String getName(String dpid) {
+		StringBuilder sb = new StringBuilder("ACLRule_");
+		for (int id : ruleIds) {
+			sb.append(id).append('_');
+		}
+		return sb.append(dpid).toString();
+	}
+
+	private static final Comparator<ACLFlow> BY_PRIORITY = new Comparator<ACLFlow>() {
+		@Override
+		public int compare(ACLFlow f1, ACLFlow f2) {
+			return Integer.compare(f2.priority, f1.priority);
+		}
+	};
+
+	/**
+	 * Compress the flows of a switch into as few flow entries as treat
+	 * all traffic the same: flows shadowed by a higher one are dropped,
+	 * as are flows a lower one with the same action covers with no flow
+	 * of the other action in between, and flows with the same action and
+	 * sibling prefixes are merged where nothing in between tells them apart.
+	 *
+	 * @param flows the flows of a switch
+	 * @return the compressed flows, highest priority first
+	 */
+	public static List<ACLFlow> compress(List<ACLFlow> flows) {
+		List<ACLFlow> table = new ArrayList<ACLFlow>(flows.size());
+		List<ACLFlow> sorted = new ArrayList<ACLFlow>(flows);
+		Collections.sort(sorted, BY_PRIORITY);
+
+		/* shadowed */
+		for (ACLFlow flow : sorted) {
+			boolean shadowed = false;
+			for (ACLFlow higher : table) {
+				if (flow.rule.match(higher.rule)) {
+					shadowed = true;
+					break;
+				}
+			}
+			if (!shadowed) {
+				table.add(flow);
+			}
+		}
+
+		/* redundant, lowest first so every check is against the compressed rest */
+		for (int i = table.size() - 1; i >= 0; i--) {
+			ACLFlow flow = table.get(i);
+			for (int j = i + 1; j < table.size(); j++) {
+				ACLFlow lower = table.get(j);
+				if (lower.rule.getAction() == flow.rule.getAction()) {
+					if (flow.rule.match(lower.rule)) {
+						table.remove(i);
+						break;
+					}
+				} else if (flow.rule.overlap(lower.rule)) {
+					break;
+				}
+			}
+		}
+
+		/* siblings */
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			for (int i = 0; i < table.size() && !merged; i++) {
+				for (int j = i + 1; j < table.size() && !merged; j++) {
+					ACLFlow m = merge(table.get(i), table.get(j));
+					if (m != null && !separated(table, i, j)) {
+						table.set(i, m);
+						table.remove(j);
+						merged = true;
+					}
+				}
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * @return whether a flow of the other action between two flows overlaps
+	 *         the lower one, which would change what it applies to if moved
+	 *         up to the higher one
+	 */
+	private static boolean separated(List<ACLFlow> table, int i, int j) {
+		ACLFlow lower = table.get(j);
+		for (int k = i + 1; k < j; k++) {
+			ACLFlow between = table.get(k);
+			if (between.rule.getAction() != lower.rule.getAction()
+					&& between.rule.overlap(lower.rule)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return a flow at the higher flow's priority matching what either of
+	 *         two flows does, or null if they are not the same but for
+	 *         sibling source or destination prefixes
+	 */
+	private static ACLFlow merge(ACLFlow higher, ACLFlow lower) {
+		ACLRule r1 = higher.rule;
+		ACLRule r2 = lower.rule;
+		if (r1.getAction() != r2.getAction() || r1.getNw_proto() != r2.getNw_proto()
+				|| r1.getTp_dst() != r2.getTp_dst()) {
+			return null;
+		}
+
+		ACLRule rule;
+		if (sameCIDR(r1.getNw_dst(), r2.getNw_dst())
+				&& siblings(r1.getNw_src(), r1.getNw_src_prefix(), r1.getNw_src_maskbits(),
+						r2.getNw_src(), r2.getNw_src_prefix(), r2.getNw_src_maskbits())) {
+			rule = copy(r1);
+			int bits = r1.getNw_src_maskbits() - 1;
+			int prefix = r1.getNw_src_prefix() & (-1 << (32 - bits));
+			rule.setNw_src(IPv4.fromIPv4Address(prefix) + "/" + bits);
+			rule.setNw_src_prefix(prefix);
+			rule.setNw_src_maskbits(bits);
+		} else if (sameCIDR(r1.getNw_src(), r2.getNw_src())
+				&& siblings(r1.getNw_dst(), r1.getNw_dst_prefix(), r1.getNw_dst_maskbits(),
+						r2.getNw_dst(), r2.getNw_dst_prefix(), r2.getNw_dst_maskbits())) {
+			rule = copy(r1);
+			int bits = r1.getNw_dst_maskbits() - 1;
+			int prefix = r1.getNw_dst_prefix() & (-1 << (32 - bits));
+			rule.setNw_dst(IPv4.fromIPv4Address(prefix) + "/" + bits);
+			rule.setNw_dst_prefix(prefix);
+			rule.setNw_dst_maskbits(bits);
+		} else {
+			return null;
+		}
+
+		List<Integer> ids = new ArrayList<Integer>(higher.ruleIds);
+		ids.addAll(lower.ruleIds);
+		Collections.sort(ids);
+		return new ACLFlow(rule, higher.priority, Collections.unmodifiableList(ids));
+	}
+
+	private static boolean sameCIDR(String cidr1, String cidr2) {
+		return cidr1 == null ? cidr2 == null : cidr1.equals(cidr2);
+	}
+
+	/**
+	 * Prefixes are siblings if they are the two halves of a prefix one bit
+	 * shorter. Halves of 0.0.0.0/0 are left alone, as a shift by 32 bits is
+	 * no shift at all.
+	 */
+	private static boolean siblings(String cidr1, int prefix1, int bits1,
+			String cidr2, int prefix2, int bits2) {
+		if (cidr1 == null || cidr2 == null || bits1 != bits2 || bits1 < 2) {
+			return false;
+		}
+		int mask = -1 << (32 - bits1);
+		return ((prefix1 ^ prefix2) & mask) == 1 << (32 - bits1);
+	}
+
+	private static ACLRule copy(ACLRule r) {
+		ACLRule rule = new ACLRule();
+		rule.setId(r.getId());
+		rule.setNw_src(r.getNw_src());
+		rule.setNw_src_prefix(r.getNw_src_prefix());
+		rule.setNw_src_maskbits(r.getNw_src_maskbits());
+		rule.setNw_dst(r.getNw_dst());
+		rule.setNw_dst_prefix(r.getNw_dst_prefix());
+		rule.setNw_dst_maskbits(r.getNw_dst_maskbits());
+		rule.setNw_proto(r.getNw_proto());
+		rule.setTp_dst(r.getTp_dst());
+		rule.setAction(r.getAction());
+		return rule;
+	}
+
+	@Override
+	public String toString() {
+		return "ACLFlow [rule=" + rule + ", priority=" + priority
+				+ ", ruleIds=" + ruleIds + "]";
+	}
+}
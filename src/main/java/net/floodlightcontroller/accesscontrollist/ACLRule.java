@@ -66,7 +66,17 @@ public class ACLRule {
 		}
 		return false;
 	}
-	
+
+	/**
+	 * check if this rule and another rule both apply to some traffic
+	 */
+	public boolean overlap(ACLRule r) {
+		return (this.tp_dst == r.tp_dst || this.tp_dst == 0 || r.tp_dst == 0)
+				&& (this.nw_proto == r.nw_proto || this.nw_proto == 0 || r.nw_proto == 0)
+				&& (isSubnet(this.getNw_src(), r.getNw_src()) || isSubnet(r.getNw_src(), this.getNw_src()))
+				&& (isSubnet(this.getNw_dst(), r.getNw_dst()) || isSubnet(r.getNw_dst(), this.getNw_dst()));
+	}
+
 	public int getId() {
 		return id;
 	}
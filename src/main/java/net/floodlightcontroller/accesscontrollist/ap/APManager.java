@@ -20,47 +20,174 @@
 
 package net.floodlightcontroller.accesscontrollist.ap;
 
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
-import net.floodlightcontroller.accesscontrollist.util.IPAddressUtil;
 import net.floodlightcontroller.packet.IPv4;
 
+/**
+ * The attachment points of hosts, indexed by IP address in a binary trie.
+ * Every node keeps the switches of the hosts below it, with how many hosts
+ * each has there, so the switches hosting a prefix are found by walking
+ * the prefix alone, however many hosts it holds.
+ *
+ * A host address has one attachment point; adding it again moves it.
+ * All methods are thread-safe.
+ */
 public class APManager {
 
-	private Set<AP> apSet = new HashSet<AP>();
+	/**
+	 * The hosts below a node: a leaf is a single host. Most nodes have all
+	 * their hosts on one switch, and only keep its dpid and the host count.
+	 */
+	private static class Node {
+		Node zero;
+		Node one;
+		int hosts;
+		/* the switch of every host below, if there is only one */
+		String dpid;
+		/* dpid -> hosts below on that switch, if there are several */
+		Map<String, Integer> dpids;
+
+		void add(String d) {
+			hosts++;
+			if (dpids != null) {
+				Integer n = dpids.get(d);
+				dpids.put(d, n == null ? 1 : n + 1);
+			} else if (dpid == null) {
+				dpid = d;
+			} else if (!dpid.equals(d)) {
+				dpids = new HashMap<String, Integer>();
+				dpids.put(dpid, hosts - 1);
+				dpids.put(d, 1);
+				dpid = null;
+			}
+		}
+
+		void remove(String d) {
+			hosts--;
+			if (dpids != null) {
+				int n = dpids.get(d) - 1;
+				if (n == 0) {
+					dpids.remove(d);
+				} else {
+					dpids.put(d, n);
+				}
+				if (dpids.size() == 1) {
+					dpid = dpids.keySet().iterator().next();
+					dpids = null;
+				}
+			} else if (hosts == 0) {
+				dpid = null;
+			}
+		}
 
-	public void addAP(AP ap) {
-		this.apSet.add(ap);
+		Set<String> getDpids() {
+			if (dpids != null) {
+				return new HashSet<String>(dpids.keySet());
+			}
+			return dpid == null ? new HashSet<String>() : new HashSet<String>(Collections.singleton(dpid));
+		}
+	}
+
+	private final Node root = new Node();
+
+	private static boolean bit(int addr, int i) {
+		return (addr & (0x80000000 >>> i)) != 0;
 	}
 
 	/**
-	 * get dpid set relating to the given CIDR IP
+	 * @return the leaf of a host, or null if it is not known
 	 */
-	public Set<String> getDpidSet(int cidrPrefix, int cidrMaskBits) {
-		Set<String> dpidSet = new HashSet<String>();
-
-		Iterator<AP> iter = apSet.iterator();
-		if (cidrMaskBits != 32) {
-			while (iter.hasNext()) {
-				AP ap = iter.next();
-				if (IPAddressUtil.containIP(cidrPrefix, cidrMaskBits,
-						IPv4.toIPv4Address(ap.getIp()))) {
-					dpidSet.add(ap.getDpid());
+	private Node find(int addr, int len) {
+		Node node = root;
+		for (int i = 0; i < len && node != null; i++) {
+			node = bit(addr, i) ? node.one : node.zero;
+		}
+		return node;
+	}
+
+	public synchronized void addAP(AP ap) {
+		int addr = IPv4.toIPv4Address(ap.getIp());
+		Node leaf = find(addr, 32);
+		if (leaf != null) {
+			if (leaf.dpid.equals(ap.getDpid())) {
+				return;
+			}
+			remove(addr, leaf.dpid);
+		}
+		Node node = root;
+		node.add(ap.getDpid());
+		for (int i = 0; i < 32; i++) {
+			if (bit(addr, i)) {
+				if (node.one == null) {
+					node.one = new Node();
+				}
+				node = node.one;
+			} else {
+				if (node.zero == null) {
+					node.zero = new Node();
 				}
+				node = node.zero;
 			}
-		} else {
-			while (iter.hasNext()) {
-				AP ap = iter.next();
-				if (IPAddressUtil.containIP(cidrPrefix, cidrMaskBits,
-						IPv4.toIPv4Address(ap.getIp()))) {
-					dpidSet.add(ap.getDpid());
-					return dpidSet;
+			node.add(ap.getDpid());
+		}
+	}
+
+	/* removes a known host, pruning the nodes left without hosts */
+	private void remove(int addr, String dpid) {
+		Node node = root;
+		node.remove(dpid);
+		for (int i = 0; i < 32; i++) {
+			Node next = bit(addr, i) ? node.one : node.zero;
+			next.remove(dpid);
+			if (next.hosts == 0) {
+				if (bit(addr, i)) {
+					node.one = null;
+				} else {
+					node.zero = null;
 				}
+				return;
 			}
+			node = next;
 		}
-		return dpidSet;
+	}
+
+	/**
+	 * Forget a host's attachment point, unless it has since moved
+	 * @return true if it was removed
+	 */
+	public synchronized boolean removeAP(AP ap) {
+		int addr = IPv4.toIPv4Address(ap.getIp());
+		Node leaf = find(addr, 32);
+		if (leaf == null || !leaf.dpid.equals(ap.getDpid())) {
+			return false;
+		}
+		remove(addr, leaf.dpid);
+		return true;
+	}
+
+	/**
+	 * @return the dpid of the switch the host is attached to, or null
+	 */
+	public synchronized String getDpid(String ip) {
+		Node leaf = find(IPv4.toIPv4Address(ip), 32);
+		return leaf == null ? null : leaf.dpid;
+	}
+
+	/**
+	 * get dpid set relating to the given CIDR IP
+	 */
+	public synchronized Set<String> getDpidSet(int cidrPrefix, int cidrMaskBits) {
+		Node node = find(cidrPrefix, cidrMaskBits);
+		return node == null ? new HashSet<String>() : node.getDpids();
+	}
+
+	public synchronized int size() {
+		return root.hosts;
 	}
 
 }
@@ -23,6 +23,7 @@ import net.floodlightcontroller.core.internal.OFChannelInitializer.PipelineHandl
 import net.floodlightcontroller.core.internal.OFChannelInitializer.PipelineHandshakeTimeout;
 import net.floodlightcontroller.core.internal.OFChannelInitializer.PipelineIdleReadTimeout;
 import net.floodlightcontroller.core.internal.OFChannelInitializer.PipelineIdleWriteTimeout;
+import net.floodlightcontroller.core.util.OFMessageReceiveTime;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 
 import org.projectfloodlight.openflow.exceptions.OFParseError;
@@ -690,17 +691,23 @@ class OFChannelHandler extends SimpleChannelInboundHandler<Iterable<OFMessage>>
 
 	@Override
 	public void channelRead0(ChannelHandlerContext ctx, Iterable<OFMessage> msgList) throws Exception {
-		for (OFMessage ofm : msgList) {
-			try {
-				// Do the actual packet processing
-				state.processOFMessage(ofm);
-			}
-			catch (Exception ex) {
-				// We are the last handler in the stream, so run the
-				// exception through the channel again by passing in
-				// ctx.getChannel().
-				ctx.fireExceptionCaught(ex);
+		// Let listeners see how long a message waited behind the rest of the batch
+		OFMessageReceiveTime.mark();
+		try {
+			for (OFMessage ofm : msgList) {
+				try {
+					// Do the actual packet processing
+					state.processOFMessage(ofm);
+				}
+				catch (Exception ex) {
+					// We are the last handler in the stream, so run the
+					// exception through the channel again by passing in
+					// ctx.getChannel().
+					ctx.fireExceptionCaught(ex);
+				}
 			}
+		} finally {
+			OFMessageReceiveTime.clear();
 		}
 	}
 
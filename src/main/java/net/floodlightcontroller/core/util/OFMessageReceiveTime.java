@@ -0,0 +1,56 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.core.util;
+
+/**
+ * Records, per I/O thread, the {@link System#nanoTime()} at which the
+ * batch of OpenFlow messages currently being dispatched was read off
+ * the channel. Messages are dispatched to listeners synchronously on the
+ * same event loop thread, so a listener can compare this value to the
+ * current time to learn how long its message waited behind others.
+ */
+public class OFMessageReceiveTime {
+	private static final ThreadLocal<long[]> receiveTime = new ThreadLocal<long[]>() {
+		@Override
+		protected long[] initialValue() {
+			return new long[1];
+		}
+	};
+
+	private OFMessageReceiveTime() { }
+
+	/**
+	 * Mark the current time as the receive time of the messages
+	 * about to be dispatched on this thread.
+	 */
+	public static void mark() {
+		receiveTime.get()[0] = System.nanoTime();
+	}
+
+	/**
+	 * Forget the receive time once dispatch is complete.
+	 */
+	public static void clear() {
+		receiveTime.get()[0] = 0;
+	}
+
+	/**
+	 * @return the receive time in ns of the message being dispatched
+	 * on this thread; 0 if not dispatching from an OpenFlow channel
+	 */
+	public static long get() {
+		return receiveTime.get()[0];
+	}
+}
@@ -0,0 +1,42 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.devicemanager;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Map;
+
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+
+/**
+ * A device listener that can take all device changes in a notification
+ * window at once. When device notifications are batched, listeners
+ * implementing this interface get a single call per window instead of
+ * the individual {@link IDeviceListener} callbacks. When notifications
+ * are delivered synchronously, the individual callbacks are used.
+ */
+public interface IDeviceBatchListener extends IDeviceListener {
+    /**
+     * Called with all device changes in a notification window. Multiple
+     * changes to the same device within the window are coalesced, so each
+     * device appears at most once, in its latest state.
+     * @param added devices that were added
+     * @param changed devices that changed, mapped to the fields that changed
+     * @param removed devices that were removed
+     */
+    public void devicesChanged(Collection<IDevice> added,
+            Map<IDevice, EnumSet<DeviceField>> changed,
+            Collection<IDevice> removed);
+}
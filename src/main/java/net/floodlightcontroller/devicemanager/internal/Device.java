@@ -416,6 +416,17 @@ public class Device implements IDevice {
 		return moved;
 	}
 
+	private static AttachmentPoint findAttachmentPoint(List<AttachmentPoint> apList,
+			DatapathId sw, OFPort port) {
+		if (apList == null)
+			return null;
+		for (AttachmentPoint ap : apList) {
+			if (ap.getSw().equals(sw) && ap.getPort().equals(port))
+				return ap;
+		}
+		return null;
+	}
+
 	/**
 	 * Update the list of attachment points given that a new packet-in was seen
 	 * from (sw, port) at time (lastSeen). The return value is true if there was
@@ -436,6 +447,18 @@ public class Device implements IDevice {
 
 		if (!deviceManager.isValidAttachmentPoint(sw, port))
 			return false;
+
+		// Common case: another packet from the current attachment point.
+		// Only the last seen time changes, so update it in place rather
+		// than rebuilding the attachment point lists.
+		AttachmentPoint currentAP = findAttachmentPoint(attachmentPoints, sw, port);
+		if (currentAP != null && findAttachmentPoint(oldAPs, sw, port) == null) {
+			if (lastSeen.after(currentAP.getLastSeen())) {
+				currentAP.setLastSeen(lastSeen);
+			}
+			return false;
+		}
+
 		AttachmentPoint newAP = new AttachmentPoint(sw, port, lastSeen);
 		// Copy the oldAP and ap list.
 		apList = new ArrayList<AttachmentPoint>();
@@ -657,14 +680,15 @@ public class Device implements IDevice {
 			}
 		}
 
-		if (!includeError)
+		// without old attachment points there are no duplicates to report
+		List<AttachmentPoint> curOldAPs = oldAPs;
+		if (!includeError || curOldAPs == null || curOldAPs.isEmpty())
 			return sp.toArray(new SwitchPort[sp.size()]);
 
 		List<AttachmentPoint> oldAPList;
 		oldAPList = new ArrayList<AttachmentPoint>();
 
-		if (oldAPs != null)
-			oldAPList.addAll(oldAPs);
+		oldAPList.addAll(curOldAPs);
 
 		if (removeExpiredAttachmentPoints(oldAPList))
 			this.oldAPs = oldAPList;
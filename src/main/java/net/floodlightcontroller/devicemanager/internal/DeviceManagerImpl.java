@@ -44,6 +44,7 @@ import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.debugcounter.IDebugCounter;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceBatchListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.IEntityClass;
 import net.floodlightcontroller.devicemanager.IEntityClassListener;
@@ -94,6 +95,9 @@ import org.sdnplatform.sync.error.SyncException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
 /**
  * DeviceManager creates Devices based upon MAC addresses seen in the network.
  * It tracks any network addresses mapped to the Device, and its location
@@ -147,6 +151,17 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	public IDebugCounter cntConsolidateStoreRuns;
 	public IDebugCounter cntConsolidateStoreDevicesRemoved;
 	public IDebugCounter cntTransitionToMaster;
+	public IDebugCounter cntQueryIndexed;
+	public IDebugCounter cntQueryScanned;
+	public IDebugCounter cntDeviceStoreUnchanged;
+	public IDebugCounter cntSyncBatches;
+	public IDebugCounter cntSyncBatchDevices;
+	public IDebugCounter cntSyncBytes;
+	public IDebugCounter cntLearnRetries;
+	public IDebugCounter cntNotificationBatches;
+	public IDebugCounter cntNotificationBatchUpdates;
+	public IDebugCounter cntNotificationsCoalesced;
+	public IDebugCounter cntListenerNs;
 
 	private boolean isMaster = false;
 
@@ -160,6 +175,14 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	static final int DEFAULT_SYNC_STORE_WRITE_INTERVAL_MS = 5*60*1000; // 5 min
 	private int syncStoreWriteIntervalMs = DEFAULT_SYNC_STORE_WRITE_INTERVAL_MS;
 
+	/**
+	 * Time window over which writes to the sync store are batched. All
+	 * updates to the same device within the window result in at most one
+	 * write.
+	 */
+	static final int DEFAULT_SYNC_STORE_BATCH_INTERVAL_MS = 100;
+	private int syncStoreBatchIntervalMs = DEFAULT_SYNC_STORE_BATCH_INTERVAL_MS;
+
 	/**
 	 * Time after SLAVE->MASTER until we run the consolidate store
 	 * code.
@@ -183,9 +206,19 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	protected static final int ENTITY_TIMEOUT = 60*60*1000;
 
 	/**
-	 * Time in seconds between cleaning up old entities/devices
+	 * Time in seconds between cleaning up old entities/devices. This is
+	 * also the width of a slot in the entity expiry wheel, so entities are
+	 * removed at most this long after they time out.
 	 */
-	protected static final int ENTITY_CLEANUP_INTERVAL = 60*60;
+	protected static final int ENTITY_CLEANUP_INTERVAL = 60;
+
+	/**
+	 * Maximum number of devices checked for expired entities per run of
+	 * the cleanup task. If more are due, the task runs again after
+	 * ENTITY_CLEANUP_BACKLOG_DELAY_MS instead of holding the CPU.
+	 */
+	protected static final int ENTITY_CLEANUP_MAX_DEVICES = 1000;
+	protected static final int ENTITY_CLEANUP_BACKLOG_DELAY_MS = 50;
 
 	/**
 	 * This is the master device map that maps device IDs to {@link Device}
@@ -198,6 +231,19 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	 */
 	protected AtomicLong deviceKeyCounter = new AtomicLong(0);
 
+	/**
+	 * Locks that serialize learning for entities with the same MAC
+	 * address. Learning for different MACs takes different stripes, so
+	 * hosts learned in parallel rarely wait on each other.
+	 */
+	protected static final int LEARNING_LOCK_STRIPES = 64;
+	private final Object[] learningLocks = new Object[LEARNING_LOCK_STRIPES];
+	{
+		for (int i = 0; i < learningLocks.length; i++) {
+			learningLocks[i] = new Object();
+		}
+	}
+
 	/**
 	 * This is the primary entity index that contains all entities
 	 */
@@ -206,7 +252,29 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	/**
 	 * This stores secondary indices over the fields in the devices
 	 */
-	protected Map<EnumSet<DeviceField>, DeviceIndex> secondaryIndexMap;
+	protected ConcurrentMap<EnumSet<DeviceField>, DeviceIndex> secondaryIndexMap;
+
+	/**
+	 * Secondary indices added at runtime that are still being back-filled
+	 * from the devices learned before them; not used to plan queries
+	 */
+	protected final Set<DeviceIndex> indicesBeingFilled =
+			Collections.newSetFromMap(new ConcurrentHashMap<DeviceIndex, Boolean>());
+
+	/**
+	 * Secondary indices maintained by default so that lookups by IP
+	 * address or attachment point do not scan every device
+	 */
+	protected static final List<EnumSet<DeviceField>> DEFAULT_INDICES =
+			Arrays.asList(EnumSet.of(DeviceField.IPv4),
+					EnumSet.of(DeviceField.IPv6),
+					EnumSet.of(DeviceField.SWITCH, DeviceField.PORT));
+
+	/**
+	 * Number of device queries that scanned, keyed by the fields queried
+	 */
+	protected ConcurrentMap<EnumSet<DeviceField>, AtomicLong> queryScanStats =
+			new ConcurrentHashMap<EnumSet<DeviceField>, AtomicLong>();
 
 	/**
 	 * This map contains state for each of the {@ref IEntityClass}
@@ -270,6 +338,39 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	 */
 	protected ListenerDispatcher<String,IDeviceListener> deviceListeners;
 
+	/**
+	 * Window in milliseconds over which device updates are coalesced and
+	 * then delivered to listeners from a background task. With 0, each
+	 * update is delivered synchronously by the thread that made it.
+	 */
+	protected static final int DEFAULT_NOTIFICATION_BATCH_INTERVAL_MS = 0;
+	protected int notificationBatchIntervalMs =
+			DEFAULT_NOTIFICATION_BATCH_INTERVAL_MS;
+
+	/**
+	 * Whether the sync-bytes counter is kept; it costs serializing every
+	 * device written to the sync store a second time
+	 */
+	protected boolean countSyncBytes = false;
+
+	/**
+	 * Device updates waiting for the next notification batch, keyed by
+	 * device key. Guarded by itself.
+	 */
+	private final Map<Long, DeviceUpdate> pendingNotifications =
+			new LinkedHashMap<Long, DeviceUpdate>();
+
+	/**
+	 * Task delivering batched device notifications
+	 */
+	private SingletonTask notificationTask;
+
+	/**
+	 * Total time in nanoseconds spent in each device listener
+	 */
+	protected ConcurrentMap<String, AtomicLong> listenerTimeNs =
+			new ConcurrentHashMap<String, AtomicLong>();
+
 	/**
 	 * A device update event to be dispatched
 	 */
@@ -399,6 +500,12 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	 */
 	public SingletonTask entityCleanupTask;
 
+	/**
+	 * Devices bucketed by when their oldest entity expires, so that the
+	 * cleanup task only visits devices that may have expired entities
+	 */
+	protected EntityExpiryWheel expiryWheel;
+
 
 	/**
 	 * Periodic task to consolidate entries in the store. I.e., delete
@@ -406,6 +513,11 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	 */
 	private SingletonTask storeConsolidateTask;
 
+	/**
+	 * Periodic task to write batched device updates to the sync store
+	 */
+	private SingletonTask syncStoreFlushTask;
+
 	/**
 	 * Listens for HA notifications
 	 */
@@ -499,10 +611,123 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 			EnumSet<DeviceField> keyFields) {
 		if (perClass) {
 			perClassIndices.add(keyFields);
+		} else if (!secondaryIndexMap.containsKey(keyFields)) {
+			DeviceIndex index = new DeviceMultiIndex(keyFields);
+			// publish before back-filling, so that devices learned in
+			// between are indexed as well; the planner passes over the
+			// index until the devices learned so far are in it
+			indicesBeingFilled.add(index);
+			try {
+				if (secondaryIndexMap.putIfAbsent(keyFields, index) == null) {
+					for (Device d : deviceMap.values()) {
+						index.updateIndex(d, d.getDeviceKey());
+					}
+				}
+			} finally {
+				indicesBeingFilled.remove(index);
+			}
+		}
+	}
+
+	/**
+	 * Choose the index that answers a query over the given fields with the
+	 * fewest candidate devices. Any index whose key fields are all present
+	 * in the query can be used, since callers filter the candidates on the
+	 * full query. Unique indices are preferred, then the index whose key
+	 * fields are most selective.
+	 * @param uniqueIndex the unique index to consider; may be null
+	 * @param indices the secondary indices to consider
+	 * @param queryFields the fields specified in the query
+	 * @return the chosen index, or null if the query requires a scan
+	 */
+	protected DeviceIndex planQuery(DeviceUniqueIndex uniqueIndex,
+			Map<EnumSet<DeviceField>, DeviceIndex> indices,
+			EnumSet<DeviceField> queryFields) {
+		DeviceIndex best = null;
+		int bestScore = 0;
+		if (!queryFields.isEmpty()) {
+			if (uniqueIndex != null
+					&& queryFields.containsAll(uniqueIndex.keyFields)) {
+				best = uniqueIndex;
+				bestScore = Integer.MAX_VALUE;
+			}
+			if (best == null) {
+				for (DeviceIndex index : indices.values()) {
+					if (!queryFields.containsAll(index.keyFields)
+							|| indicesBeingFilled.contains(index)) {
+						continue;
+					}
+					int score = getSelectivity(index.keyFields);
+					if (score > bestScore) {
+						best = index;
+						bestScore = score;
+					}
+				}
+			}
+		}
+
+		if (best != null) {
+			cntQueryIndexed.increment();
 		} else {
-			secondaryIndexMap.put(keyFields,
-					new DeviceMultiIndex(keyFields));
+			cntQueryScanned.increment();
+			AtomicLong count = queryScanStats.get(queryFields);
+			if (count == null) {
+				count = new AtomicLong();
+				AtomicLong old = queryScanStats.putIfAbsent(
+						EnumSet.copyOf(queryFields), count);
+				if (old != null) {
+					count = old;
+				} else if (logger.isDebugEnabled()) {
+					logger.debug("No index for device query on {}; " +
+							"scanning all devices", queryFields);
+				}
+			}
+			count.incrementAndGet();
+		}
+		return best;
+	}
+
+	/**
+	 * Rough relative selectivity of an index over the given fields. A MAC
+	 * or IP address nearly identifies a device; a switch, port or VLAN on
+	 * its own narrows the result far less.
+	 */
+	private static int getSelectivity(EnumSet<DeviceField> keyFields) {
+		int score = 0;
+		for (DeviceField f : keyFields) {
+			switch (f) {
+			case MAC:
+				score += 16;
+				break;
+			case IPv4:
+			case IPv6:
+				score += 8;
+				break;
+			case PORT:
+				score += 2;
+				break;
+			case SWITCH:
+			case VLAN:
+				score += 1;
+				break;
+			default:
+				break;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Get the number of device queries that could not use an index and
+	 * fell back to a scan, keyed by the set of fields queried
+	 * @return a snapshot of the scan counts
+	 */
+	public Map<String, Long> getQueryScanStats() {
+		Map<String, Long> stats = new HashMap<String, Long>();
+		for (Map.Entry<EnumSet<DeviceField>, AtomicLong> e : queryScanStats.entrySet()) {
+			stats.put(e.getKey().toString(), e.getValue().get());
 		}
+		return stats;
 	}
 
 	@Override
@@ -529,13 +754,10 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
     		throw new IllegalArgumentException("Switch port cannot be null. Try OFPort.ZERO if intention is 'no port'");
     	}
 		
-		DeviceIndex index = null;
-		if (secondaryIndexMap.size() > 0) {
-			EnumSet<DeviceField> keys =
-					getEntityKeys(macAddress, vlan, ipv4Address, ipv6Address,
-							switchDPID, switchPort);
-			index = secondaryIndexMap.get(keys);
-		}
+		EnumSet<DeviceField> keys =
+				getEntityKeys(macAddress, vlan, ipv4Address, ipv6Address,
+						switchDPID, switchPort);
+		DeviceIndex index = planQuery(primaryIndex, secondaryIndexMap, keys);
 
 		Iterator<Device> deviceIterator = null;
 		if (index == null) {
@@ -595,13 +817,11 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 				new ArrayList<Iterator<Device>>();
 		ClassState classState = getClassState(entityClass);
 
-		DeviceIndex index = null;
-		if (classState.secondaryIndexMap.size() > 0) {
-			EnumSet<DeviceField> keys =
-					getEntityKeys(macAddress, vlan, ipv4Address,
-							ipv6Address, switchDPID, switchPort);
-			index = classState.secondaryIndexMap.get(keys);
-		}
+		EnumSet<DeviceField> keys =
+				getEntityKeys(macAddress, vlan, ipv4Address,
+						ipv6Address, switchDPID, switchPort);
+		DeviceIndex index = planQuery(classState.classIndex,
+				classState.secondaryIndexMap, keys);
 
 		Iterator<Device> iter;
 		if (index == null) {
@@ -628,6 +848,13 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 							Entity.NO_DATE);
 			iter = new DeviceIndexInterator(this,
 					index.queryByEntity(entity));
+			if (!index.keyFields.equals(keys)) {
+				// the index only covers part of the query; filter the rest
+				iter = new DeviceIterator(iter,
+						new IEntityClass[] { entityClass },
+						macAddress, vlan, ipv4Address,
+						ipv6Address, switchDPID, switchPort);
+			}
 		}
 		iterators.add(iter);
 
@@ -657,13 +884,10 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
     		throw new IllegalArgumentException("Switch port cannot be null. Try OFPort.ZERO if intention is 'no port'");
     	}
 		
-		DeviceIndex index = null;
-		if (secondaryIndexMap.size() > 0) {
-			EnumSet<DeviceField> keys =
-					getEntityKeys(macAddress, vlan, ipv4Address,
-							ipv6Address, switchDPID, switchPort);
-			index = secondaryIndexMap.get(keys);
-		}
+		EnumSet<DeviceField> keys =
+				getEntityKeys(macAddress, vlan, ipv4Address, ipv6Address,
+						switchDPID, switchPort);
+		DeviceIndex index = planQuery(primaryIndex, secondaryIndexMap, keys);
 
 		Iterator<Device> deviceIterator = null;
 		if (index == null) {
@@ -739,6 +963,8 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 
 		Map<String, Object> info = new HashMap<String, Object>();
 		info.put("# hosts", deviceMap.size());
+		info.put("# indexed device queries", cntQueryIndexed.getCounterValue());
+		info.put("# scanned device queries", cntQueryScanned.getCounterValue());
 		return info;
 	}
 
@@ -839,6 +1065,19 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		this.haListenerDelegate = new HAListenerDelegate();
 		this.gatewayService = fmc.getServiceImpl(IGatewayService.class);
 		this.routingService = fmc.getServiceImpl(IRoutingService.class);
+
+		Map<String, String> configOptions = fmc.getConfigParams(this);
+		String batchInterval = configOptions.get("notification-batch-interval-ms");
+		if (batchInterval != null) {
+			try {
+				notificationBatchIntervalMs = Integer.parseInt(batchInterval);
+			} catch (NumberFormatException e) {
+				logger.warn("Invalid notification batch interval {}; " +
+						"delivering device notifications synchronously",
+						batchInterval);
+			}
+		}
+		countSyncBytes = Boolean.parseBoolean(configOptions.get("count-sync-bytes"));
 		registerDeviceManagerDebugCounters();
 	}
 
@@ -847,9 +1086,15 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 			throws FloodlightModuleException {
 		isMaster = (floodlightProvider.getRole() == HARole.ACTIVE);
 		primaryIndex = new DeviceUniqueIndex(entityClassifier.getKeyFields());
-		secondaryIndexMap = new HashMap<EnumSet<DeviceField>, DeviceIndex>();
+		secondaryIndexMap =
+				new ConcurrentHashMap<EnumSet<DeviceField>, DeviceIndex>();
+		for (EnumSet<DeviceField> fields : DEFAULT_INDICES) {
+			secondaryIndexMap.put(fields, new DeviceMultiIndex(fields));
+		}
 
 		deviceMap = new ConcurrentHashMap<Long, Device>();
+		expiryWheel = new EntityExpiryWheel(ENTITY_CLEANUP_INTERVAL * 1000L,
+				ENTITY_TIMEOUT, System.currentTimeMillis());
 		classStateMap =
 				new ConcurrentHashMap<String, ClassState>();
 		apComparator = new AttachmentPointComparator();
@@ -864,9 +1109,13 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		Runnable ecr = new Runnable() {
 			@Override
 			public void run() {
-				cleanupEntities();
-				entityCleanupTask.reschedule(ENTITY_CLEANUP_INTERVAL,
-						TimeUnit.SECONDS);
+				if (cleanupEntities()) {
+					entityCleanupTask.reschedule(ENTITY_CLEANUP_BACKLOG_DELAY_MS,
+							TimeUnit.MILLISECONDS);
+				} else {
+					entityCleanupTask.reschedule(ENTITY_CLEANUP_INTERVAL,
+							TimeUnit.SECONDS);
+				}
 			}
 		};
 		entityCleanupTask = new SingletonTask(ses, ecr);
@@ -886,6 +1135,22 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 			storeConsolidateTask.reschedule(syncStoreConsolidateIntervalMs,
 					TimeUnit.MILLISECONDS);
 
+		Runnable syncStoreFlushRunner = new Runnable() {
+			@Override
+			public void run() {
+				deviceSyncManager.flush();
+			}
+		};
+		syncStoreFlushTask = new SingletonTask(ses, syncStoreFlushRunner);
+
+		Runnable notificationRunner = new Runnable() {
+			@Override
+			public void run() {
+				flushNotifications();
+			}
+		};
+		notificationTask = new SingletonTask(ses, notificationRunner);
+
 
 		if (restApi != null) {
 			restApi.addRestletRoutable(new DeviceRoutable());
@@ -1015,6 +1280,48 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 				"transition-to-master",
 				"Number of times this controller has transitioned from SLAVE " +
 				"to MASTER role. Will be 0 or 1.");
+		cntQueryIndexed = debugCounters.registerCounter(PACKAGE,
+				"query-indexed",
+				"Number of device queries answered using an index");
+		cntQueryScanned = debugCounters.registerCounter(PACKAGE,
+				"query-scanned",
+				"Number of device queries that found no usable index and " +
+				"scanned all devices");
+		cntDeviceStoreUnchanged = debugCounters.registerCounter(PACKAGE,
+				"device-store-unchanged",
+				"Number of device writes to the sync store that were skipped " +
+				"because the synced entities had not changed since the last " +
+				"write");
+		cntSyncBatches = debugCounters.registerCounter(PACKAGE,
+				"sync-batches",
+				"Number of batches of device updates written to the sync store");
+		cntSyncBatchDevices = debugCounters.registerCounter(PACKAGE,
+				"sync-batch-devices",
+				"Total number of device writes and removals in sync store " +
+				"batches. Divide by sync-batches for the mean batch size");
+		cntNotificationBatches = debugCounters.registerCounter(PACKAGE,
+				"notification-batches",
+				"Number of batches of device notifications delivered to " +
+				"listeners");
+		cntNotificationBatchUpdates = debugCounters.registerCounter(PACKAGE,
+				"notification-batch-updates",
+				"Total number of device updates in notification batches, " +
+				"after coalescing");
+		cntNotificationsCoalesced = debugCounters.registerCounter(PACKAGE,
+				"notifications-coalesced",
+				"Number of device updates merged into an update already " +
+				"queued for the same device");
+		cntListenerNs = debugCounters.registerCounter(PACKAGE,
+				"listener-time-ns",
+				"Total time in nanoseconds spent in device listener callbacks");
+		cntLearnRetries = debugCounters.registerCounter(PACKAGE,
+				"learn-retries",
+				"Number of times learning a device from an entity was " +
+				"restarted because the device was concurrently modified");
+		cntSyncBytes = debugCounters.registerCounter(PACKAGE,
+				"sync-bytes",
+				"Number of serialized bytes of device entries written to the " +
+				"sync store, if count-sync-bytes is set");
 	}
 
 	// ***************
@@ -1419,196 +1726,215 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		LinkedList<DeviceUpdate> deviceUpdates = null;
 		Device device = null;
 
-		// we may need to restart the learning process if we detect
-		// concurrent modification.  Note that we ensure that at least
-		// one thread should always succeed so we don't get into infinite
-		// starvation loops
-		while (true) {
-			deviceUpdates = null;
-
-			// Look up the fully-qualified entity to see if it already
-			// exists in the primary entity index.
-			Long deviceKey = primaryIndex.findByEntity(entity);
-			IEntityClass entityClass = null;
-
-			if (deviceKey == null) {
-				// If the entity does not exist in the primary entity index,
-				// use the entity classifier for find the classes for the
-				// entity. Look up the entity in the returned class'
-				// class entity index.
-				entityClass = entityClassifier.classifyEntity(entity);
-				if (entityClass == null) {
-					// could not classify entity. No device
-					device = null;
-					break;
-				}
-				ClassState classState = getClassState(entityClass);
+		synchronized (getLearningLock(entity)) {
+			// we may need to restart the learning process if we detect
+			// concurrent modification.  Note that we ensure that at least
+			// one thread should always succeed so we don't get into infinite
+			// starvation loops. Learning for the same MAC is serialized by
+			// the stripe lock, so restarts only happen when the device is
+			// concurrently changed by cleanup, reclassification or learning
+			// of another MAC that maps to the same device.
+			while (true) {
+				deviceUpdates = null;
+
+				// Look up the fully-qualified entity to see if it already
+				// exists in the primary entity index.
+				Long deviceKey = primaryIndex.findByEntity(entity);
+				IEntityClass entityClass = null;
+
+				if (deviceKey == null) {
+					// If the entity does not exist in the primary entity index,
+					// use the entity classifier for find the classes for the
+					// entity. Look up the entity in the returned class'
+					// class entity index.
+					entityClass = entityClassifier.classifyEntity(entity);
+					if (entityClass == null) {
+						// could not classify entity. No device
+						device = null;
+						break;
+					}
+					ClassState classState = getClassState(entityClass);
 
-				if (classState.classIndex != null) {
-					deviceKey = classState.classIndex.findByEntity(entity);
-				}
-			}
-			if (deviceKey != null) {
-				// If the primary or secondary index contains the entity
-				// use resulting device key to look up the device in the
-				// device map, and use the referenced Device below.
-				device = deviceMap.get(deviceKey);
-				if (device == null) {
-					// This can happen due to concurrent modification
-					if (logger.isDebugEnabled()) {
-						logger.debug("No device for deviceKey {} while "
-								+ "while processing entity {}",
-								deviceKey, entity);
+					if (classState.classIndex != null) {
+						deviceKey = classState.classIndex.findByEntity(entity);
 					}
-					// if so, then try again till we don't even get the device key
-					// and so we recreate the device
-					continue;
 				}
-			} else {
-				// If the secondary index does not contain the entity,
-				// create a new Device object containing the entity, and
-				// generate a new device ID if the the entity is on an
-				// attachment point port. Otherwise ignore.
-				if (entity.hasSwitchPort() && !topology.isAttachmentPointPort(entity.getSwitchDPID(), entity.getSwitchPort())) {
-					cntDeviceOnInternalPortNotLearned.increment();
+				if (deviceKey != null) {
+					// If the primary or secondary index contains the entity
+					// use resulting device key to look up the device in the
+					// device map, and use the referenced Device below.
+					device = deviceMap.get(deviceKey);
+					if (device == null) {
+						// This can happen due to concurrent modification
+						if (logger.isDebugEnabled()) {
+							logger.debug("No device for deviceKey {} while "
+									+ "while processing entity {}",
+									deviceKey, entity);
+						}
+						// if so, then try again till we don't even get the device key
+						// and so we recreate the device
+						cntLearnRetries.increment();
+						continue;
+					}
+				} else {
+					// If the secondary index does not contain the entity,
+					// create a new Device object containing the entity, and
+					// generate a new device ID if the the entity is on an
+					// attachment point port. Otherwise ignore.
+					if (entity.hasSwitchPort() && !topology.isAttachmentPointPort(entity.getSwitchDPID(), entity.getSwitchPort())) {
+						cntDeviceOnInternalPortNotLearned.increment();
+						if (logger.isDebugEnabled()) {
+							logger.debug("Not learning new device on internal"
+									+ " link: {}", entity);
+						}
+						device = null;
+						break;
+					}
+					// Before we create the new device also check if
+					// the entity is allowed (e.g., for spoofing protection)
+					if (!isEntityAllowed(entity, entityClass)) {
+						cntPacketNotAllowed.increment();
+						if (logger.isDebugEnabled()) {
+							logger.debug("PacketIn is not allowed {} {}",
+									entityClass.getName(), entity);
+						}
+						device = null;
+						break;
+					}
+					deviceKey = deviceKeyCounter.getAndIncrement();
+					device = allocateDevice(deviceKey, entity, entityClass);
+
+
+					// Add the new device to the primary map with a simple put
+					deviceMap.put(deviceKey, device);
+					// update indices
+					if (!updateIndices(device, deviceKey)) {
+						if (deleteQueue == null)
+							deleteQueue = new ArrayList<Long>();
+						deleteQueue.add(deviceKey);
+						cntLearnRetries.increment();
+						continue;
+					}
+
+					updateSecondaryIndices(entity, entityClass, deviceKey);
+					scheduleEntityExpiry(deviceKey, entity);
+
+					// We need to count and log here. If we log earlier we could
+					// hit a concurrent modification and restart the dev creation
+					// and potentially count the device twice.
+					cntNewDevice.increment();
 					if (logger.isDebugEnabled()) {
-						logger.debug("Not learning new device on internal"
-								+ " link: {}", entity);
+						logger.debug("New device created: {} deviceKey={}, entity={}",
+								new Object[]{device, deviceKey, entity});
 					}
-					device = null;
+					// generate new device update
+					deviceUpdates = updateUpdates(deviceUpdates, new DeviceUpdate(device, ADD, null));
+
 					break;
 				}
-				// Before we create the new device also check if
-				// the entity is allowed (e.g., for spoofing protection)
-				if (!isEntityAllowed(entity, entityClass)) {
+				// if it gets here, we have a pre-existing Device for this Entity
+				if (!isEntityAllowed(entity, device.getEntityClass())) {
 					cntPacketNotAllowed.increment();
 					if (logger.isDebugEnabled()) {
-						logger.debug("PacketIn is not allowed {} {}",
-								entityClass.getName(), entity);
+						logger.info("PacketIn is not allowed {} {}",
+								device.getEntityClass().getName(), entity);
 					}
-					device = null;
-					break;
-				}
-				deviceKey = deviceKeyCounter.getAndIncrement();
-				device = allocateDevice(deviceKey, entity, entityClass);
-
-
-				// Add the new device to the primary map with a simple put
-				deviceMap.put(deviceKey, device);
-				// update indices
-				if (!updateIndices(device, deviceKey)) {
-					if (deleteQueue == null)
-						deleteQueue = new ArrayList<Long>();
-					deleteQueue.add(deviceKey);
-					continue;
-				}
-
-				updateSecondaryIndices(entity, entityClass, deviceKey);
-
-				// We need to count and log here. If we log earlier we could
-				// hit a concurrent modification and restart the dev creation
-				// and potentially count the device twice.
-				cntNewDevice.increment();
-				if (logger.isDebugEnabled()) {
-					logger.debug("New device created: {} deviceKey={}, entity={}",
-							new Object[]{device, deviceKey, entity});
+					return null;
 				}
-				// generate new device update
-				deviceUpdates = updateUpdates(deviceUpdates, new DeviceUpdate(device, ADD, null));
-
-				break;
-			}
-			// if it gets here, we have a pre-existing Device for this Entity
-			if (!isEntityAllowed(entity, device.getEntityClass())) {
-				cntPacketNotAllowed.increment();
-				if (logger.isDebugEnabled()) {
-					logger.info("PacketIn is not allowed {} {}",
-							device.getEntityClass().getName(), entity);
+				// If this is not an attachment point port we don't learn the new entity
+				// and don't update indexes. But we do allow the device to continue up
+				// the chain.
+				if (entity.hasSwitchPort() && !topology.isAttachmentPointPort(entity.getSwitchDPID(), entity.getSwitchPort())) {
+					cntPacketOnInternalPortForKnownDevice.increment();
+					break;
 				}
-				return null;
-			}
-			// If this is not an attachment point port we don't learn the new entity
-			// and don't update indexes. But we do allow the device to continue up
-			// the chain.
-			if (entity.hasSwitchPort() && !topology.isAttachmentPointPort(entity.getSwitchDPID(), entity.getSwitchPort())) {
-				cntPacketOnInternalPortForKnownDevice.increment();
-				break;
-			}
 			
-			int entityindex = -1;
-			if ((entityindex = device.entityIndex(entity)) >= 0) {
-				// Entity already exists
-				// update timestamp on the found entity
-				Date lastSeen = entity.getLastSeenTimestamp();
-				if (lastSeen.equals(Entity.NO_DATE)) {
-					lastSeen = new Date();
-					entity.setLastSeenTimestamp(lastSeen);
-				}
-				device.entities[entityindex].setLastSeenTimestamp(lastSeen);
-				// we break the loop after checking for changes to the AP
-			} else {
-				// New entity for this device
-				// compute the insertion point for the entity.
-				// see Arrays.binarySearch()
-				entityindex = -(entityindex + 1);
-				Device newDevice = allocateDevice(device, entity, entityindex);
-
-				// generate updates
-				EnumSet<DeviceField> changedFields = findChangedFields(device, entity);
-
-				// update the device map with a replace call
-				boolean res = deviceMap.replace(deviceKey, device, newDevice);
-				// If replace returns false, restart the process from the
-				// beginning (this implies another thread concurrently
-				// modified this Device).
-				if (!res)
-					continue;
-
-				device = newDevice;
-				// update indices
-				if (!updateIndices(device, deviceKey)) {
-					continue;
-				}
-				updateSecondaryIndices(entity,
-						device.getEntityClass(),
-						deviceKey);
-
-				// We need to count here after all the possible "continue"
-				// statements in this branch
-				cntNewEntity.increment();
-				if (changedFields.size() > 0) {
-					cntDeviceChanged.increment();
-					deviceUpdates =
-							updateUpdates(deviceUpdates,
-									new DeviceUpdate(newDevice, CHANGE,
-											changedFields));
-				}
-				// we break the loop after checking for changed AP
-			}
-			// Update attachment point (will only be hit if the device
-			// already existed and no concurrent modification)
-			if (entity.hasSwitchPort()) {
-				boolean moved = device.updateAttachmentPoint(entity.getSwitchDPID(),
-						entity.getSwitchPort(),
-						entity.getLastSeenTimestamp());
-				if (moved) {
-					// we count device moved events in sendDeviceMovedNotification()
-					// TODO remove this. It's now done in the event handler as a result of the update above... sendDeviceMovedNotification(device);
-					if (logger.isTraceEnabled()) {
-						logger.trace("Device moved: attachment points {}," +
-								"entities {}", device.attachmentPoints,
-								device.entities);
+				int entityindex = -1;
+				if ((entityindex = device.entityIndex(entity)) >= 0) {
+					// Entity already exists
+					// update timestamp on the found entity
+					Date lastSeen = entity.getLastSeenTimestamp();
+					if (lastSeen.equals(Entity.NO_DATE)) {
+						lastSeen = new Date();
+						entity.setLastSeenTimestamp(lastSeen);
 					}
+					Entity existing = device.entities[entityindex];
+					boolean wasNeverSeen = existing.getLastSeenTimestamp().equals(Entity.NO_DATE);
+					existing.setLastSeenTimestamp(lastSeen);
+					if (wasNeverSeen) {
+						// entities without a last-seen time never expire, so
+						// this one has not been scheduled yet
+						scheduleEntityExpiry(deviceKey, existing);
+					}
+					// we break the loop after checking for changes to the AP
 				} else {
-					if (logger.isTraceEnabled()) {
-						logger.trace("Device attachment point updated: " +
-								"attachment points {}," +
-								"entities {}", device.attachmentPoints,
-								device.entities);
+					// New entity for this device
+					// compute the insertion point for the entity.
+					// see Arrays.binarySearch()
+					entityindex = -(entityindex + 1);
+					Device newDevice = allocateDevice(device, entity, entityindex);
+
+					// generate updates
+					EnumSet<DeviceField> changedFields = findChangedFields(device, entity);
+
+					// update the device map with a replace call
+					boolean res = deviceMap.replace(deviceKey, device, newDevice);
+					// If replace returns false, restart the process from the
+					// beginning (this implies another thread concurrently
+					// modified this Device).
+					if (!res) {
+						cntLearnRetries.increment();
+						continue;
+					}
+
+					device = newDevice;
+					// update indices
+					if (!updateIndices(device, deviceKey)) {
+						cntLearnRetries.increment();
+						continue;
+					}
+					updateSecondaryIndices(entity,
+							device.getEntityClass(),
+							deviceKey);
+					scheduleEntityExpiry(deviceKey, entity);
+
+					// We need to count here after all the possible "continue"
+					// statements in this branch
+					cntNewEntity.increment();
+					if (changedFields.size() > 0) {
+						cntDeviceChanged.increment();
+						deviceUpdates =
+								updateUpdates(deviceUpdates,
+										new DeviceUpdate(newDevice, CHANGE,
+												changedFields));
+					}
+					// we break the loop after checking for changed AP
+				}
+				// Update attachment point (will only be hit if the device
+				// already existed and no concurrent modification)
+				if (entity.hasSwitchPort()) {
+					boolean moved = device.updateAttachmentPoint(entity.getSwitchDPID(),
+							entity.getSwitchPort(),
+							entity.getLastSeenTimestamp());
+					if (moved) {
+						// we count device moved events in sendDeviceMovedNotification()
+						// TODO remove this. It's now done in the event handler as a result of the update above... sendDeviceMovedNotification(device);
+						if (logger.isTraceEnabled()) {
+							logger.trace("Device moved: attachment points {}," +
+									"entities {}", device.attachmentPoints,
+									device.entities);
+						}
+					} else {
+						if (logger.isTraceEnabled()) {
+							logger.trace("Device attachment point updated: " +
+									"attachment points {}," +
+									"entities {}", device.attachmentPoints,
+									device.entities);
+						}
 					}
 				}
+				break;
 			}
-			break;
 		}
 
 		if (deleteQueue != null) {
@@ -1691,47 +2017,193 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 			} else {
 				deviceSyncManager.storeDevice(update.device);
 			}
-			List<IDeviceListener> listeners = deviceListeners.getOrderedListeners();
-			notifyListeners(listeners, update);
+			dispatchUpdate(update);
 		}
 	 }
 
-	 protected void notifyListeners(List<IDeviceListener> listeners, DeviceUpdate update) {
+	 /**
+	  * Deliver an update to the listeners now, or queue it for the next
+	  * notification batch if batching is enabled
+	  */
+	 private void dispatchUpdate(DeviceUpdate update) {
+		 if (notificationBatchIntervalMs <= 0 || notificationTask == null) {
+			 List<IDeviceListener> listeners = deviceListeners.getOrderedListeners();
+			 notifyListeners(listeners, update);
+			 return;
+		 }
+		 boolean wasEmpty;
+		 synchronized (pendingNotifications) {
+			 wasEmpty = pendingNotifications.isEmpty();
+			 Long key = update.device.getDeviceKey();
+			 DeviceUpdate merged = coalesceUpdates(pendingNotifications.get(key), update);
+			 if (merged == null) {
+				 pendingNotifications.remove(key);
+			 } else {
+				 pendingNotifications.put(key, merged);
+			 }
+		 }
+		 if (wasEmpty) {
+			 notificationTask.reschedule(notificationBatchIntervalMs,
+					 TimeUnit.MILLISECONDS);
+		 }
+	 }
+
+	 /**
+	  * Combine a pending update for a device with a newer one
+	  * @param pending the update already queued, or null
+	  * @param update the new update
+	  * @return the combined update, or null if the two cancel out
+	  */
+	 protected DeviceUpdate coalesceUpdates(DeviceUpdate pending,
+			 DeviceUpdate update) {
+		 if (pending == null) {
+			 return update;
+		 }
+		 cntNotificationsCoalesced.increment();
+		 switch (update.change) {
+		 case DELETE:
+			 // listeners never saw a device added in this window
+			 return pending.change == DeviceUpdate.Change.ADD ? null : update;
+		 case CHANGE:
+			 if (pending.change == DeviceUpdate.Change.DELETE) {
+				 return pending;
+			 }
+			 if (pending.change == DeviceUpdate.Change.ADD) {
+				 return new DeviceUpdate(update.device, DeviceUpdate.Change.ADD, null);
+			 }
+			 EnumSet<DeviceField> fields = EnumSet.copyOf(pending.fieldsChanged);
+			 fields.addAll(update.fieldsChanged);
+			 return new DeviceUpdate(update.device, DeviceUpdate.Change.CHANGE, fields);
+		 case ADD:
+		 default:
+			 return update;
+		 }
+	 }
+
+	 /**
+	  * Deliver the queued device updates. Batch listeners get one call
+	  * for the whole batch; other listeners get the individual callbacks.
+	  */
+	 protected void flushNotifications() {
+		 List<DeviceUpdate> batch;
+		 synchronized (pendingNotifications) {
+			 if (pendingNotifications.isEmpty()) {
+				 return;
+			 }
+			 batch = new ArrayList<DeviceUpdate>(pendingNotifications.values());
+			 pendingNotifications.clear();
+		 }
+		 cntNotificationBatches.increment();
+		 cntNotificationBatchUpdates.add(batch.size());
+
+		 List<IDeviceListener> listeners = deviceListeners.getOrderedListeners();
 		 if (listeners == null) {
 			 return;
 		 }
+		 List<IDevice> added = null;
+		 Map<IDevice, EnumSet<DeviceField>> changed = null;
+		 List<IDevice> removed = null;
 		 for (IDeviceListener listener : listeners) {
-			 switch (update.change) {
-			 case ADD:
-				 listener.deviceAdded(update.device);
-				 break;
-			 case DELETE:
-				 listener.deviceRemoved(update.device);
-				 break;
-			 case CHANGE:
-				 for (DeviceField field : update.fieldsChanged) {
-					 switch (field) {
-					 case IPv4:
-						 listener.deviceIPV4AddrChanged(update.device);
-						 break;
-					 case IPv6:
-						 listener.deviceIPV6AddrChanged(update.device);
-						 break;
-					 case SWITCH:
-					 case PORT:
-						 listener.deviceMoved(update.device); // TODO why was this commented out?
-						 break;
-					 case VLAN:
-						 listener.deviceVlanChanged(update.device);
-						 break;
-					 default:
-						 logger.debug("Unknown device field changed {}",
-								 update.fieldsChanged.toString());
-						 break;
+			 long start = System.nanoTime();
+			 if (listener instanceof IDeviceBatchListener) {
+				 if (added == null) {
+					 added = new ArrayList<IDevice>();
+					 changed = new LinkedHashMap<IDevice, EnumSet<DeviceField>>();
+					 removed = new ArrayList<IDevice>();
+					 for (DeviceUpdate update : batch) {
+						 switch (update.change) {
+						 case ADD:
+							 added.add(update.device);
+							 break;
+						 case CHANGE:
+							 changed.put(update.device, update.fieldsChanged);
+							 break;
+						 case DELETE:
+							 removed.add(update.device);
+							 break;
+						 }
 					 }
+					 added = Collections.unmodifiableList(added);
+					 changed = Collections.unmodifiableMap(changed);
+					 removed = Collections.unmodifiableList(removed);
+				 }
+				 ((IDeviceBatchListener) listener).devicesChanged(added, changed, removed);
+			 } else {
+				 for (DeviceUpdate update : batch) {
+					 notifyListener(listener, update);
+				 }
+			 }
+			 recordListenerTime(listener, System.nanoTime() - start);
+		 }
+	 }
+
+	 private void recordListenerTime(IDeviceListener listener, long ns) {
+		 cntListenerNs.add(ns);
+		 AtomicLong total = listenerTimeNs.get(listener.getName());
+		 if (total == null) {
+			 total = new AtomicLong();
+			 AtomicLong old = listenerTimeNs.putIfAbsent(listener.getName(), total);
+			 if (old != null) {
+				 total = old;
+			 }
+		 }
+		 total.addAndGet(ns);
+	 }
+
+	 /**
+	  * Get the time spent in each device listener
+	  * @return a snapshot of total nanoseconds spent, by listener name
+	  */
+	 public Map<String, Long> getListenerTimeNs() {
+		 Map<String, Long> times = new HashMap<String, Long>();
+		 for (Map.Entry<String, AtomicLong> e : listenerTimeNs.entrySet()) {
+			 times.put(e.getKey(), e.getValue().get());
+		 }
+		 return times;
+	 }
+
+	 protected void notifyListeners(List<IDeviceListener> listeners, DeviceUpdate update) {
+		 if (listeners == null) {
+			 return;
+		 }
+		 for (IDeviceListener listener : listeners) {
+			 long start = System.nanoTime();
+			 notifyListener(listener, update);
+			 recordListenerTime(listener, System.nanoTime() - start);
+		 }
+	 }
+
+	 private void notifyListener(IDeviceListener listener, DeviceUpdate update) {
+		 switch (update.change) {
+		 case ADD:
+			 listener.deviceAdded(update.device);
+			 break;
+		 case DELETE:
+			 listener.deviceRemoved(update.device);
+			 break;
+		 case CHANGE:
+			 for (DeviceField field : update.fieldsChanged) {
+				 switch (field) {
+				 case IPv4:
+					 listener.deviceIPV4AddrChanged(update.device);
+					 break;
+				 case IPv6:
+					 listener.deviceIPV6AddrChanged(update.device);
+					 break;
+				 case SWITCH:
+				 case PORT:
+					 listener.deviceMoved(update.device); // TODO why was this commented out?
+					 break;
+				 case VLAN:
+					 listener.deviceVlanChanged(update.device);
+					 break;
+				 default:
+					 logger.debug("Unknown device field changed {}",
+							 update.fieldsChanged.toString());
+					 break;
 				 }
-				 break;
 			 }
+			 break;
 		 }
 	 }
 
@@ -1847,24 +2319,71 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	 }
 
 	 /**
-	  * Clean up expired entities/devices
+	  * Get the lock that serializes learning for the entity's MAC address
+	  */
+	 private Object getLearningLock(Entity entity) {
+		 long mac = entity.getMacAddress().getLong();
+		 int h = (int) (mac ^ (mac >>> 32));
+		 h ^= h >>> 16;
+		 return learningLocks[h & (LEARNING_LOCK_STRIPES - 1)];
+	 }
+
+	 /**
+	  * Schedule a check of the given device for when the given entity
+	  * expires. Entities without a last-seen time never expire.
+	  * @param deviceKey the device the entity belongs to
+	  * @param entity the entity
+	  */
+	 private void scheduleEntityExpiry(Long deviceKey, Entity entity) {
+		 Date lastSeen = entity.getLastSeenTimestamp();
+		 if (lastSeen == null || lastSeen.equals(Entity.NO_DATE))
+			 return;
+		 expiryWheel.schedule(deviceKey, lastSeen.getTime() + ENTITY_TIMEOUT);
+	 }
+
+	 /**
+	  * Schedule a check of the given device for when its oldest entity
+	  * expires
+	  * @param d the device
+	  */
+	 private void scheduleEntityExpiry(Device d) {
+		 long oldest = Long.MAX_VALUE;
+		 for (Entity e : d.getEntities()) {
+			 Date lastSeen = e.getLastSeenTimestamp();
+			 if (lastSeen != null && !lastSeen.equals(Entity.NO_DATE)
+					 && lastSeen.getTime() < oldest) {
+				 oldest = lastSeen.getTime();
+			 }
+		 }
+		 if (oldest != Long.MAX_VALUE)
+			 expiryWheel.schedule(d.getDeviceKey(), oldest + ENTITY_TIMEOUT);
+	 }
+
+	 /**
+	  * Clean up expired entities/devices. Only devices whose slot in the
+	  * expiry wheel is due are visited, at most ENTITY_CLEANUP_MAX_DEVICES
+	  * per call.
+	  * @return true if more devices are due and the caller should run
+	  * cleanup again soon
 	  */
-	 protected void cleanupEntities () {
+	 protected boolean cleanupEntities () {
 		 cntCleanupEntitiesRuns.increment();
 
-		 Calendar c = Calendar.getInstance();
-		 c.add(Calendar.MILLISECOND, -ENTITY_TIMEOUT);
-		 Date cutoff = c.getTime();
+		 long now = System.currentTimeMillis();
+		 Date cutoff = new Date(now - ENTITY_TIMEOUT);
 
 		 ArrayList<Entity> toRemove = new ArrayList<Entity>();
 		 ArrayList<Entity> toKeep = new ArrayList<Entity>();
 
-		 Iterator<Device> diter = deviceMap.values().iterator();
+		 List<Long> dueKeys = new ArrayList<Long>();
+		 expiryWheel.pollDue(now, ENTITY_CLEANUP_MAX_DEVICES, dueKeys);
 		 LinkedList<DeviceUpdate> deviceUpdates =
 				 new LinkedList<DeviceUpdate>();
 
-		 while (diter.hasNext()) {
-			 Device d = diter.next();
+		 for (Long dueKey : dueKeys) {
+			 Device d = deviceMap.get(dueKey);
+			 if (d == null)
+				 continue;
 
 			 while (true) {
 				 deviceUpdates.clear();
@@ -1938,7 +2457,13 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 				 processUpdates(deviceUpdates);
 				 break;
 			 }
+
+			 // check again when the oldest remaining entity expires
+			 d = deviceMap.get(dueKey);
+			 if (d != null)
+				 scheduleEntityExpiry(d);
 		 }
+		 return expiryWheel.hasDue(now);
 	 }
 
 	 protected void removeEntity(Entity removed,
@@ -2100,12 +2625,8 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 	 protected void sendDeviceMovedNotification(Device d) {
 		 cntDeviceMoved.increment();
 		 deviceSyncManager.storeDevice(d);
-		 List<IDeviceListener> listeners = deviceListeners.getOrderedListeners();
-		 if (listeners != null) {
-			 for (IDeviceListener listener : listeners) {
-				 listener.deviceMoved(d);
-			 }
-		 }
+		 dispatchUpdate(new DeviceUpdate(d, DeviceUpdate.Change.CHANGE,
+				 EnumSet.of(DeviceField.SWITCH)));
 	 }
 
 	 // *********************
@@ -2198,10 +2719,32 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		 this.storeConsolidateTask.reschedule(0, TimeUnit.MILLISECONDS);
 	 }
 
+	 /**
+	  * For testing: sets the window over which writes to the device store
+	  * are batched
+	  * @param intervalMs
+	  */
+	 void setSyncStoreBatchInterval(int intervalMs) {
+		 this.syncStoreBatchIntervalMs = intervalMs;
+	 }
+
+	 /**
+	  * For testing: write all pending device updates to the store NOW
+	  */
+	 void flushSyncStoreNow() {
+		 this.deviceSyncManager.flush();
+	 }
+
 	 private class DeviceSyncManager  {
 		 // maps (opaque) deviceKey to the time in System.nanoTime() when we
 		 // last wrote the device to the sync store
 		 private final ConcurrentMap<Long, Long> lastWriteTimes = new ConcurrentHashMap<Long, Long>();
+		 // maps store key to the device to write at the next flush, or to
+		 // null if the entry is to be deleted. Guarded by itself.
+		 private final Map<String, Device> pendingWrites = new LinkedHashMap<String, Device>();
+		 // maps store key to the signature of the last entry we wrote
+		 private final ConcurrentMap<String, long[]> lastSignatures = new ConcurrentHashMap<String, long[]>();
+		 private final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
 
 		 /**
 		  * Write the given device to storage if we are MASTER.
@@ -2215,7 +2758,7 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 			 if (d == null)
 				 return;
 			 long now = System.nanoTime();
-			 writeUpdatedDeviceToStorage(d);
+			 enqueue(DeviceSyncRepresentation.computeKey(d), d);
 			 lastWriteTimes.put(d.getDeviceKey(), now);
 		 }
 
@@ -2235,7 +2778,7 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 			 long now = System.nanoTime();
 			 Long last = lastWriteTimes.get(d.getDeviceKey());
 			 if (last == null || (now - last) > intervalNs) {
-				 writeUpdatedDeviceToStorage(d);
+				 enqueue(DeviceSyncRepresentation.computeKey(d), d);
 				 lastWriteTimes.put(d.getDeviceKey(), now);
 			 } else {
 				 cntDeviceStoreThrottled.increment();
@@ -2255,17 +2798,65 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 			 // hashMap? I.e., we write a stale entry to the map after the
 			 // delete and now are left with an entry we'll never clean up
 			 lastWriteTimes.remove(d.getDeviceKey());
+			 enqueue(DeviceSyncRepresentation.computeKey(d), null);
+		 }
+
+		 /**
+		  * Queue a write or delete of the given store entry for the next
+		  * flush, replacing any operation already queued for it.
+		  * @param key the store key
+		  * @param d the device to write, or null to delete the entry
+		  */
+		 private void enqueue(String key, Device d) {
+			 boolean wasEmpty;
+			 synchronized (pendingWrites) {
+				 wasEmpty = pendingWrites.isEmpty();
+				 pendingWrites.put(key, d);
+			 }
+			 if (wasEmpty && syncStoreFlushTask != null) {
+				 syncStoreFlushTask.reschedule(syncStoreBatchIntervalMs,
+						 TimeUnit.MILLISECONDS);
+			 }
+		 }
+
+		 /**
+		  * Write all queued device updates to the store. Serialized so that
+		  * a caller returns only after any batch in progress is written.
+		  */
+		 private synchronized void flush() {
+			 Map<String, Device> batch;
+			 synchronized (pendingWrites) {
+				 if (pendingWrites.isEmpty())
+					 return;
+				 batch = new LinkedHashMap<String, Device>(pendingWrites);
+				 pendingWrites.clear();
+			 }
+			 if (!isMaster)
+				 return;
+			 cntSyncBatches.increment();
+			 cntSyncBatchDevices.add(batch.size());
+			 for (Map.Entry<String, Device> entry : batch.entrySet()) {
+				 if (entry.getValue() == null) {
+					 deleteFromStorage(entry.getKey());
+				 } else {
+					 writeUpdatedDeviceToStorage(entry.getValue());
+				 }
+			 }
+		 }
+
+		 private void deleteFromStorage(String key) {
+			 lastSignatures.remove(key);
 			 try {
 				 // TODO: should probably do versioned delete. OTOH, even
 				 // if we accidentally delete, we'll write it again after
 				 // the next entity ....
 				 cntDeviceRemovedFromStore.increment();
-				 storeClient.delete(DeviceSyncRepresentation.computeKey(d));
+				 storeClient.delete(key);
 			 } catch(ObsoleteVersionException e) {
 				 // FIXME
 			 } catch (SyncException e) {
 				 cntSyncException.increment();
-				 logger.error("Could not remove device " + d + " from store", e);
+				 logger.error("Could not remove device " + key + " from store", e);
 			 }
 		 }
 
@@ -2275,6 +2866,7 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		  * @param syncedDeviceKey
 		  */
 		 private void removeDevice(Versioned<DeviceSyncRepresentation> dev) {
+			 lastSignatures.remove(dev.getValue().getKey());
 			 try {
 				 cntDeviceRemovedFromStore.increment();
 				 storeClient.delete(dev.getValue().getKey(),
@@ -2298,6 +2890,8 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 				 logger.debug("Transitioning to MASTER role");
 			 }
 			 cntTransitionToMaster.increment();
+			 // another controller may have written the store since we last did
+			 lastSignatures.clear();
 			 IClosableIterator<Map.Entry<String,Versioned<DeviceSyncRepresentation>>>
 			 iter = null;
 			 try {
@@ -2335,10 +2929,21 @@ public class DeviceManagerImpl implements IDeviceService, IOFMessageListener, IT
 		  */
 		 private void writeUpdatedDeviceToStorage(Device device) {
 			 try {
+				 DeviceSyncRepresentation storeDevice = new DeviceSyncRepresentation(device);
+				 // Only write if an entity changed or a last-seen time
+				 // moved to a new write interval
+				 long[] signature = storeDevice.signature(syncStoreWriteIntervalMs);
+				 if (Arrays.equals(lastSignatures.get(storeDevice.getKey()), signature)) {
+					 cntDeviceStoreUnchanged.increment();
+					 return;
+				 }
 				 cntDeviceStrored.increment();
 				 // FIXME: use a versioned put
-				 DeviceSyncRepresentation storeDevice = new DeviceSyncRepresentation(device);
 				 storeClient.put(storeDevice.getKey(), storeDevice);
+				 lastSignatures.put(storeDevice.getKey(), signature);
+				 if (countSyncBytes) {
+					 cntSyncBytes.add(mapper.writeValueAsBytes(storeDevice).length);
+				 }
 			 } catch (ObsoleteVersionException e) {
 				 // FIXME: what's the right behavior here. Can the store client
 				 // even throw this error?
@@ -172,6 +172,35 @@ public class DeviceSyncRepresentation {
 		}
 	}
 
+	/**
+	 * The synced contents of the entities, in which last-seen times are
+	 * truncated to the given granularity. Two representations of the same
+	 * device with equal signatures differ at most in last-seen times
+	 * within the same interval.
+	 * @param timeGranularityMs granularity for last-seen times
+	 * @return the signature, to compare with {@link Arrays#equals(long[], long[])}
+	 */
+	public long[] signature(long timeGranularityMs) {
+		if (entities == null)
+			return new long[0];
+		if (timeGranularityMs < 1)
+			timeGranularityMs = 1;
+		long[] sig = new long[entities.size() * 7];
+		int i = 0;
+		for (SyncEntity se : entities) {
+			sig[i++] = se.macAddress;
+			sig[i++] = se.ipv4Address;
+			sig[i++] = se.vlan;
+			sig[i++] = se.switchDPID;
+			sig[i++] = se.switchPort;
+			sig[i++] = se.lastSeenTimestamp == null ? -1 :
+				se.lastSeenTimestamp.getTime() / timeGranularityMs;
+			sig[i++] = se.activeSince == null ? -1 :
+				se.activeSince.getTime();
+		}
+		return sig;
+	}
+
 	@Override
 	public String toString() {
 		return key;
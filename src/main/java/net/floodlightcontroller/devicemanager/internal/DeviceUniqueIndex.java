@@ -20,26 +20,64 @@ package net.floodlightcontroller.devicemanager.internal;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+import net.floodlightcontroller.util.ConcurrentLongLongMap;
 
 /**
  * An index that maps key fields of an entity uniquely to a device key
  */
 public class DeviceUniqueIndex extends DeviceIndex {
     /**
-     * The index
+     * VLAN bits of a packed MAC/VLAN key used when the entity has no VLAN
+     * ("don't care"); distinct from any 12-bit VLAN ID including untagged
+     */
+    private static final long NULL_VLAN = 0xffffL;
+
+    /**
+     * The index, used if the key fields cannot be packed into a long
      */
     private final ConcurrentHashMap<IndexedEntity, Long> index;
 
+    /**
+     * The index keyed on packed (MAC << 16 | VLAN), used if the key fields
+     * are MAC or MAC and VLAN. Avoids allocating an {@link IndexedEntity}
+     * and boxing per lookup.
+     */
+    private final ConcurrentLongLongMap macVlanIndex;
+    private final boolean keyHasVlan;
+
     /**
      * Construct a new device index using the provided key fields
      * @param keyFields the key fields to use
      */
     public DeviceUniqueIndex(EnumSet<DeviceField> keyFields) {
         super(keyFields);
-        index = new ConcurrentHashMap<IndexedEntity, Long>();
+        if (keyFields.contains(DeviceField.MAC) &&
+                EnumSet.of(DeviceField.MAC, DeviceField.VLAN).containsAll(keyFields)) {
+            index = null;
+            macVlanIndex = new ConcurrentLongLongMap();
+            keyHasVlan = keyFields.contains(DeviceField.VLAN);
+        } else {
+            index = new ConcurrentHashMap<IndexedEntity, Long>();
+            macVlanIndex = null;
+            keyHasVlan = false;
+        }
+    }
+
+    /**
+     * Pack the MAC and (if a key field) VLAN of an entity into a long
+     * @param entity
+     * @return the packed key
+     */
+    private long packMacVlan(Entity entity) {
+        long vlan = 0;
+        if (keyHasVlan) {
+            vlan = entity.vlan == null ? NULL_VLAN : entity.vlan.getVlan() & 0xfff;
+        }
+        return (entity.macAddress.getLong() << 16) | vlan;
     }
 
     // ***********
@@ -57,12 +95,41 @@ public class DeviceUniqueIndex extends DeviceIndex {
 
     @Override
     public Iterator<Long> getAll() {
+        if (macVlanIndex != null) {
+            final long[] keys = macVlanIndex.values();
+            return new Iterator<Long>() {
+                private int i = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return i < keys.length;
+                }
+
+                @Override
+                public Long next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    return keys[i++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
         return index.values().iterator();
     }
 
     @Override
     public boolean updateIndex(Device device, Long deviceKey) {
         for (Entity e : device.entities) {
+            if (macVlanIndex != null) {
+                long ret = macVlanIndex.putIfAbsent(packMacVlan(e), deviceKey);
+                if (ret != ConcurrentLongLongMap.NO_VALUE && ret != deviceKey) {
+                    return false;
+                }
+                continue;
+            }
             IndexedEntity ie = new IndexedEntity(keyFields, e);
             if (!ie.hasNonZeroOrNonNullKeys()) continue;
 
@@ -79,6 +146,10 @@ public class DeviceUniqueIndex extends DeviceIndex {
 
     @Override
     public boolean updateIndex(Entity entity, Long deviceKey) {
+        if (macVlanIndex != null) {
+            macVlanIndex.put(packMacVlan(entity), deviceKey);
+            return true;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         if (!ie.hasNonZeroOrNonNullKeys()) return false;
         index.put(ie, deviceKey);
@@ -87,12 +158,20 @@ public class DeviceUniqueIndex extends DeviceIndex {
 
     @Override
     public void removeEntity(Entity entity) {
+        if (macVlanIndex != null) {
+            macVlanIndex.remove(packMacVlan(entity));
+            return;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         index.remove(ie);
     }
 
     @Override
     public void removeEntity(Entity entity, Long deviceKey) {
+        if (macVlanIndex != null) {
+            macVlanIndex.remove(packMacVlan(entity), deviceKey);
+            return;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         index.remove(ie, deviceKey);
     }
@@ -107,10 +186,26 @@ public class DeviceUniqueIndex extends DeviceIndex {
      * @return The key for the {@link Device} object if found
      */
     public Long findByEntity(Entity entity) {
+        if (macVlanIndex != null) {
+            long deviceKey = macVlanIndex.get(packMacVlan(entity));
+            if (deviceKey == ConcurrentLongLongMap.NO_VALUE)
+                return null;
+            return deviceKey;
+        }
         IndexedEntity ie = new IndexedEntity(keyFields, entity);
         Long deviceKey = index.get(ie);
         if (deviceKey == null)
             return null;
         return deviceKey;
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the number of entries in the index
+     */
+    public int size() {
+        if (macVlanIndex != null) {
+            return macVlanIndex.size();
+        }
+        return index.size();
+    }
+}
@@ -0,0 +1,145 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A timing wheel of device keys, bucketed by the time at which the device
+ * may next have an entity due to expire. The wheel is a ring of slots of
+ * fixed width that spans the entity timeout, so every deadline that can
+ * occur in practice has a slot; earlier deadlines go in the current slot
+ * and later ones in the last.
+ *
+ * A device is kept in at most one slot at a time. Scheduling a device
+ * that is already in the wheel only moves it to an earlier slot. A device
+ * whose entities were refreshed after it was scheduled is simply found
+ * not to be expired when its slot comes due and is scheduled again, so
+ * last-seen updates never touch the wheel.
+ */
+public class EntityExpiryWheel {
+    private final long slotMs;
+    private final List<Set<Long>> slots;
+    /* device key to the slot tick it is scheduled in */
+    private final Map<Long, Long> scheduled;
+    /* tick of the first slot not yet drained */
+    private long cursor;
+
+    /**
+     * @param slotMs width of each slot in milliseconds
+     * @param horizonMs the furthest in the future a deadline can be
+     * @param nowMs the current time
+     */
+    public EntityExpiryWheel(long slotMs, long horizonMs, long nowMs) {
+        this.slotMs = slotMs < 1 ? 1 : slotMs;
+        int n = (int) (horizonMs / this.slotMs) + 2;
+        this.slots = new ArrayList<Set<Long>>(n);
+        for (int i = 0; i < n; i++) {
+            slots.add(new LinkedHashSet<Long>());
+        }
+        this.scheduled = new HashMap<Long, Long>();
+        this.cursor = nowMs / this.slotMs;
+    }
+
+    /**
+     * Schedule a device to be checked at the given time, unless it is
+     * already scheduled no later than that.
+     * @param deviceKey the device key
+     * @param expiryMs the time at which its oldest entity expires
+     */
+    public synchronized void schedule(Long deviceKey, long expiryMs) {
+        long tick = expiryMs / slotMs;
+        if (tick < cursor) {
+            tick = cursor;
+        } else if (tick >= cursor + slots.size()) {
+            tick = cursor + slots.size() - 1;
+        }
+        Long current = scheduled.get(deviceKey);
+        if (current != null && current <= tick) {
+            return;
+        }
+        scheduled.put(deviceKey, tick);
+        slots.get((int) (tick % slots.size())).add(deviceKey);
+    }
+
+    /**
+     * Remove the devices due at the given time, up to a limit. Devices
+     * not returned because of the limit stay due.
+     * @param nowMs the current time
+     * @param max the maximum number of devices to return
+     * @param due collection the due device keys are added to
+     * @return the number of device keys added
+     */
+    public synchronized int pollDue(long nowMs, int max,
+                                    Collection<Long> due) {
+        long nowTick = nowMs / slotMs;
+        int n = 0;
+        while (cursor <= nowTick && n < max) {
+            Set<Long> slot = slots.get((int) (cursor % slots.size()));
+            Iterator<Long> it = slot.iterator();
+            while (it.hasNext() && n < max) {
+                Long deviceKey = it.next();
+                it.remove();
+                Long tick = scheduled.get(deviceKey);
+                // otherwise a stale entry for a device that was moved to an
+                // earlier slot and has been handled since
+                if (tick != null && tick == cursor) {
+                    scheduled.remove(deviceKey);
+                    due.add(deviceKey);
+                    n++;
+                }
+            }
+            if (!slot.isEmpty()) {
+                break;
+            }
+            cursor++;
+        }
+        return n;
+    }
+
+    /**
+     * @return true if devices are due at the given time
+     */
+    public synchronized boolean hasDue(long nowMs) {
+        long nowTick = nowMs / slotMs;
+        for (long t = cursor; t <= nowTick && t < cursor + slots.size(); t++) {
+            if (!slots.get((int) (t % slots.size())).isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of devices scheduled
+     */
+    public synchronized int size() {
+        return scheduled.size();
+    }
+
+    public synchronized void clear() {
+        for (Set<Long> slot : slots) {
+            slot.clear();
+        }
+        scheduled.clear();
+    }
+}
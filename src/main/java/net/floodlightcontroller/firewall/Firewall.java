@@ -51,6 +51,8 @@ import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.util.AppCookie;
 import net.floodlightcontroller.core.IFloodlightProviderService;
+import net.floodlightcontroller.debugcounter.IDebugCounter;
+import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 
 import java.util.ArrayList;
@@ -62,6 +64,7 @@ import net.floodlightcontroller.packet.UDP;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.IRoutingDecision;
 import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.routing.MatchDependencies;
 import net.floodlightcontroller.routing.RoutingDecision;
 import net.floodlightcontroller.storage.IResultSet;
 import net.floodlightcontroller.storage.IStorageSourceService;
@@ -97,9 +100,19 @@ IFloodlightModule {
 	protected IStorageSourceService storageSource;
 	protected IRestApiService restApi;
 	protected IRoutingService routingService;
+	protected IDebugCounterService debugCounterService;
 	protected static Logger logger;
 
 	protected List<FirewallRule> rules; // protected by synchronized
+	// compiled from rules whenever they change; read without locking
+	protected volatile FirewallClassifier classifier = FirewallClassifier.EMPTY;
+	// decisions for flows already seen; invalidated whenever the rules change
+	protected FirewallVerdictCache verdicts = new FirewallVerdictCache(FirewallVerdictCache.DEFAULT_CAPACITY);
+
+	private final String PACKAGE = Firewall.class.getPackage().getName();
+	private IDebugCounter counterVerdictHits;
+	private IDebugCounter counterVerdictMisses;
+	private IDebugCounter counterLookupNs;
 	protected boolean enabled;
 	protected IPv4Address subnet_mask = IPv4Address.of("255.255.255.0");
 
@@ -178,6 +191,7 @@ IFloodlightModule {
 		l.add(IStorageSourceService.class);
 		l.add(IRestApiService.class);
 		l.add(IRoutingService.class);
+		l.add(IDebugCounterService.class);
 		return l;
 	}
 
@@ -297,6 +311,7 @@ IFloodlightModule {
 		storageSource = context.getServiceImpl(IStorageSourceService.class);
 		restApi = context.getServiceImpl(IRestApiService.class);
 		routingService = context.getServiceImpl(IRoutingService.class);
+		debugCounterService = context.getServiceImpl(IDebugCounterService.class);
 		rules = new ArrayList<FirewallRule>();
 		logger = LoggerFactory.getLogger(Firewall.class);
 
@@ -316,6 +331,21 @@ IFloodlightModule {
 		storageSource.createTable(TABLE_NAME, null);
 		storageSource.setTablePrimaryKeyName(TABLE_NAME, COLUMN_RULEID);
 		this.rules = readRulesFromStorage();
+		this.classifier = new FirewallClassifier(this.rules);
+		this.verdicts.invalidate();
+
+		registerFirewallDebugCounters();
+	}
+
+	private void registerFirewallDebugCounters() {
+		debugCounterService.registerModule(PACKAGE);
+		counterVerdictHits = debugCounterService.registerCounter(PACKAGE, "verdict-cache-hits",
+				"Packet-ins given a decision already made for their flow");
+		counterVerdictMisses = debugCounterService.registerCounter(PACKAGE, "verdict-cache-misses",
+				"Packet-ins decided by trying the rules");
+		counterLookupNs = debugCounterService.registerCounter(PACKAGE, "lookup-ns",
+				"Total time in nanoseconds spent deciding packet-ins. Divide by "
+				+ "verdict-cache-hits plus verdict-cache-misses for the mean");
 	}
 
 	@Override
@@ -413,6 +443,8 @@ IFloodlightModule {
 		} else {
 			this.rules.add(rule);
 		}
+		this.classifier = new FirewallClassifier(this.rules);
+		this.verdicts.invalidate();
 		// add rule to database
 		Map<String, Object> entry = new HashMap<String, Object>();
 		entry.put(COLUMN_RULEID, Integer.toString(rule.ruleid));
@@ -466,6 +498,8 @@ IFloodlightModule {
 				break;
 			}
 		}
+		this.classifier = new FirewallClassifier(this.rules);
+		this.verdicts.invalidate();
 		// delete from database
 		storageSource.deleteRow(TABLE_NAME, Integer.toString(ruleid));
 		
@@ -501,7 +535,11 @@ IFloodlightModule {
 	 * rules of the opposite type). So, to ensure that wildcards are
 	 * appropriately set for different types of rules (allow vs. deny), separate
 	 * wildcards are maintained. Iteration is performed on the sorted list of
-	 * rules (sorted in decreasing order of priority).
+	 * rules (sorted in decreasing order of priority). The iteration is done by
+	 * the compiled {@link FirewallClassifier}, which finds the same rule and
+	 * builds the same wildcards while trying only the rules that could match.
+	 * Flows already decided under the current rules are answered from the
+	 * {@link FirewallVerdictCache} without trying them again.
 	 * 
 	 * @param sw
 	 *            the switch instance
@@ -513,26 +551,34 @@ IFloodlightModule {
 	 *         and the wildcards for the firewall decision
 	 */
 	protected RuleMatchPair matchWithRule(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx) {
-		FirewallRule matched_rule = null;
+		long start = System.nanoTime();
 		Ethernet eth = IFloodlightProviderService.bcStore.get(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
-		AllowDropPair adp = new AllowDropPair(sw.getOFFactory());
-
-		synchronized (rules) {
-			Iterator<FirewallRule> iter = this.rules.iterator();
-			FirewallRule rule = null;
-			// iterate through list to find a matching firewall rule
-			while (iter.hasNext()) {
-				// get next rule from list
-				rule = iter.next();
-
-				// check if rule matches
-				// AllowDropPair adp's allow and drop matches will modified with what matches
-				if (rule.matchesThisPacket(sw.getId(), (pi.getVersion().compareTo(OFVersion.OF_12) < 0 ? pi.getInPort() : pi.getMatch().get(MatchField.IN_PORT)), eth, adp) == true) {
-					matched_rule = rule;
-					break;
-				}
-			}
+		OFPort inPort = (pi.getVersion().compareTo(OFVersion.OF_12) < 0 ? pi.getInPort() : pi.getMatch().get(MatchField.IN_PORT));
+
+		// read before the rules, so a verdict is never filed under a newer generation than its rules
+		long generation = verdicts.getGeneration();
+		FirewallVerdictCache.Key key = new FirewallVerdictCache.Key(sw.getId(), inPort, eth);
+		FirewallVerdictCache.Verdict verdict = verdicts.get(key, generation);
+		if (verdict != null) {
+			counterVerdictHits.increment();
+		} else {
+			counterVerdictMisses.increment();
+			verdict = evaluateRules(sw, pi, inPort, eth, generation);
+			verdicts.put(key, verdict);
 		}
+		// whatever the outcome, flows for this packet must keep the fields the rules tried look at
+		MatchDependencies.get(cntx).addAll(verdict.dependencies);
+		counterLookupNs.add(System.nanoTime() - start);
+		return verdict.rmp;
+	}
+
+	private FirewallVerdictCache.Verdict evaluateRules(IOFSwitch sw, OFPacketIn pi, OFPort inPort, Ethernet eth, long generation) {
+		// no lock needed: the classifier is replaced, never changed, when the rules are
+		FirewallClassifier c = classifier;
+		int index = c.classify(sw.getId(), inPort, eth, sw.getOFFactory());
+		FirewallRule matched_rule = index < 0 ? null : c.getRule(index);
+		// the allow and drop matches are those a walk of the rules up to the match would build
+		AllowDropPair adp = index < 0 ? null : c.getWildcards(index, sw.getId(), inPort, eth, sw.getOFFactory());
 
 		// make a pair of rule and wildcards, then return it
 		RuleMatchPair rmp = new RuleMatchPair();
@@ -574,7 +620,7 @@ IFloodlightModule {
 		} else {
 			rmp.match = adp.allow.build();
 		}
-		return rmp;
+		return new FirewallVerdictCache.Verdict(generation, rmp, c.getDependencies(index));
 	}
 
 	/**
@@ -618,6 +664,9 @@ IFloodlightModule {
 				if (logger.isTraceEnabled()) {
 					logger.trace("Blocking malformed broadcast traffic for PacketIn={}", pi);
 				}
+				MatchDependencies deps = MatchDependencies.get(cntx);
+				deps.add(MatchField.ETH_TYPE);
+				deps.add(MatchField.IPV4_DST);
 
 				decision = new RoutingDecision(sw.getId(), inPort,
 						IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE),
@@ -0,0 +1,466 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv4AddressWithMask;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.OFPort;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.routing.MatchDependencies;
+
+/**
+ * An immutable, compiled form of the firewall rules, for lock-free
+ * classification of packet-ins.
+ *
+ * Rules are grouped by tuple space search: all rules that constrain the
+ * same set of header fields, with the same IP prefix lengths, share a
+ * tuple, and a hash table per tuple maps the values they require to the
+ * rules requiring them. Classifying a packet costs one probe per tuple
+ * rather than one check per rule; tuples are probed in order of their
+ * first rule, and probing stops once no tuple can hold an earlier match.
+ * Every candidate found is confirmed with
+ * {@link FirewallRule#matchesThisPacket}, so the first matching rule is
+ * the same as a walk of the sorted rule list finds.
+ *
+ * The allow/drop wildcards of the decision are built as the walk built
+ * them. Rules that fail on the switch or the ingress port add no
+ * wildcards, so only the rules for the packet's switch and port, up to
+ * the matching one, are walked again for them.
+ *
+ * Rules must not be changed once the classifier is built from them.
+ */
+public class FirewallClassifier {
+	public static final FirewallClassifier EMPTY = new FirewallClassifier(Collections.<FirewallRule>emptyList());
+
+	private static final int[] NO_RULES = new int[0];
+
+	/**
+	 * The fields a tuple constrains; -1 where it doesn't. A rule constrains
+	 * only what matchesThisPacket checks: the IP fields only if it requires
+	 * IPv4, transport ports only if it requires TCP or UDP.
+	 */
+	private static final class Shape {
+		final boolean dpid;
+		final boolean inPort;
+		final boolean dlSrc;
+		final boolean dlDst;
+		final int ethType;
+		final int nwSrcLen;
+		final int nwDstLen;
+		final boolean proto;
+		final boolean tpSrc;
+		final boolean tpDst;
+
+		Shape(FirewallRule r) {
+			dpid = !r.any_dpid;
+			inPort = !r.any_in_port;
+			dlSrc = !r.any_dl_src;
+			dlDst = !r.any_dl_dst;
+			ethType = r.any_dl_type ? -1 : r.dl_type.getValue();
+			boolean ip = !r.any_dl_type && r.dl_type.equals(EthType.IPv4);
+			nwSrcLen = ip && !r.any_nw_src ? prefixLength(r.nw_src_prefix_and_mask) : -1;
+			nwDstLen = ip && !r.any_nw_dst ? prefixLength(r.nw_dst_prefix_and_mask) : -1;
+			proto = ip && !r.any_nw_proto && (r.nw_proto.equals(IpProtocol.TCP)
+					|| r.nw_proto.equals(IpProtocol.UDP) || r.nw_proto.equals(IpProtocol.ICMP));
+			boolean transport = proto && !r.nw_proto.equals(IpProtocol.ICMP);
+			tpSrc = transport && r.tp_src.getPort() != 0;
+			tpDst = transport && r.tp_dst.getPort() != 0;
+		}
+
+		private static int prefixLength(IPv4AddressWithMask prefix) {
+			/* a non-contiguous mask is left to matchesThisPacket */
+			return prefix.getMask().isCidrMask() ? prefix.getMask().asCidrMaskLength() : -1;
+		}
+
+		boolean needsIp() {
+			return nwSrcLen >= 0 || nwDstLen >= 0 || proto;
+		}
+
+		/**
+		 * @return the values a rule of this shape requires
+		 */
+		Key key(FirewallRule r) {
+			return new Key(dpid ? r.dpid.getLong() : 0,
+					inPort ? r.in_port.getPortNumber() : 0,
+					dlSrc ? r.dl_src.getLong() : 0,
+					dlDst ? r.dl_dst.getLong() : 0,
+					ethType,
+					nwSrcLen >= 0 ? masked(r.nw_src_prefix_and_mask.getValue(), nwSrcLen) : 0,
+					nwDstLen >= 0 ? masked(r.nw_dst_prefix_and_mask.getValue(), nwDstLen) : 0,
+					proto ? r.nw_proto.getIpProtocolNumber() : 0,
+					tpSrc ? r.tp_src.getPort() : 0,
+					tpDst ? r.tp_dst.getPort() : 0);
+		}
+
+		/**
+		 * @return the values of the packet in the fields of this shape, or
+		 *         null if no rule of this shape can match it
+		 */
+		Key key(DatapathId sw, OFPort port, Ethernet eth) {
+			if (ethType >= 0 && eth.getEtherType().getValue() != ethType) {
+				return null;
+			}
+			int nwSrc = 0, nwDst = 0, nwProto = 0, src = 0, dst = 0;
+			if (needsIp()) {
+				if (!(eth.getPayload() instanceof IPv4)) {
+					return null;
+				}
+				IPv4 ip = (IPv4) eth.getPayload();
+				nwSrc = nwSrcLen >= 0 ? masked(ip.getSourceAddress(), nwSrcLen) : 0;
+				nwDst = nwDstLen >= 0 ? masked(ip.getDestinationAddress(), nwDstLen) : 0;
+				nwProto = proto ? ip.getProtocol().getIpProtocolNumber() : 0;
+				if (tpSrc || tpDst) {
+					if (ip.getPayload() instanceof TCP) {
+						src = ((TCP) ip.getPayload()).getSourcePort().getPort();
+						dst = ((TCP) ip.getPayload()).getDestinationPort().getPort();
+					} else if (ip.getPayload() instanceof UDP) {
+						src = ((UDP) ip.getPayload()).getSourcePort().getPort();
+						dst = ((UDP) ip.getPayload()).getDestinationPort().getPort();
+					} else {
+						return null;
+					}
+				}
+			}
+			return new Key(dpid ? sw.getLong() : 0,
+					inPort ? port.getPortNumber() : 0,
+					dlSrc ? eth.getSourceMACAddress().getLong() : 0,
+					dlDst ? eth.getDestinationMACAddress().getLong() : 0,
+					ethType, nwSrc, nwDst, nwProto,
+					tpSrc ? src : 0,
+					tpDst ? dst : 0);
+		}
+
+		private static int masked(IPv4Address addr, int len) {
+			return len == 0 ? 0 : addr.getInt() & IPv4Address.ofCidrMaskLength(len).getInt();
+		}
+
+		@Override
+		public int hashCode() {
+			int result = 1;
+			result = 31 * result + (dpid ? 1 : 0);
+			result = 31 * result + (inPort ? 1 : 0);
+			result = 31 * result + (dlSrc ? 1 : 0);
+			result = 31 * result + (dlDst ? 1 : 0);
+			result = 31 * result + ethType;
+			result = 31 * result + nwSrcLen;
+			result = 31 * result + nwDstLen;
+			result = 31 * result + (proto ? 1 : 0);
+			result = 31 * result + (tpSrc ? 1 : 0);
+			result = 31 * result + (tpDst ? 1 : 0);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Shape)) return false;
+			Shape o = (Shape) obj;
+			return dpid == o.dpid && inPort == o.inPort && dlSrc == o.dlSrc && dlDst == o.dlDst
+					&& ethType == o.ethType && nwSrcLen == o.nwSrcLen && nwDstLen == o.nwDstLen
+					&& proto == o.proto && tpSrc == o.tpSrc && tpDst == o.tpDst;
+		}
+	}
+
+	private static final class Key {
+		final long dpid;
+		final int inPort;
+		final long dlSrc;
+		final long dlDst;
+		final int ethType;
+		final int nwSrc;
+		final int nwDst;
+		final int proto;
+		final int tpSrc;
+		final int tpDst;
+
+		Key(long dpid, int inPort, long dlSrc, long dlDst, int ethType,
+				int nwSrc, int nwDst, int proto, int tpSrc, int tpDst) {
+			this.dpid = dpid;
+			this.inPort = inPort;
+			this.dlSrc = dlSrc;
+			this.dlDst = dlDst;
+			this.ethType = ethType;
+			this.nwSrc = nwSrc;
+			this.nwDst = nwDst;
+			this.proto = proto;
+			this.tpSrc = tpSrc;
+			this.tpDst = tpDst;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = dpid;
+			h = h * 31 + inPort;
+			h = h * 31 + dlSrc;
+			h = h * 31 + dlDst;
+			h = h * 31 + ethType;
+			h = h * 31 + nwSrc;
+			h = h * 31 + nwDst;
+			h = h * 31 + proto;
+			h = h * 31 + tpSrc;
+			h = h * 31 + tpDst;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key o = (Key) obj;
+			return dpid == o.dpid && inPort == o.inPort && dlSrc == o.dlSrc && dlDst == o.dlDst
+					&& ethType == o.ethType && nwSrc == o.nwSrc && nwDst == o.nwDst
+					&& proto == o.proto && tpSrc == o.tpSrc && tpDst == o.tpDst;
+		}
+	}
+
+	private static final class Tuple {
+		final Shape shape;
+		final Map<Key, int[]> rules;
+		final int first;
+
+		Tuple(Shape shape, Map<Key, int[]> rules, int first) {
+			this.shape = shape;
+			this.rules = rules;
+			this.first = first;
+		}
+	}
+
+	/* the switch and port a rule applies to; null for any */
+	private static final class PortKey {
+		final DatapathId dpid;
+		final OFPort port;
+
+		PortKey(DatapathId dpid, OFPort port) {
+			this.dpid = dpid;
+			this.port = port;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (dpid == null ? 0 : dpid.hashCode()) + (port == null ? 0 : port.hashCode());
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof PortKey)) return false;
+			PortKey o = (PortKey) obj;
+			return (dpid == null ? o.dpid == null : dpid.equals(o.dpid))
+					&& (port == null ? o.port == null : port.equals(o.port));
+		}
+	}
+
+	private final FirewallRule[] rules;
+	private final Tuple[] tuples;
+	private final Map<PortKey, int[]> byPort;
+	/* what rules[0..i] examine, shared between rules that add nothing */
+	private final MatchDependencies[] dependencies;
+	private final MatchDependencies allDependencies;
+
+	/**
+	 * @param sorted the rules in the order they are tried
+	 */
+	public FirewallClassifier(Collection<FirewallRule> sorted) {
+		rules = sorted.toArray(new FirewallRule[sorted.size()]);
+
+		Map<Shape, Map<Key, List<Integer>>> shapes = new LinkedHashMap<Shape, Map<Key, List<Integer>>>();
+		Map<PortKey, List<Integer>> ports = new HashMap<PortKey, List<Integer>>();
+		dependencies = new MatchDependencies[rules.length];
+		MatchDependencies deps = new MatchDependencies();
+		for (int i = 0; i < rules.length; i++) {
+			FirewallRule r = rules[i];
+			add(ports, new PortKey(r.any_dpid ? null : r.dpid, r.any_in_port ? null : r.in_port), i);
+
+			MatchDependencies next = new MatchDependencies();
+			next.addAll(deps);
+			r.addMatchDependencies(next);
+			if (!next.equals(deps)) {
+				deps = next;
+			}
+			dependencies[i] = deps;
+
+			if (!r.any_dl_type && !r.dl_type.equals(EthType.ARP) && !r.dl_type.equals(EthType.IPv4)) {
+				continue; /* matches nothing */
+			}
+			Shape shape = new Shape(r);
+			Map<Key, List<Integer>> keys = shapes.get(shape);
+			if (keys == null) {
+				keys = new HashMap<Key, List<Integer>>();
+				shapes.put(shape, keys);
+			}
+			add(keys, shape.key(r), i);
+		}
+		allDependencies = deps;
+
+		/* shapes were met in order of their first rule */
+		List<Tuple> t = new ArrayList<Tuple>(shapes.size());
+		for (Map.Entry<Shape, Map<Key, List<Integer>>> e : shapes.entrySet()) {
+			int first = Integer.MAX_VALUE;
+			Map<Key, int[]> compiled = new HashMap<Key, int[]>();
+			for (Map.Entry<Key, List<Integer>> k : e.getValue().entrySet()) {
+				int[] idx = toArray(k.getValue());
+				first = Math.min(first, idx[0]);
+				compiled.put(k.getKey(), idx);
+			}
+			t.add(new Tuple(e.getKey(), compiled, first));
+		}
+		Collections.sort(t, new Comparator<Tuple>() {
+			@Override
+			public int compare(Tuple a, Tuple b) {
+				return Integer.compare(a.first, b.first);
+			}
+		});
+		tuples = t.toArray(new Tuple[t.size()]);
+
+		byPort = new HashMap<PortKey, int[]>();
+		for (Map.Entry<PortKey, List<Integer>> e : ports.entrySet()) {
+			byPort.put(e.getKey(), toArray(e.getValue()));
+		}
+	}
+
+	private static <K> void add(Map<K, List<Integer>> map, K key, int index) {
+		List<Integer> l = map.get(key);
+		if (l == null) {
+			l = new ArrayList<Integer>(1);
+			map.put(key, l);
+		}
+		l.add(index);
+	}
+
+	private static int[] toArray(List<Integer> l) {
+		int[] a = new int[l.size()];
+		for (int i = 0; i < a.length; i++) {
+			a[i] = l.get(i);
+		}
+		return a;
+	}
+
+	public int size() {
+		return rules.length;
+	}
+
+	/**
+	 * @return the number of tuples probed, at most, per packet
+	 */
+	public int getTupleCount() {
+		return tuples.length;
+	}
+
+	public FirewallRule getRule(int index) {
+		return rules[index];
+	}
+
+	/**
+	 * Find the first rule that matches a packet
+	 * @param factory for the scratch matches candidates are checked with
+	 * @return the index of the rule, or -1 if none matches
+	 */
+	public int classify(DatapathId sw, OFPort inPort, Ethernet eth, OFFactory factory) {
+		AllowDropPair scratch = null;
+		int best = rules.length;
+		for (Tuple t : tuples) {
+			if (t.first >= best) {
+				break;
+			}
+			Key key = t.shape.key(sw, inPort, eth);
+			if (key == null) {
+				continue;
+			}
+			int[] candidates = t.rules.get(key);
+			if (candidates == null) {
+				continue;
+			}
+			for (int i : candidates) {
+				if (i >= best) {
+					break;
+				}
+				if (scratch == null) {
+					scratch = new AllowDropPair(factory);
+				}
+				if (rules[i].matchesThisPacket(sw, inPort, eth, scratch)) {
+					best = i;
+					break;
+				}
+			}
+		}
+		return best == rules.length ? -1 : best;
+	}
+
+	/**
+	 * Build the allow and drop wildcards for a packet as trying the rules
+	 * in order, up to and including the one that matched, would have
+	 * @param index the rule that matched
+	 */
+	public AllowDropPair getWildcards(int index, DatapathId sw, OFPort inPort, Ethernet eth, OFFactory factory) {
+		AllowDropPair adp = new AllowDropPair(factory);
+		int[][] lists = new int[][] {
+				byPort.get(new PortKey(sw, inPort)),
+				byPort.get(new PortKey(sw, null)),
+				byPort.get(new PortKey(null, inPort)),
+				byPort.get(new PortKey(null, null))
+		};
+		int[] pos = new int[lists.length];
+		for (int l = 0; l < lists.length; l++) {
+			if (lists[l] == null) {
+				lists[l] = NO_RULES;
+			}
+		}
+		/* merge the lists, which are each in rule order */
+		while (true) {
+			int next = -1;
+			for (int l = 0; l < lists.length; l++) {
+				if (pos[l] < lists[l].length && (next < 0 || lists[l][pos[l]] < lists[next][pos[next]])) {
+					next = l;
+				}
+			}
+			if (next < 0 || lists[next][pos[next]] > index) {
+				break;
+			}
+			rules[lists[next][pos[next]++]].matchesThisPacket(sw, inPort, eth, adp);
+		}
+		return adp;
+	}
+
+	/**
+	 * @param index the rule that matched, or -1 if none did
+	 * @return the fields that the rules tried, up to the one that matched,
+	 *         examine. Not to be modified.
+	 */
+	public MatchDependencies getDependencies(int index) {
+		return index < 0 ? allDependencies : dependencies[index];
+	}
+
+	@Override
+	public String toString() {
+		return "FirewallClassifier [rules=" + rules.length + ", tuples=" + tuples.length
+				+ ", ports=" + byPort.size() + "]";
+	}
+}
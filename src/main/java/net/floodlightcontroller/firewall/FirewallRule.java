@@ -33,6 +33,7 @@ import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.routing.MatchDependencies;
 
 @JsonSerialize(using=FirewallRuleSerializer.class)
 public class FirewallRule implements Comparable<FirewallRule> {
@@ -255,6 +256,46 @@ public class FirewallRule implements Comparable<FirewallRule> {
         return true;
     }
 
+    /**
+     * Records the packet fields this rule may examine when checked against
+     * a packet, so that a flow installed on the firewall's decision keeps
+     * matching them
+     * 
+     * @param deps
+     *            the dependencies of the packet-in being checked
+     */
+    public void addMatchDependencies(MatchDependencies deps) {
+        if (!any_in_port) {
+            deps.add(MatchField.IN_PORT);
+        }
+        if (!any_dl_src) {
+            deps.add(MatchField.ETH_SRC);
+        }
+        if (!any_dl_dst) {
+            deps.add(MatchField.ETH_DST);
+        }
+        if (!any_dl_type) {
+            deps.add(MatchField.ETH_TYPE);
+        }
+        if (!any_nw_src) {
+            deps.addPrefix(MatchField.IPV4_SRC, nw_src_prefix_and_mask.getMask().asCidrMaskLength());
+        }
+        if (!any_nw_dst) {
+            deps.addPrefix(MatchField.IPV4_DST, nw_dst_prefix_and_mask.getMask().asCidrMaskLength());
+        }
+        if (!any_nw_proto) {
+            deps.add(MatchField.IP_PROTO);
+        }
+        if (!any_tp_src) {
+            deps.add(MatchField.TCP_SRC);
+            deps.add(MatchField.UDP_SRC);
+        }
+        if (!any_tp_dst) {
+            deps.add(MatchField.TCP_DST);
+            deps.add(MatchField.UDP_DST);
+        }
+    }
+
     /**
      * Checks if this rule is a match for the incoming packet's MatchFields
      * 
@@ -0,0 +1,170 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.routing.MatchDependencies;
+
+/**
+ * The firewall's recent decisions, so that the packet-ins of a flow it has
+ * already decided, such as retransmissions or packets racing the flow
+ * install, are answered without trying the rules again.
+ *
+ * Decisions are kept per switch, ingress port, MAC addresses and 5-tuple:
+ * the fields rules and the decision's match can depend on. Each one is
+ * filed under the generation of the rules it came from. Changing the rules
+ * starts a new generation, which invalidates every decision at once; stale
+ * ones age out as the cache, which is bounded, evicts its least recently
+ * used entries.
+ */
+public class FirewallVerdictCache {
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	static final class Key {
+		private final long dpid;
+		private final int inPort;
+		private final long dlSrc;
+		private final long dlDst;
+		private final int dlType;
+		private final int nwSrc;
+		private final int nwDst;
+		private final short nwProto;
+		private final int tpSrc;
+		private final int tpDst;
+
+		Key(DatapathId sw, OFPort port, Ethernet eth) {
+			dpid = sw.getLong();
+			inPort = port.getPortNumber();
+			dlSrc = eth.getSourceMACAddress().getLong();
+			dlDst = eth.getDestinationMACAddress().getLong();
+			dlType = eth.getEtherType().getValue();
+			int src = 0, dst = 0, srcPort = 0, dstPort = 0;
+			short proto = 0;
+			if (eth.getPayload() instanceof IPv4) {
+				IPv4 ip = (IPv4) eth.getPayload();
+				src = ip.getSourceAddress().getInt();
+				dst = ip.getDestinationAddress().getInt();
+				proto = ip.getProtocol().getIpProtocolNumber();
+				if (ip.getPayload() instanceof TCP) {
+					srcPort = ((TCP) ip.getPayload()).getSourcePort().getPort();
+					dstPort = ((TCP) ip.getPayload()).getDestinationPort().getPort();
+				} else if (ip.getPayload() instanceof UDP) {
+					srcPort = ((UDP) ip.getPayload()).getSourcePort().getPort();
+					dstPort = ((UDP) ip.getPayload()).getDestinationPort().getPort();
+				}
+			}
+			nwSrc = src;
+			nwDst = dst;
+			nwProto = proto;
+			tpSrc = srcPort;
+			tpDst = dstPort;
+		}
+
+		@Override
+		public int hashCode() {
+			long h = dpid;
+			h = h * 31 + inPort;
+			h = h * 31 + dlSrc;
+			h = h * 31 + dlDst;
+			h = h * 31 + dlType;
+			h = h * 31 + nwSrc;
+			h = h * 31 + nwDst;
+			h = h * 31 + nwProto;
+			h = h * 31 + tpSrc;
+			h = h * 31 + tpDst;
+			return (int) (h ^ (h >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) return true;
+			if (!(obj instanceof Key)) return false;
+			Key o = (Key) obj;
+			return dpid == o.dpid && inPort == o.inPort && dlSrc == o.dlSrc && dlDst == o.dlDst
+					&& dlType == o.dlType && nwSrc == o.nwSrc && nwDst == o.nwDst
+					&& nwProto == o.nwProto && tpSrc == o.tpSrc && tpDst == o.tpDst;
+		}
+	}
+
+	static final class Verdict {
+		final long generation;
+		/* shared by every packet-in given the verdict; not to be modified */
+		final RuleMatchPair rmp;
+		final MatchDependencies dependencies;
+
+		Verdict(long generation, RuleMatchPair rmp, MatchDependencies dependencies) {
+			this.generation = generation;
+			this.rmp = rmp;
+			this.dependencies = dependencies;
+		}
+	}
+
+	private final ConcurrentMap<Key, Verdict> verdicts;
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @param capacity the number of decisions kept before the least
+	 *        recently used is evicted
+	 */
+	public FirewallVerdictCache(int capacity) {
+		verdicts = new ConcurrentLinkedHashMap.Builder<Key, Verdict>()
+				.maximumWeightedCapacity(capacity)
+				.build();
+	}
+
+	/**
+	 * To be read before the rules a verdict is decided with, so that the
+	 * verdict is never filed under a newer generation than its rules
+	 */
+	long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * Invalidate every verdict. To be called after the changed rules are
+	 * in place.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+	}
+
+	/**
+	 * @return the verdict for the flow, or null if there is none from this
+	 *         generation of rules
+	 */
+	Verdict get(Key key, long generation) {
+		Verdict v = verdicts.get(key);
+		return v != null && v.generation == generation ? v : null;
+	}
+
+	void put(Key key, Verdict verdict) {
+		verdicts.put(key, verdict);
+	}
+
+	public int size() {
+		return verdicts.size();
+	}
+}
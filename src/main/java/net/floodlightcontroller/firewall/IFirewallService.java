@@ -62,7 +62,7 @@ public interface IFirewallService extends IFloodlightService {
     public List<Map<String, Object>> getStorageRules();
 
     /**
-     * Adds a new Firewall rule
+     * Adds a new Firewall rule. The rule must not be changed once added.
      */
     public void addRule(FirewallRule rule);
 
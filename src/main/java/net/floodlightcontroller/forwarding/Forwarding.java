@@ -19,9 +19,10 @@ package net.floodlightcontroller.forwarding;
 
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.FloodlightContextStore;
 import net.floodlightcontroller.core.IFloodlightProviderService;
 import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.IOFSwitchListener;
@@ -33,6 +34,7 @@ import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.types.NodePortTuple;
 import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.debugcounter.IDebugCounter;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceListener;
@@ -44,6 +46,7 @@ import net.floodlightcontroller.packet.*;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.*;
 import net.floodlightcontroller.routing.web.RoutingWebRoutable;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyService;
 import net.floodlightcontroller.util.*;
 
@@ -58,6 +61,9 @@ import org.python.google.common.collect.Maps;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 import javax.annotation.Nonnull;
 
 public class Forwarding extends ForwardingBase implements IFloodlightModule, IOFSwitchListener, ILinkDiscoveryListener,
@@ -99,20 +105,73 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
     private static L3RoutingManager l3manager;
     private static volatile IRoutingService.RoutingType routingType = IRoutingService.RoutingType.FORWARDING;
 
-    private Map<OFPacketIn, Ethernet> l3cache;
+    /* packets waiting for their destination to be resolved by the virtual gateway */
+    private PendingPacketStore l3PendingPackets;
+    private static int L3_PENDING_TTL_MS = 3000;
+    private static int L3_PENDING_MAX_PER_DESTINATION = 32;
+    private static long L3_PENDING_MAX_BYTES = 16 * 1024 * 1024;
     private DeviceListenerImpl deviceListener;
 
+    private final String PACKAGE = Forwarding.class.getPackage().getName();
+    private IDebugCounter counterFlowSetsRemoved;
+    private IDebugCounter counterFlowDeletes;
+    private IDebugCounter counterCleanups;
+    private IDebugCounter counterCleanupNs;
+    private IDebugCounter counterInFlightDuplicates;
+    private IDebugCounter counterInFlightDrops;
+    private IDebugCounter counterL3PendingQueueFull;
+    private IDebugCounter counterL3PendingMemory;
+    private IDebugCounter counterL3PendingExpired;
+    private IDebugCounter counterProxyArpHits;
+    private IDebugCounter counterProxyArpMisses;
+    private IDebugCounter counterFlowSetups;
+    private IDebugCounter counterFlowSetupFlows;
+
+    /* answers ARP requests from the device table; null if disabled */
+    private ProxyArpResponder proxyArp;
+
+    /* flows being set up, to de-duplicate their packet-ins; null if disabled */
+    protected InFlightFlowTable inFlightFlows;
+    private static final int IN_FLIGHT_CAPACITY = 65536;
+    private static final String CONTEXT_IN_FLIGHT_SETUP =
+            "net.floodlightcontroller.forwarding.Forwarding.inFlightSetup";
+    private static final FloodlightContextStore<InFlightFlowTable.Setup> inFlightStore =
+            new FloodlightContextStore<InFlightFlowTable.Setup>();
+    private final InFlightFlowTable.DuplicateHandler inFlightHandler = new InFlightFlowTable.DuplicateHandler() {
+        @Override
+        public void forward(InFlightFlowTable.Key key, OFPacketIn pi, OFPort outPort) {
+            IOFSwitch sw = switchService.getSwitch(key.getIngress().getNodeId());
+            if (sw != null) {
+                pushPacket(sw, pi, outPort, true, null);
+            }
+        }
+
+        @Override
+        public void dropped(InFlightFlowTable.Key key, OFPacketIn pi) {
+            counterInFlightDrops.increment();
+        }
+    };
+
+    /**
+     * Tracks which flowsets have flows installed on which switch ports, in
+     * both directions, so that the flows using a failed link can be found
+     * and removed. Flowset IDs are held as primitive longs. Removing a
+     * switch port or a flowset only visits the entries that refer to it.
+     * All mutations are serialized on the registry and readers get
+     * snapshots, so packet-in processing and link updates may run
+     * concurrently.
+     */
     protected static class FlowSetIdRegistry {
-        private volatile Map<NodePortTuple, Set<U64>> nptToFlowSetIds;
-        private volatile Map<U64, Set<NodePortTuple>> flowSetIdToNpts;
-        
+        private final Map<NodePortTuple, LongHashSet> nptToFlowSetIds;
+        private final Map<Long, NodePortTuple[]> flowSetIdToNpts;
+
         private volatile long flowSetGenerator = -1;
 
         private static volatile FlowSetIdRegistry instance;
 
-        private FlowSetIdRegistry() {
-            nptToFlowSetIds = new ConcurrentHashMap<>();
-            flowSetIdToNpts = new ConcurrentHashMap<>();
+        protected FlowSetIdRegistry() {
+            nptToFlowSetIds = new HashMap<>();
+            flowSetIdToNpts = new HashMap<>();
         }
 
         protected static FlowSetIdRegistry getInstance() {
@@ -121,7 +180,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
             }
             return instance;
         }
-        
+
         /**
          * Only for use by unit test to help w/ordering
          * @param seed
@@ -129,7 +188,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         protected void seedFlowSetIdForUnitTest(int seed) {
             flowSetGenerator = seed;
         }
-        
+
         protected synchronized U64 generateFlowSetId() {
             flowSetGenerator += 1;
             if (flowSetGenerator == FLOWSET_MAX) {
@@ -141,60 +200,114 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
             return id;
         }
 
-        private void registerFlowSetId(NodePortTuple npt, U64 flowSetId) {
-            if (nptToFlowSetIds.containsKey(npt)) {
-                Set<U64> ids = nptToFlowSetIds.get(npt);
-                ids.add(flowSetId);
-            } else {
-                Set<U64> ids = new HashSet<>();
-                ids.add(flowSetId);
+        protected synchronized void registerFlowSetId(NodePortTuple npt, U64 flowSetId) {
+            long id = flowSetId.getValue();
+            LongHashSet ids = nptToFlowSetIds.get(npt);
+            if (ids == null) {
+                ids = new LongHashSet();
                 nptToFlowSetIds.put(npt, ids);
-            }  
+            }
+            ids.add(id);
 
-            if (flowSetIdToNpts.containsKey(flowSetId)) {
-                Set<NodePortTuple> npts = flowSetIdToNpts.get(flowSetId);
-                npts.add(npt);
+            /* a flowset follows a single path, so a short array is enough */
+            NodePortTuple[] npts = flowSetIdToNpts.get(id);
+            if (npts == null) {
+                flowSetIdToNpts.put(id, new NodePortTuple[] { npt });
             } else {
-                Set<NodePortTuple> npts = new HashSet<>();
-                npts.add(npt);
-                flowSetIdToNpts.put(flowSetId, npts);
+                for (NodePortTuple n : npts) {
+                    if (n.equals(npt)) {
+                        return;
+                    }
+                }
+                npts = Arrays.copyOf(npts, npts.length + 1);
+                npts[npts.length - 1] = npt;
+                flowSetIdToNpts.put(id, npts);
             }
         }
 
-        private Set<U64> getFlowSetIds(NodePortTuple npt) {
-            return nptToFlowSetIds.get(npt);
+        /**
+         * @return a snapshot of the flowset IDs with flows on the switch port
+         */
+        protected synchronized U64[] getFlowSetIds(NodePortTuple npt) {
+            LongHashSet ids = nptToFlowSetIds.get(npt);
+            if (ids == null) {
+                return new U64[0];
+            }
+            long[] values = ids.toArray();
+            U64[] flowSetIds = new U64[values.length];
+            for (int i = 0; i < values.length; i++) {
+                flowSetIds[i] = U64.of(values[i]);
+            }
+            return flowSetIds;
         }
 
-        private Set<NodePortTuple> getNodePortTuples(U64 flowSetId) {
-            return flowSetIdToNpts.get(flowSetId);
+        /**
+         * @return the switch ports with flows in the flowset
+         */
+        protected synchronized List<NodePortTuple> getNodePortTuples(U64 flowSetId) {
+            NodePortTuple[] npts = flowSetIdToNpts.get(flowSetId.getValue());
+            if (npts == null) {
+                return Collections.emptyList();
+            }
+            /* arrays are replaced, never modified, once published */
+            return Collections.unmodifiableList(Arrays.asList(npts));
         }
 
-        private void removeNodePortTuple(NodePortTuple npt) {
-            nptToFlowSetIds.remove(npt);
-
-            Iterator<Set<NodePortTuple>> itr = flowSetIdToNpts.values().iterator();
-            while (itr.hasNext()) {
-                Set<NodePortTuple> npts = itr.next();
-                npts.remove(npt);
+        /**
+         * Forget a switch port, removing it from every flowset it is in
+         */
+        protected synchronized void removeNodePortTuple(NodePortTuple npt) {
+            LongHashSet ids = nptToFlowSetIds.remove(npt);
+            if (ids == null) {
+                return;
+            }
+            for (long id : ids.toArray()) {
+                NodePortTuple[] npts = flowSetIdToNpts.get(id);
+                if (npts == null) {
+                    continue;
+                }
+                NodePortTuple[] remaining = new NodePortTuple[npts.length];
+                int n = 0;
+                for (NodePortTuple p : npts) {
+                    if (!p.equals(npt)) {
+                        remaining[n++] = p;
+                    }
+                }
+                if (n == 0) {
+                    flowSetIdToNpts.remove(id);
+                } else if (n < npts.length) {
+                    flowSetIdToNpts.put(id, Arrays.copyOf(remaining, n));
+                }
             }
         }
 
-        private void removeExpiredFlowSetId(U64 flowSetId, NodePortTuple avoid, Iterator<U64> avoidItr) {
-            flowSetIdToNpts.remove(flowSetId);
-
-            Iterator<Entry<NodePortTuple, Set<U64>>> itr = nptToFlowSetIds.entrySet().iterator();
-            boolean removed = false;
-            while (itr.hasNext()) {
-                Entry<NodePortTuple, Set<U64>> e = itr.next();
-                if (e.getKey().equals(avoid) && ! removed) {
-                    avoidItr.remove();
-                    removed = true;
-                } else {
-                    Set<U64> ids = e.getValue();
-                    ids.remove(flowSetId);
+        /**
+         * Forget a flowset, removing it from every switch port it is on
+         */
+        protected synchronized void removeFlowSetId(U64 flowSetId) {
+            long id = flowSetId.getValue();
+            NodePortTuple[] npts = flowSetIdToNpts.remove(id);
+            if (npts == null) {
+                return;
+            }
+            for (NodePortTuple npt : npts) {
+                LongHashSet ids = nptToFlowSetIds.get(npt);
+                if (ids != null) {
+                    ids.remove(id);
+                    if (ids.isEmpty()) {
+                        nptToFlowSetIds.remove(npt);
+                    }
                 }
             }
         }
+
+        protected synchronized int getFlowSetCount() {
+            return flowSetIdToNpts.size();
+        }
+
+        protected synchronized int getNodePortTupleCount() {
+            return nptToFlowSetIds.size();
+        }
     }
 
     @Override
@@ -326,12 +439,12 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         if (isBroadcastOrMulticast(eth)) {
             // When cross-subnet, host send ARP request to gateway. Gateway need to generate ARP response to host
             if (eth.getEtherType() == EthType.ARP && ((ARP) eth.getPayload()).getOpCode().equals(ARP.OP_REQUEST)
-                    && gatewayInstance.isAGatewayIntf(((ARP) eth.getPayload()).getTargetProtocolAddress())) {
+                    && l3manager.isGatewayInterfaceAddress(gatewayInstance, ((ARP) eth.getPayload()).getTargetProtocolAddress())) {
                 IPacket arpReply = gatewayArpReply(cntx, gatewayMac);
                 pushArpReply(arpReply, sw, OFBufferId.NO_BUFFER, OFPort.ANY, inPort);
                 log.debug("Virtual gateway pushing ARP reply message to source host");
             }
-            else {
+            else if (!doProxyArp(eth, sw, inPort)) {
                 doFlood(sw, pi, decision, cntx);
             }
         }
@@ -376,7 +489,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
                     log.debug("Virtual gateway creates and flood arp request packet for destination host");
                     doL3Flood(gateway, sw, pi, cntx);
 
-                    l3cache.put(pi, eth);
+                    l3PendingPackets.add(((IPv4) eth.getPayload()).getDestinationAddress(), eth, pi.getData().length);
                     log.debug("Add new packet-in associate with packet source {} and destination {} to cache",
                             ((IPv4) eth.getPayload()).getSourceAddress(), ((IPv4) eth.getPayload()).getDestinationAddress());
                 }
@@ -455,6 +568,14 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         }
 
         // All edge cases excluded, consider adding L3 logic below
+        Match m = null;
+        if (!eth.getDestinationMACAddress().equals(virtualGatewayMac)) {
+            m = createMatchFromPacket(sw, srcPort, pi, cntx);
+            if (isInFlightDuplicate(sw, srcPort, m, pi, cntx)) {
+                return;
+            }
+        }
+
         U64 flowSetId = flowSetIdRegistry.generateFlowSetId();
         U64 cookie = makeForwardingCookie(decision, flowSetId);
         Path path = routingEngineService.getPath(srcSw,
@@ -464,8 +585,6 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
 
 
         if (!eth.getDestinationMACAddress().equals(virtualGatewayMac)) { // Normal L2 forwarding
-            Match m = createMatchFromPacket(sw, srcPort, pi, cntx);
-
             if (! path.getPath().isEmpty()) {
                 if (log.isDebugEnabled()) {
                     log.debug("pushRoute inPort={} route={} " +
@@ -476,9 +595,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
                     log.debug("Creating flow rules on the route, match rule: {}", m);
                 }
 
-                pushRoute(path, m, pi, sw.getId(), cookie,
-                        cntx, requestFlowRemovedNotifn,
-                        OFFlowModCommand.ADD, false);
+                pushInFlightRoute(path, m, pi, sw, cookie, cntx, requestFlowRemovedNotifn);
 
                 /*
                  * Register this flowset with ingress and egress ports for link down
@@ -488,13 +605,18 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
                     flowSetIdRegistry.registerFlowSetId(npt, flowSetId);
                 }
 
-            } /* else no path was found */
+            } else { /* no path was found */
+                abandonInFlight(cntx);
+            }
         }
         else { // L3 Routing
             boolean packetOutSent = sendPacketToLastHop(eth, dstDevice);
 
             // L3 rewrite on first hop (in bi-direction)
             IOFSwitch firstHop = switchService.getSwitch(srcSw);
+            /* the next hop was chosen by destination address */
+            MatchDependencies.get(cntx).add(eth.getEtherType() == EthType.IPv6 ?
+                    MatchField.IPV6_DST : MatchField.IPV4_DST);
             Match match = createMatchFromPacket(firstHop, srcPort, pi, cntx);
 
             if (!path.getPath().isEmpty()){
@@ -511,6 +633,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
             pushRoute(newPath, match, pi, sw.getId(), cookie,
                     cntx, requestFlowRemovedNotifn,
                     OFFlowModCommand.ADD, packetOutSent);
+            countFlowSetup(path);
 
             /* Register flow sets */
             for (NodePortTuple npt : path.getPath()) {
@@ -612,12 +735,38 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
      */
     protected void doL2Forwarding(Ethernet eth, IOFSwitch sw, OFPacketIn pi, IRoutingDecision decision, FloodlightContext cntx) {
         if (isBroadcastOrMulticast(eth)) {
-            doFlood(sw, pi, decision, cntx);
+            if (!doProxyArp(eth, sw, OFMessageUtils.getInPort(pi))) {
+                doFlood(sw, pi, decision, cntx);
+            }
         } else {
             doL2ForwardFlow(sw, pi, decision, cntx, false);
         }
     }
 
+    /**
+     * Answer an ARP request on behalf of its target, if the target is known
+     * and proxy ARP is enabled for the VLAN of the request
+     *
+     * @param eth Ethernet Frame that associated with this OFPacketIn
+     * @param sw The switch on which the packet was received
+     * @param inPort The port on which the packet was received
+     * @return true if a reply was sent, so the request needn't be flooded
+     */
+    private boolean doProxyArp(Ethernet eth, IOFSwitch sw, OFPort inPort) {
+        if (proxyArp == null || !proxyArp.isEnabledFor(eth)) {
+            return false;
+        }
+        IPacket arpReply = proxyArp.getReply(eth);
+        if (arpReply == null) {
+            counterProxyArpMisses.increment();
+            return false;
+        }
+        pushArpReply(arpReply, sw, OFBufferId.NO_BUFFER, OFPort.ANY, inPort);
+        counterProxyArpHits.increment();
+        log.debug("Proxy ARP reply pushed to source host");
+        return true;
+    }
+
     /**
      * This function retrieves a patch from source device to destination device and then install L2 flows over the path.
      *
@@ -697,6 +846,11 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
             return;
         }
 
+        Match m = createMatchFromPacket(sw, srcPort, pi, cntx);
+        if (isInFlightDuplicate(sw, srcPort, m, pi, cntx)) {
+            return;
+        }
+
         U64 flowSetId = flowSetIdRegistry.generateFlowSetId();
         U64 cookie = makeForwardingCookie(decision, flowSetId);
         Path path = routingEngineService.getPath(srcSw,
@@ -704,8 +858,6 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
                 dstAp.getNodeId(),
                 dstAp.getPortId());
 
-        Match m = createMatchFromPacket(sw, srcPort, pi, cntx);
-
         if (! path.getPath().isEmpty()) {
             if (log.isDebugEnabled()) {
                 log.debug("pushRoute inPort={} route={} " +
@@ -716,9 +868,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
                 log.debug("Creating flow rules on the route, match rule: {}", m);
             }
 
-            pushRoute(path, m, pi, sw.getId(), cookie,
-                    cntx, requestFlowRemovedNotifn,
-                    OFFlowModCommand.ADD, false);
+            pushInFlightRoute(path, m, pi, sw, cookie, cntx, requestFlowRemovedNotifn);
 
             /*
              * Register this flowset with ingress and egress ports for link down
@@ -727,7 +877,72 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
             for (NodePortTuple npt : path.getPath()) {
                 flowSetIdRegistry.registerFlowSetId(npt, flowSetId);
             }
-        } /* else no path was found */
+        } else { /* no path was found */
+            abandonInFlight(cntx);
+        }
+    }
+
+    /**
+     * Check whether the flow of a packet-in is already being set up. If so,
+     * the packet-in is sent along once the flow is in place, and needs no
+     * routing of its own. Otherwise, the packet-in owns the setup.
+     * @param sw the switch the packet-in came from
+     * @param inPort the port the packet-in came from
+     * @param m the match the flow will be installed with
+     * @param pi the packet-in
+     * @param cntx the floodlight context of the packet-in
+     * @return true if the packet-in is a duplicate and has been dealt with
+     */
+    private boolean isInFlightDuplicate(IOFSwitch sw, OFPort inPort, Match m, OFPacketIn pi, FloodlightContext cntx) {
+        if (inFlightFlows == null) {
+            return false;
+        }
+        InFlightFlowTable.Key key = new InFlightFlowTable.Key(new NodePortTuple(sw.getId(), inPort), m);
+        InFlightFlowTable.Setup setup = inFlightFlows.admit(key, pi, inFlightHandler);
+        if (setup == null) {
+            counterInFlightDuplicates.increment();
+            return true;
+        }
+        inFlightStore.put(cntx, CONTEXT_IN_FLIGHT_SETUP, setup);
+        return false;
+    }
+
+    /**
+     * Push the route of a packet-in that owns its flow setup. The port it
+     * leaves the first hop by is where its duplicates will be sent.
+     */
+    private void pushInFlightRoute(Path path, Match m, OFPacketIn pi, IOFSwitch sw, U64 cookie,
+            FloodlightContext cntx, boolean requestFlowRemovedNotifn) {
+        InFlightFlowTable.Setup setup = inFlightStore.get(cntx, CONTEXT_IN_FLIGHT_SETUP);
+        if (setup != null) {
+            setup.setOutPort(path.getPath().get(1).getPortId());
+        }
+        pushRoute(path, m, pi, sw.getId(), cookie,
+                cntx, requestFlowRemovedNotifn,
+                OFFlowModCommand.ADD, false);
+        countFlowSetup(path);
+    }
+
+    /* a path is a list of ingress and egress ports, one flow per switch */
+    private void countFlowSetup(Path path) {
+        counterFlowSetups.increment();
+        counterFlowSetupFlows.add(path.getPath().size() / 2);
+    }
+
+    private void abandonInFlight(FloodlightContext cntx) {
+        InFlightFlowTable.Setup setup = inFlightStore.get(cntx, CONTEXT_IN_FLIGHT_SETUP);
+        if (setup != null) {
+            inFlightStore.remove(cntx, CONTEXT_IN_FLIGHT_SETUP);
+            inFlightFlows.abandon(setup, inFlightHandler);
+        }
+    }
+
+    @Override
+    protected void routeInstalled(OFPacketIn pi, FloodlightContext cntx) {
+        InFlightFlowTable.Setup setup = inFlightStore.get(cntx, CONTEXT_IN_FLIGHT_SETUP);
+        if (setup != null) {
+            inFlightFlows.installed(setup, inFlightHandler);
+        }
     }
 
 
@@ -819,7 +1034,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
      * @return
      */
     public IPv4Address findInterfaceIP(VirtualGatewayInstance gateway, IPv4Address dstIP) {
-        Optional<VirtualGatewayInterface> intf = gateway.findGatewayInft(dstIP);
+        Optional<VirtualGatewayInterface> intf = l3manager.findGatewayInterface(gateway, dstIP);
         if (intf.isPresent()) {
             return intf.get().getIp();
         }
@@ -1041,6 +1256,10 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
             vlan = VlanVid.ofVlan(eth.getVlanID()); /* VLAN might still be in packet */
         }
         
+        if (FLOWMOD_MATCH_MODE == MatchMode.ADAPTIVE) {
+            return createAdaptiveMatch(sw, inPort, vlan, eth, cntx);
+        }
+
         MacAddress srcMac = eth.getSourceMACAddress();
         MacAddress dstMac = eth.getDestinationMACAddress();
 
@@ -1188,6 +1407,106 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         return mb.build();
     }
 
+    /**
+     * Create the least specific match that still gets the packet's
+     * forwarding decision, like a megaflow: the ingress port, VLAN and MAC
+     * addresses the L2 decision and device learning rely on, plus whatever
+     * fields the modules before us recorded in {@link MatchDependencies}.
+     * Every other field is wildcarded, so that the flow also carries the
+     * later connections between the same hosts.
+     */
+    private Match createAdaptiveMatch(IOFSwitch sw, OFPort inPort, VlanVid vlan, Ethernet eth, FloodlightContext cntx) {
+        MatchDependencies deps = MatchDependencies.get(cntx);
+        Match.Builder mb = sw.getOFFactory().buildMatch();
+        mb.setExact(MatchField.IN_PORT, inPort);
+        if (!vlan.equals(VlanVid.ZERO)) {
+            mb.setExact(MatchField.VLAN_VID, OFVlanVidMatch.ofVlanVid(vlan));
+        }
+        mb.setExact(MatchField.ETH_SRC, eth.getSourceMACAddress());
+        mb.setExact(MatchField.ETH_DST, eth.getDestinationMACAddress());
+        if (deps.contains(MatchField.ETH_TYPE)) {
+            mb.setExact(MatchField.ETH_TYPE, eth.getEtherType());
+        }
+
+        if (eth.getEtherType() == EthType.IPv4) { /* shallow check for equality is okay for EthType */
+            IPv4 ip = (IPv4) eth.getPayload();
+            boolean l3 = false;
+            int srcLen = deps.getPrefixLength(MatchField.IPV4_SRC);
+            if (srcLen == 32) {
+                mb.setExact(MatchField.IPV4_SRC, ip.getSourceAddress());
+                l3 = true;
+            } else if (srcLen > 0) {
+                IPv4Address mask = IPv4Address.ofCidrMaskLength(srcLen);
+                mb.setMasked(MatchField.IPV4_SRC, ip.getSourceAddress().and(mask), mask);
+                l3 = true;
+            }
+            int dstLen = deps.getPrefixLength(MatchField.IPV4_DST);
+            if (dstLen == 32) {
+                mb.setExact(MatchField.IPV4_DST, ip.getDestinationAddress());
+                l3 = true;
+            } else if (dstLen > 0) {
+                IPv4Address mask = IPv4Address.ofCidrMaskLength(dstLen);
+                mb.setMasked(MatchField.IPV4_DST, ip.getDestinationAddress().and(mask), mask);
+                l3 = true;
+            }
+            l3 |= setAdaptiveTransport(mb, deps, ip.getProtocol(), ip.getPayload());
+            if (l3) {
+                mb.setExact(MatchField.ETH_TYPE, EthType.IPv4);
+            }
+        } else if (eth.getEtherType() == EthType.IPv6) {
+            IPv6 ip = (IPv6) eth.getPayload();
+            boolean l3 = false;
+            if (deps.contains(MatchField.IPV6_SRC)) {
+                mb.setExact(MatchField.IPV6_SRC, ip.getSourceAddress());
+                l3 = true;
+            }
+            if (deps.contains(MatchField.IPV6_DST)) {
+                mb.setExact(MatchField.IPV6_DST, ip.getDestinationAddress());
+                l3 = true;
+            }
+            l3 |= setAdaptiveTransport(mb, deps, ip.getNextHeader(), ip.getPayload());
+            if (l3) {
+                mb.setExact(MatchField.ETH_TYPE, EthType.IPv6);
+            }
+        }
+        return mb.build();
+    }
+
+    /**
+     * Add the transport fields a decision depended on, with the IP protocol
+     * they require
+     * @return true if any field was added
+     */
+    private boolean setAdaptiveTransport(Match.Builder mb, MatchDependencies deps, IpProtocol proto, IPacket payload) {
+        boolean added = false;
+        if (proto.equals(IpProtocol.TCP) && payload instanceof TCP) {
+            TCP tcp = (TCP) payload;
+            if (deps.contains(MatchField.TCP_SRC)) {
+                mb.setExact(MatchField.TCP_SRC, tcp.getSourcePort());
+                added = true;
+            }
+            if (deps.contains(MatchField.TCP_DST)) {
+                mb.setExact(MatchField.TCP_DST, tcp.getDestinationPort());
+                added = true;
+            }
+        } else if (proto.equals(IpProtocol.UDP) && payload instanceof UDP) {
+            UDP udp = (UDP) payload;
+            if (deps.contains(MatchField.UDP_SRC)) {
+                mb.setExact(MatchField.UDP_SRC, udp.getSourcePort());
+                added = true;
+            }
+            if (deps.contains(MatchField.UDP_DST)) {
+                mb.setExact(MatchField.UDP_DST, udp.getDestinationPort());
+                added = true;
+            }
+        }
+        if (added || deps.contains(MatchField.IP_PROTO)) {
+            mb.setExact(MatchField.IP_PROTO, proto);
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Creates a OFPacketOut with the OFPacketIn data that is flooded on all ports unless
      * the port is blocked, in which case the packet will be dropped.
@@ -1331,6 +1650,7 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         l.add(ITopologyService.class);
         l.add(IDebugCounterService.class);
         l.add(ILinkDiscoveryService.class);
+        l.add(IThreadPoolService.class);
         return l;
     }
 
@@ -1345,9 +1665,9 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         this.debugCounterService = context.getServiceImpl(IDebugCounterService.class);
         this.switchService = context.getServiceImpl(IOFSwitchService.class);
         this.linkService = context.getServiceImpl(ILinkDiscoveryService.class);
+        this.threadPoolService = context.getServiceImpl(IThreadPoolService.class);
 
         l3manager = new L3RoutingManager();
-        l3cache = new ConcurrentHashMap<>();
         deviceListener = new DeviceListenerImpl();
 
         flowSetIdRegistry = FlowSetIdRegistry.getInstance();
@@ -1434,6 +1754,16 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
                 + ", SRC_TPPT=" + FLOWMOD_DEFAULT_MATCH_TRANSPORT_SRC
                 + ", DST_TPPT=" + FLOWMOD_DEFAULT_MATCH_TRANSPORT_DST);
 
+        tmp = configParameters.get("match-mode");
+        if (tmp != null) {
+            try {
+                FLOWMOD_MATCH_MODE = MatchMode.valueOf(tmp.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.error("Invalid match mode '{}'. Must be one of {}", tmp, Arrays.toString(MatchMode.values()));
+            }
+        }
+        log.info("Flows will be matched in {} mode", FLOWMOD_MATCH_MODE);
+
         tmp = configParameters.get("flood-arp");
         if (tmp != null) {
             tmp = tmp.toLowerCase();
@@ -1455,6 +1785,79 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         } else {
             log.info("Flows will not be removed on link/port down events");
         }
+
+        tmp = configParameters.get("install-mode");
+        if (tmp != null) {
+            try {
+                FLOWMOD_INSTALL_MODE = FlowInstallMode.valueOf(tmp.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.error("Invalid install mode '{}'. Must be one of {}", tmp, Arrays.toString(FlowInstallMode.values()));
+            }
+        }
+        tmp = configParameters.get("install-timeout-ms");
+        if (tmp != null) {
+            FLOWMOD_INSTALL_TIMEOUT_MS = ParseUtils.parseHexOrDecInt(tmp);
+        }
+        log.info("Paths will be installed in {} mode", FLOWMOD_INSTALL_MODE);
+
+        tmp = configParameters.get("inflight-window-ms");
+        int inFlightWindowMs = tmp == null ? 0 : ParseUtils.parseHexOrDecInt(tmp);
+        if (inFlightWindowMs > 0) {
+            tmp = configParameters.get("inflight-max-queued");
+            int maxQueued = tmp == null ? 16 : ParseUtils.parseHexOrDecInt(tmp);
+            inFlightFlows = new InFlightFlowTable(inFlightWindowMs, maxQueued, IN_FLIGHT_CAPACITY);
+            log.info("Packet-ins of flows being set up will be de-duplicated for {} ms", inFlightWindowMs);
+        } else {
+            log.info("Packet-ins of flows being set up will not be de-duplicated");
+        }
+
+        tmp = configParameters.get("l3-pending-ttl-ms");
+        if (tmp != null) {
+            L3_PENDING_TTL_MS = ParseUtils.parseHexOrDecInt(tmp);
+        }
+        tmp = configParameters.get("l3-pending-max-per-destination");
+        if (tmp != null) {
+            L3_PENDING_MAX_PER_DESTINATION = ParseUtils.parseHexOrDecInt(tmp);
+        }
+        tmp = configParameters.get("l3-pending-max-bytes");
+        if (tmp != null) {
+            L3_PENDING_MAX_BYTES = Long.parseLong(tmp.trim());
+        }
+        l3PendingPackets = new PendingPacketStore(L3_PENDING_TTL_MS, L3_PENDING_MAX_PER_DESTINATION,
+                L3_PENDING_MAX_BYTES, new PendingPacketStore.DropListener() {
+            @Override
+            public void dropped(IPv4Address dst, Ethernet eth, PendingPacketStore.DropReason reason) {
+                switch (reason) {
+                case QUEUE_FULL:
+                    counterL3PendingQueueFull.increment();
+                    break;
+                case MEMORY:
+                    counterL3PendingMemory.increment();
+                    break;
+                case EXPIRED:
+                    counterL3PendingExpired.increment();
+                    break;
+                }
+                log.debug("Dropped packet held for unresolved destination {}: {}", dst, reason);
+            }
+        });
+        log.info("Virtual gateway holds at most {} packets per unresolved destination for {} ms",
+                L3_PENDING_MAX_PER_DESTINATION, L3_PENDING_TTL_MS);
+
+        tmp = configParameters.get("proxy-arp-vlans");
+        if (tmp != null && !tmp.trim().isEmpty()) {
+            Set<VlanVid> vlans = null;
+            if (!tmp.trim().equalsIgnoreCase("all")) {
+                vlans = new HashSet<VlanVid>();
+                for (String vlan : tmp.split(",")) {
+                    vlans.add(VlanVid.ofVlan(ParseUtils.parseHexOrDecInt(vlan.trim())));
+                }
+            }
+            proxyArp = new ProxyArpResponder(deviceManagerService, vlans);
+            log.info("Proxy ARP enabled on VLANs {}", vlans == null ? "all" : vlans);
+        } else {
+            log.info("Proxy ARP disabled");
+        }
     }
 
     @Override
@@ -1466,6 +1869,8 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
 
         deviceManagerService.addListener(this.deviceListener);
 
+        registerForwardingDebugCounters();
+
         /* Register only if we want to remove stale flows */
         if (REMOVE_FLOWS_ON_LINK_OR_PORT_DOWN) {
             linkService.addListener(this);
@@ -1533,103 +1938,239 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
 
     @Override
     public void linkDiscoveryUpdate(List<LDUpdate> updateList) {
+        long startNs = System.nanoTime();
+        Map<DatapathId, FlowSetCleanup> cleanups = new HashMap<DatapathId, FlowSetCleanup>();
         for (LDUpdate u : updateList) {
             /* Remove flows on either side if link/port went down */
             if (u.getOperation() == UpdateOperation.LINK_REMOVED ||
                     u.getOperation() == UpdateOperation.PORT_DOWN ||
                     u.getOperation() == UpdateOperation.TUNNEL_PORT_REMOVED) {
-                Set<OFMessage> msgs = new HashSet<OFMessage>();
-
                 if (u.getSrc() != null && !u.getSrc().equals(DatapathId.NONE)) {
-                    IOFSwitch srcSw = switchService.getSwitch(u.getSrc());
                     /* src side of link */
-                    if (srcSw != null) {
-                        Set<U64> ids = flowSetIdRegistry.getFlowSetIds(
-                                new NodePortTuple(u.getSrc(), u.getSrcPort()));
-                        if (ids != null) {
-                            Iterator<U64> i = ids.iterator();
-                            while (i.hasNext()) {
-                                U64 id = i.next();
-                                U64 cookie = id.or(DEFAULT_FORWARDING_COOKIE);
-                                U64 cookieMask = U64.of(FLOWSET_MASK).or(AppCookie.getAppFieldMask());
-
-                                /* Delete flows matching on src port and outputting to src port */
-                                msgs = buildDeleteFlows(u.getSrcPort(), msgs, srcSw, cookie, cookieMask);
-                                messageDamper.write(srcSw, msgs);
-                                log.debug("src: Removing flows to/from DPID={}, port={}", u.getSrc(), u.getSrcPort());
-                                log.debug("src: Cookie/mask {}/{}", cookie, cookieMask);
-
-                                /* 
-                                 * Now, for each ID on this particular failed link, remove
-                                 * all other flows in the network using this ID.
-                                 */
-                                Set<NodePortTuple> npts = flowSetIdRegistry.getNodePortTuples(id);
-                                if (npts != null) {
-                                    for (NodePortTuple npt : npts) {
-                                        msgs.clear();
-                                        IOFSwitch sw = switchService.getSwitch(npt.getNodeId());
-                                        if (sw != null) {
-
-                                            /* Delete flows matching on npt port and outputting to npt port*/
-                                            msgs = buildDeleteFlows(npt.getPortId(), msgs, sw, cookie, cookieMask);
-                                            messageDamper.write(sw, msgs);
-                                            log.debug("src: Removing same-cookie flows to/from DPID={}, port={}", npt.getNodeId(), npt.getPortId());
-                                            log.debug("src: Cookie/mask {}/{}", cookie, cookieMask);
-                                        }
-                                    }
-                                }
-                                flowSetIdRegistry.removeExpiredFlowSetId(id, new NodePortTuple(u.getSrc(), u.getSrcPort()), i);
-                            }
-                        }
-                    }
-                    flowSetIdRegistry.removeNodePortTuple(new NodePortTuple(u.getSrc(), u.getSrcPort()));
+                    collectFlowSetsOnPort(u.getSrc(), u.getSrcPort(), cleanups);
                 }
 
                 /* must be a link, not just a port down, if we have a dst switch */
                 if (u.getDst() != null && !u.getDst().equals(DatapathId.NONE)) {
                     /* dst side of link */
-                    IOFSwitch dstSw = switchService.getSwitch(u.getDst());
-                    if (dstSw != null) {
-                        Set<U64> ids = flowSetIdRegistry.getFlowSetIds(
-                                new NodePortTuple(u.getDst(), u.getDstPort()));
-                        if (ids != null) {
-                            Iterator<U64> i = ids.iterator();
-                            while (i.hasNext()) {
-                                U64 id = i.next();
-                                U64 cookie = id.or(DEFAULT_FORWARDING_COOKIE);
-                                U64 cookieMask = U64.of(FLOWSET_MASK).or(AppCookie.getAppFieldMask());
-                                /* Delete flows matching on dst port and outputting to dst port */
-                                msgs = buildDeleteFlows(u.getDstPort(), msgs, dstSw, cookie, cookieMask);
-                                messageDamper.write(dstSw, msgs);
-                                log.debug("dst: Removing flows to/from DPID={}, port={}", u.getDst(), u.getDstPort());
-                                log.debug("dst: Cookie/mask {}/{}", cookie, cookieMask);
-
-                                /* 
-                                 * Now, for each ID on this particular failed link, remove
-                                 * all other flows in the network using this ID.
-                                 */
-                                Set<NodePortTuple> npts = flowSetIdRegistry.getNodePortTuples(id);
-                                if (npts != null) {
-                                    for (NodePortTuple npt : npts) {
-                                        msgs.clear();
-                                        IOFSwitch sw = switchService.getSwitch(npt.getNodeId());
-                                        if (sw != null) {
-                                            /* Delete flows matching on npt port and outputting on npt port */
-                                            msgs = buildDeleteFlows(npt.getPortId(), msgs, sw, cookie, cookieMask);
-                                            messageDamper.write(sw, msgs);
-                                            log.debug("dst: Removing same-cookie flows to/from DPID={}, port={}", npt.getNodeId(), npt.getPortId());
-                                            log.debug("dst: Cookie/mask {}/{}", cookie, cookieMask);
-                                        }
-                                    }
-                                }
-                                flowSetIdRegistry.removeExpiredFlowSetId(id, new NodePortTuple(u.getDst(), u.getDstPort()), i);
-                            }
-                        }
-                    }
-                    flowSetIdRegistry.removeNodePortTuple(new NodePortTuple(u.getDst(), u.getDstPort()));
+                    collectFlowSetsOnPort(u.getDst(), u.getDstPort(), cleanups);
                 }
             }
         }
+        if (!cleanups.isEmpty()) {
+            if (inFlightFlows != null) {
+                /* duplicates must not follow paths that just went away */
+                inFlightFlows.clear();
+            }
+            writeFlowSetCleanups(cleanups, startNs);
+        }
+    }
+
+    /**
+     * The flowsets whose flows must be removed from one switch, and the
+     * ports they use there
+     */
+    private static class FlowSetCleanup {
+        final Set<OFPort> ports = new HashSet<OFPort>();
+        final LongHashSet flowSets = new LongHashSet();
+    }
+
+    /**
+     * Find every flowset using a failed switch port and record, per
+     * switch on its path, that its flows must be removed. The port and
+     * the flowsets are then forgotten, so a flowset using several failed
+     * ports in the same update batch is only collected once.
+     * @param swId the switch
+     * @param port the port that went down
+     * @param cleanups per-switch flows to remove, added to
+     */
+    private void collectFlowSetsOnPort(DatapathId swId, OFPort port,
+            Map<DatapathId, FlowSetCleanup> cleanups) {
+        NodePortTuple failed = new NodePortTuple(swId, port);
+        if (switchService.getSwitch(swId) != null) {
+            for (U64 id : flowSetIdRegistry.getFlowSetIds(failed)) {
+                long flowSet = (id.getValue() & FLOWSET_MASK) >>> FLOWSET_SHIFT;
+                /* Remove the flows everywhere in the network using this ID */
+                for (NodePortTuple npt : flowSetIdRegistry.getNodePortTuples(id)) {
+                    addFlowSetCleanup(cleanups, npt.getNodeId(), npt.getPortId(), flowSet);
+                }
+                addFlowSetCleanup(cleanups, swId, port, flowSet);
+                flowSetIdRegistry.removeFlowSetId(id);
+                counterFlowSetsRemoved.increment();
+            }
+        }
+        flowSetIdRegistry.removeNodePortTuple(failed);
+    }
+
+    private static void addFlowSetCleanup(Map<DatapathId, FlowSetCleanup> cleanups,
+            DatapathId swId, OFPort port, long flowSet) {
+        FlowSetCleanup c = cleanups.get(swId);
+        if (c == null) {
+            c = new FlowSetCleanup();
+            cleanups.put(swId, c);
+        }
+        c.ports.add(port);
+        c.flowSets.add(flowSet);
+    }
+
+    /**
+     * Send each switch its flow deletes in a single write followed by a
+     * barrier, and record the time from the link update until every
+     * switch has confirmed the deletes.
+     * @param cleanups per-switch flows to remove
+     * @param startNs when the link update was received
+     */
+    private void writeFlowSetCleanups(Map<DatapathId, FlowSetCleanup> cleanups, final long startNs) {
+        final AtomicInteger pending = new AtomicInteger(cleanups.size());
+        final int switches = cleanups.size();
+        Runnable barrierDone = new Runnable() {
+            @Override
+            public void run() {
+                if (pending.decrementAndGet() == 0) {
+                    long ns = System.nanoTime() - startNs;
+                    counterCleanupNs.add(ns);
+                    counterCleanups.increment();
+                    log.debug("Flows removed from {} switches {} us after link update",
+                            switches, ns / 1000);
+                }
+            }
+        };
+        for (Entry<DatapathId, FlowSetCleanup> e : cleanups.entrySet()) {
+            IOFSwitch sw = switchService.getSwitch(e.getKey());
+            if (sw == null) {
+                barrierDone.run();
+                continue;
+            }
+            List<OFMessage> msgs = buildFlowSetDeletes(sw, e.getValue());
+            sw.write(msgs);
+            counterFlowDeletes.add(msgs.size());
+            log.debug("Removing flows of {} flowsets from DPID={} in {} deletes",
+                    new Object[] { e.getValue().flowSets.size(), e.getKey(), msgs.size() });
+
+            ListenableFuture<OFBarrierReply> future = sw.writeRequest(
+                    sw.getOFFactory().buildBarrierRequest().build());
+            if (future == null) {
+                barrierDone.run();
+            } else {
+                future.addListener(barrierDone, MoreExecutors.sameThreadExecutor());
+            }
+        }
+    }
+
+    /**
+     * Build the fewest flow deletes that remove the flows of the given
+     * flowsets from a switch. OpenFlow 1.0 has no cookie mask, so there the
+     * flows are deleted by the ports they use instead.
+     */
+    private List<OFMessage> buildFlowSetDeletes(IOFSwitch sw, FlowSetCleanup cleanup) {
+        OFFactory factory = sw.getOFFactory();
+        List<OFMessage> msgs = new ArrayList<OFMessage>();
+        if (factory.getVersion().compareTo(OFVersion.OF_10) == 0) {
+            Set<OFMessage> deletes = new HashSet<OFMessage>();
+            for (OFPort port : cleanup.ports) {
+                buildDeleteFlows(port, deletes, sw, DEFAULT_FORWARDING_COOKIE, U64.ZERO);
+            }
+            msgs.addAll(deletes);
+        } else {
+            for (Masked<U64> cookie : coverFlowSets(cleanup.flowSets.toArray())) {
+                msgs.add(factory.buildFlowDelete()
+                        .setCookie(cookie.getValue())
+                        .setCookieMask(cookie.getMask())
+                        .build());
+            }
+        }
+        return msgs;
+    }
+
+    /**
+     * Cover a set of flowset numbers with the fewest masked cookies that
+     * match exactly those flowsets. Runs of consecutive flowsets, which
+     * are common since flowset numbers are handed out in sequence, are
+     * covered by aligned power-of-two blocks.
+     * @param flowSets flowset numbers, not shifted into cookie position
+     * @return masked forwarding cookies matching exactly the flowsets
+     */
+    protected static List<Masked<U64>> coverFlowSets(long[] flowSets) {
+        long[] sorted = flowSets.clone();
+        Arrays.sort(sorted);
+        List<Masked<U64>> cookies = new ArrayList<Masked<U64>>();
+        int i = 0;
+        while (i < sorted.length) {
+            long start = sorted[i];
+            int bits = 0;
+            while (bits < FLOWSET_BITS) {
+                long size = 1L << (bits + 1);
+                int last = i + (int) size - 1;
+                if ((start & (size - 1)) != 0 || last >= sorted.length
+                        || sorted[last] != start + size - 1) {
+                    break;
+                }
+                bits++;
+            }
+            long blockMask = ((1L << bits) - 1) << FLOWSET_SHIFT;
+            cookies.add(Masked.of(
+                    U64.of(start << FLOWSET_SHIFT).or(DEFAULT_FORWARDING_COOKIE),
+                    U64.of(FLOWSET_MASK & ~blockMask).or(AppCookie.getAppFieldMask())));
+            i += 1 << bits;
+        }
+        return cookies;
+    }
+
+    /**
+     * Only for use by unit test
+     * @param mode
+     */
+    protected static void setFlowInstallModeForUnitTest(FlowInstallMode mode) {
+        FLOWMOD_INSTALL_MODE = mode;
+    }
+
+    /**
+     * Only for use by unit test
+     * @param mode
+     */
+    protected static void setMatchModeForUnitTest(MatchMode mode) {
+        FLOWMOD_MATCH_MODE = mode;
+    }
+
+    private void registerForwardingDebugCounters() {
+        debugCounterService.registerModule(PACKAGE);
+        counterFlowSetsRemoved = debugCounterService.registerCounter(PACKAGE, "link-down-flowsets-removed",
+                "Flowsets removed because a link or port they used went down");
+        counterFlowDeletes = debugCounterService.registerCounter(PACKAGE, "link-down-flow-deletes",
+                "Flow deletes sent to remove flowsets after a link or port went down");
+        counterCleanups = debugCounterService.registerCounter(PACKAGE, "link-down-cleanups",
+                "Link updates whose flow deletes were confirmed by every switch");
+        counterCleanupNs = debugCounterService.registerCounter(PACKAGE, "link-down-time-to-clean-ns",
+                "Total time in nanoseconds from a link update until every switch confirmed "
+                + "the flow deletes. Divide by link-down-cleanups for the mean");
+        counterOrderedInstalls = debugCounterService.registerCounter(PACKAGE, "ordered-installs",
+                "Paths installed in order whose downstream flows were all confirmed");
+        counterOrderedInstallNs = debugCounterService.registerCounter(PACKAGE, "ordered-install-ns",
+                "Total time in nanoseconds from writing a path's downstream flows until all "
+                + "were confirmed. Divide by ordered-installs for the mean");
+        counterOrderedInstallTimeouts = debugCounterService.registerCounter(PACKAGE, "ordered-install-timeouts",
+                "Paths whose first hop and packet-out were released before every downstream "
+                + "flow was confirmed");
+        counterInFlightDuplicates = debugCounterService.registerCounter(PACKAGE, "inflight-duplicates",
+                "Packet-ins sent along the flow already being set up for them instead of being routed");
+        counterInFlightDrops = debugCounterService.registerCounter(PACKAGE, "inflight-drops",
+                "Duplicate packet-ins dropped because their flow setup failed or too many were queued");
+        counterL3PendingQueueFull = debugCounterService.registerCounter(PACKAGE, "l3-pending-drops-queue-full",
+                "Packets held for an unresolved destination dropped because it held too many");
+        counterL3PendingMemory = debugCounterService.registerCounter(PACKAGE, "l3-pending-drops-memory",
+                "Packets held for unresolved destinations dropped because they held too many bytes");
+        counterL3PendingExpired = debugCounterService.registerCounter(PACKAGE, "l3-pending-drops-expired",
+                "Packets held for an unresolved destination dropped because it wasn't resolved in time");
+        counterProxyArpHits = debugCounterService.registerCounter(PACKAGE, "proxy-arp-hits",
+                "ARP requests answered from the device table instead of being flooded");
+        counterProxyArpMisses = debugCounterService.registerCounter(PACKAGE, "proxy-arp-misses",
+                "ARP requests flooded because their target was not known for certain");
+        counterFlowSetups = debugCounterService.registerCounter(PACKAGE, "flow-setups",
+                "Packet-ins that had a path installed for them. Compare between match modes "
+                + "for the packet-in rate each leaves to the controller");
+        counterFlowSetupFlows = debugCounterService.registerCounter(PACKAGE, "flow-setup-flows",
+                "Flows added to switch tables by flow setups. Compare between match modes "
+                + "for the flow table occupancy of each");
     }
 
     private Set<OFMessage> buildDeleteFlows(OFPort port, Set<OFMessage> msgs, IOFSwitch sw, U64 cookie, U64 cookieMask) {
@@ -1765,11 +2306,9 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
             if (device.getIPv4Addresses() == null) return;
 
             for (IPv4Address ip : device.getIPv4Addresses()) {
-                while (findPacketInCache(l3cache, ip).isPresent()) {
-                    // send all associated packets to the destination
-                    Ethernet eth = findPacketInCache(l3cache, ip).get();
+                // send all associated packets to the destination
+                for (Ethernet eth : l3PendingPackets.release(ip)) {
                     sendPacketToLastHop(eth, device);
-                    l3cache.values().remove(eth);
                 }
             }
 
@@ -1801,12 +2340,6 @@ public class Forwarding extends ForwardingBase implements IFloodlightModule, IOF
         }
     }
 
-    private Optional<Ethernet> findPacketInCache(Map<OFPacketIn, Ethernet> l3cache, IPv4Address ip) {
-        return l3cache.values().stream()
-                .filter(packet -> ((IPv4) packet.getPayload()).getDestinationAddress().equals(ip))
-                .findAny();
-    }
-
     private void pushL3Packet(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx, IDevice dstDevice) {
         Ethernet eth = IFloodlightProviderService.bcStore.get(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD);
         OFPort inPort = OFMessageUtils.getInPort(pi);
@@ -0,0 +1,282 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.forwarding;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.floodlightcontroller.core.types.NodePortTuple;
+
+import org.projectfloodlight.openflow.protocol.OFPacketIn;
+import org.projectfloodlight.openflow.protocol.match.Match;
+import org.projectfloodlight.openflow.types.OFPort;
+
+/**
+ * The flows Forwarding is currently setting up, keyed by the ingress port
+ * and the match the flow will be installed with.
+ *
+ * The remaining packets of a burst keep arriving as packet-ins until the
+ * flow of their first packet is in place. The first packet-in of a flow
+ * owns its setup and is routed as usual. Packet-ins that follow with the
+ * same key skip routing: they are queued until the owner's flows are
+ * installed, and then sent out of the first hop port the owner chose.
+ * An entry is kept for a short window after its creation, so packets that
+ * were already on their way to the controller when the flow went in are
+ * forwarded the same way.
+ */
+public class InFlightFlowTable {
+    /* how many insertions between sweeps of expired setups */
+    private static final int SWEEP_INTERVAL = 1024;
+
+    /**
+     * Receives the duplicate packet-ins of a flow being set up
+     */
+    public interface DuplicateHandler {
+        /**
+         * The flow is installed; send the packet out of the first hop
+         */
+        void forward(Key key, OFPacketIn pi, OFPort outPort);
+
+        /**
+         * The packet can't be sent, because its setup was abandoned or
+         * too many packets are queued behind it
+         */
+        void dropped(Key key, OFPacketIn pi);
+    }
+
+    /**
+     * The ingress switch port and the match of a flow
+     */
+    public static final class Key {
+        private final NodePortTuple ingress;
+        private final Match match;
+
+        public Key(NodePortTuple ingress, Match match) {
+            this.ingress = ingress;
+            this.match = match;
+        }
+
+        public NodePortTuple getIngress() {
+            return ingress;
+        }
+
+        public Match getMatch() {
+            return match;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * ingress.hashCode() + match.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return ingress.equals(other.ingress) && match.equals(other.match);
+        }
+
+        @Override
+        public String toString() {
+            return "Key [ingress=" + ingress + ", match=" + match + "]";
+        }
+    }
+
+    /**
+     * The setup of one flow, owned by the packet-in that started it
+     */
+    public static final class Setup {
+        private final Key key;
+        private final long expiresNs;
+        private OFPort outPort;
+        private boolean installed;
+        private List<OFPacketIn> queued = Collections.emptyList();
+
+        private Setup(Key key, long expiresNs) {
+            this.key = key;
+            this.expiresNs = expiresNs;
+        }
+
+        public Key getKey() {
+            return key;
+        }
+
+        /**
+         * @param outPort the port the flow leaves the ingress switch by
+         */
+        public synchronized void setOutPort(OFPort outPort) {
+            this.outPort = outPort;
+        }
+
+        public synchronized OFPort getOutPort() {
+            return outPort;
+        }
+
+        private boolean isExpired(long nowNs) {
+            return nowNs - expiresNs >= 0;
+        }
+    }
+
+    private final ConcurrentMap<Key, Setup> setups = new ConcurrentHashMap<Key, Setup>();
+    private final long windowNs;
+    private final int maxQueued;
+    private final int capacity;
+    private final AtomicInteger insertions = new AtomicInteger();
+
+    /**
+     * @param windowMs how long a setup is remembered after it started
+     * @param maxQueued the most packet-ins held behind one setup
+     * @param capacity the most setups tracked at once; packet-ins of further
+     *        flows are routed without de-duplication
+     */
+    public InFlightFlowTable(int windowMs, int maxQueued, int capacity) {
+        this.windowNs = TimeUnit.MILLISECONDS.toNanos(windowMs);
+        this.maxQueued = maxQueued;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Start the setup of a flow, unless one is already in progress.
+     * @param key the ingress port and match of the packet-in
+     * @param pi the packet-in
+     * @param handler receives the packet-in if it is a duplicate that can
+     *        be sent, or has to be dropped, right away
+     * @return a new setup the caller owns and must route, then either
+     *         {@link #installed} or {@link #abandon}; null if the packet-in
+     *         duplicates a setup in progress and has been dealt with
+     */
+    public Setup admit(Key key, OFPacketIn pi, DuplicateHandler handler) {
+        long now = System.nanoTime();
+        while (true) {
+            Setup current = setups.get(key);
+            if (current == null || current.isExpired(now)) {
+                Setup mine = new Setup(key, now + windowNs);
+                if (current == null) {
+                    if (setups.size() >= capacity && !sweep(now)) {
+                        return mine; /* untracked */
+                    }
+                    if (setups.putIfAbsent(key, mine) != null) {
+                        continue;
+                    }
+                } else if (!setups.replace(key, current, mine)) {
+                    continue;
+                }
+                if (insertions.incrementAndGet() % SWEEP_INTERVAL == 0) {
+                    sweep(now);
+                }
+                return mine;
+            }
+
+            OFPort outPort;
+            synchronized (current) {
+                if (!current.installed) {
+                    if (current.queued.size() < maxQueued) {
+                        if (current.queued.isEmpty()) {
+                            current.queued = new ArrayList<OFPacketIn>(4);
+                        }
+                        current.queued.add(pi);
+                        return null;
+                    }
+                    outPort = null;
+                } else {
+                    outPort = current.outPort;
+                }
+            }
+            if (outPort != null) {
+                handler.forward(key, pi, outPort);
+            } else {
+                handler.dropped(key, pi);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The flows of a setup are in place. Packet-ins queued behind it are
+     * sent out of its out port, as are any that follow within the window.
+     */
+    public void installed(Setup setup, DuplicateHandler handler) {
+        List<OFPacketIn> queued;
+        OFPort outPort;
+        synchronized (setup) {
+            setup.installed = true;
+            outPort = setup.outPort;
+            queued = setup.queued;
+            setup.queued = Collections.emptyList();
+        }
+        if (outPort == null) {
+            /* nowhere to send duplicates; let them be routed */
+            setups.remove(setup.key, setup);
+        }
+        for (OFPacketIn pi : queued) {
+            if (outPort != null) {
+                handler.forward(setup.key, pi, outPort);
+            } else {
+                handler.dropped(setup.key, pi);
+            }
+        }
+    }
+
+    /**
+     * The setup failed; drop what was queued behind it and forget it
+     */
+    public void abandon(Setup setup, DuplicateHandler handler) {
+        List<OFPacketIn> queued;
+        synchronized (setup) {
+            setup.installed = true;
+            queued = setup.queued;
+            setup.queued = Collections.emptyList();
+        }
+        setups.remove(setup.key, setup);
+        for (OFPacketIn pi : queued) {
+            handler.dropped(setup.key, pi);
+        }
+    }
+
+    /**
+     * Forget all setups, e.g. because paths have changed. Setups that are
+     * still installing keep their queues and release them when done.
+     */
+    public void clear() {
+        setups.clear();
+    }
+
+    public int size() {
+        return setups.size();
+    }
+
+    /**
+     * Remove the expired setups
+     * @return true if there is room for another setup
+     */
+    private boolean sweep(long nowNs) {
+        Iterator<Setup> it = setups.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().isExpired(nowNs)) {
+                it.remove();
+            }
+        }
+        return setups.size() < capacity;
+    }
+}
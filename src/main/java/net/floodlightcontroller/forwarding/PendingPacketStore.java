@@ -0,0 +1,224 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.forwarding;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+/**
+ * Packets held by the virtual gateway while the MAC address of their
+ * destination is being resolved, indexed by destination IPv4 address.
+ *
+ * Releasing the packets of a destination only visits that destination's
+ * queue. Each destination holds a bounded number of packets, and all
+ * destinations together a bounded number of bytes; when either bound is
+ * reached the oldest packets are dropped to make room. Packets are
+ * dropped as well once they have waited longer than the TTL.
+ */
+public class PendingPacketStore {
+    /**
+     * Why a held packet was dropped
+     */
+    public enum DropReason {
+        /** its destination already held the most packets allowed */
+        QUEUE_FULL,
+        /** all destinations together held the most bytes allowed */
+        MEMORY,
+        /** its destination wasn't resolved within the TTL */
+        EXPIRED
+    }
+
+    /**
+     * Notified of every packet dropped without being released
+     */
+    public interface DropListener {
+        void dropped(IPv4Address dst, Ethernet eth, DropReason reason);
+    }
+
+    private static class Pending {
+        final IPv4Address dst;
+        final Ethernet eth;
+        final int bytes;
+        final long expiresNs;
+        /* released or dropped; skipped when met in the arrival queue */
+        boolean gone;
+
+        Pending(IPv4Address dst, Ethernet eth, int bytes, long expiresNs) {
+            this.dst = dst;
+            this.eth = eth;
+            this.bytes = bytes;
+            this.expiresNs = expiresNs;
+        }
+    }
+
+    private final Map<IPv4Address, ArrayDeque<Pending>> byDestination = new HashMap<>();
+    /* every held packet, oldest first */
+    private final ArrayDeque<Pending> arrivals = new ArrayDeque<>();
+    private final long ttlNs;
+    private final int maxPerDestination;
+    private final long maxBytes;
+    private final DropListener listener;
+    private int size;
+    private long bytes;
+
+    /**
+     * @param ttlMs how long a packet is held at most
+     * @param maxPerDestination the most packets held for one destination
+     * @param maxBytes the most packet bytes held for all destinations
+     * @param listener notified of dropped packets
+     */
+    public PendingPacketStore(int ttlMs, int maxPerDestination, long maxBytes, DropListener listener) {
+        this.ttlNs = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.maxPerDestination = maxPerDestination;
+        this.maxBytes = maxBytes;
+        this.listener = listener;
+    }
+
+    /**
+     * Hold a packet until its destination is resolved
+     * @param dst the destination IPv4 address of the packet
+     * @param eth the packet
+     * @param length the size of the packet in bytes
+     */
+    public void add(IPv4Address dst, Ethernet eth, int length) {
+        List<Pending> dropped = new ArrayList<>(0);
+        List<DropReason> reasons = new ArrayList<>(0);
+        synchronized (this) {
+            long now = System.nanoTime();
+            expire(now, dropped, reasons);
+
+            if (maxPerDestination <= 0 || length > maxBytes) {
+                dropped.add(new Pending(dst, eth, length, now));
+                reasons.add(maxPerDestination <= 0 ? DropReason.QUEUE_FULL : DropReason.MEMORY);
+            } else {
+                ArrayDeque<Pending> queue = byDestination.get(dst);
+                while (queue != null && queue.size() >= maxPerDestination) {
+                    drop(queue.pollFirst(), DropReason.QUEUE_FULL, dropped, reasons);
+                }
+                while (bytes + length > maxBytes) {
+                    Pending oldest = arrivals.pollFirst();
+                    if (!oldest.gone) {
+                        /* the oldest packet is also the oldest of its destination */
+                        pollOldest(oldest.dst);
+                        drop(oldest, DropReason.MEMORY, dropped, reasons);
+                    }
+                }
+
+                queue = byDestination.get(dst);
+                if (queue == null) {
+                    queue = new ArrayDeque<>(4);
+                    byDestination.put(dst, queue);
+                }
+                Pending p = new Pending(dst, eth, length, now + ttlNs);
+                queue.addLast(p);
+                arrivals.addLast(p);
+                size++;
+                bytes += length;
+            }
+        }
+        notifyDropped(dropped, reasons);
+    }
+
+    /**
+     * Take the packets held for a destination that has been resolved
+     * @return the packets, oldest first
+     */
+    public List<Ethernet> release(IPv4Address dst) {
+        List<Ethernet> released;
+        List<Pending> dropped = new ArrayList<>(0);
+        List<DropReason> reasons = new ArrayList<>(0);
+        synchronized (this) {
+            expire(System.nanoTime(), dropped, reasons);
+            ArrayDeque<Pending> queue = byDestination.remove(dst);
+            if (queue == null) {
+                released = Collections.emptyList();
+            } else {
+                released = new ArrayList<>(queue.size());
+                for (Pending p : queue) {
+                    remove(p);
+                    released.add(p.eth);
+                }
+            }
+        }
+        notifyDropped(dropped, reasons);
+        return released;
+    }
+
+    /**
+     * @return the number of packets held
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of packet bytes held
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Drop the packets that have outlived the TTL. Packets are held in
+     * arrival order with the same TTL, so they expire oldest first.
+     */
+    private void expire(long nowNs, List<Pending> dropped, List<DropReason> reasons) {
+        Pending oldest;
+        while ((oldest = arrivals.peekFirst()) != null
+                && (oldest.gone || nowNs - oldest.expiresNs >= 0)) {
+            arrivals.pollFirst();
+            if (!oldest.gone) {
+                pollOldest(oldest.dst);
+                drop(oldest, DropReason.EXPIRED, dropped, reasons);
+            }
+        }
+    }
+
+    private void pollOldest(IPv4Address dst) {
+        ArrayDeque<Pending> queue = byDestination.get(dst);
+        queue.pollFirst();
+        if (queue.isEmpty()) {
+            byDestination.remove(dst);
+        }
+    }
+
+    private void drop(Pending p, DropReason reason, List<Pending> dropped, List<DropReason> reasons) {
+        remove(p);
+        dropped.add(p);
+        reasons.add(reason);
+    }
+
+    private void remove(Pending p) {
+        p.gone = true;
+        size--;
+        bytes -= p.bytes;
+    }
+
+    private void notifyDropped(List<Pending> dropped, List<DropReason> reasons) {
+        for (int i = 0; i < dropped.size(); i++) {
+            Pending p = dropped.get(i);
+            listener.dropped(p.dst, p.eth, reasons.get(i));
+        }
+    }
+}
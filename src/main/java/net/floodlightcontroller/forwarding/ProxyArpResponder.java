@@ -0,0 +1,113 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.forwarding;
+
+import java.util.Iterator;
+import java.util.Set;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.IPacket;
+
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv6Address;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.VlanVid;
+
+/**
+ * Answers ARP requests on behalf of the hosts the device manager knows,
+ * so that they needn't be flooded.
+ *
+ * A request is answered when exactly one known device on the requester's
+ * VLAN has the target address. Gratuitous ARP and address probes are
+ * left alone, since the hosts sending them want to hear from the network.
+ */
+public class ProxyArpResponder {
+    private final IDeviceService deviceService;
+    private final Set<VlanVid> vlans;
+
+    /**
+     * @param deviceService where hosts are looked up
+     * @param vlans the VLANs to answer requests on, VlanVid.ZERO for
+     *        untagged; null for all
+     */
+    public ProxyArpResponder(IDeviceService deviceService, Set<VlanVid> vlans) {
+        this.deviceService = deviceService;
+        this.vlans = vlans;
+    }
+
+    /**
+     * @return true if the packet is an ARP request this responder may answer
+     */
+    public boolean isEnabledFor(Ethernet eth) {
+        if (eth.getEtherType() != EthType.ARP
+                || !((ARP) eth.getPayload()).getOpCode().equals(ARP.OP_REQUEST)) {
+            return false;
+        }
+        return vlans == null || vlans.contains(VlanVid.ofVlan(eth.getVlanID()));
+    }
+
+    /**
+     * Build the reply to an ARP request from the device table
+     * @param eth an ARP request this responder is enabled for
+     * @return the reply, or null if the target isn't known for certain
+     */
+    public IPacket getReply(Ethernet eth) {
+        ARP request = (ARP) eth.getPayload();
+        IPv4Address target = request.getTargetProtocolAddress();
+        IPv4Address sender = request.getSenderProtocolAddress();
+        if (target.equals(sender) || sender.equals(IPv4Address.NONE)) {
+            return null;
+        }
+
+        MacAddress targetMac = null;
+        Iterator<? extends IDevice> devices = deviceService.queryDevices(MacAddress.NONE,
+                VlanVid.ofVlan(eth.getVlanID()), target, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
+        while (devices.hasNext()) {
+            MacAddress mac = devices.next().getMACAddress();
+            if (targetMac != null && !targetMac.equals(mac)) {
+                /* the address is claimed by more than one host */
+                return null;
+            }
+            targetMac = mac;
+        }
+        if (targetMac == null || targetMac.equals(eth.getSourceMACAddress())) {
+            return null;
+        }
+
+        return new Ethernet()
+                .setSourceMACAddress(targetMac)
+                .setDestinationMACAddress(eth.getSourceMACAddress())
+                .setEtherType(EthType.ARP)
+                .setVlanID(eth.getVlanID())
+                .setPriorityCode(eth.getPriorityCode())
+                .setPayload(
+                        new ARP()
+                        .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                        .setProtocolType(ARP.PROTO_TYPE_IP)
+                        .setOpCode(ARP.OP_REPLY)
+                        .setHardwareAddressLength((byte) 6)
+                        .setProtocolAddressLength((byte) 4)
+                        .setSenderHardwareAddress(targetMac)
+                        .setSenderProtocolAddress(target)
+                        .setTargetHardwareAddress(request.getSenderHardwareAddress())
+                        .setTargetProtocolAddress(sender));
+    }
+}
@@ -0,0 +1,127 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.linkdiscovery.internal;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size rolling window of link latency samples in nanoseconds.
+ * Once the window is full, the oldest sample is overwritten by each
+ * new one. Summary statistics (min, mean, percentiles) are computed
+ * over the samples currently held in the window.
+ *
+ * Not thread-safe; LinkInfo instances are only modified while the
+ * LinkDiscoveryManager write lock is held.
+ */
+public class LatencyHistogram {
+	private final long[] samples;
+	private int next;
+	private int size;
+
+	public LatencyHistogram(int capacity) {
+		this.samples = new long[capacity < 1 ? 1 : capacity];
+		this.next = 0;
+		this.size = 0;
+	}
+
+	public LatencyHistogram(LatencyHistogram from) {
+		this.samples = Arrays.copyOf(from.samples, from.samples.length);
+		this.next = from.next;
+		this.size = from.size;
+	}
+
+	/**
+	 * Add a sample, evicting the oldest one if the window is full.
+	 * @param latencyNs the observed latency in nanoseconds
+	 */
+	public void add(long latencyNs) {
+		samples[next] = latencyNs;
+		next = (next + 1) % samples.length;
+		if (size < samples.length) {
+			size++;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return samples.length;
+	}
+
+	public boolean isFull() {
+		return size == samples.length;
+	}
+
+	/**
+	 * @return the smallest sample in the window; -1 if empty
+	 */
+	public long getMin() {
+		if (size == 0) {
+			return -1;
+		}
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < size; i++) {
+			if (samples[i] < min) {
+				min = samples[i];
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * @return the arithmetic mean of the samples in the window; -1 if empty
+	 */
+	public long getMean() {
+		if (size == 0) {
+			return -1;
+		}
+		double avg = 0;
+		for (int i = 0; i < size; i++) {
+			avg = avg + samples[i];
+		}
+		return (long) (avg / size);
+	}
+
+	/**
+	 * Nearest-rank percentile of the samples in the window.
+	 * @param percentile from 0 to 100
+	 * @return the sample at the given rank; -1 if empty
+	 */
+	public long getPercentile(double percentile) {
+		if (size == 0) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(samples, size);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil((percentile / 100) * size);
+		if (rank < 1) {
+			rank = 1;
+		} else if (rank > size) {
+			rank = size;
+		}
+		return sorted[rank - 1];
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram [samples=" + size
+				+ ", min=" + getMin()
+				+ ", p50=" + getPercentile(50)
+				+ ", p99=" + getPercentile(99)
+				+ "]";
+	}
+}
@@ -29,6 +29,7 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -59,6 +60,7 @@ import net.floodlightcontroller.core.module.FloodlightModuleException;
 import net.floodlightcontroller.core.module.IFloodlightModule;
 import net.floodlightcontroller.core.module.IFloodlightService;
 import net.floodlightcontroller.core.types.NodePortTuple;
+import net.floodlightcontroller.core.util.OFMessageReceiveTime;
 import net.floodlightcontroller.core.util.SingletonTask;
 import net.floodlightcontroller.debugcounter.IDebugCounter;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
@@ -200,6 +202,12 @@ IFloodlightModule, IInfoProvider {
 	 */
 	protected static int LATENCY_HISTORY_SIZE = 10;
 	protected static double LATENCY_UPDATE_THRESHOLD = 0.50;
+	protected static int LATENCY_HISTOGRAM_SIZE = 100;
+	/* 0 to use the history average; otherwise the histogram percentile (0, 100] used as link latency */
+	protected static double LATENCY_PERCENTILE = 0;
+	private static final long NANOS_PER_MS = 1000000L;
+	private static final byte TLV_TIMESTAMP_MS_SUBTYPE = 0x01;
+	private static final byte TLV_TIMESTAMP_NS_SUBTYPE = 0x02;
 
 	/**
 	 * Flag to indicate if automatic port fast is enabled or not. Default is set
@@ -255,6 +263,17 @@ IFloodlightModule, IInfoProvider {
 	protected final int BDDP_TASK_INTERVAL = 100; // 100 ms.
 	protected final int BDDP_TASK_SIZE = 10; // # of ports per iteration
 
+	/**
+	 * Link storage write-behind buffer, keyed by link ID. A null
+	 * value marks the row for deletion. Flushed in batches every
+	 * STORAGE_FLUSH_INTERVAL ms, so repeated updates to the same
+	 * link during convergence result in a single storage write.
+	 */
+	protected final Map<String, Map<String, Object>> pendingLinkStorage =
+			new LinkedHashMap<String, Map<String, Object>>();
+	protected SingletonTask storageFlushTask;
+	protected static int STORAGE_FLUSH_INTERVAL = 100; // 100 ms.
+
 	private class MACRange {
 		MacAddress baseMAC;
 		int ignoreBits;
@@ -271,7 +290,11 @@ IFloodlightModule, IInfoProvider {
 	private IDebugCounter ctrIncoming;
 	private IDebugCounter ctrLinkLocalDrops;
 	private IDebugCounter ctrLldpEol;
+	private IDebugCounter ctrLldpQueueingNs;
 	private IDebugCounter counterPacketOut;
+	private IDebugCounter ctrStorageCoalesced;
+	private IDebugCounter ctrStorageFlushes;
+	private IDebugCounter ctrStorageRowsFlushed;
 
 	private final String PACKAGE = LinkDiscoveryManager.class.getPackage().getName();
 
@@ -356,25 +379,25 @@ IFloodlightModule, IInfoProvider {
 		}
 
 		/* 
-		 * Introduce a new TLV for med-granularity link latency detection.
+		 * Introduce a new TLV for high-granularity link latency detection.
 		 * If same controller, can assume system clock is the same, but
 		 * cannot guarantee processing time or account for network congestion.
 		 * 
-		 * Need to include our OpenFlow OUI - 00-26-E1-01 (note 01; 00 is DPID); 
-		 * save last 8 bytes for long (time in ms). 
+		 * Need to include our OpenFlow OUI - 00-26-E1-02 (note 02; 00 is DPID,
+		 * 01 is the legacy time in ms); save last 8 bytes for long (time in ns). 
 		 * 
 		 * Note Long.SIZE is in bits (64).
 		 */
-		long time = System.nanoTime() / 1000000;
-		long swLatency = iofSwitch.getLatency().getValue();
+		long time = System.nanoTime();
+		long swLatency = iofSwitch.getLatency().getValue() * NANOS_PER_MS;
 		if (log.isTraceEnabled()) {
-			log.trace("SETTING LLDP LATENCY TLV: Current Time {}; {} control plane latency {}; sum {}", new Object[] { time, iofSwitch.getId(), swLatency, time + swLatency });
+			log.trace("SETTING LLDP LATENCY TLV: Current Time {}ns; {} control plane latency {}ns; sum {}ns", new Object[] { time, iofSwitch.getId(), swLatency, time + swLatency });
 		}
 		byte[] timestampTLVValue = ByteBuffer.allocate(Long.SIZE / 8 + 4)
 				.put((byte) 0x00)
 				.put((byte) 0x26)
 				.put((byte) 0xe1)
-				.put((byte) 0x01) /* 0x01 is what we'll use to differentiate DPID (0x00) from time (0x01) */
+				.put(TLV_TIMESTAMP_NS_SUBTYPE)
 				.putLong(time + swLatency /* account for our switch's one-way latency */)
 				.array();
 
@@ -672,7 +695,20 @@ IFloodlightModule, IInfoProvider {
 
 		OFPort remotePort = OFPort.of(portBB.getShort());
 		IOFSwitch remoteSwitch = null;
-		long timestamp = 0;
+		long timestamp = 0; /* in ns */
+
+		/*
+		 * Use the time the message was read off the channel rather than the
+		 * time we get around to handling it, so that packets queued behind
+		 * others on the event loop do not inflate the link latency.
+		 */
+		long receiveTime = OFMessageReceiveTime.get();
+		long now = System.nanoTime();
+		if (receiveTime == 0 || receiveTime > now) {
+			receiveTime = now;
+		} else {
+			ctrLldpQueueingNs.add(now - receiveTime);
+		}
 
 		// Verify this LLDP packet matches what we're looking for
 		for (LLDPTLV lldptlv : lldp.getOptionalTLVList()) {
@@ -687,12 +723,16 @@ IFloodlightModule, IInfoProvider {
 					&& lldptlv.getValue()[0] == 0x0
 					&& lldptlv.getValue()[1] == 0x26
 					&& lldptlv.getValue()[2] == (byte) 0xe1
-					&& lldptlv.getValue()[3] == 0x01) { /* 0x01 for timestamp */
+					&& (lldptlv.getValue()[3] == TLV_TIMESTAMP_MS_SUBTYPE 
+					|| lldptlv.getValue()[3] == TLV_TIMESTAMP_NS_SUBTYPE)) {
 				ByteBuffer tsBB = ByteBuffer.wrap(lldptlv.getValue()); /* skip OpenFlow OUI (4 bytes above) */
-				long swLatency = iofSwitch.getLatency().getValue();
+				long swLatency = iofSwitch.getLatency().getValue() * NANOS_PER_MS;
 				timestamp = tsBB.getLong(4); /* include the RX switch latency to "subtract" it */
+				if (lldptlv.getValue()[3] == TLV_TIMESTAMP_MS_SUBTYPE) {
+					timestamp = timestamp * NANOS_PER_MS; /* sent by an older release */
+				}
 				if (log.isTraceEnabled()) {
-					log.trace("RECEIVED LLDP LATENCY TLV: Got timestamp of {}; Switch {} latency of {}", new Object[] { timestamp, iofSwitch.getId(), iofSwitch.getLatency().getValue() }); 
+					log.trace("RECEIVED LLDP LATENCY TLV: Got timestamp of {}ns; Switch {} latency of {}ns", new Object[] { timestamp, iofSwitch.getId(), swLatency }); 
 				}
 				timestamp = timestamp + swLatency;
 			} else if (lldptlv.getType() == 12 && lldptlv.getLength() == 8) {
@@ -770,11 +810,11 @@ IFloodlightModule, IInfoProvider {
 
 		// Store the time of update to this link, and push it out to
 		// routingEngine
-		long time = System.nanoTime() / 1000000;
-		U64 latency = (timestamp != 0 && (time - timestamp) > 0) ? U64.of(time - timestamp) : U64.ZERO;
+		long latencyNs = (timestamp != 0 && (receiveTime - timestamp) > 0) ? receiveTime - timestamp : 0;
+		U64 latency = U64.of(latencyNs / NANOS_PER_MS);
 		if (log.isTraceEnabled()) {
-			log.trace("COMPUTING FINAL DATAPLANE LATENCY: Current time {}; Dataplane+{} latency {}; Overall latency from {} to {} is {}", 
-					new Object[] { time, iofSwitch.getId(), timestamp, remoteSwitch.getId(), iofSwitch.getId(), String.valueOf(latency.getValue()) });
+			log.trace("COMPUTING FINAL DATAPLANE LATENCY: Receive time {}ns; Dataplane+{} latency {}ns; Overall latency from {} to {} is {}ns", 
+					new Object[] { receiveTime, iofSwitch.getId(), timestamp, remoteSwitch.getId(), iofSwitch.getId(), latencyNs });
 		}
 		Link lt = new Link(remoteSwitch.getId(), remotePort,
 				iofSwitch.getId(), inPort, latency);
@@ -796,6 +836,9 @@ IFloodlightModule, IInfoProvider {
 		}
 
 		LinkInfo newLinkInfo = new LinkInfo(firstSeenTime, lastLldpTime, lastBddpTime);
+		if (timestamp != 0) {
+			newLinkInfo.setObservedLatencyNs(latencyNs);
+		}
 
 		addOrUpdateLink(lt, newLinkInfo);
 
@@ -828,6 +871,9 @@ IFloodlightModule, IInfoProvider {
 			// srcPortState and dstPort state are reversed.
 			LinkInfo reverseInfo = new LinkInfo(firstSeenTime, lastLldpTime,
 					lastBddpTime);
+			if (timestamp != 0) {
+				reverseInfo.setObservedLatencyNs(latencyNs);
+			}
 
 			addOrUpdateLink(reverseLink, reverseInfo);
 		}
@@ -1291,11 +1337,31 @@ IFloodlightModule, IInfoProvider {
 					new HashSet<Link>());
 		portLinks.get(dstNpt).add(lt);
 
-		newInfo.addObservedLatency(lt.getLatency());
+		addObservedLatency(lt, newInfo, newInfo);
+		newInfo.setObservedLatencyNs(-1);
 
 		return true;
 	}
 
+	/**
+	 * Record the latency observed for a link, preferring the
+	 * nanosecond-resolution sample carried by the new LinkInfo
+	 * and falling back to the millisecond latency on the Link.
+	 * 
+	 * @param lt the link with its observed latency in ms
+	 * @param info the LinkInfo to record the sample in
+	 * @param newInfo the LinkInfo the sample arrived with
+	 * @return the latency to use for the link, in ms
+	 */
+	private U64 addObservedLatency(Link lt, LinkInfo info, LinkInfo newInfo) {
+		long latencyNs = newInfo.getObservedLatencyNs();
+		if (latencyNs >= 0) {
+			return info.addObservedLatencyNs(latencyNs);
+		} else {
+			return info.addObservedLatency(lt.getLatency());
+		}
+	}
+
 	/**
 	 * Determine if a link should be updated and set the time stamps if it should.
 	 * Also, determine the correct latency value for the link. An existing link
@@ -1357,7 +1423,7 @@ IFloodlightModule, IInfoProvider {
 		 * defined update threshold.
 		 */
 		U64 currentLatency = existingInfo.getCurrentLatency();
-		U64 latencyToUse = existingInfo.addObservedLatency(lk.getLatency());
+		U64 latencyToUse = addObservedLatency(lk, existingInfo, newInfo);
 
 		if (currentLatency == null) {
 			/* no-op; already 'changed' as this is a new link */
@@ -1827,9 +1893,82 @@ IFloodlightModule, IInfoProvider {
 	 * Deletes all links from storage
 	 */
 	void clearAllLinks() {
+		synchronized (pendingLinkStorage) {
+			pendingLinkStorage.clear();
+		}
 		storageSourceService.deleteRowsAsync(LINK_TABLE_NAME, null);
 	}
 
+	/**
+	 * Buffers a link row write or delete. Only the most recent operation
+	 * per link ID is kept; the buffer is flushed to storage by the
+	 * storage flush task.
+	 *
+	 * @param id
+	 *            The link ID (storage row key)
+	 * @param rowValues
+	 *            The row to write, or null to delete the row
+	 */
+	private void bufferLinkStorageOp(String id, Map<String, Object> rowValues) {
+		boolean wasEmpty;
+		synchronized (pendingLinkStorage) {
+			wasEmpty = pendingLinkStorage.isEmpty();
+			if (pendingLinkStorage.containsKey(id)) {
+				ctrStorageCoalesced.increment();
+			}
+			pendingLinkStorage.put(id, rowValues);
+		}
+		if (wasEmpty && storageFlushTask != null) {
+			storageFlushTask.reschedule(STORAGE_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes all buffered link updates and deletes to storage as one
+	 * multi-row update and one multi-row delete.
+	 */
+	protected void flushLinkStorage() {
+		List<Map<String, Object>> rows;
+		Set<Object> deletes;
+		synchronized (pendingLinkStorage) {
+			if (pendingLinkStorage.isEmpty()) {
+				return;
+			}
+			rows = new ArrayList<Map<String, Object>>(pendingLinkStorage.size());
+			deletes = new HashSet<Object>();
+			for (Entry<String, Map<String, Object>> e : pendingLinkStorage.entrySet()) {
+				if (e.getValue() == null) {
+					deletes.add(e.getKey());
+				} else {
+					rows.add(e.getValue());
+				}
+			}
+			pendingLinkStorage.clear();
+		}
+
+		if (!rows.isEmpty()) {
+			storageSourceService.updateRowsAsync(LINK_TABLE_NAME, rows);
+		}
+		if (!deletes.isEmpty()) {
+			storageSourceService.deleteRowsAsync(LINK_TABLE_NAME, deletes);
+		}
+		ctrStorageFlushes.increment();
+		ctrStorageRowsFlushed.add(rows.size() + deletes.size());
+		if (log.isTraceEnabled()) {
+			log.trace("Flushed {} link updates and {} link deletes to storage",
+					rows.size(), deletes.size());
+		}
+	}
+
+	/**
+	 * @return the number of link rows waiting to be written to storage
+	 */
+	public int getPendingLinkStorageCount() {
+		synchronized (pendingLinkStorage) {
+			return pendingLinkStorage.size();
+		}
+	}
+
 	/**
 	 * Writes a LinkTuple and corresponding LinkInfo to storage
 	 *
@@ -1868,18 +2007,19 @@ IFloodlightModule, IInfoProvider {
 		rowValues.put(LINK_DST_SWITCH, dstDpid);
 		rowValues.put(LINK_DST_PORT, lt.getDstPort());
 
-		storageSourceService.updateRowAsync(LINK_TABLE_NAME, rowValues);
+		bufferLinkStorageOp(id, rowValues);
 	}
 
 	/**
-	 * Removes a link from storage using an asynchronous call.
+	 * Removes a link from storage. The delete is buffered and
+	 * written asynchronously with the next storage flush.
 	 *
 	 * @param lt
 	 *            The LinkTuple to delete.
 	 */
 	protected void removeLinkFromStorage(Link lt) {
 		String id = getLinkId(lt);
-		storageSourceService.deleteRowAsync(LINK_TABLE_NAME, id);
+		bufferLinkStorageOp(id, null);
 	}
 
 	public Long readLinkValidTime(Link lt) {
@@ -1999,6 +2139,44 @@ IFloodlightModule, IInfoProvider {
 		}
 		log.info("Latency update threshold set to +/-{} ({}%) of rolling historical average", LATENCY_UPDATE_THRESHOLD, LATENCY_UPDATE_THRESHOLD * 100);
 
+		try {
+			String storageFlushInterval = configOptions.get("storage-flush-interval-ms");
+			if (storageFlushInterval != null) {
+				STORAGE_FLUSH_INTERVAL = Integer.parseInt(storageFlushInterval);
+			}
+		} catch (NumberFormatException e) {
+			log.warn("Error in storage flush interval. Using default of {}ms", STORAGE_FLUSH_INTERVAL);
+		}
+		log.info("Link storage flush interval set to {}ms", STORAGE_FLUSH_INTERVAL);
+
+		try {
+			String latencyHistogramSize = configOptions.get("latency-histogram-size");
+			if (latencyHistogramSize != null) {
+				LATENCY_HISTOGRAM_SIZE = Integer.parseInt(latencyHistogramSize);
+			}
+		} catch (NumberFormatException e) {
+			log.warn("Error in latency histogram size. Using default of {} LLDP data points", LATENCY_HISTOGRAM_SIZE);
+		}
+		log.info("Link latency histogram set to {} LLDP data points", LATENCY_HISTOGRAM_SIZE);
+
+		try {
+			String latencyPercentile = configOptions.get("latency-percentile");
+			if (latencyPercentile != null) {
+				double p = Double.parseDouble(latencyPercentile);
+				if (p < 0 || p > 100) {
+					throw new NumberFormatException();
+				}
+				LATENCY_PERCENTILE = p;
+			}
+		} catch (NumberFormatException e) {
+			log.warn("Error in latency percentile. Can be from 0 (use average) to 100. Using {}", LATENCY_PERCENTILE);
+		}
+		if (LATENCY_PERCENTILE > 0) {
+			log.info("Link latency set to p{} of rolling histogram", LATENCY_PERCENTILE);
+		} else {
+			log.info("Link latency set to rolling historical average");
+		}
+
 		// Set the autoportfast feature to false.
 		this.autoPortFastFeature = AUTOPORTFAST_DEFAULT;
 
@@ -2096,6 +2274,22 @@ IFloodlightModule, IInfoProvider {
 		bddpTask = new SingletonTask(ses, new QuarantineWorker());
 		bddpTask.reschedule(BDDP_TASK_INTERVAL, TimeUnit.MILLISECONDS);
 
+		// Setup the link storage flush task. It is scheduled whenever
+		// a link write or delete is buffered.
+		storageFlushTask = new SingletonTask(ses, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flushLinkStorage();
+				} catch (Exception e) {
+					log.error("Exception flushing links to storage", e);
+				}
+			}
+		});
+		if (getPendingLinkStorageCount() > 0) {
+			storageFlushTask.reschedule(STORAGE_FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+
 		updatesThread = new Thread(new Runnable() {
 			@Override
 			public void run() {
@@ -2135,6 +2329,8 @@ IFloodlightModule, IInfoProvider {
 				"All incoming packets seen by this module");
 		ctrLldpEol  = debugCounterService.registerCounter(PACKAGE, "lldp-eol",
 				"End of Life for LLDP packets");
+		ctrLldpQueueingNs = debugCounterService.registerCounter(PACKAGE, "lldp-queueing-ns",
+				"Cumulative time in ns received LLDPs waited on the event loop before being handled; excluded from link latency");
 		ctrLinkLocalDrops = debugCounterService.registerCounter(PACKAGE, "linklocal-drops",
 				"All link local packets dropped by this module");
 		ctrIgnoreSrcMacDrops = debugCounterService.registerCounter(PACKAGE, "ignore-srcmac-drops",
@@ -2143,6 +2339,12 @@ IFloodlightModule, IInfoProvider {
 				"All packets arriving on quarantined ports dropped by this module", IDebugCounterService.MetaData.WARN);
 		counterPacketOut = debugCounterService.registerCounter(PACKAGE, "packet-outs-written",
 				"Packet outs written by the LinkDiscovery", IDebugCounterService.MetaData.WARN);
+		ctrStorageCoalesced = debugCounterService.registerCounter(PACKAGE, "storage-writes-coalesced",
+				"Link storage writes replaced by a newer write to the same link before being flushed");
+		ctrStorageFlushes = debugCounterService.registerCounter(PACKAGE, "storage-flushes",
+				"Batched link storage flushes");
+		ctrStorageRowsFlushed = debugCounterService.registerCounter(PACKAGE, "storage-rows-flushed",
+				"Link rows written or deleted by batched link storage flushes");
 	}
 
 	//*********************
@@ -2167,6 +2369,7 @@ IFloodlightModule, IInfoProvider {
 		}
 		info.put("# inter-switch links", numDirectLinks / 2);
 		info.put("# quarantine ports", quarantineQueue.size());
+		info.put("# links pending storage", getPendingLinkStorageCount());
 		return info;
 	}
 
@@ -15,7 +15,6 @@
 
 package net.floodlightcontroller.linkdiscovery.internal;
 
-import java.util.ArrayDeque;
 import java.util.Date;
 
 import org.projectfloodlight.openflow.types.U64;
@@ -28,23 +27,28 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 
 public class LinkInfo {
 	private static final Logger log = LoggerFactory.getLogger(LinkInfo.class);
+	private static final long NANOS_PER_MS = 1000000L;
 	
 	private Date firstSeenTime;
 	private Date lastLldpReceivedTime; /* Standard LLDP received time */
 	private Date lastBddpReceivedTime; /* Modified LLDP received time  */
 	private U64 currentLatency;
-	private ArrayDeque<U64> latencyHistory;
-	private int latencyHistoryWindow;
+	private LatencyHistogram latencyHistory;
+	private LatencyHistogram latencyHistogram;
 	private double latencyUpdateThreshold;
+	private double latencyPercentile;
+	private long observedLatencyNs;
 	
 	public LinkInfo(Date firstSeenTime, Date lastLldpReceivedTime, Date lastBddpReceivedTime) {
 		this.firstSeenTime = firstSeenTime;
 		this.lastLldpReceivedTime = lastLldpReceivedTime;
 		this.lastBddpReceivedTime = lastBddpReceivedTime;
 		this.currentLatency = null;
-		this.latencyHistory = new ArrayDeque<U64>(LinkDiscoveryManager.LATENCY_HISTORY_SIZE);
-		this.latencyHistoryWindow = LinkDiscoveryManager.LATENCY_HISTORY_SIZE;
+		this.latencyHistory = new LatencyHistogram(LinkDiscoveryManager.LATENCY_HISTORY_SIZE);
+		this.latencyHistogram = new LatencyHistogram(LinkDiscoveryManager.LATENCY_HISTOGRAM_SIZE);
 		this.latencyUpdateThreshold = LinkDiscoveryManager.LATENCY_UPDATE_THRESHOLD;
+		this.latencyPercentile = LinkDiscoveryManager.LATENCY_PERCENTILE;
+		this.observedLatencyNs = -1;
 	}
 
 	public LinkInfo(LinkInfo fromLinkInfo) {
@@ -52,9 +56,11 @@ public class LinkInfo {
 		this.lastLldpReceivedTime = fromLinkInfo.getUnicastValidTime();
 		this.lastBddpReceivedTime = fromLinkInfo.getMulticastValidTime();
 		this.currentLatency = fromLinkInfo.currentLatency;
-		this.latencyHistory = new ArrayDeque<U64>(fromLinkInfo.getLatencyHistory());
-		this.latencyHistoryWindow = fromLinkInfo.getLatencyHistoryWindow();
-		this.latencyUpdateThreshold = fromLinkInfo.getLatencyUpdateThreshold();
+		this.latencyHistory = new LatencyHistogram(fromLinkInfo.latencyHistory);
+		this.latencyHistogram = new LatencyHistogram(fromLinkInfo.latencyHistogram);
+		this.latencyUpdateThreshold = fromLinkInfo.latencyUpdateThreshold;
+		this.latencyPercentile = fromLinkInfo.latencyPercentile;
+		this.observedLatencyNs = fromLinkInfo.observedLatencyNs;
 	}
 
 	/** 
@@ -68,39 +74,32 @@ public class LinkInfo {
 	 * requires the new state to be written to storage.
 	 */
 
-	private int getLatencyHistoryWindow() {
-		return latencyHistoryWindow;
-	}
-
-	private double getLatencyUpdateThreshold() {
-		return latencyUpdateThreshold;
-	}
-	
-	private ArrayDeque<U64> getLatencyHistory() {
-		return latencyHistory;
-	}
-
-	private U64 getLatencyHistoryAverage() {
+	/**
+	 * Compute the candidate latency, in ms, from the samples observed
+	 * so far. This is the average of the latency history window, or
+	 * the configured percentile of the rolling histogram if one has
+	 * been set. Nothing is computed until the history window is full.
+	 * @return the candidate latency; null if not enough samples yet
+	 */
+	private U64 getLatencyCandidate() {
 		if (!isLatencyHistoryFull()) {
 			return null;
-		} else { /* guaranteed to be at latencyHistoryWindow capacity */
-			double avg = 0;
-			for (U64 l : latencyHistory) {
-				avg = avg + l.getValue();
-			}
-			avg = avg / latencyHistoryWindow;
-			return U64.of((long) avg);
+		} else if (latencyPercentile > 0) {
+			return U64.of(latencyHistogram.getPercentile(latencyPercentile) / NANOS_PER_MS);
+		} else { /* guaranteed to be at history window capacity */
+			return U64.of(latencyHistory.getMean() / NANOS_PER_MS);
 		}
 	}
 	
 	/**
 	 * Retrieve the current latency, and if necessary
 	 * compute and replace the current latency with an
-	 * updated latency based on the historical average.
+	 * updated latency based on the historical average
+	 * or percentile.
 	 * @return the most up-to-date latency as permitted by algorithm
 	 */
 	private U64 getLatency() {
-		U64 newLatency = getLatencyHistoryAverage();
+		U64 newLatency = getLatencyCandidate();
 		if (newLatency != null) {
 			/* check threshold */
 			if ((((double) Math.abs(newLatency.getValue() - currentLatency.getValue())) 
@@ -124,7 +123,7 @@ public class LinkInfo {
 	 * @return true if full; false if not full
 	 */
 	private boolean isLatencyHistoryFull() {
-		return (latencyHistory.size() == latencyHistoryWindow);
+		return latencyHistory.isFull();
 	}
 	
 	/**
@@ -133,22 +132,71 @@ public class LinkInfo {
 	 * is the first latency update performed. Note
 	 * the latter serves as a latency initializer.
 	 * 
-	 * @param latency
+	 * @param latency in ms
 	 * @return latency to use for the link; either initial or historical average
 	 */
 	public U64 addObservedLatency(U64 latency) {
-		if (isLatencyHistoryFull()) {
-			latencyHistory.removeFirst();
+		return addObservedLatencyNs(latency.getValue() * NANOS_PER_MS);
+	}
+
+	/**
+	 * Same as {@link #addObservedLatency(U64)}, but takes a
+	 * nanosecond-resolution sample, which is also recorded in the
+	 * rolling histogram at full resolution.
+	 * 
+	 * @param latencyNs in ns
+	 * @return latency to use for the link, in ms
+	 */
+	public U64 addObservedLatencyNs(long latencyNs) {
+		if (latencyNs < 0) {
+			latencyNs = 0;
 		}
-		latencyHistory.addLast(latency);
+		latencyHistory.add(latencyNs);
+		latencyHistogram.add(latencyNs);
 
 		if (currentLatency == null) {
-			currentLatency = latency;
+			currentLatency = U64.of(latencyNs / NANOS_PER_MS);
 			return currentLatency;
 		} else {
 			return getLatency();
 		}
 	}
+
+	/**
+	 * A latency sample measured for this particular LLDP/BDDP, which
+	 * should be recorded against the existing link when this LinkInfo
+	 * is used as an update.
+	 * @return the sample in ns; -1 if none was measured
+	 */
+	@JsonIgnore
+	public long getObservedLatencyNs() {
+		return observedLatencyNs;
+	}
+
+	public void setObservedLatencyNs(long observedLatencyNs) {
+		this.observedLatencyNs = observedLatencyNs;
+	}
+
+	/**
+	 * @return the smallest latency in the rolling histogram, in ns; -1 if none
+	 */
+	public long getLatencyMinNs() {
+		return latencyHistogram.getMin();
+	}
+
+	/**
+	 * @return the median latency in the rolling histogram, in ns; -1 if none
+	 */
+	public long getLatencyP50Ns() {
+		return latencyHistogram.getPercentile(50);
+	}
+
+	/**
+	 * @return the 99th percentile latency in the rolling histogram, in ns; -1 if none
+	 */
+	public long getLatencyP99Ns() {
+		return latencyHistogram.getPercentile(99);
+	}
 	
 	/**
 	 * Read-only. Retrieve the currently-assigned
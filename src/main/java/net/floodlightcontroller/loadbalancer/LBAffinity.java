@@ -0,0 +1,108 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+
+/**
+ * The members recently picked for clients, so that the packets of a client
+ * keep going to the same member while its connection lasts, even if the
+ * pool changes in between.
+ *
+ * The map is safe for concurrent use and bounded: once full, the least
+ * recently used client is evicted. Clients not seen for longer than the
+ * idle timeout are forgotten when next looked up, or when expired ones
+ * are swept out.
+ */
+public class LBAffinity {
+	public static final int DEFAULT_CAPACITY = 65536;
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 300 * 1000;
+
+	private static final class Entry {
+		final String memberId;
+		volatile long lastSeen;
+
+		Entry(String memberId, long lastSeen) {
+			this.memberId = memberId;
+			this.lastSeen = lastSeen;
+		}
+	}
+
+	private final ConcurrentMap<IPClient, Entry> clients;
+	private final long idleTimeoutNs;
+
+	/**
+	 * @param capacity the number of clients kept before the least recently
+	 *        used is evicted
+	 * @param idleTimeoutMs how long a client is kept after it was last seen
+	 */
+	public LBAffinity(int capacity, long idleTimeoutMs) {
+		clients = new ConcurrentLinkedHashMap.Builder<IPClient, Entry>()
+				.maximumWeightedCapacity(capacity)
+				.build();
+		idleTimeoutNs = idleTimeoutMs * 1000 * 1000;
+	}
+
+	/**
+	 * @param now {@link System#nanoTime()}
+	 * @return the member picked for the client, or null if there is none
+	 *         or the client has been idle for too long
+	 */
+	public String get(IPClient client, long now) {
+		Entry e = clients.get(client);
+		if (e == null) {
+			return null;
+		}
+		if (now - e.lastSeen > idleTimeoutNs) {
+			clients.remove(client, e);
+			return null;
+		}
+		e.lastSeen = now;
+		return e.memberId;
+	}
+
+	public void put(IPClient client, String memberId, long now) {
+		clients.put(client, new Entry(memberId, now));
+	}
+
+	/**
+	 * Forget the clients that have been idle for too long
+	 * @return the number forgotten
+	 */
+	public int expire(long now) {
+		int expired = 0;
+		for (Iterator<Map.Entry<IPClient, Entry>> it = clients.entrySet().iterator(); it.hasNext();) {
+			if (now - it.next().getValue().lastSeen > idleTimeoutNs) {
+				it.remove();
+				expired++;
+			}
+		}
+		return expired;
+	}
+
+	public void clear() {
+		clients.clear();
+	}
+
+	public int size() {
+		return clients.size();
+	}
+}
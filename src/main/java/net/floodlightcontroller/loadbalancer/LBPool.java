@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Random;
 
 import org.projectfloodlight.openflow.types.U64;
@@ -57,6 +58,8 @@ public class LBPool {
 	protected final static short ROUND_ROBIN = 1;
 	protected final static short STATISTICS = 2;
 	protected final static short WEIGHTED_RR = 3;
+	protected final static short MAGLEV = 4;
+	protected final static short PROACTIVE = 5;
 
 	protected String vipId;
 
@@ -64,6 +67,11 @@ public class LBPool {
 
 	protected LBStats poolStats;
 
+	/* rebuilt by the load balancer when members or their weights change */
+	protected volatile MaglevTable maglev;
+	/* rebuilt by the load balancer when members, their weights or their health change */
+	protected volatile PrefixTable prefixes;
+
 	public LBPool() {
 		id = String.valueOf((int) (Math.random()*10000));
 		name = null;
@@ -88,6 +96,10 @@ public class LBPool {
 			return "Statistics";
 		} else if (lbMethod == 3) {
 			return "Weighted Round-Robin";
+		} else if (lbMethod == 4) {
+			return "Maglev";
+		} else if (lbMethod == 5) {
+			return "Proactive";
 		}
 		return "Invalid Method";
 	}
@@ -109,24 +121,33 @@ public class LBPool {
 		}
 	}
 
-	public String pickMember(IPClient client, HashMap<String,U64> membersBandwidth,HashMap<String,Short> membersWeight,HashMap<String, Short>  memberStatus) {
+	/**
+	 * @param membersBandwidth bandwidth used by members, of this pool or any other
+	 */
+	public String pickMember(IPClient client, Map<String,U64> membersBandwidth,HashMap<String,Short> membersWeight,HashMap<String, Short>  memberStatus) {
 		if(members.size() > 0){
-			if (lbMethod == STATISTICS && !membersBandwidth.isEmpty() && membersBandwidth.values() !=null) {
-				ArrayList<String> poolMembersId = new ArrayList<String>();				
+			ArrayList<String> poolMembersId = null;
+			HashMap<String, U64> poolBandwidth = null;
+			if (lbMethod == STATISTICS) {
+				poolMembersId = new ArrayList<String>();
+				poolBandwidth = new HashMap<String, U64>();
 				// Get the members that belong to this pool and the statistics for them
-				for(String memberId: membersBandwidth.keySet()){
-					for(int i=0;i<members.size();i++){
-						if(LoadBalancer.isMonitoringEnabled && !monitors.isEmpty() && !memberStatus.isEmpty()){  // if health monitors active
-							if(members.get(i).equals(memberId) && memberStatus.get(memberId) != -1){
-								poolMembersId.add(memberId);
-							}
-						} else { // no health monitors active
-							if(members.get(i).equals(memberId)){
-								poolMembersId.add(memberId);
-							}
+				for(String memberId: members){
+					U64 bandwidth = membersBandwidth.get(memberId);
+					if(bandwidth == null){
+						continue;
+					}
+					poolBandwidth.put(memberId, bandwidth);
+					if(LoadBalancer.isMonitoringEnabled && !monitors.isEmpty() && !memberStatus.isEmpty()){  // if health monitors active
+						if(memberStatus.get(memberId) != -1){
+							poolMembersId.add(memberId);
 						}
+					} else { // no health monitors active
+						poolMembersId.add(memberId);
 					}
 				}
+			}
+			if (poolBandwidth != null && !poolBandwidth.isEmpty()) {
 				// return the member which has the minimum bandwidth usage, out of this pool members
 				if(!poolMembersId.isEmpty()){
 					ArrayList<U64> bandwidthValues = new ArrayList<U64>();	
@@ -134,7 +155,7 @@ public class LBPool {
 					Collections.sort(poolMembersId);
 
 					for(int j=0;j<poolMembersId.size();j++){
-						bandwidthValues.add(membersBandwidth.get(poolMembersId.get(j)));
+						bandwidthValues.add(poolBandwidth.get(poolMembersId.get(j)));
 					}
 					U64 minBW = Collections.min(bandwidthValues);
 					String memberToPick = poolMembersId.get(bandwidthValues.indexOf(minBW));
@@ -187,6 +208,27 @@ public class LBPool {
 
 				} else
 					return weightsToMember(membersWeight); // all members in membersWeight are considered	
+			} else if(lbMethod == MAGLEV && maglev != null){
+				// consistent hashing of the connection, passing over members that are down
+				MaglevTable table = maglev;
+				long hash = hash(client);
+				boolean monitored = LoadBalancer.isMonitoringEnabled && !monitors.isEmpty() && !memberStatus.isEmpty();
+				for(int probe = 0; probe < table.size(); probe++){
+					String memberId = table.get(hash, probe);
+					if(memberId == null)
+						return null;
+					Short status = memberStatus.get(memberId);
+					if(!monitored || status == null || status != -1){
+						log.debug("Member {} picked using Maglev",memberId);
+						return memberId;
+					}
+				}
+				return null;
+			} else if(lbMethod == PROACTIVE && prefixes != null){
+				// the member of the client's source prefix, as the wildcard flows pick it
+				String memberId = prefixes.get(client.ipAddress.getInt());
+				log.debug("Member {} picked by source prefix",memberId);
+				return memberId;
 			}else {
 				if(LoadBalancer.isMonitoringEnabled && !monitors.isEmpty() && !memberStatus.isEmpty()){  // if health monitors active
 					for(int i=0;i<members.size();){
@@ -205,6 +247,17 @@ public class LBPool {
 		return null;
 	}
 
+	/**
+	 * @return the hash of a client's connection, for the Maglev table
+	 */
+	static long hash(IPClient client) {
+		long h = client.ipAddress.getInt();
+		h = h * 31 + client.nw_proto.getIpProtocolNumber();
+		h = h * 31 + client.srcPort.getPort();
+		h = h * 31 + client.targetPort.getPort();
+		return MaglevTable.mix(h);
+	}
+
 	/**
 	 * helper function to pick a member
 	 * @param weights - hashmap with memberId and weight of the member
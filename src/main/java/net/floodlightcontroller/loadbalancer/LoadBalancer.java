@@ -25,13 +25,18 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import org.projectfloodlight.openflow.protocol.OFFactory;
 import org.projectfloodlight.openflow.protocol.OFFlowMod;
 import org.projectfloodlight.openflow.protocol.match.Match;
 import org.projectfloodlight.openflow.protocol.match.MatchField;
@@ -44,6 +49,7 @@ import org.projectfloodlight.openflow.protocol.action.OFAction;
 import org.projectfloodlight.openflow.types.DatapathId;
 import org.projectfloodlight.openflow.types.EthType;
 import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv6Address;
 import org.projectfloodlight.openflow.types.IpProtocol;
 import org.projectfloodlight.openflow.types.MacAddress;
 import org.projectfloodlight.openflow.types.OFBufferId;
@@ -54,6 +60,8 @@ import org.projectfloodlight.openflow.types.U64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.googlecode.concurrentlinkedhashmap.ConcurrentLinkedHashMap;
+
 import javafx.util.Pair;
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -69,6 +77,7 @@ import net.floodlightcontroller.debugcounter.IDebugCounter;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.debugcounter.IDebugCounterService.MetaData;
 import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.SwitchPort;
 import net.floodlightcontroller.packet.ARP;
@@ -81,6 +90,7 @@ import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.packet.UDP;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.routing.MatchDependencies;
 import net.floodlightcontroller.routing.Path;
 import net.floodlightcontroller.staticentry.IStaticEntryPusherService;
 import net.floodlightcontroller.statistics.FlowRuleStats;
@@ -99,7 +109,7 @@ import net.floodlightcontroller.util.OFMessageUtils;
  * made to confirm compatibility at this time. 
  * 
  * Limitations:
- * - client records and static flows not purged after use, will exhaust switch flow tables over time
+ * - static flows not purged after use, will exhaust switch flow tables over time
  * - round robin policy among servers based on connections, not traffic volume
  * - health monitoring feature not implemented yet
  *  
@@ -134,18 +144,40 @@ ILoadBalancerService, IOFMessageListener {
 	protected HashMap<IPv4Address, MacAddress> vipIpToMac;
 	protected HashMap<String, Short> memberStatus;
 	protected HashMap<String, Integer> memberIdToIp;
-	protected HashMap<IPClient, LBMember> clientToMember;
-	protected HashMap<Pair<Match,DatapathId>,String> flowToVipId;
-	protected HashMap<String, SwitchPort> memberIdToSwitchPort;
+	protected LBAffinity clientToMember;
+	protected ConcurrentMap<Pair<Match,DatapathId>,String> flowToVipId;
+	protected ConcurrentHashMap<String, SwitchPort> memberIdToSwitchPort;
+	/* members' addresses -> keys of the devices holding them, kept by device events */
+	protected Set<Integer> memberIps;
+	protected ConcurrentHashMap<Integer, Long> memberIpToDeviceKey;
+	/* bandwidth received by the members' switch ports, refreshed every memberBandwidthInterval */
+	protected ConcurrentHashMap<String, U64> memberBandwidth;
+	protected DeviceListenerImpl deviceListener;
+	/* proactive pools: the ports clients come in at, from the proactive-ingress-ports option */
+	protected List<NodePortTuple> proactiveIngressPorts;
+	/* proactive route -> names of the wildcard flows it uses */
+	protected ConcurrentHashMap<String, List<String>> prefixFlows;
+	/* wildcard flow name -> the routes sharing it, guarded by this */
+	protected HashMap<String, SharedFlow> sharedPrefixFlows;
+	/* proactive pools some routes of which could not be pushed yet */
+	protected Set<String> prefixFlowsMissing;
+	/* proactive pools being rebalanced -> the split their open connections were made on */
+	protected ConcurrentHashMap<String, PrefixTable> prefixMigrations;
 
 	private static ScheduledFuture<?> healthMonitoring;
 	private static int healthMonitorsInterval = 10; /* (s) can be changed through NBI */
 
 	private static int ICMP_PAYLOAD_LENGTH = 4;
+	private static final short TCP_SYN = 0x02;
+	private static final short TCP_ACK = 0x10;
 
 	protected static boolean isMonitoringEnabled = false;
 
 	private static final int flowStatsInterval = 15;
+	private static final int memberBandwidthInterval = 5;
+	private static final int affinityExpiryInterval = 30;
+	private static final int MAX_VIP_FLOWS = 65536;
+	private static final int prefixMigrationTimeout = 60;
 
 	protected enum TLS {
 		HTTPS(TransportPort.of(443)),
@@ -162,6 +194,8 @@ ILoadBalancerService, IOFMessageListener {
 	//Copied from Forwarding with message damper routine for pushing proxy Arp 
 	protected static String LB_ETHER_TYPE = "0x800";
 	protected static int LB_PRIORITY = 32768;
+	// below the flows of single clients, which keep open connections on their member while prefixes move
+	protected static int LB_PREFIX_PRIORITY = LB_PRIORITY - 1;
 
 	// Comparator for sorting by SwitchCluster
 	public Comparator<SwitchPort> clusterIdComparator =
@@ -174,6 +208,26 @@ ILoadBalancerService, IOFMessageListener {
 		}
 	};
 
+	// a route of a proactive pool: requests of a source prefix from an ingress port, or replies to it
+	private static class PrefixRoute {
+		final PrefixTable.Prefix prefix;
+		final NodePortTuple ingress; // null for replies
+		PrefixRoute(PrefixTable.Prefix prefix, NodePortTuple ingress) {
+			this.prefix = prefix;
+			this.ingress = ingress;
+		}
+	}
+
+	// a wildcard flow of the proactive pools, shared by the routes that need its match on its switch
+	private static class SharedFlow {
+		final Pair<Match,DatapathId> match;
+		/* route key -> the flow the route needs; the switch has the oldest route's */
+		final LinkedHashMap<String, OFFlowMod> routes = new LinkedHashMap<String, OFFlowMod>();
+		SharedFlow(Pair<Match,DatapathId> match) {
+			this.match = match;
+		}
+	}
+
 	// data structure for storing connected
 	public class IPClient {
 		IPv4Address ipAddress;
@@ -187,6 +241,24 @@ ILoadBalancerService, IOFMessageListener {
 			srcPort = TransportPort.NONE;
 			targetPort = TransportPort.NONE;
 		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(ipAddress, nw_proto, srcPort, targetPort);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof IPClient))
+				return false;
+			IPClient other = (IPClient) obj;
+			return Objects.equals(ipAddress, other.ipAddress)
+					&& Objects.equals(nw_proto, other.nw_proto)
+					&& Objects.equals(srcPort, other.srcPort)
+					&& Objects.equals(targetPort, other.targetPort);
+		}
 	}
 
 	@Override
@@ -329,26 +401,37 @@ ILoadBalancerService, IOFMessageListener {
 						if(pool == null)
 							return Command.CONTINUE;
 					}
-					HashMap<String, Short> memberWeights = new HashMap<String, Short>();
-					HashMap<String, U64> memberPortBandwidth = new HashMap<String, U64>();
-
+					HashMap<String, Short> memberWeights = null; // only read by WEIGHTED_RR
 
 					if(pool.lbMethod == LBPool.WEIGHTED_RR){
+						memberWeights = new HashMap<String, Short>();
 						for(String memberId: pool.members){
 							memberWeights.put(memberId,members.get(memberId).weight);
 						}
 					}
 
-					// Switch statistics collection
-					if(pool.lbMethod == LBPool.STATISTICS && statisticsService != null){
-						statisticsService.collectStatistics(true);
-						memberPortBandwidth = collectSwitchPortBandwidth(pool);
+					// a client sticks to its member while it is in the pool and up
+					long now = System.nanoTime();
+					LBMember member = members.get(clientToMember.get(client, now));
+					if (member == null || !pool.id.equals(member.poolId)
+							|| (isMonitoringEnabled && member.status == -1)) {
+						member = null;
+						if (pool.lbMethod == LBPool.PROACTIVE)
+							member = members.get(migratingMember(pool, client, ip_pkt));
+						// bandwidth of the members is refreshed in the background, see MemberBandwidthCollector
+						if (member == null)
+							member = members.get(pool.pickMember(client,memberBandwidth,memberWeights,memberStatus));
+						if (member != null)
+							clientToMember.put(client, member.id, now);
 					}
-
-					LBMember member = members.get(pool.pickMember(client,memberPortBandwidth,memberWeights,memberStatus));
 					if(member == null)			//fix dereference violations
 						return Command.CONTINUE;
 
+					// e.g. members were not known to the device manager yet; moved prefixes are synced when the migration ends
+					if (pool.lbMethod == LBPool.PROACTIVE && prefixFlowsMissing.contains(pool.id)
+							&& !prefixMigrations.containsKey(pool.id))
+						syncPrefixFlows(pool);
+
 					log.info("Member " + IPv4Address.of(member.address) + " has been picked by the load balancer.");
 					// for chosen member, check device manager and find and push routes, in both directions                    
 					pushBidirectionalVipRoutes(sw, pi, cntx, client, member);
@@ -359,6 +442,9 @@ ILoadBalancerService, IOFMessageListener {
 
 					counterPacketIn.increment();
 					return Command.STOP;
+				} else if (!vipIpToId.isEmpty()) {
+					// not a VIP: flows for this packet must not wildcard the destination and take in VIP traffic
+					MatchDependencies.get(cntx).add(MatchField.IPV4_DST);
 				}
 			}
 		}
@@ -474,26 +560,17 @@ ILoadBalancerService, IOFMessageListener {
 	 */
 	protected void pushBidirectionalVipRoutes(IOFSwitch sw, OFPacketIn pi, FloodlightContext cntx, IPClient client, LBMember member) {
 
-		// borrowed code from Forwarding to retrieve src and dst device entities
-		// Check if we have the location of the destination
-		IDevice srcDevice = null;
-		IDevice dstDevice = null;
-
-		// retrieve all known devices
-		Collection<? extends IDevice> allDevices = deviceManagerService.getAllDevices();
-
-		for (IDevice d : allDevices) {
-			for (int j = 0; j < d.getIPv4Addresses().length; j++) {
-				if (srcDevice == null && client.ipAddress.equals(d.getIPv4Addresses()[j]))
-					srcDevice = d;
-				if (dstDevice == null && member.address == d.getIPv4Addresses()[j].getInt()) {
-					dstDevice = d;
-					member.macString = dstDevice.getMACAddressString();
-				}
-				if (srcDevice != null && dstDevice != null)
-					break;
-			}
-		}  
+		// the client sent the packet-in; the member is looked up in the index device events keep
+		IDevice srcDevice = IDeviceService.fcStore.get(cntx, IDeviceService.CONTEXT_SRC_DEVICE);
+		if (srcDevice == null) {
+			Iterator<? extends IDevice> it = deviceManagerService.queryDevices(MacAddress.NONE, null,
+					client.ipAddress, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
+			if (it.hasNext())
+				srcDevice = it.next();
+		}
+		IDevice dstDevice = getMemberDevice(member.address);
+		if (dstDevice != null)
+			member.macString = dstDevice.getMACAddressString();
 
 		// srcDevice and/or dstDevice is null, no route can be pushed
 		if (srcDevice == null || dstDevice == null) return;
@@ -730,6 +807,292 @@ ILoadBalancerService, IOFMessageListener {
 		return;
 	}
 
+	/**
+	 * @return the member an open TCP connection of a proactive pool keeps while
+	 *         its source prefix moves to another member, or null if the packet
+	 *         opens a connection, or is not TCP, and goes to the new member
+	 */
+	private String migratingMember(LBPool pool, IPClient client, IPv4 ip_pkt) {
+		PrefixTable from = prefixMigrations.get(pool.id);
+		if (from == null || !(ip_pkt.getPayload() instanceof TCP))
+			return null;
+		short flags = ((TCP) ip_pkt.getPayload()).getFlags();
+		if ((flags & TCP_SYN) != 0 && (flags & TCP_ACK) == 0)
+			return null;
+		LBMember member = members.get(from.get(client.ipAddress.getInt()));
+		if (member == null || !pool.id.equals(member.poolId) || (isMonitoringEnabled && member.status == -1))
+			return null;
+		return member.id;
+	}
+
+	/**
+	 * Installs the wildcard flows of the current split of a proactive pool between
+	 * the configured ingress ports and its members, and removes those of prefixes
+	 * it no longer has. Prefixes that moved to another member are left to packet-ins
+	 * until the migration ends, see PrefixMigration.
+	 */
+	private synchronized void syncPrefixFlows(LBPool pool) {
+		Map<String, PrefixRoute> wanted = new HashMap<String, PrefixRoute>();
+		PrefixTable table = pool.prefixes;
+		LBVip vip = pool.vipId == null ? null : vips.get(pool.vipId);
+		if (table != null && vip != null && !proactiveIngressPorts.isEmpty()
+				&& pool.lbMethod == LBPool.PROACTIVE && pools.containsKey(pool.id)) {
+			IpProtocol proto = IpProtocol.of(vip.protocol);
+			if (vip.pools.size() > 1) {
+				log.debug("VIP {} has more than one pool, pool {} is not installed proactively", vip.id, pool.id);
+			} else if (!proto.equals(IpProtocol.TCP) && !proto.equals(IpProtocol.UDP)
+					&& !proto.equals(IpProtocol.SCTP) && !proto.equals(IpProtocol.ICMP)) {
+				log.debug("Unknown IpProtocol {} of VIP {}, pool {} is not installed proactively", new Object[] { proto, vip.id, pool.id });
+			} else {
+				PrefixTable from = prefixMigrations.get(pool.id);
+				for (PrefixTable.Prefix prefix : table.getPrefixes()) {
+					if (from != null && table.moved(prefix, from))
+						continue;
+					String prefixKey = pool.id + "|" + prefix + "|" + prefix.getMemberId();
+					for (NodePortTuple ingress : proactiveIngressPorts) {
+						wanted.put(prefixKey + "|in|" + ingress, new PrefixRoute(prefix, ingress));
+					}
+					wanted.put(prefixKey + "|out", new PrefixRoute(prefix, null));
+				}
+			}
+		}
+
+		// removed first: the flows of a prefix and of its parts must not be in a switch at once
+		String poolKey = pool.id + "|";
+		for (Iterator<Map.Entry<String, List<String>>> it = prefixFlows.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, List<String>> e = it.next();
+			if (e.getKey().startsWith(poolKey) && !wanted.containsKey(e.getKey())) {
+				releasePrefixFlows(e.getKey(), e.getValue());
+				it.remove();
+			}
+		}
+		boolean missing = false;
+		for (Map.Entry<String, PrefixRoute> e : wanted.entrySet()) {
+			if (!prefixFlows.containsKey(e.getKey())) {
+				PrefixRoute route = e.getValue();
+				List<String> names = pushPrefixRoute(e.getKey(), vip, members.get(route.prefix.getMemberId()), route);
+				if (names != null)
+					prefixFlows.put(e.getKey(), names);
+				else
+					missing = true;
+			}
+		}
+		if (missing)
+			prefixFlowsMissing.add(pool.id);
+		else
+			prefixFlowsMissing.remove(pool.id);
+	}
+
+	/**
+	 * Syncs the wildcard flows of every pool of a VIP, as whether they are
+	 * installed depends on how many pools it has
+	 */
+	private void syncVipPrefixFlows(String vipId) {
+		LBVip vip = vipId == null ? null : vips.get(vipId);
+		if (vip == null)
+			return;
+		for (String poolId : new ArrayList<String>(vip.pools)) {
+			LBPool pool = pools.get(poolId);
+			if (pool != null)
+				syncPrefixFlows(pool);
+		}
+	}
+
+	/**
+	 * Pushes a route between an ingress port and a member for the clients of a source
+	 * prefix, as pushBidirectionalVipRoutes does for a single client. Replies leave by
+	 * the first ingress port configured in the member's island, whichever port the
+	 * requests came in at: their headers don't tell.
+	 * @return the names of the flows pushed, none if the member is at the port itself,
+	 *         or null if the member cannot be reached yet
+	 */
+	private List<String> pushPrefixRoute(String key, LBVip vip, LBMember member, PrefixRoute route) {
+		if (member == null)
+			return null;
+		refreshMember(member);
+		IDevice device = getMemberDevice(member.address);
+		if (device == null || member.macString == null)
+			return null;
+
+		for (SwitchPort dstDap : device.getAttachmentPoints()) {
+			DatapathId island = topologyService.getClusterId(dstDap.getNodeId());
+			NodePortTuple port = route.ingress != null ? route.ingress : replyPort(island);
+			if (island == null || port == null || !island.equals(topologyService.getClusterId(port.getNodeId())))
+				continue;
+			if (dstDap.getNodeId().equals(port.getNodeId()) && dstDap.getPortId().equals(port.getPortId()))
+				return new ArrayList<String>(); // nothing to install, and nothing missing
+			Path path = route.ingress != null
+					? routingEngineService.getPath(port.getNodeId(), port.getPortId(), dstDap.getNodeId(), dstDap.getPortId())
+					: routingEngineService.getPath(dstDap.getNodeId(), dstDap.getPortId(), port.getNodeId(), port.getPortId());
+			if (path.getPath().isEmpty())
+				return null;
+			return pushPrefixVipRoute(key, route.ingress != null, path, vip, member, route.prefix);
+		}
+		return null;
+	}
+
+	/**
+	 * @return the first ingress port configured in an island, or null if none is
+	 */
+	private NodePortTuple replyPort(DatapathId island) {
+		for (NodePortTuple port : proactiveIngressPorts) {
+			if (island != null && island.equals(topologyService.getClusterId(port.getNodeId())))
+				return port;
+		}
+		return null;
+	}
+
+	/**
+	 * used to push given route for the clients of a source prefix using static flow entry pusher.
+	 * Packets are rewritten at the first hop: requests at the ingress switch, replies at the
+	 * member's switch, so the other hops match them as they are after the rewrite.
+	 * in: match src prefix, rewrite dest from vip ip to member ip, forward
+	 * out: match dest prefix, rewrite src from member ip to vip ip, forward
+	 * Routes needing the same match on a switch share its flow, which is named after the match.
+	 * @param String key the route
+	 * @param boolean inBound
+	 * @param Path route
+	 * @param LBVip vip
+	 * @param LBMember member
+	 * @param PrefixTable.Prefix prefix
+	 * @return the names of the flows pushed, or null if a switch is offline
+	 */
+	private List<String> pushPrefixVipRoute(String key, boolean inBound, Path route, LBVip vip, LBMember member,
+			PrefixTable.Prefix prefix) {
+		List<NodePortTuple> path = route.getPath();
+		IpProtocol proto = IpProtocol.of(vip.protocol);
+		IPv4Address vipAddress = IPv4Address.of(vip.address);
+		IPv4Address memberAddress = IPv4Address.of(member.address);
+		List<String> names = new ArrayList<String>();
+		List<OFFlowMod> flows = new ArrayList<OFFlowMod>();
+
+		for (int i = 0; i < path.size(); i+=2) {
+			DatapathId sw = path.get(i).getNodeId();
+			IOFSwitch theSw = switchService.getSwitch(sw);
+			if (theSw == null) {
+				log.error("Fail to install loadbalancer flow rules to offline switch {}.", sw);
+				return null;
+			}
+			OFFactory factory = theSw.getOFFactory();
+			Match.Builder mb = factory.buildMatch();
+			ArrayList<OFAction> actions = new ArrayList<OFAction>();
+			OFFlowMod.Builder fmb = factory.buildFlowAdd();
+
+			fmb.setIdleTimeout(FlowModUtils.INFINITE_TIMEOUT);
+			fmb.setHardTimeout(FlowModUtils.INFINITE_TIMEOUT);
+			fmb.setBufferId(OFBufferId.NO_BUFFER);
+			fmb.setOutPort(OFPort.ANY);
+			fmb.setCookie(U64.of(0));
+
+			mb.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+			.setExact(MatchField.IP_PROTO, proto)
+			.setExact(MatchField.IN_PORT, path.get(i).getPortId());
+			IPv4Address mask = IPv4Address.ofCidrMaskLength(prefix.getMaskBits());
+			String entryName = (inBound ? "inbound" : "outbound") + "-vip-" + vip.id + "-prefix-"
+					+ IPv4Address.of(prefix.getAddress()) + "-" + prefix.getMaskBits() + "-member-" + member.id
+					+ "-sw-" + sw + "-inport-" + path.get(i).getPortId();
+
+			if (inBound) {
+				if (prefix.getMaskBits() > 0)
+					mb.setMasked(MatchField.IPV4_SRC, IPv4Address.of(prefix.getAddress()), mask);
+				mb.setExact(MatchField.IPV4_DST, i == 0 ? vipAddress : memberAddress);
+				setTransportMatch(mb, proto, vip.port, true);
+
+				if (i == 0) {
+					if (factory.getVersion().compareTo(OFVersion.OF_12) < 0) {
+						actions.add(factory.actions().setDlDst(MacAddress.of(member.macString)));
+						actions.add(factory.actions().setNwDst(memberAddress));
+					} else { // OXM introduced in OF1.2
+						actions.add(factory.actions().setField(factory.oxms().ethDst(MacAddress.of(member.macString))));
+						actions.add(factory.actions().setField(factory.oxms().ipv4Dst(memberAddress)));
+					}
+				}
+			} else {
+				if (prefix.getMaskBits() > 0)
+					mb.setMasked(MatchField.IPV4_DST, IPv4Address.of(prefix.getAddress()), mask);
+				mb.setExact(MatchField.IPV4_SRC, i == 0 ? memberAddress : vipAddress);
+				setTransportMatch(mb, proto, vip.port, false);
+
+				if (i == 0) {
+					if (factory.getVersion().compareTo(OFVersion.OF_12) < 0) {
+						actions.add(factory.actions().setDlSrc(vip.proxyMac));
+						actions.add(factory.actions().setNwSrc(vipAddress));
+					} else { // OXM introduced in OF1.2
+						actions.add(factory.actions().setField(factory.oxms().ethSrc(vip.proxyMac)));
+						actions.add(factory.actions().setField(factory.oxms().ipv4Src(vipAddress)));
+					}
+				}
+			}
+			actions.add(factory.actions().output(path.get(i+1).getPortId(), Integer.MAX_VALUE));
+
+			fmb.setActions(actions);
+			fmb.setPriority(U16.t(LB_PREFIX_PRIORITY));
+			fmb.setMatch(mb.build());
+			names.add(entryName);
+			flows.add(fmb.build());
+		}
+		for (int i = 0; i < names.size(); i++) {
+			addPrefixFlow(key, names.get(i), flows.get(i), path.get(2 * i).getNodeId(), vip.id);
+		}
+		return names;
+	}
+
+	/**
+	 * Installs a wildcard flow for a route, unless another route has it already
+	 */
+	private void addPrefixFlow(String key, String name, OFFlowMod flow, DatapathId sw, String vipId) {
+		SharedFlow shared = sharedPrefixFlows.get(name);
+		if (shared == null) {
+			shared = new SharedFlow(new Pair<Match,DatapathId>(flow.getMatch(), sw));
+			sharedPrefixFlows.put(name, shared);
+			counterPacketOut.increment();
+			sfpService.addFlow(name, flow, sw);
+			flowToVipId.put(shared.match, vipId); // used to set LBPool statistics
+		}
+		shared.routes.put(key, flow);
+	}
+
+	/**
+	 * Removes the wildcard flows of a route no other route uses. A flow still used
+	 * by others is replaced by the oldest of theirs if they differ, as routes to
+	 * the same member from different ports may part ways after meeting.
+	 */
+	private void releasePrefixFlows(String key, List<String> names) {
+		for (String name : names) {
+			SharedFlow shared = sharedPrefixFlows.get(name);
+			if (shared == null || !shared.routes.containsKey(key))
+				continue;
+			OFFlowMod installed = shared.routes.values().iterator().next();
+			shared.routes.remove(key);
+			if (shared.routes.isEmpty()) {
+				sharedPrefixFlows.remove(name);
+				sfpService.deleteEntry(name);
+				flowToVipId.remove(shared.match);
+			} else {
+				OFFlowMod next = shared.routes.values().iterator().next();
+				if (!next.equalsIgnoreXid(installed))
+					sfpService.addFlow(name, next, shared.match.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Matches the VIP's port, if it has one, as the destination port of requests
+	 * or the source port of replies
+	 */
+	private static void setTransportMatch(Match.Builder mb, IpProtocol proto, short port, boolean dst) {
+		if (port == 0)
+			return;
+		TransportPort tp = TransportPort.of(port);
+		if (proto.equals(IpProtocol.TCP)) {
+			mb.setExact(dst ? MatchField.TCP_DST : MatchField.TCP_SRC, tp);
+		} else if (proto.equals(IpProtocol.UDP)) {
+			mb.setExact(dst ? MatchField.UDP_DST : MatchField.UDP_SRC, tp);
+		} else if (proto.equals(IpProtocol.SCTP)) {
+			mb.setExact(dst ? MatchField.SCTP_DST : MatchField.SCTP_SRC, tp);
+		}
+	}
+
 
 
 	/** periodical function for health monitors
@@ -741,6 +1104,12 @@ ILoadBalancerService, IOFMessageListener {
 	private class healthMonitorsCheck implements Runnable {
 		@Override
 		public void run() {
+			// proactive pools follow the health the previous round found
+			for(LBPool pool: pools.values()){
+				if(pool.lbMethod == LBPool.PROACTIVE)
+					updatePrefixTable(pool.id);
+			}
+
 			Map<NodePortTuple, PortDesc> portDesc = new HashMap<NodePortTuple, PortDesc>();
 			if(statisticsService != null){
 				statisticsService.collectStatistics(true);
@@ -834,8 +1203,9 @@ ILoadBalancerService, IOFMessageListener {
 						FlowRuleStats frs = null;
 						ArrayList<Long> bytesOut = new ArrayList<Long>();
 						ArrayList<Long> bytesIn = new ArrayList<Long>();
-						for(Pair<Match,DatapathId> pair: flowToVipId.keySet()){ // from the flows set from the load balancer
-							if(flowToVipId.get(pair).equals(pool.vipId)){ // determine which vip is responsible for the flow
+						for(Map.Entry<Pair<Match,DatapathId>,String> flow: flowToVipId.entrySet()){ // from the flows set from the load balancer
+							Pair<Match,DatapathId> pair = flow.getKey();
+							if(flow.getValue().equals(pool.vipId)){ // determine which vip is responsible for the flow
 								frs = statisticsService.getFlowStats().get(pair); // get the statistics of this flow
 								if(frs != null){
 									Set<DatapathId> membersDPID = new HashSet<DatapathId>();
@@ -856,6 +1226,67 @@ ILoadBalancerService, IOFMessageListener {
 		}
 	}
 
+	/** Periodical function to refresh the bandwidth of the members
+	 * Members using the STATISTICS method read it when picked, without waiting for the statistics.
+	 * Pools and members are changed from the REST API meanwhile, so copies of them are iterated,
+	 * and any error is only logged: an exception would cancel the later runs
+	 */
+	private class MemberBandwidthCollector implements Runnable {
+		@Override
+		public void run() {
+			try {
+				if(statisticsService == null || members.isEmpty()){
+					return;
+				}
+				for(LBPool pool: new ArrayList<LBPool>(pools.values())){
+					if(pool.lbMethod == LBPool.STATISTICS){
+						statisticsService.collectStatistics(true);
+						break;
+					}
+				}
+				List<LBMember> current = new ArrayList<LBMember>(members.values());
+				Set<String> currentIds = new HashSet<String>();
+				for(LBMember member: current){
+					refreshMember(member);
+					currentIds.add(member.id);
+				}
+				memberBandwidth.keySet().retainAll(currentIds);
+			} catch (Exception e) {
+				log.error("Failed to refresh the bandwidth of the members", e);
+			}
+		}
+	}
+
+	/** Periodical function to forget the clients that have been idle for too long
+	 */
+	private class AffinityExpiry implements Runnable {
+		@Override
+		public void run() {
+			int expired = clientToMember.expire(System.nanoTime());
+			if(expired > 0)
+				log.debug("{} idle clients forgotten", expired);
+		}
+	}
+
+	/** Ends the migration of a proactive pool to a new split of its clients:
+	 * the wildcard flows of the prefixes that moved are installed, the connections
+	 * open before it having been given flows of their own by then
+	 */
+	private class PrefixMigration implements Runnable {
+		private final String poolId;
+		private final PrefixTable table;
+
+		PrefixMigration(String poolId, PrefixTable table) {
+			this.poolId = poolId;
+			this.table = table;
+		}
+
+		@Override
+		public void run() {
+			endPrefixMigration(poolId, table);
+		}
+	}
+
 	/**
 	 * used to collect SwitchPortBandwidth of the members and map members to DPIDs and helper function health monitors and pool stats.
 	 * LBPool pool is used to iterate over its members, to avoid iterating over all the members in the network.
@@ -863,37 +1294,138 @@ ILoadBalancerService, IOFMessageListener {
 	 */
 	public HashMap<String, U64> collectSwitchPortBandwidth(LBPool pool){
 		HashMap<String,U64> memberPortBandwidth = new HashMap<String, U64>();
-		HashMap<Pair<IDevice,String>,String> deviceToMemberId = new HashMap<Pair<IDevice,String>, String>();
-
-		// retrieve all known devices to know which ones are attached to the members
-		Collection<? extends IDevice> allDevices = deviceManagerService.getAllDevices();
-
-		for (IDevice d : allDevices) {
-			for (int j = 0; j < d.getIPv4Addresses().length; j++) {
-				if(pool != null){
-					for(String memberId: pool.members){
-						if (members.get(memberId).address == d.getIPv4Addresses()[j].getInt()){
-							Pair<IDevice,String> pair = new Pair<IDevice,String>(d,pool.id);
-							members.get(memberId).macString = d.getMACAddressString(); // because health monitors have to know members MAC
-							deviceToMemberId.put(pair, memberId);
-						}
-					}
-				}
+		if(pool != null){
+			for(String memberId: pool.members){
+				LBMember member = members.get(memberId);
+				if(member == null)
+					continue;
+				refreshMember(member);
+				U64 bandwidth = memberBandwidth.get(memberId);
+				if(bandwidth != null)
+					memberPortBandwidth.put(memberId, bandwidth);
 			}
 		}
-		// collect statistics of the switch ports attached to the members
-		if(!deviceToMemberId.isEmpty() && statisticsService != null){
-			for(Pair<IDevice, String> membersDevice: deviceToMemberId.keySet()){
-				String memberId = deviceToMemberId.get(membersDevice);
-				for(SwitchPort dstDap: membersDevice.getKey().getAttachmentPoints()){
-					SwitchPortBandwidth bandwidthOfPort = statisticsService.getBandwidthConsumption(dstDap.getNodeId(), dstDap.getPortId());
-					if(bandwidthOfPort != null) // needs time for 1st collection, this avoids nullPointerException 
-						memberPortBandwidth.put(memberId, bandwidthOfPort.getBitsPerSecondRx());
-					memberIdToSwitchPort.put(memberId, dstDap);
-				}
+		return memberPortBandwidth;
+	}
+
+	/**
+	 * Updates the MAC, attachment point and bandwidth of a member from the device holding its address
+	 */
+	private void refreshMember(LBMember member){
+		IDevice device = getMemberDevice(member.address);
+		if(device == null){
+			memberBandwidth.remove(member.id); // no longer known, so neither is its bandwidth
+			return;
+		}
+		member.macString = device.getMACAddressString(); // because health monitors have to know members MAC
+		for(SwitchPort dstDap: device.getAttachmentPoints()){
+			memberIdToSwitchPort.put(member.id, dstDap);
+			if(statisticsService != null){
+				SwitchPortBandwidth bandwidthOfPort = statisticsService.getBandwidthConsumption(dstDap.getNodeId(), dstDap.getPortId());
+				if(bandwidthOfPort != null) // needs time for 1st collection, this avoids nullPointerException 
+					memberBandwidth.put(member.id, bandwidthOfPort.getBitsPerSecondRx());
 			}
 		}
-		return memberPortBandwidth;
+	}
+
+	/**
+	 * @return the device holding a member's address, or null if none is known
+	 */
+	private IDevice getMemberDevice(int address){
+		Long deviceKey = memberIpToDeviceKey.get(address);
+		return deviceKey == null ? null : deviceManagerService.getDevice(deviceKey);
+	}
+
+	/**
+	 * Rebuilds the Maglev table of a pool after its members or their weights change
+	 */
+	private void updateMaglevTable(String poolId){
+		LBPool pool = poolId == null ? null : pools.get(poolId);
+		if(pool == null || pool.lbMethod != LBPool.MAGLEV)
+			return;
+		List<String> memberIds = new ArrayList<String>();
+		List<Short> weights = new ArrayList<Short>();
+		for(String memberId: pool.members){
+			LBMember member = members.get(memberId);
+			if(member != null && !memberIds.contains(memberId)){
+				memberIds.add(memberId);
+				weights.add(member.weight);
+			}
+		}
+		pool.maglev = new MaglevTable(memberIds, weights);
+	}
+
+	/**
+	 * Splits the clients of a proactive pool again after its members, their weights
+	 * or their health change, and updates its wildcard flows. Connections open on
+	 * prefixes that move keep their member while the migration lasts.
+	 */
+	private synchronized void updatePrefixTable(String poolId){
+		LBPool pool = poolId == null ? null : pools.get(poolId);
+		if(pool == null)
+			return;
+		if(pool.lbMethod != LBPool.PROACTIVE){
+			if(pool.prefixes != null){
+				pool.prefixes = null;
+				prefixMigrations.remove(pool.id);
+				syncPrefixFlows(pool);
+			}
+			return;
+		}
+		List<String> memberIds = new ArrayList<String>();
+		List<Short> weights = new ArrayList<Short>();
+		for(String memberId: pool.members){
+			LBMember member = members.get(memberId);
+			if(member != null && !memberIds.contains(memberId)){
+				memberIds.add(memberId);
+				weights.add(isMonitoringEnabled && member.status == -1 ? (short) 0 : member.weight);
+			}
+		}
+		PrefixTable old = pool.prefixes;
+		PrefixTable table = old == null ? new PrefixTable(memberIds, weights) : old.rebalance(memberIds, weights);
+		if(table.equals(old))
+			return;
+		pool.prefixes = table;
+		if(old != null){
+			// a migration already going on keeps the split it started from
+			prefixMigrations.putIfAbsent(pool.id, old);
+			threadService.getScheduledExecutor().schedule(new PrefixMigration(pool.id, table), prefixMigrationTimeout, TimeUnit.SECONDS);
+			log.info("Pool {} rebalanced, moved prefixes go through the controller for {} s", pool.id, prefixMigrationTimeout);
+		}
+		syncPrefixFlows(pool);
+	}
+
+	protected synchronized void endPrefixMigration(String poolId, PrefixTable table){
+		LBPool pool = pools.get(poolId);
+		if(pool == null || pool.prefixes != table)
+			return; // a later rebalance ends it
+		prefixMigrations.remove(poolId);
+		syncPrefixFlows(pool);
+	}
+
+	/**
+	 * Starts tracking the device holding a member's address. It is looked up once;
+	 * device events keep it up to date from then on.
+	 */
+	private void indexMemberAddress(int address){
+		if(memberIps.add(address)){
+			Iterator<? extends IDevice> it = deviceManagerService.queryDevices(MacAddress.NONE, null,
+					IPv4Address.of(address), IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
+			if(it.hasNext())
+				memberIpToDeviceKey.put(address, it.next().getDeviceKey());
+		}
+	}
+
+	/**
+	 * Stops tracking an address once no member has it
+	 */
+	private void unindexMemberAddress(int address){
+		for(LBMember member: members.values()){
+			if(member.address == address)
+				return;
+		}
+		memberIps.remove(address);
+		memberIpToDeviceKey.remove(address);
 	}
 
 	/*
@@ -933,7 +1465,16 @@ ILoadBalancerService, IOFMessageListener {
 	@Override
 	public int removeVip(String vipId) {
 		if(vips.containsKey(vipId)){
-			vips.remove(vipId);
+			LBVip vip = vips.remove(vipId);
+			// the wildcard flows of its pools would keep rewriting its address
+			for(String poolId: vip.pools){
+				LBPool pool = pools.get(poolId);
+				if(pool == null)
+					continue;
+				pool.prefixes = null;
+				prefixMigrations.remove(poolId);
+				syncPrefixFlows(pool);
+			}
 			return 0;
 		} else {
 			return -1;
@@ -965,12 +1506,19 @@ ILoadBalancerService, IOFMessageListener {
 			pool.vipId = null;
 			pools.put(pool.id, pool);
 		}
+		updateMaglevTable(pool.id);
+		updatePrefixTable(pool.id);
+		syncVipPrefixFlows(pool.vipId); // a VIP with more than one pool stays reactive
 		return pool;
 	}
 
 	@Override
 	public LBPool updatePool(LBPool pool) {
-		pools.put(pool.id, pool);
+		LBPool old = pools.put(pool.id, pool);
+		if(old != null && pool.prefixes == null)
+			pool.prefixes = old.prefixes; // the clients stay where they are unless the pool changed
+		updateMaglevTable(pool.id);
+		updatePrefixTable(pool.id);
 		return pool;
 	}
 
@@ -984,6 +1532,10 @@ ILoadBalancerService, IOFMessageListener {
 			if (pool.vipId != null && vips.containsKey(pool.vipId))
 				vips.get(pool.vipId).pools.remove(poolId);
 			pools.remove(poolId);
+			pool.prefixes = null;
+			prefixMigrations.remove(poolId);
+			syncPrefixFlows(pool);
+			syncVipPrefixFlows(pool.vipId); // the pool left may be proactive again
 			return 0;
 		} else {
 			return -1;
@@ -1031,12 +1583,21 @@ ILoadBalancerService, IOFMessageListener {
 		}
 		members.put(member.id, member);
 		memberIdToIp.put(member.id, member.address);
+		indexMemberAddress(member.address);
+		updateMaglevTable(member.poolId);
+		updatePrefixTable(member.poolId);
 		return member;
 	}
 
 	@Override
 	public LBMember updateMember(LBMember member) {
-		members.put(member.id, member);
+		LBMember old = members.put(member.id, member);
+		memberIdToIp.put(member.id, member.address);
+		indexMemberAddress(member.address);
+		if(old != null && old.address != member.address)
+			unindexMemberAddress(old.address);
+		updateMaglevTable(member.poolId);
+		updatePrefixTable(member.poolId);
 		return member;
 	}
 
@@ -1050,6 +1611,11 @@ ILoadBalancerService, IOFMessageListener {
 				pools.get(member.poolId).members.remove(memberId);
 			members.remove(memberId);
 			memberIdToIp.remove(memberId);
+			memberIdToSwitchPort.remove(memberId);
+			memberBandwidth.remove(memberId);
+			unindexMemberAddress(member.address);
+			updateMaglevTable(member.poolId);
+			updatePrefixTable(member.poolId);
 			return 0;
 		} else {
 			return -1;
@@ -1070,6 +1636,8 @@ ILoadBalancerService, IOFMessageListener {
 		}
 		if(member != null && (value <= 10 && value >= 1)){
 			member.weight = value;
+			updateMaglevTable(member.poolId);
+			updatePrefixTable(member.poolId);
 			return 0;
 		}
 		return -1;
@@ -1085,6 +1653,8 @@ ILoadBalancerService, IOFMessageListener {
 					}else
 						members.get(memberIds.get(i)).weight=1;
 				}
+				updateMaglevTable(poolId);
+				updatePrefixTable(poolId);
 				return 0;
 			}
 		}
@@ -1269,6 +1839,20 @@ ILoadBalancerService, IOFMessageListener {
 		// Clear all LB objects
 		monitors.clear();
 		members.clear();
+		memberIps.clear();
+		memberIpToDeviceKey.clear();
+		memberBandwidth.clear();
+		clientToMember.clear();
+		synchronized(this){
+			for(Map.Entry<String, SharedFlow> e: sharedPrefixFlows.entrySet()){
+				sfpService.deleteEntry(e.getKey());
+				flowToVipId.remove(e.getValue().match);
+			}
+			sharedPrefixFlows.clear();
+			prefixFlows.clear();
+			prefixFlowsMissing.clear();
+			prefixMigrations.clear();
+		}
 		pools.clear();
 		vips.clear();
 		return "{\"status\" : \"All Vips, Pools, Members and Monitors have been deleted \"}";
@@ -1337,10 +1921,40 @@ ILoadBalancerService, IOFMessageListener {
 		memberStatus = new HashMap<String, Short>();
 		vipIpToMac = new HashMap<IPv4Address, MacAddress>();
 		memberIdToIp= new HashMap<String, Integer>();
-		flowToVipId = new HashMap<Pair<Match,DatapathId>,String>();
-		memberIdToSwitchPort= new HashMap<String, SwitchPort>();
+		flowToVipId = new ConcurrentLinkedHashMap.Builder<Pair<Match,DatapathId>,String>()
+				.maximumWeightedCapacity(MAX_VIP_FLOWS)
+				.build();
+		clientToMember = new LBAffinity(LBAffinity.DEFAULT_CAPACITY, LBAffinity.DEFAULT_IDLE_TIMEOUT_MS);
+		memberIdToSwitchPort= new ConcurrentHashMap<String, SwitchPort>();
+		memberIps = ConcurrentHashMap.newKeySet();
+		memberIpToDeviceKey = new ConcurrentHashMap<Integer, Long>();
+		memberBandwidth = new ConcurrentHashMap<String, U64>();
+		deviceListener = new DeviceListenerImpl();
+		prefixFlows = new ConcurrentHashMap<String, List<String>>();
+		sharedPrefixFlows = new HashMap<String, SharedFlow>();
+		prefixFlowsMissing = ConcurrentHashMap.newKeySet();
+		prefixMigrations = new ConcurrentHashMap<String, PrefixTable>();
+
+		// dpid/port of each port the clients of proactive pools come in at, e.g. from a gateway router
+		proactiveIngressPorts = new ArrayList<NodePortTuple>();
+		String ingressPorts = context.getConfigParams(this).get("proactive-ingress-ports");
+		if (ingressPorts != null && !ingressPorts.trim().isEmpty()) {
+			for (String port : ingressPorts.split(",")) {
+				String[] dpidPort = port.trim().split("/");
+				try {
+					proactiveIngressPorts.add(new NodePortTuple(DatapathId.of(dpidPort[0].trim()),
+							OFPort.of(Integer.parseInt(dpidPort[1].trim()))));
+				} catch (RuntimeException e) {
+					throw new FloodlightModuleException("Invalid proactive-ingress-ports entry '" + port.trim()
+							+ "', expected dpid/port", e);
+				}
+			}
+			log.info("Proactive pools install their flows from ports {}", proactiveIngressPorts);
+		}
 
 		threadService.getScheduledExecutor().scheduleAtFixedRate(new SetPoolStats(), flowStatsInterval, flowStatsInterval, TimeUnit.SECONDS);
+		threadService.getScheduledExecutor().scheduleAtFixedRate(new MemberBandwidthCollector(), memberBandwidthInterval, memberBandwidthInterval, TimeUnit.SECONDS);
+		threadService.getScheduledExecutor().scheduleAtFixedRate(new AffinityExpiry(), affinityExpiryInterval, affinityExpiryInterval, TimeUnit.SECONDS);
 
 	}
 
@@ -1348,8 +1962,70 @@ ILoadBalancerService, IOFMessageListener {
 	public void startUp(FloodlightModuleContext context) {
 		floodlightProviderService.addOFMessageListener(OFType.PACKET_IN, this);
 		restApiService.addRestletRoutable(new LoadBalancerWebRoutable());
+		deviceManagerService.addListener(this.deviceListener);
 		debugCounterService.registerModule(this.getName());
 		counterPacketOut = debugCounterService.registerCounter(this.getName(), "packet-outs-written", "Packet outs written by the LoadBalancer", MetaData.WARN);
 		counterPacketIn = debugCounterService.registerCounter(this.getName(), "packet-ins-received", "Packet ins received by the LoadBalancer", MetaData.WARN);
 	}
+
+	// IDeviceListener
+	class DeviceListenerImpl implements IDeviceListener {
+		@Override
+		public void deviceAdded(IDevice device) {
+			for (IPv4Address ip : device.getIPv4Addresses()) {
+				if (memberIps.contains(ip.getInt())) {
+					memberIpToDeviceKey.put(ip.getInt(), device.getDeviceKey());
+				}
+			}
+		}
+
+		@Override
+		public void deviceRemoved(IDevice device) {
+			for (IPv4Address ip : device.getIPv4Addresses()) {
+				memberIpToDeviceKey.remove(ip.getInt(), device.getDeviceKey());
+			}
+		}
+
+		@Override
+		public void deviceMoved(IDevice device) {
+			// attachment points are read from the device itself
+		}
+
+		@Override
+		public void deviceIPV4AddrChanged(IDevice device) {
+			// drop the member addresses the device no longer has
+			Set<IPv4Address> ips = new HashSet<IPv4Address>(Arrays.asList(device.getIPv4Addresses()));
+			for (Map.Entry<Integer, Long> e : memberIpToDeviceKey.entrySet()) {
+				if (e.getValue().equals(device.getDeviceKey()) && !ips.contains(IPv4Address.of(e.getKey()))) {
+					memberIpToDeviceKey.remove(e.getKey(), e.getValue());
+				}
+			}
+			deviceAdded(device);
+		}
+
+		@Override
+		public void deviceIPV6AddrChanged(IDevice device) {
+			// ignore
+		}
+
+		@Override
+		public void deviceVlanChanged(IDevice device) {
+			// ignore
+		}
+
+		@Override
+		public String getName() {
+			return LoadBalancer.this.getName();
+		}
+
+		@Override
+		public boolean isCallbackOrderingPrereq(String type, String name) {
+			return false;
+		}
+
+		@Override
+		public boolean isCallbackOrderingPostreq(String type, String name) {
+			return false;
+		}
+	}
 }
@@ -0,0 +1,132 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maglev consistent hashing lookup table, as described in "Maglev: A Fast
+ * and Reliable Software Network Load Balancer" (NSDI 2016).
+ *
+ * Every member has its own permutation of the table's slots, derived from
+ * its id, and members take turns claiming their next preferred free slot,
+ * as many per round as their weight, until the table is full. A flow goes
+ * to the member owning the slot its hash falls in: a lookup is an array
+ * access, and since the permutations do not depend on the other members,
+ * adding or removing a member moves few flows between the others.
+ *
+ * The table is immutable; a pool builds a new one when its members or
+ * their weights change.
+ */
+public class MaglevTable {
+	/* prime, and much larger than the number of members of any pool */
+	public static final int DEFAULT_SIZE = 65537;
+
+	private final String[] members;
+	private final int[] slots;
+
+	public MaglevTable(List<String> memberIds, List<Short> weights) {
+		this(memberIds, weights, DEFAULT_SIZE);
+	}
+
+	/**
+	 * @param memberIds the members, each at most once
+	 * @param weights the weight of each member, in the same order; members
+	 *        with no weight get no slots
+	 * @param size the number of slots, a prime
+	 */
+	public MaglevTable(List<String> memberIds, List<Short> weights, int size) {
+		members = memberIds.toArray(new String[memberIds.size()]);
+		slots = new int[size];
+		Arrays.fill(slots, -1);
+
+		int n = members.length;
+		int[] offset = new int[n];
+		int[] skip = new int[n];
+		int[] next = new int[n];
+		int totalWeight = 0;
+		for (int i = 0; i < n; i++) {
+			offset[i] = (int) ((mix(members[i].hashCode()) >>> 1) % size);
+			skip[i] = (int) ((mix(~members[i].hashCode()) >>> 1) % (size - 1)) + 1;
+			totalWeight += Math.max(0, weights.get(i));
+		}
+		if (totalWeight == 0) {
+			return;
+		}
+
+		int filled = 0;
+		while (filled < size) {
+			for (int i = 0; i < n && filled < size; i++) {
+				for (int w = weights.get(i); w > 0 && filled < size; w--) {
+					int slot;
+					do {
+						slot = (int) ((offset[i] + (long) next[i] * skip[i]) % size);
+						next[i]++;
+					} while (slots[slot] >= 0);
+					slots[slot] = i;
+					filled++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param hash the hash of a flow, see {@link #mix(long)}
+	 * @param probe 0 for the member the flow goes to; higher values for the
+	 *        members of the following slots, to pass over members that are
+	 *        down
+	 * @return the member, or null if the table is empty
+	 */
+	public String get(long hash, int probe) {
+		if (members.length == 0 || slots[0] < 0) {
+			return null;
+		}
+		int slot = (int) ((hash >>> 1) % slots.length);
+		return members[slots[(slot + probe) % slots.length]];
+	}
+
+	/**
+	 * @return the number of slots
+	 */
+	public int size() {
+		return slots.length;
+	}
+
+	/**
+	 * @return the number of slots a member owns
+	 */
+	public int getSlotCount(String memberId) {
+		int count = 0;
+		for (int slot : slots) {
+			if (slot >= 0 && members[slot].equals(memberId)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Spreads the bits of a value over a 64-bit hash (the MurmurHash3 finalizer)
+	 */
+	public static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -143,6 +143,10 @@ public class PoolsResource extends ServerResource {
 					pool.lbMethod = (short) 2;
 				} else if(method.equalsIgnoreCase("WRR")){
 					pool.lbMethod = (short) 3;
+				} else if(method.equalsIgnoreCase("MAGLEV")){
+					pool.lbMethod = (short) 4;
+				} else if(method.equalsIgnoreCase("PROACTIVE")){
+					pool.lbMethod = (short) 5;
 				}
 
 				continue;
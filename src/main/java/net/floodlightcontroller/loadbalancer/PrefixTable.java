@@ -0,0 +1,290 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import net.floodlightcontroller.packet.IPv4;
+
+/**
+ * Split of the client address space between the members of a pool, in
+ * proportion to their weights, as in "OpenFlow-Based Server Load Balancing
+ * Gone Wild" (Hot-ICE 2011). Each part is covered by a few source prefixes,
+ * which the load balancer installs as wildcard flows so that clients reach
+ * their member without going through the controller.
+ *
+ * The space is cut into 2^bits equal buckets by the leading bits of the
+ * address, and every member gets as many buckets as its share of the total
+ * weight. A new table hands them out in aligned power-of-two blocks, for as
+ * few prefixes as there are one bits in the counts; a rebalanced table only
+ * moves the buckets members gain or lose, to keep the clients of the others
+ * where they are.
+ *
+ * The table is immutable; a pool builds a new one when its members, their
+ * weights or their health change.
+ */
+public class PrefixTable {
+	/* 64 buckets: weights are followed to within 1/64 of the clients */
+	public static final int DEFAULT_BITS = 6;
+
+	/**
+	 * A source prefix and the member its clients go to
+	 */
+	public static class Prefix {
+		private final int address;
+		private final int maskBits;
+		private final String memberId;
+
+		Prefix(int address, int maskBits, String memberId) {
+			this.address = address;
+			this.maskBits = maskBits;
+			this.memberId = memberId;
+		}
+
+		public int getAddress() {
+			return address;
+		}
+
+		public int getMaskBits() {
+			return maskBits;
+		}
+
+		public String getMemberId() {
+			return memberId;
+		}
+
+		@Override
+		public int hashCode() {
+			return (address * 31 + maskBits) * 31 + memberId.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Prefix))
+				return false;
+			Prefix other = (Prefix) obj;
+			return address == other.address && maskBits == other.maskBits
+					&& memberId.equals(other.memberId);
+		}
+
+		@Override
+		public String toString() {
+			return IPv4.fromIPv4Address(address) + "/" + maskBits;
+		}
+	}
+
+	private final int bits;
+	/* the member of each bucket, or null if no member has any weight */
+	private final String[] buckets;
+
+	public PrefixTable(List<String> memberIds, List<Short> weights) {
+		this(memberIds, weights, DEFAULT_BITS);
+	}
+
+	/**
+	 * @param memberIds the members, each at most once
+	 * @param weights the weight of each member, in the same order; members
+	 *        with no weight get no clients
+	 * @param bits the number of leading address bits the split is made on,
+	 *        from 0 to 16
+	 */
+	public PrefixTable(List<String> memberIds, List<Short> weights, int bits) {
+		this.bits = bits;
+		buckets = new String[1 << bits];
+		int[] quotas = quotas(weights, buckets.length);
+
+		// aligned blocks, largest first, each stays aligned after the ones before
+		List<int[]> blocks = new ArrayList<int[]>();
+		for (int i = 0; i < quotas.length; i++) {
+			for (int size = Integer.highestOneBit(Math.max(quotas[i], 1)); size > 0; size >>= 1) {
+				if ((quotas[i] & size) != 0) {
+					blocks.add(new int[] { size, i });
+				}
+			}
+		}
+		Collections.sort(blocks, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] b1, int[] b2) {
+				return Integer.compare(b2[0], b1[0]);
+			}
+		});
+		int next = 0;
+		for (int[] block : blocks) {
+			Arrays.fill(buckets, next, next + block[0], memberIds.get(block[1]));
+			next += block[0];
+		}
+	}
+
+	private PrefixTable(int bits, String[] buckets) {
+		this.bits = bits;
+		this.buckets = buckets;
+	}
+
+	/**
+	 * @return the number of buckets of each member, in proportion to its
+	 *         weight, rounded by largest remainder so that they add up
+	 */
+	private static int[] quotas(List<Short> weights, int total) {
+		int[] quotas = new int[weights.size()];
+		long sum = 0;
+		for (Short w : weights) {
+			sum += Math.max(0, w);
+		}
+		if (sum == 0) {
+			return quotas;
+		}
+		int given = 0;
+		long[] remainders = new long[quotas.length];
+		for (int i = 0; i < quotas.length; i++) {
+			long share = (long) Math.max(0, weights.get(i)) * total;
+			quotas[i] = (int) (share / sum);
+			remainders[i] = share % sum;
+			given += quotas[i];
+		}
+		for (; given < total; given++) {
+			int largest = 0;
+			for (int i = 1; i < quotas.length; i++) {
+				if (remainders[i] > remainders[largest]) {
+					largest = i;
+				}
+			}
+			quotas[largest]++;
+			remainders[largest] = -1;
+		}
+		return quotas;
+	}
+
+	/**
+	 * Split the clients again for new members or weights, moving as few
+	 * buckets as possible: members over their share give up their last
+	 * buckets, which go to the members under theirs.
+	 *
+	 * @return the new table, equal to this one if no bucket moved
+	 */
+	public PrefixTable rebalance(List<String> memberIds, List<Short> weights) {
+		String[] next = buckets.clone();
+		int[] quotas = quotas(weights, next.length);
+		int[] counts = new int[quotas.length];
+
+		for (int b = 0; b < next.length; b++) {
+			int i = next[b] == null ? -1 : memberIds.indexOf(next[b]);
+			if (i < 0 || counts[i] == quotas[i]) {
+				next[b] = null;
+			} else {
+				counts[i]++;
+			}
+		}
+		int i = 0;
+		for (int b = 0; b < next.length; b++) {
+			if (next[b] == null) {
+				while (i < quotas.length && counts[i] == quotas[i]) {
+					i++;
+				}
+				if (i == quotas.length) {
+					break;
+				}
+				next[b] = memberIds.get(i);
+				counts[i]++;
+			}
+		}
+		return new PrefixTable(bits, next);
+	}
+
+	/**
+	 * @return the member the clients of an address go to, or null if none
+	 */
+	public String get(int address) {
+		return buckets[bits == 0 ? 0 : address >>> (32 - bits)];
+	}
+
+	/**
+	 * @return the fewest prefixes covering the buckets of the members, each
+	 *         with its member
+	 */
+	public List<Prefix> getPrefixes() {
+		List<Prefix> prefixes = new ArrayList<Prefix>();
+		cover(0, buckets.length, prefixes);
+		return prefixes;
+	}
+
+	private void cover(int first, int size, List<Prefix> prefixes) {
+		String memberId = buckets[first];
+		boolean same = true;
+		for (int b = first + 1; b < first + size && same; b++) {
+			same = memberId == null ? buckets[b] == null : memberId.equals(buckets[b]);
+		}
+		if (same) {
+			if (memberId != null) {
+				int maskBits = bits - Integer.numberOfTrailingZeros(size);
+				prefixes.add(new Prefix(bits == 0 ? 0 : first << (32 - bits), maskBits, memberId));
+			}
+		} else {
+			cover(first, size / 2, prefixes);
+			cover(first + size / 2, size / 2, prefixes);
+		}
+	}
+
+	/**
+	 * @return whether any client of a prefix went to another member in an
+	 *         earlier table; clients that went to none have nothing to keep
+	 */
+	public boolean moved(Prefix prefix, PrefixTable from) {
+		if (from == null || from.bits != bits) {
+			return true;
+		}
+		int first = bits == 0 ? 0 : prefix.address >>> (32 - bits);
+		int size = 1 << (bits - prefix.maskBits);
+		for (int b = first; b < first + size; b++) {
+			if (from.buckets[b] != null && !prefix.memberId.equals(from.buckets[b])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of buckets a member has
+	 */
+	public int getBucketCount(String memberId) {
+		int count = 0;
+		for (String b : buckets) {
+			if (memberId.equals(b)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public int hashCode() {
+		return Arrays.hashCode(buckets);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof PrefixTable))
+			return false;
+		PrefixTable other = (PrefixTable) obj;
+		return bits == other.bits && Arrays.equals(buckets, other.buckets);
+	}
+}
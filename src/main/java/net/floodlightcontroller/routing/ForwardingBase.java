@@ -18,6 +18,10 @@
 package net.floodlightcontroller.routing;
 
 import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.core.FloodlightContext;
 import net.floodlightcontroller.core.IFloodlightProviderService;
@@ -26,6 +30,7 @@ import net.floodlightcontroller.core.IOFSwitch;
 import net.floodlightcontroller.core.internal.IOFSwitchService;
 import net.floodlightcontroller.core.types.NodePortTuple;
 import net.floodlightcontroller.core.util.AppCookie;
+import net.floodlightcontroller.debugcounter.IDebugCounter;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.SwitchPort;
@@ -33,6 +38,7 @@ import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.restserver.IRestApiService;
+import net.floodlightcontroller.threadpool.IThreadPoolService;
 import net.floodlightcontroller.topology.ITopologyService;
 import net.floodlightcontroller.util.*;
 
@@ -45,6 +51,9 @@ import org.projectfloodlight.openflow.types.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
 
 /**
  * Abstract base class for implementing a forwarding module.  Forwarding is
@@ -76,10 +85,49 @@ public abstract class ForwardingBase implements IOFMessageListener {
     protected static boolean FLOWMOD_DEFAULT_MATCH_TRANSPORT_DST = true;
     protected static boolean FLOWMOD_DEFAULT_MATCH_TCP_FLAG = true;
 
+    /**
+     * How the match of a reactively installed flow is chosen
+     */
+    public enum MatchMode {
+        /** Match the fields selected by the match and detailed-match settings */
+        EXACT,
+        /**
+         * Match only the fields the forwarding decision depended on, as
+         * recorded in {@link MatchDependencies}, so that one flow covers
+         * every connection that would be forwarded the same way
+         */
+        ADAPTIVE
+    }
+
+    protected static MatchMode FLOWMOD_MATCH_MODE = MatchMode.EXACT;
+
     protected static boolean FLOOD_ALL_ARP_PACKETS = false;
 
     protected static boolean REMOVE_FLOWS_ON_LINK_OR_PORT_DOWN = true;
 
+    /**
+     * How pushRoute installs the flows of a path
+     */
+    public enum FlowInstallMode {
+        /** Write every hop at once with no confirmation */
+        UNORDERED,
+        /**
+         * Write the downstream hops pipelined, each followed by a barrier,
+         * and install the first hop and send the packet-out only once every
+         * downstream switch has confirmed
+         */
+        BARRIER,
+        /**
+         * As BARRIER, but commit each downstream hop as an atomic, ordered
+         * OpenFlow bundle on switches running OpenFlow 1.4 or later
+         */
+        BUNDLE
+    }
+
+    protected static FlowInstallMode FLOWMOD_INSTALL_MODE = FlowInstallMode.UNORDERED;
+    /* how long an ordered install waits for downstream confirmation */
+    protected static int FLOWMOD_INSTALL_TIMEOUT_MS = 500;
+
     protected IFloodlightProviderService floodlightProviderService;
     protected IOFSwitchService switchService;
     protected IDeviceService deviceManagerService;
@@ -88,6 +136,12 @@ public abstract class ForwardingBase implements IOFMessageListener {
     protected IDebugCounterService debugCounterService;
     protected ILinkDiscoveryService linkService;
     protected IRestApiService restApiService;
+    protected IThreadPoolService threadPoolService;
+
+    protected IDebugCounter counterOrderedInstalls;
+    protected IDebugCounter counterOrderedInstallNs;
+    protected IDebugCounter counterOrderedInstallTimeouts;
+    private final AtomicInteger bundleIdGenerator = new AtomicInteger();
 
     // flow-mod - for use in the cookie
     public static final int FORWARDING_APP_ID = 2;
@@ -159,12 +213,25 @@ public abstract class ForwardingBase implements IOFMessageListener {
      * @param flowModCommand flow mod. command to use, e.g. OFFlowMod.OFPFC_ADD,
      *        OFFlowMod.OFPFC_MODIFY etc.
      * @return true if a packet out was sent on the first-hop switch of this route
+     *
+     * Unless {@link #FLOWMOD_INSTALL_MODE} is UNORDERED, flows that are added
+     * or modified are installed in order: the first hop and the packet-out
+     * follow once the downstream switches have confirmed their flows, so
+     * the released packet doesn't outrun the installation. The packet-out is
+     * then sent asynchronously, after this method returns. Either way,
+     * {@link #routeInstalled} is called once the flows are in place.
      */
     public boolean pushRoute(Path route, Match match, OFPacketIn pi,
             DatapathId pinSwitch, U64 cookie, FloodlightContext cntx,
             boolean requestFlowRemovedNotification, OFFlowModCommand flowModCommand, boolean packetOutSent) {
 
         List<NodePortTuple> switchPortList = route.getPath();
+        boolean installing = flowModCommand != OFFlowModCommand.DELETE
+                && flowModCommand != OFFlowModCommand.DELETE_STRICT;
+        OrderedInstall install = null;
+        if (FLOWMOD_INSTALL_MODE != FlowInstallMode.UNORDERED && installing) {
+            install = new OrderedInstall(pi, cntx);
+        }
 
         for (int indx = switchPortList.size() - 1; indx > 0; indx -= 2) {
             // indx and indx-1 will always have the same switch DPID.
@@ -252,6 +319,8 @@ public abstract class ForwardingBase implements IOFMessageListener {
                         fmb.getMatch(), 
                         null, // TODO how to determine output VLAN for lookup of L2 interface group
                         outPort);
+            } else if (install != null) {
+                install.addHop(sw, fmb.build(), sw.getId().equals(pinSwitch));
             } else {
                 messageDamper.write(sw, fmb.build());
             }
@@ -260,16 +329,170 @@ public abstract class ForwardingBase implements IOFMessageListener {
             if (!packetOutSent && sw.getId().equals(pinSwitch) &&
                     !fmb.getCommand().equals(OFFlowModCommand.DELETE) &&
                     !fmb.getCommand().equals(OFFlowModCommand.DELETE_STRICT)) {
-                /* Use the buffered packet at the switch, if there's one stored */
-                log.debug("Push packet out the first hop switch");
-                pushPacket(sw, pi, outPort, true, cntx);
+                if (install != null) {
+                    install.setPacketOut(sw, outPort);
+                } else {
+                    /* Use the buffered packet at the switch, if there's one stored */
+                    log.debug("Push packet out the first hop switch");
+                    pushPacket(sw, pi, outPort, true, cntx);
+                }
             }
 
         }
 
+        if (install != null) {
+            install.start();
+        } else if (installing) {
+            routeInstalled(pi, cntx);
+        }
         return true;
     }
 
+    /**
+     * Called once the flows pushRoute() added or modified for a packet-in
+     * are in place: right away when installing unordered, otherwise when
+     * the first hop is released. Does nothing by default.
+     * @param pi the packet-in the route was pushed for
+     * @param cntx the floodlight context of the packet-in
+     */
+    protected void routeInstalled(OFPacketIn pi, FloodlightContext cntx) {
+    }
+
+    /**
+     * The flows of one path being installed in order. Downstream hops are
+     * written at once, each with its own confirmation. The first hop flow
+     * and the packet-out are released when every confirmation has arrived,
+     * or after {@link #FLOWMOD_INSTALL_TIMEOUT_MS} at the latest.
+     */
+    private class OrderedInstall implements Runnable {
+        private final OFPacketIn pi;
+        private final FloodlightContext cntx;
+        private final List<IOFSwitch> downstreamSwitches = new ArrayList<>();
+        private final List<OFFlowMod> downstreamFlows = new ArrayList<>();
+        private IOFSwitch firstHopSwitch;
+        private OFFlowMod firstHopFlow;
+        private IOFSwitch packetOutSwitch;
+        private OFPort packetOutPort;
+
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean released = new AtomicBoolean();
+        private long startNs;
+
+        OrderedInstall(OFPacketIn pi, FloodlightContext cntx) {
+            this.pi = pi;
+            this.cntx = cntx;
+        }
+
+        void addHop(IOFSwitch sw, OFFlowMod flow, boolean firstHop) {
+            if (firstHop) {
+                firstHopSwitch = sw;
+                firstHopFlow = flow;
+            } else {
+                downstreamSwitches.add(sw);
+                downstreamFlows.add(flow);
+            }
+        }
+
+        void setPacketOut(IOFSwitch sw, OFPort outPort) {
+            packetOutSwitch = sw;
+            packetOutPort = outPort;
+        }
+
+        void start() {
+            startNs = System.nanoTime();
+            pending.set(downstreamSwitches.size() + 1);
+            for (int i = 0; i < downstreamSwitches.size(); i++) {
+                ListenableFuture<OFBarrierReply> confirmed =
+                        writeConfirmed(downstreamSwitches.get(i), downstreamFlows.get(i));
+                if (confirmed == null) {
+                    run();
+                } else {
+                    confirmed.addListener(this, MoreExecutors.sameThreadExecutor());
+                }
+            }
+            if (pending.get() > 1 && threadPoolService != null) {
+                ScheduledExecutorService ses = threadPoolService.getScheduledExecutor();
+                ses.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (release()) {
+                            counterOrderedInstallTimeouts.increment();
+                            log.debug("Downstream flows not confirmed within {} ms; " +
+                                    "releasing the first hop", FLOWMOD_INSTALL_TIMEOUT_MS);
+                        }
+                    }
+                }, FLOWMOD_INSTALL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+            run();
+        }
+
+        /**
+         * Called once per downstream confirmation, and once by start()
+         */
+        @Override
+        public void run() {
+            if (pending.decrementAndGet() == 0 && release()) {
+                counterOrderedInstalls.increment();
+                counterOrderedInstallNs.add(System.nanoTime() - startNs);
+            }
+        }
+
+        /**
+         * Install the first hop and send the packet-out, once
+         * @return true if this call released them
+         */
+        private boolean release() {
+            if (!released.compareAndSet(false, true)) {
+                return false;
+            }
+            if (firstHopFlow != null) {
+                messageDamper.write(firstHopSwitch, firstHopFlow);
+            }
+            if (packetOutSwitch != null) {
+                log.debug("Push packet out the first hop switch");
+                pushPacket(packetOutSwitch, pi, packetOutPort, true, cntx);
+            }
+            routeInstalled(pi, cntx);
+            return true;
+        }
+    }
+
+    /**
+     * Write a flow and a barrier behind it. In {@link FlowInstallMode#BUNDLE}
+     * mode, on switches that support them, the flow is committed as an
+     * atomic, ordered bundle first.
+     * @return future completed when the switch has processed the flow; null
+     *         if the flow was dampened and there is nothing to wait for
+     */
+    private ListenableFuture<OFBarrierReply> writeConfirmed(IOFSwitch sw, OFFlowMod flow) {
+        OFFactory factory = sw.getOFFactory();
+        if (FLOWMOD_INSTALL_MODE == FlowInstallMode.BUNDLE
+                && factory.getVersion().compareTo(OFVersion.OF_14) >= 0) {
+            BundleId bundleId = BundleId.of(bundleIdGenerator.incrementAndGet() & Integer.MAX_VALUE);
+            Set<OFBundleFlags> flags = EnumSet.of(OFBundleFlags.ATOMIC, OFBundleFlags.ORDERED);
+            List<OFMessage> msgs = new ArrayList<>(3);
+            msgs.add(factory.buildBundleCtrlMsg()
+                    .setBundleId(bundleId)
+                    .setBundleCtrlType(OFBundleCtrlType.OPEN_REQUEST)
+                    .setFlags(flags)
+                    .build());
+            msgs.add(factory.buildBundleAddMsg()
+                    .setBundleId(bundleId)
+                    .setFlags(flags)
+                    .setData(flow)
+                    .build());
+            msgs.add(factory.buildBundleCtrlMsg()
+                    .setBundleId(bundleId)
+                    .setBundleCtrlType(OFBundleCtrlType.COMMIT_REQUEST)
+                    .setFlags(flags)
+                    .build());
+            sw.write(msgs);
+        } else if (!messageDamper.write(sw, flow)) {
+            return null;
+        }
+        return sw.writeRequest(factory.buildBarrierRequest().build());
+    }
+
     /**
      * Pushes a packet-out to a switch. The assumption here is that
      * the packet-in was also generated from the same switch. Thus, if the input
@@ -1,56 +1,142 @@
 package net.floodlightcontroller.routing;
 
 import net.floodlightcontroller.core.types.NodePortTuple;
+import net.floodlightcontroller.util.IPv4PrefixTrie;
+
 import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.IPv4Address;
 import org.projectfloodlight.openflow.types.IPv4AddressWithMask;
 import org.projectfloodlight.openflow.types.MacAddress;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Lookups of gateways by member switch, switch port or subnet, and of
+ * gateway interfaces by address, go through a snapshot of indexes built
+ * from the configuration, so their cost doesn't grow with the number of
+ * gateways. The snapshot is immutable; any change to the configuration
+ * makes it stale, and the next lookup builds a new one and swaps it in.
+ *
  * @author Qing Wang (qw@g.clemson.edu) at 12/26/17
  */
 public class L3RoutingManager extends RoutingManager {
 
-    private static Map<String, VirtualGatewayInstance> gatewayInstancesMap = new HashMap<>();
+    private static Map<String, VirtualGatewayInstance> gatewayInstancesMap = new ConcurrentHashMap<>();
+
+    /**
+     * The gateway configuration at one version, indexed
+     */
+    private static final class Snapshot {
+        final long version;
+        final Map<DatapathId, VirtualGatewayInstance> bySwitch = new HashMap<>();
+        final Map<NodePortTuple, VirtualGatewayInstance> byNpt = new HashMap<>();
+        final Map<IPv4AddressWithMask, VirtualGatewayInstance> bySubnet = new HashMap<>();
+        final Map<String, IPv4PrefixTrie<VirtualGatewayInterface>> interfaceSubnets = new HashMap<>();
+        final Map<String, Map<IPv4Address, VirtualGatewayInterface>> interfaceAddresses = new HashMap<>();
+
+        Snapshot(long version, Collection<VirtualGatewayInstance> gateways) {
+            this.version = version;
+            for (VirtualGatewayInstance gateway : gateways) {
+                /* as with a search, any one gateway claiming a member will do */
+                for (DatapathId dpid : gateway.getSwitchMembers()) {
+                    bySwitch.putIfAbsent(dpid, gateway);
+                }
+                for (NodePortTuple npt : gateway.getNptMembers()) {
+                    byNpt.putIfAbsent(npt, gateway);
+                }
+                for (IPv4AddressWithMask subnet : gateway.getSubsetMembers()) {
+                    bySubnet.putIfAbsent(subnet, gateway);
+                }
+                IPv4PrefixTrie<VirtualGatewayInterface> subnets = new IPv4PrefixTrie<>();
+                Map<IPv4Address, VirtualGatewayInterface> addresses = new HashMap<>();
+                for (VirtualGatewayInterface intf : gateway.getInterfaces()) {
+                    IPv4AddressWithMask subnet = IPv4AddressWithMask.of(intf.getIp(), intf.getMask());
+                    if (subnets.get(subnet) == null) {
+                        subnets.put(subnet, intf);
+                    }
+                    addresses.putIfAbsent(intf.getIp(), intf);
+                }
+                interfaceSubnets.put(gateway.getName(), subnets);
+                interfaceAddresses.put(gateway.getName(), addresses);
+            }
+        }
+    }
+
+    private static volatile Snapshot snapshot = new Snapshot(-1, Collections.<VirtualGatewayInstance>emptyList());
 
     public L3RoutingManager() {
         // Do nothing
     }
 
+    private static Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        long version = VirtualGatewayInstance.getConfigVersion();
+        if (current.version != version) {
+            synchronized (L3RoutingManager.class) {
+                current = snapshot;
+                version = VirtualGatewayInstance.getConfigVersion();
+                if (current.version != version) {
+                    /* changes made while building bump the version again, so aren't missed */
+                    current = new Snapshot(version, gatewayInstancesMap.values());
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
     public Collection<VirtualGatewayInstance> getAllVirtualGateways() {
         return gatewayInstancesMap.values();
     }
 
     public Optional<VirtualGatewayInstance> getVirtualGateway(String name) {
-        return gatewayInstancesMap.values().stream()
-                .filter(gateways -> gateways.getName().equals(name))
-                .findAny();
+        return Optional.ofNullable(gatewayInstancesMap.get(name));
     }
 
     public Optional<VirtualGatewayInstance> getVirtualGateway(DatapathId dpid) {
-        return gatewayInstancesMap.values().stream()
-                .filter(gateways -> gateways.getSwitchMembers().contains(dpid))
-                .findAny();
+        return Optional.ofNullable(getSnapshot().bySwitch.get(dpid));
     }
 
     public Optional<VirtualGatewayInstance> getVirtualGateway(NodePortTuple npt) {
-        return gatewayInstancesMap.values().stream()
-                .filter(gateways -> gateways.getNptMembers().contains(npt))
-                .findAny();
+        return Optional.ofNullable(getSnapshot().byNpt.get(npt));
     }
 
     public Optional<VirtualGatewayInstance> getVirtualGateway(IPv4AddressWithMask subnet) {
-        return gatewayInstancesMap.values().stream()
-                .filter(gateways -> gateways.getSubsetMembers().contains(subnet))
-                .findAny();
+        return Optional.ofNullable(getSnapshot().bySubnet.get(subnet));
     }
 
-    public void removeAllVirtualGateways() { gatewayInstancesMap.clear(); }
+    /**
+     * Find the interface of a gateway whose subnet contains an address. If
+     * several do, the interface with the longest prefix is chosen.
+     */
+    public Optional<VirtualGatewayInterface> findGatewayInterface(VirtualGatewayInstance gateway, IPv4Address ip) {
+        IPv4PrefixTrie<VirtualGatewayInterface> subnets = getSnapshot().interfaceSubnets.get(gateway.getName());
+        if (subnets == null) {
+            /* not a registered gateway */
+            return gateway.findGatewayInft(ip);
+        }
+        return Optional.ofNullable(subnets.longestMatch(ip));
+    }
+
+    /**
+     * @return true if the address is the address of an interface of the gateway
+     */
+    public boolean isGatewayInterfaceAddress(VirtualGatewayInstance gateway, IPv4Address ip) {
+        Map<IPv4Address, VirtualGatewayInterface> addresses = getSnapshot().interfaceAddresses.get(gateway.getName());
+        if (addresses == null) {
+            return gateway.isAGatewayIntf(ip);
+        }
+        return addresses.containsKey(ip);
+    }
+
+    public void removeAllVirtualGateways() {
+        gatewayInstancesMap.clear();
+        VirtualGatewayInstance.configChanged();
+    }
 
     public boolean removeVirtualGateway(String name) {
-        Optional<VirtualGatewayInstance> instance = getVirtualGateway(name);
-        if (instance.isPresent()) {
-            gatewayInstancesMap.remove(name);
+        if (gatewayInstancesMap.remove(name) != null) {
+            VirtualGatewayInstance.configChanged();
             return true;
         }
         else {
@@ -60,6 +146,7 @@ public class L3RoutingManager extends RoutingManager {
 
     public void addVirtualGateway(VirtualGatewayInstance gateway) {
         gatewayInstancesMap.put(gateway.getName(), gateway);
+        VirtualGatewayInstance.configChanged();
     }
 
     public VirtualGatewayInstance updateVirtualGateway(String name, MacAddress newMac) {
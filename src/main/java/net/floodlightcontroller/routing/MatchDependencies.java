@@ -0,0 +1,127 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.routing;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+import net.floodlightcontroller.core.FloodlightContext;
+import net.floodlightcontroller.core.FloodlightContextStore;
+
+/**
+ * The packet fields that the modules processing a packet-in based their
+ * decisions on.
+ *
+ * A module that looks at a field to decide what happens to a packet
+ * records it here, so that a flow installed for the packet may wildcard
+ * every field nobody looked at without changing what happens to the
+ * traffic it matches. Fields are matched on the packet's own values;
+ * for IPv4 addresses only the longest prefix any module examined is.
+ */
+public class MatchDependencies {
+    public static final FloodlightContextStore<MatchDependencies> store =
+            new FloodlightContextStore<MatchDependencies>();
+    public static final String CONTEXT_DEPENDENCIES =
+            "net.floodlightcontroller.routing.matchDependencies";
+
+    private static final int EXACT = 32;
+
+    /* field -> number of leading bits examined */
+    private final Map<MatchField<?>, Integer> fields = new HashMap<MatchField<?>, Integer>();
+
+    /**
+     * @return the dependencies recorded for the packet-in, created empty
+     *         if none have been yet
+     */
+    public static MatchDependencies get(FloodlightContext cntx) {
+        MatchDependencies deps = store.get(cntx, CONTEXT_DEPENDENCIES);
+        if (deps == null) {
+            deps = new MatchDependencies();
+            store.put(cntx, CONTEXT_DEPENDENCIES, deps);
+        }
+        return deps;
+    }
+
+    /**
+     * Record that a decision depended on the whole of a field
+     */
+    public void add(MatchField<?> field) {
+        fields.put(field, EXACT);
+    }
+
+    /**
+     * Record that a decision depended on the leading bits of an IPv4 address
+     * @param prefixLength how many, 0 to 32
+     */
+    public void addPrefix(MatchField<IPv4Address> field, int prefixLength) {
+        if (prefixLength <= 0) {
+            return;
+        }
+        Integer old = fields.get(field);
+        if (old == null || old < prefixLength) {
+            fields.put(field, Math.min(prefixLength, EXACT));
+        }
+    }
+
+    /**
+     * Record everything another set of dependencies holds
+     */
+    public void addAll(MatchDependencies other) {
+        for (Map.Entry<MatchField<?>, Integer> e : other.fields.entrySet()) {
+            Integer old = fields.get(e.getKey());
+            if (old == null || old < e.getValue()) {
+                fields.put(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    public boolean contains(MatchField<?> field) {
+        return fields.containsKey(field);
+    }
+
+    /**
+     * @return the number of leading bits of the address that decisions
+     *         depended on, 0 if none
+     */
+    public int getPrefixLength(MatchField<IPv4Address> field) {
+        Integer len = fields.get(field);
+        return len == null ? 0 : len;
+    }
+
+    public boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    @Override
+    public int hashCode() {
+        return fields.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (obj == null) return false;
+        if (getClass() != obj.getClass()) return false;
+        return fields.equals(((MatchDependencies) obj).fields);
+    }
+
+    @Override
+    public String toString() {
+        return "MatchDependencies [fields=" + fields + "]";
+    }
+}
@@ -16,6 +16,7 @@ import org.projectfloodlight.openflow.types.MacAddress;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,6 +31,9 @@ import javax.annotation.Nonnull;
 public class VirtualGatewayInstance {
     protected static final Logger log = LoggerFactory.getLogger(VirtualGatewayInstance.class);
 
+    /* bumped whenever the members or interfaces of any gateway change */
+    private static final AtomicLong configVersion = new AtomicLong();
+
     private final String name;
     private volatile MacAddress gatewayMac = MacAddress.NONE;
     private volatile Map<String, VirtualGatewayInterface> interfaces = null;
@@ -55,6 +59,19 @@ public class VirtualGatewayInstance {
     public boolean isNptAMember(NodePortTuple npt) { return nptMembers.contains(npt); }
     public boolean isSubnetAMember(IPv4AddressWithMask subnet) { return subsetMembers.contains(subnet); }
 
+    /**
+     * Lookups indexed over gateways compare this with the version they were
+     * built at to tell whether they are stale.
+     * @return the version of the members and interfaces of all gateways
+     */
+    public static long getConfigVersion() {
+        return configVersion.get();
+    }
+
+    static void configChanged() {
+        configVersion.incrementAndGet();
+    }
+
     public void updateGatewayMac(@Nonnull MacAddress mac) {
         this.gatewayMac = mac;
     }
@@ -62,10 +79,12 @@ public class VirtualGatewayInstance {
     // add or update interface
     public void addInterface(VirtualGatewayInterface vInterface) {
         interfaces.put(vInterface.getInterfaceName(), vInterface);
+        configChanged();
     }
 
     public void addInterface(String name, String ip, String mask) {
         interfaces.put(name, new VirtualGatewayInterface(name, ip, mask));
+        configChanged();
     }
 
     public Optional<VirtualGatewayInterface> getInterface(String name) {
@@ -88,19 +107,30 @@ public class VirtualGatewayInstance {
         }
         else {
             interfaces.remove(interfaceName);
+            configChanged();
             return true;
         }
     }
 
     public void clearInterfaces() {
         this.interfaces.clear();
+        configChanged();
     }
 
-    public void addSwitchMember(DatapathId dpid) { this.switchMembers.add(dpid); }
+    public void addSwitchMember(DatapathId dpid) {
+        this.switchMembers.add(dpid);
+        configChanged();
+    }
 
-    public void addNptMember(NodePortTuple npt) { this.nptMembers.add(npt); }
+    public void addNptMember(NodePortTuple npt) {
+        this.nptMembers.add(npt);
+        configChanged();
+    }
 
-    public void addSubnetMember(IPv4AddressWithMask subnet) { this.subsetMembers.add(subnet); }
+    public void addSubnetMember(IPv4AddressWithMask subnet) {
+        this.subsetMembers.add(subnet);
+        configChanged();
+    }
 
     public void removeSwitchMember(DatapathId dpid) {
         if (!this.switchMembers.isEmpty()) {
@@ -110,6 +140,7 @@ public class VirtualGatewayInstance {
                 }
             }
         }
+        configChanged();
     }
 
     public void removeNptMember(NodePortTuple npt) {
@@ -120,6 +151,7 @@ public class VirtualGatewayInstance {
                 }
             }
         }
+        configChanged();
     }
 
     public void removeSubnetMember(IPv4AddressWithMask iPv4AddressWithMask) {
@@ -130,6 +162,7 @@ public class VirtualGatewayInstance {
                 }
             }
         }
+        configChanged();
     }
 
     public void removeSwitchFromInstance(DatapathId dpid) {
@@ -148,24 +181,28 @@ public class VirtualGatewayInstance {
                 }
             }
         }
+        configChanged();
     }
 
     public void clearSwitchMembers() {
         if (!this.switchMembers.isEmpty()) {
             this.switchMembers.clear();
         }
+        configChanged();
     }
 
     public void clearNptMembers() {
         if (!this.nptMembers.isEmpty()) {
             this.nptMembers.clear();
         }
+        configChanged();
     }
 
     public void clearSubnetMembers() {
         if (!this.subsetMembers.isEmpty()) {
             this.subsetMembers.clear();
         }
+        configChanged();
     }
 
     public boolean isAGatewayIntf(IPv4Address ip) {
@@ -34,10 +34,12 @@ public class VirtualGatewayInterface {
 
     public void setIp(IPv4Address ip) {
         this.ip = ip;
+        VirtualGatewayInstance.configChanged();
     }
 
     public void setMask(IPv4Address mask) {
         this.iPv4AddressWithMask = IPv4AddressWithMask.of(ip, mask);
+        VirtualGatewayInstance.configChanged();
     }
 
     public boolean containsIP(IPv4Address ip) {
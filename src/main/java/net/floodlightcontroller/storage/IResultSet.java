@@ -45,7 +45,8 @@ public interface IResultSet extends Iterable<IResultSet> {
      * for the changes to be applied/committed to the storage source. Note that
      * this doesn't need to be called after each set method or even after each
      * row. It is typically called at the end after updating all of the
-     * rows in the result set.
+     * rows in the result set. Listeners are notified once of the rows
+     * updated and once of the rows deleted.
      */
     public void save();
     
@@ -116,6 +116,7 @@ public interface IStorageSourceService extends IFloodlightService {
 
     /** Update or insert a list of rows in the table.
      * The primary key must be included in the map of values for each row.
+     * Listeners are notified of all the rows at once.
      * @param tableName The table to update or insert into
      * @param values The map of column names/values to update the rows
      */
@@ -154,14 +155,15 @@ public interface IStorageSourceService extends IFloodlightService {
     void deleteRow(String tableName, Object rowKey);
 
     /** Delete the rows with the given keys.
-     * 
+     * Listeners are notified of all the rows at once.
      * @param tableName The table from which to delete the rows
      * @param rowKeys The set of primary keys of the rows to delete.
      */
     void deleteRows(String tableName, Set<Object> rowKeys);
     
     /**
-     * Delete the rows that match the predicate
+     * Delete the rows that match the predicate, notifying listeners of
+     * all of them at once
      * @param tableName
      * @param predicate
      */
@@ -788,9 +788,11 @@ public abstract class NoSqlStorageSource extends AbstractStorageSource {
         sendNotification(tableName, StorageSourceNotification.Action.MODIFY, rowKeys);
     }
 
-    protected void updateRowsAndNotify(String tableName, List<Map<String,Object>> updateRowList) {
-        updateRows(tableName, updateRowList);
-        sendNotification(tableName, StorageSourceNotification.Action.MODIFY, updateRowList);
+    @Override
+    public void updateRows(String tableName, List<Map<String,Object>> rows) {
+        super.updateRows(tableName, rows);
+        // one notification for the whole batch, so listeners can act on it at once
+        sendNotification(tableName, StorageSourceNotification.Action.MODIFY, rows);
     }
 
     @Override
@@ -813,26 +815,27 @@ public abstract class NoSqlStorageSource extends AbstractStorageSource {
         valuesWithKey.put(primaryKeyName, rowKey);
         List<Map<String,Object>> rowList = new ArrayList<Map<String,Object>>();
         rowList.add(valuesWithKey);
-        updateRowsAndNotify(tableName, rowList);
+        updateRows(tableName, rowList);
     }
 
    @Override
     public void updateRowImpl(String tableName, Map<String,Object> values) {
         List<Map<String,Object>> rowKeys = new ArrayList<Map<String,Object>>();
         rowKeys.add(values);
-        updateRowsAndNotify(tableName, rowKeys);
+        updateRows(tableName, rowKeys);
     }
 
-   protected void deleteRowsAndNotify(String tableName, Set<Object> rowKeyList) {
-       deleteRows(tableName, rowKeyList);
-       sendNotification(tableName, StorageSourceNotification.Action.DELETE, rowKeyList);
-   }
+    @Override
+    public void deleteRows(String tableName, Set<Object> rowKeys) {
+        super.deleteRows(tableName, rowKeys);
+        sendNotification(tableName, StorageSourceNotification.Action.DELETE, rowKeys);
+    }
 
     @Override
     public void deleteRowImpl(String tableName, Object key) {
         HashSet<Object> keys = new HashSet<Object>();
         keys.add(key);
-        deleteRowsAndNotify(tableName, keys);
+        deleteRows(tableName, keys);
     }
 
     @Override
@@ -0,0 +1,277 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An open-addressing hash map from primitive long to primitive long.
+ *
+ * Reads are lock-free and allocation-free. Writes are serialized on the
+ * map itself. Each slot holds a key in a plain array and a value in an
+ * {@link AtomicLongArray}; the key is always written before the value is
+ * published, and a slot is never reused for a different key until the
+ * table is rebuilt, so a reader that sees a value also sees its key.
+ * Removed entries leave a tombstone that is reclaimed when the same key
+ * is put again or when the table is rebuilt into a new array.
+ *
+ * Values {@link #NO_VALUE} and NO_VALUE + 1 are reserved and cannot be
+ * stored.
+ */
+public class ConcurrentLongLongMap {
+	/**
+	 * Returned by lookups when the key is not present
+	 */
+	public static final long NO_VALUE = Long.MIN_VALUE;
+
+	private static final long FREE = NO_VALUE;
+	private static final long REMOVED = NO_VALUE + 1;
+	private static final float LOAD_FACTOR = 0.6f;
+	private static final int MIN_CAPACITY = 16;
+
+	private static class Table {
+		final long[] keys;
+		final AtomicLongArray values;
+		final int mask;
+
+		Table(int capacity) {
+			keys = new long[capacity];
+			long[] free = new long[capacity];
+			Arrays.fill(free, FREE);
+			values = new AtomicLongArray(free);
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Table table;
+	private int size;
+	private int used; /* live entries plus tombstones; guarded by this */
+
+	public ConcurrentLongLongMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of entries to size the table for
+	 */
+	public ConcurrentLongLongMap(int expectedSize) {
+		table = new Table(capacityFor(expectedSize));
+	}
+
+	private static int capacityFor(int entries) {
+		int cap = MIN_CAPACITY;
+		while (cap * LOAD_FACTOR < entries * 2 && cap < (1 << 30)) {
+			cap <<= 1;
+		}
+		return cap;
+	}
+
+	private static int hash(long key) {
+		/* MurmurHash3 finalizer */
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private static void checkValue(long value) {
+		if (value == FREE || value == REMOVED) {
+			throw new IllegalArgumentException("Reserved value " + value);
+		}
+	}
+
+	/**
+	 * Find the slot holding key, or the free slot that ends its probe sequence
+	 */
+	private static int findSlot(Table t, long key) {
+		int i = hash(key) & t.mask;
+		while (true) {
+			long v = t.values.get(i);
+			if (v == FREE || t.keys[i] == key) {
+				return i;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * Look up a key without locking or allocating.
+	 * @param key
+	 * @return the value, or {@link #NO_VALUE} if not present
+	 */
+	public long get(long key) {
+		Table t = table;
+		int i = hash(key) & t.mask;
+		while (true) {
+			long v = t.values.get(i);
+			if (v == FREE) {
+				return NO_VALUE;
+			}
+			if (t.keys[i] == key) {
+				return v == REMOVED ? NO_VALUE : v;
+			}
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != NO_VALUE;
+	}
+
+	/**
+	 * @return the previous value, or {@link #NO_VALUE} if there was none
+	 */
+	public synchronized long put(long key, long value) {
+		return doPut(key, value, false);
+	}
+
+	/**
+	 * @return the existing value, or {@link #NO_VALUE} if value was stored
+	 */
+	public synchronized long putIfAbsent(long key, long value) {
+		return doPut(key, value, true);
+	}
+
+	private long doPut(long key, long value, boolean onlyIfAbsent) {
+		checkValue(value);
+		Table t = table;
+		int i = findSlot(t, key);
+		long old = t.values.get(i);
+		if (old != FREE && old != REMOVED) {
+			if (!onlyIfAbsent) {
+				t.values.set(i, value);
+			}
+			return old;
+		}
+		if (old == FREE) {
+			if (used + 1 > t.keys.length * LOAD_FACTOR) {
+				t = rebuild(size + 1);
+				i = findSlot(t, key);
+			}
+			used++;
+			t.keys[i] = key;
+		}
+		t.values.set(i, value); /* publishes the key */
+		size++;
+		return NO_VALUE;
+	}
+
+	/**
+	 * @return the removed value, or {@link #NO_VALUE} if not present
+	 */
+	public synchronized long remove(long key) {
+		Table t = table;
+		int i = findSlot(t, key);
+		long old = t.values.get(i);
+		if (old == FREE || old == REMOVED) {
+			return NO_VALUE;
+		}
+		t.values.set(i, REMOVED);
+		size--;
+		return old;
+	}
+
+	/**
+	 * Remove the key only if it is currently mapped to value
+	 * @return true if removed
+	 */
+	public synchronized boolean remove(long key, long value) {
+		Table t = table;
+		int i = findSlot(t, key);
+		if (t.values.get(i) != value || value == FREE || value == REMOVED) {
+			return false;
+		}
+		t.values.set(i, REMOVED);
+		size--;
+		return true;
+	}
+
+	public synchronized void clear() {
+		table = new Table(MIN_CAPACITY);
+		size = 0;
+		used = 0;
+	}
+
+	/**
+	 * Copy live entries into a new table sized for the given number of
+	 * entries and publish it. Readers still holding the old table see a
+	 * consistent, if momentarily stale, view.
+	 */
+	private Table rebuild(int entries) {
+		Table old = table;
+		Table t = new Table(capacityFor(entries));
+		for (int i = 0; i < old.keys.length; i++) {
+			long v = old.values.get(i);
+			if (v != FREE && v != REMOVED) {
+				int j = findSlot(t, old.keys[i]);
+				t.keys[j] = old.keys[i];
+				t.values.set(j, v);
+			}
+		}
+		used = size;
+		table = t;
+		return t;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * @return the number of slots in the current table
+	 */
+	public int capacity() {
+		return table.keys.length;
+	}
+
+	/**
+	 * @return a snapshot of the keys currently in the map
+	 */
+	public long[] keys() {
+		Table t = table;
+		long[] keys = new long[t.keys.length];
+		int n = 0;
+		for (int i = 0; i < t.keys.length; i++) {
+			long v = t.values.get(i);
+			if (v != FREE && v != REMOVED) {
+				keys[n++] = t.keys[i];
+			}
+		}
+		return Arrays.copyOf(keys, n);
+	}
+
+	/**
+	 * @return a snapshot of the values currently in the map
+	 */
+	public long[] values() {
+		Table t = table;
+		long[] values = new long[t.keys.length];
+		int n = 0;
+		for (int i = 0; i < t.keys.length; i++) {
+			long v = t.values.get(i);
+			if (v != FREE && v != REMOVED) {
+				values[n++] = v;
+			}
+		}
+		return Arrays.copyOf(values, n);
+	}
+}
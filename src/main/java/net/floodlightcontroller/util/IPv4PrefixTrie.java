@@ -0,0 +1,149 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv4AddressWithMask;
+
+/**
+ * A binary trie of IPv4 prefixes, for longest-prefix-match lookups.
+ *
+ * A lookup walks at most 32 nodes, however many prefixes are stored.
+ * Prefixes must be contiguous (CIDR) masks; host bits beyond the prefix
+ * are ignored.
+ *
+ * This class is not thread-safe. Tries that are built once and then only
+ * read may be shared once safely published.
+ *
+ * @param <V> the value stored with each prefix
+ */
+public class IPv4PrefixTrie<V> {
+	private static class Node<V> {
+		Node<V> zero;
+		Node<V> one;
+		V value;
+	}
+
+	private final Node<V> root = new Node<V>();
+	private int size;
+
+	private static int prefixLength(IPv4AddressWithMask prefix) {
+		int len = prefix.getMask().asCidrMaskLength();
+		if (len < 0 || len > 32) {
+			throw new IllegalArgumentException("Not a CIDR prefix: " + prefix);
+		}
+		return len;
+	}
+
+	private static boolean bit(int addr, int i) {
+		return (addr & (0x80000000 >>> i)) != 0;
+	}
+
+	/**
+	 * Store a value with a prefix
+	 * @return the value previously stored with the prefix, or null
+	 */
+	public V put(IPv4AddressWithMask prefix, V value) {
+		if (value == null) {
+			throw new NullPointerException("value");
+		}
+		int len = prefixLength(prefix);
+		int addr = prefix.getValue().getInt();
+		Node<V> node = root;
+		for (int i = 0; i < len; i++) {
+			if (bit(addr, i)) {
+				if (node.one == null) {
+					node.one = new Node<V>();
+				}
+				node = node.one;
+			} else {
+				if (node.zero == null) {
+					node.zero = new Node<V>();
+				}
+				node = node.zero;
+			}
+		}
+		V old = node.value;
+		node.value = value;
+		if (old == null) {
+			size++;
+		}
+		return old;
+	}
+
+	/**
+	 * @return the value stored with exactly this prefix, or null
+	 */
+	public V get(IPv4AddressWithMask prefix) {
+		int len = prefixLength(prefix);
+		int addr = prefix.getValue().getInt();
+		Node<V> node = root;
+		for (int i = 0; i < len && node != null; i++) {
+			node = bit(addr, i) ? node.one : node.zero;
+		}
+		return node == null ? null : node.value;
+	}
+
+	/**
+	 * @return the value of the longest prefix containing the address, or
+	 *         null if no prefix does
+	 */
+	public V longestMatch(IPv4Address address) {
+		int addr = address.getInt();
+		Node<V> node = root;
+		V best = root.value;
+		for (int i = 0; i < 32; i++) {
+			node = bit(addr, i) ? node.one : node.zero;
+			if (node == null) {
+				break;
+			}
+			if (node.value != null) {
+				best = node.value;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return the values of every prefix containing the address, shortest
+	 *         prefix first
+	 */
+	public List<V> allMatches(IPv4Address address) {
+		List<V> matches = new ArrayList<V>(2);
+		int addr = address.getInt();
+		Node<V> node = root;
+		for (int i = 0; node != null; i++) {
+			if (node.value != null) {
+				matches.add(node.value);
+			}
+			if (i == 32) {
+				break;
+			}
+			node = bit(addr, i) ? node.one : node.zero;
+		}
+		return matches;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+}
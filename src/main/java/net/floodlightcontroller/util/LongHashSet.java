@@ -0,0 +1,198 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.util;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash set of primitive longs.
+ *
+ * Elements are stored unboxed in a single array that starts small, so a set
+ * holding a handful of values costs a few dozen bytes. Removal shifts the
+ * following entries of the probe sequence back instead of leaving
+ * tombstones, so the table never needs rebuilding to reclaim space.
+ *
+ * This class is not thread-safe.
+ */
+public class LongHashSet {
+	private static final float LOAD_FACTOR = 0.75f;
+	private static final int MIN_CAPACITY = 4;
+	/* marks a free slot; the element 0 itself is tracked by hasZero */
+	private static final long FREE = 0;
+
+	private long[] table;
+	private int mask;
+	private int size;
+	private boolean hasZero;
+
+	public LongHashSet() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize number of elements to size the table for
+	 */
+	public LongHashSet(int expectedSize) {
+		int cap = MIN_CAPACITY;
+		while (cap * LOAD_FACTOR < expectedSize && cap < (1 << 30)) {
+			cap <<= 1;
+		}
+		table = new long[cap];
+		mask = cap - 1;
+	}
+
+	private static int hash(long key) {
+		/* MurmurHash3 finalizer */
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	public boolean contains(long value) {
+		if (value == FREE) {
+			return hasZero;
+		}
+		int i = hash(value) & mask;
+		while (true) {
+			long v = table[i];
+			if (v == FREE) {
+				return false;
+			}
+			if (v == value) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/**
+	 * @return true if the value was not already present
+	 */
+	public boolean add(long value) {
+		if (value == FREE) {
+			if (hasZero) {
+				return false;
+			}
+			hasZero = true;
+			size++;
+			return true;
+		}
+		int i = hash(value) & mask;
+		while (true) {
+			long v = table[i];
+			if (v == FREE) {
+				break;
+			}
+			if (v == value) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		table[i] = value;
+		size++;
+		if (size > table.length * LOAD_FACTOR) {
+			resize(table.length << 1);
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if the value was present
+	 */
+	public boolean remove(long value) {
+		if (value == FREE) {
+			if (!hasZero) {
+				return false;
+			}
+			hasZero = false;
+			size--;
+			return true;
+		}
+		int i = hash(value) & mask;
+		while (true) {
+			long v = table[i];
+			if (v == FREE) {
+				return false;
+			}
+			if (v == value) {
+				break;
+			}
+			i = (i + 1) & mask;
+		}
+		/* shift back later entries whose probe sequence passes through i */
+		int free = i;
+		int j = (i + 1) & mask;
+		while (table[j] != FREE) {
+			int home = hash(table[j]) & mask;
+			if (((j - home) & mask) >= ((j - free) & mask)) {
+				table[free] = table[j];
+				free = j;
+			}
+			j = (j + 1) & mask;
+		}
+		table[free] = FREE;
+		size--;
+		return true;
+	}
+
+	private void resize(int capacity) {
+		long[] old = table;
+		table = new long[capacity];
+		mask = capacity - 1;
+		for (long v : old) {
+			if (v != FREE) {
+				int i = hash(v) & mask;
+				while (table[i] != FREE) {
+					i = (i + 1) & mask;
+				}
+				table[i] = v;
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill(table, FREE);
+		hasZero = false;
+		size = 0;
+	}
+
+	/**
+	 * @return the elements in no particular order
+	 */
+	public long[] toArray() {
+		long[] values = new long[size];
+		int n = 0;
+		if (hasZero) {
+			values[n++] = 0;
+		}
+		for (long v : table) {
+			if (v != FREE) {
+				values[n++] = v;
+			}
+		}
+		return values;
+	}
+}
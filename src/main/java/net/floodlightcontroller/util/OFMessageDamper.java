@@ -18,10 +18,16 @@ package net.floodlightcontroller.util;
 
 import java.util.Collection;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.floodlightcontroller.core.IOFSwitch;
 
+import org.projectfloodlight.openflow.protocol.OFFlowMod;
 import org.projectfloodlight.openflow.protocol.OFMessage;
 import org.projectfloodlight.openflow.protocol.OFType;
 import org.slf4j.Logger;
@@ -29,74 +35,151 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Dampens OFMessages sent to an OF switch. A message is only written to 
- * a switch if the same message (as defined by .equals()) has not been written
- * in the last n milliseconds. Timer granularity is based on TimedCache
+ * a switch if the same message (ignoring the XID) has not been written
+ * in the last n milliseconds.
+ * 
+ * Messages are remembered per switch as 64-bit fingerprints with the time
+ * they were last written, in a primitive open-addressing table, so the
+ * check allocates nothing and each switch holds at most capacity entries.
+ * Expired entries are dropped in bulk whenever a table fills up. A table
+ * still full of live entries is cleared: forgetting a message only means
+ * a duplicate of it may be written.
+ * 
+ * The fingerprint is the message's hash ignoring the XID, extended with
+ * the hash of the match for flow-mods. Two different messages with the
+ * same fingerprint would be taken for each other, dampening the second
+ * for one timeout at most.
+ * 
+ * Tables are kept per IOFSwitch object and /not/ per DPID, so that
+ * messages are not dampened if a switch disconnects and then reconnects.
+ * The table of a switch that has not been written to for a timeout is
+ * discarded.
  * @author gregor
  *
  */
 public class OFMessageDamper {
     private static final Logger log = LoggerFactory.getLogger(OFMessageDamper.class);
+
+    /* how many dampened writes between looks for idle switches */
+    private static final int PURGE_INTERVAL = 1024;
+
     /**
-     * An entry in the TimedCache. A cache entry consists of the sent message
-     * as well as the switch to which the message was sent. 
-     * 
-     * NOTE: We currently use the full OFMessage object. To save space, we 
-     * could use a cryptographic hash (e.g., SHA-1). However, this would 
-     * obviously be more time-consuming.... 
-     * 
-     * We also store a reference to the actual IOFSwitch object and /not/
-     * the switch DPID. This way we are guaranteed to not dampen messages if
-     * a switch disconnects and then reconnects.
-     * 
-     * @author gregor
+     * The fingerprints of the messages recently written to one switch
      */
-    protected static class DamperEntry {
-        OFMessage msg;
-        IOFSwitch sw;
-        public DamperEntry(OFMessage msg, IOFSwitch sw) {
-            super();
-            this.msg = msg;
-            this.sw = sw;
+    protected static class Shard {
+        private static final float LOAD_FACTOR = 0.5f;
+        private static final int MIN_SLOTS = 16;
+        private static final long FREE = 0;
+
+        private final int capacity;
+        private final long timeoutNs;
+        private long[] fingerprints;
+        private long[] times;
+        private int size;
+        private volatile long lastWrite;
+
+        Shard(int capacity, long timeoutNs, long now) {
+            this.capacity = capacity;
+            this.timeoutNs = timeoutNs;
+            this.lastWrite = now;
+            allocate(MIN_SLOTS);
+        }
+
+        private void allocate(int slots) {
+            fingerprints = new long[slots];
+            times = new long[slots];
+            size = 0;
+        }
+
+        private static int slotsFor(int entries) {
+            int slots = MIN_SLOTS;
+            while (slots * LOAD_FACTOR < entries && slots < (1 << 30)) {
+                slots <<= 1;
+            }
+            return slots;
+        }
+
+        private int slot(long fp) {
+            int mask = fingerprints.length - 1;
+            int i = (int) (fp ^ (fp >>> 32)) & mask;
+            while (fingerprints[i] != FREE && fingerprints[i] != fp) {
+                i = (i + 1) & mask;
+            }
+            return i;
         }
-        /* (non-Javadoc)
-         * @see java.lang.Object#hashCode()
+
+        /**
+         * Record a write of the message with this fingerprint, unless one
+         * was written less than a timeout ago
+         * @return true if the write should be dampened
          */
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + ((msg == null) ? 0 : msg.hashCodeIgnoreXid());
-            result = prime * result + ((sw == null) ? 0 : sw.hashCode());
-            return result;
+        synchronized boolean dampen(long fp, long now) {
+            lastWrite = now;
+            int i = slot(fp);
+            if (fingerprints[i] == fp) {
+                if (now - times[i] <= timeoutNs) {
+                    return true;
+                }
+                times[i] = now;
+                return false;
+            }
+            if (size + 1 > fingerprints.length * LOAD_FACTOR || size + 1 > capacity) {
+                evictExpired(now);
+                i = slot(fp);
+            }
+            fingerprints[i] = fp;
+            times[i] = now;
+            size++;
+            return false;
         }
-        /* (non-Javadoc)
-         * @see java.lang.Object#equals(java.lang.Object)
+
+        /**
+         * Rebuild the table with only the entries that haven't expired,
+         * sized for them and one more
          */
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null) return false;
-            if (getClass() != obj.getClass()) return false;
-            DamperEntry other = (DamperEntry) obj;
-            if (msg == null) {
-                if (other.msg != null) return false;
-            } else if (!msg.equalsIgnoreXid(other.msg)) return false;
-            if (sw == null) {
-                if (other.sw != null) return false;
-            } else if (!sw.equals(other.sw)) return false;
-            return true;
+        private void evictExpired(long now) {
+            long[] oldFingerprints = fingerprints;
+            long[] oldTimes = times;
+            int live = 0;
+            for (int i = 0; i < oldFingerprints.length; i++) {
+                if (oldFingerprints[i] != FREE && now - oldTimes[i] <= timeoutNs) {
+                    live++;
+                }
+            }
+            if (live + 1 > capacity) {
+                allocate(slotsFor(capacity));
+                return;
+            }
+            allocate(slotsFor(Math.max(live + 1, Math.min(2 * live, capacity))));
+            for (int i = 0; i < oldFingerprints.length; i++) {
+                if (oldFingerprints[i] != FREE && now - oldTimes[i] <= timeoutNs) {
+                    int j = slot(oldFingerprints[i]);
+                    fingerprints[j] = oldFingerprints[i];
+                    times[j] = oldTimes[i];
+                    size++;
+                }
+            }
+        }
+
+        boolean isIdle(long now) {
+            return now - lastWrite > timeoutNs;
+        }
+
+        synchronized int size() {
+            return size;
         }
-        
-      
     }
-    
-    TimedCache<DamperEntry> cache;
+
+    private final ConcurrentMap<IOFSwitch, Shard> shards = new ConcurrentHashMap<IOFSwitch, Shard>();
+    private final AtomicInteger writesSincePurge = new AtomicInteger();
+    private final int capacity;
+    private final long timeoutNs;
     EnumSet<OFType> msgTypesToCache;
     
     /**
      * 
      * @param capacity the maximum number of messages that should be 
-     * kept
+     * kept for each switch
      * @param typesToDampen The set of OFMessageTypes that should be 
      * dampened by this instance. Other types will be passed through
      * @param timeout The dampening timeout. A message will only be
@@ -106,10 +189,65 @@ public class OFMessageDamper {
     public OFMessageDamper(int capacity, 
                            Set<OFType> typesToDampen,  
                            int timeout) {
-        cache = new TimedCache<DamperEntry>(capacity, timeout);
+        this.capacity = capacity;
+        this.timeoutNs = TimeUnit.MILLISECONDS.toNanos(timeout);
         msgTypesToCache = EnumSet.copyOf(typesToDampen);
     }        
     
+    /**
+     * @return a 64-bit fingerprint of the message ignoring its XID, never 0
+     */
+    protected static long fingerprint(OFMessage msg) {
+        long low;
+        if (msg instanceof OFFlowMod) {
+            /* scramble the match's hash so it is independent of the high half */
+            low = ((OFFlowMod) msg).getMatch().hashCode() * 0x9e3779b97f4a7c15L;
+            low ^= low >>> 32;
+        } else {
+            low = msg.getType().ordinal();
+        }
+        long fp = ((long) msg.hashCodeIgnoreXid() << 32) | (low & 0xffffffffL);
+        return fp == Shard.FREE ? 1 : fp;
+    }
+
+    private Shard getShard(IOFSwitch sw, long now) {
+        Shard shard = shards.get(sw);
+        if (shard == null) {
+            Shard created = new Shard(capacity, timeoutNs, now);
+            shard = shards.putIfAbsent(sw, created);
+            if (shard == null) {
+                shard = created;
+            }
+        }
+        if (writesSincePurge.incrementAndGet() >= PURGE_INTERVAL) {
+            writesSincePurge.set(0);
+            purgeIdle(now, shard);
+        }
+        return shard;
+    }
+
+    /**
+     * Discard the tables of switches that haven't been written to for a
+     * timeout, whose entries have all expired
+     */
+    private void purgeIdle(long now, Shard inUse) {
+        Iterator<Shard> it = shards.values().iterator();
+        while (it.hasNext()) {
+            Shard shard = it.next();
+            if (shard != inUse && shard.isIdle(now)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of messages remembered for the switch
+     */
+    public int size(IOFSwitch sw) {
+        Shard shard = shards.get(sw);
+        return shard == null ? 0 : shard.size();
+    }
+
     /**
      * write the message to the switch according to our dampening settings
      * @param sw
@@ -124,9 +262,8 @@ public class OFMessageDamper {
             return true;
         }
         
-        DamperEntry entry = new DamperEntry(msg, sw);
-        if (cache.update(entry)) {
-            // entry exists in cache. Dampening.
+        long now = System.nanoTime();
+        if (getShard(sw, now).dampen(fingerprint(msg), now)) {
             log.debug("Dampening cached msg {}", msg);
             return false; 
         } else {
@@ -151,4 +288,4 @@ public class OFMessageDamper {
         }
         return allWritten;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,87 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.accesscontrollist;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.floodlightcontroller.accesscontrollist.ACLRule.Action;
+import net.floodlightcontroller.accesscontrollist.util.IPAddressUtil;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+import org.junit.Test;
+
+public class ACLFlowTest extends FloodlightTestCase {
+
+	private static final String DPID = "00:00:00:00:00:00:00:01";
+
+	private static ACLFlow flow(int id, String nw_src, Action action, int priority) {
+		ACLRule rule = new ACLRule();
+		rule.setId(id);
+		rule.setNw_src(nw_src);
+		int[] cidr = IPAddressUtil.parseCIDR(nw_src);
+		rule.setNw_src_prefix(cidr[0]);
+		rule.setNw_src_maskbits(cidr[1]);
+		rule.setAction(action);
+		return new ACLFlow(rule, priority);
+	}
+
+	@Test
+	public void testShadowed() {
+		ACLFlow deny1 = flow(1, "10.0.0.0/24", Action.DENY, 100);
+		ACLFlow allow2 = flow(2, "10.0.0.1/32", Action.ALLOW, 90);
+
+		List<ACLFlow> flows = ACLFlow.compress(Arrays.asList(allow2, deny1));
+		assertEquals(Arrays.asList(deny1), flows);
+	}
+
+	@Test
+	public void testRedundant() {
+		// deny1 is covered by deny3
+		ACLFlow deny1 = flow(1, "10.0.0.1/32", Action.DENY, 100);
+		ACLFlow deny3 = flow(3, "10.0.0.0/24", Action.DENY, 90);
+		assertEquals(Arrays.asList(deny3),
+				ACLFlow.compress(Arrays.asList(deny1, deny3)));
+
+		// unless allow2 would then let some of its traffic through
+		ACLFlow allow2 = flow(2, "10.0.0.0/30", Action.ALLOW, 95);
+		assertEquals(Arrays.asList(deny1, allow2, deny3),
+				ACLFlow.compress(Arrays.asList(deny1, allow2, deny3)));
+	}
+
+	@Test
+	public void testMerge() {
+		ACLFlow deny1 = flow(1, "10.0.0.0/25", Action.DENY, 100);
+		ACLFlow deny2 = flow(2, "10.0.0.128/25", Action.DENY, 90);
+		ACLFlow deny3 = flow(3, "10.0.1.0/24", Action.DENY, 80);
+
+		List<ACLFlow> flows = ACLFlow.compress(Arrays.asList(deny1, deny2, deny3));
+		assertEquals(1, flows.size());
+		ACLFlow merged = flows.get(0);
+		assertEquals("10.0.0.0/23", merged.getRule().getNw_src());
+		assertEquals(Action.DENY, merged.getRule().getAction());
+		assertEquals(100, merged.getPriority());
+		assertEquals(Arrays.asList(1, 2, 3), merged.getRuleIds());
+		assertEquals("ACLRule_1_2_3_" + DPID, merged.getName(DPID));
+
+		// an allowing flow in between keeps them apart
+		ACLFlow allow4 = flow(4, "10.0.0.128/26", Action.ALLOW, 95);
+		flows = ACLFlow.compress(Arrays.asList(deny1, allow4, deny2));
+		assertEquals(Arrays.asList(deny1, allow4, deny2), flows);
+		assertEquals("ACLRule_1_" + DPID, flows.get(0).getName(DPID));
+	}
+}
@@ -71,4 +71,49 @@ public class APManagerTest extends FloodlightTestCase {
 		assertEquals(resultSet, expectedSet);
 		
 	}
+
+	@Test
+	public void testMoveAndRemove(){
+		
+		APManager apManager = new APManager();
+		apManager.addAP(new AP("10.0.0.1","00:00:00:00:00:00:00:01"));
+		apManager.addAP(new AP("10.0.0.2","00:00:00:00:00:00:00:01"));
+		apManager.addAP(new AP("10.0.1.1","00:00:00:00:00:00:00:02"));
+		assertEquals(3, apManager.size());
+		
+		int cidr[] = IPAddressUtil.parseCIDR("10.0.0.0/24");
+		Set<String> expectedSet = new HashSet<String>();
+		expectedSet.add("00:00:00:00:00:00:00:01");
+		assertEquals(expectedSet, apManager.getDpidSet(cidr[0],cidr[1]));
+		
+		// a host added again has moved
+		apManager.addAP(new AP("10.0.0.2","00:00:00:00:00:00:00:03"));
+		assertEquals(3, apManager.size());
+		assertEquals("00:00:00:00:00:00:00:03", apManager.getDpid("10.0.0.2"));
+		expectedSet.add("00:00:00:00:00:00:00:03");
+		assertEquals(expectedSet, apManager.getDpidSet(cidr[0],cidr[1]));
+		
+		// not removed from a switch it has moved away from
+		assertFalse(apManager.removeAP(new AP("10.0.0.2","00:00:00:00:00:00:00:01")));
+		assertTrue(apManager.removeAP(new AP("10.0.0.2","00:00:00:00:00:00:00:03")));
+		assertNull(apManager.getDpid("10.0.0.2"));
+		expectedSet.remove("00:00:00:00:00:00:00:03");
+		assertEquals(expectedSet, apManager.getDpidSet(cidr[0],cidr[1]));
+		
+		cidr = IPAddressUtil.parseCIDR("10.0.0.0/16");
+		expectedSet.add("00:00:00:00:00:00:00:02");
+		assertEquals(expectedSet, apManager.getDpidSet(cidr[0],cidr[1]));
+		
+		// a switch is forgotten by every prefix once its last host is gone
+		assertTrue(apManager.removeAP(new AP("10.0.1.1","00:00:00:00:00:00:00:02")));
+		expectedSet.remove("00:00:00:00:00:00:00:02");
+		assertEquals(expectedSet, apManager.getDpidSet(cidr[0],cidr[1]));
+		cidr = IPAddressUtil.parseCIDR("10.0.1.1/32");
+		assertTrue(apManager.getDpidSet(cidr[0],cidr[1]).isEmpty());
+		
+		assertTrue(apManager.removeAP(new AP("10.0.0.1","00:00:00:00:00:00:00:01")));
+		assertEquals(0, apManager.size());
+		cidr = IPAddressUtil.parseCIDR("0.0.0.0/0");
+		assertTrue(apManager.getDpidSet(cidr[0],cidr[1]).isEmpty());
+	}
 }
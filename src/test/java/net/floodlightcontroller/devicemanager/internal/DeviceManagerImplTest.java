@@ -48,6 +48,7 @@ import net.floodlightcontroller.core.test.MockThreadPoolService;
 import net.floodlightcontroller.debugcounter.IDebugCounterService;
 import net.floodlightcontroller.debugcounter.MockDebugCounterService;
 import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceBatchListener;
 import net.floodlightcontroller.devicemanager.IDeviceListener;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.SwitchPort;
@@ -96,6 +97,7 @@ import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.VlanVid;
 import org.sdnplatform.sync.IClosableIterator;
 import org.sdnplatform.sync.IStoreClient;
+import org.sdnplatform.sync.IVersion;
 import org.sdnplatform.sync.ISyncService;
 import org.sdnplatform.sync.Versioned;
 import org.sdnplatform.sync.test.MockSyncService;
@@ -2254,6 +2256,168 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
 		doTestDeviceQuery();
 	}
 
+	/* Threads learning entities for the same hosts concurrently must end
+	 * up with exactly one device per host holding every entity.
+	 */
+	@Test
+	public void testConcurrentLearning() throws Exception {
+		ITopologyService mockTopology = makeMockTopologyAllPortsAp();
+		replay(mockTopology);
+		deviceManager.topology = mockTopology;
+
+		final int hosts = 4;
+		final int ipsPerThread = 50;
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < ipsPerThread; i++) {
+						int ip = thread * ipsPerThread + i + 1;
+						Entity e = new Entity(MacAddress.of(ip % hosts + 1), VlanVid.ZERO,
+								IPv4Address.of(ip), IPv6Address.NONE,
+								DatapathId.of(1L), OFPort.of(ip % hosts + 1), new Date());
+						deviceManager.learnDeviceByEntity(e);
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(hosts, deviceManager.getAllDevices().size());
+		int ips = 0;
+		for (IDevice d : deviceManager.getAllDevices()) {
+			ips += d.getIPv4Addresses().length;
+		}
+		assertEquals(threads.length * ipsPerThread, ips);
+	}
+
+	/* With batching enabled, updates to a device within the window are
+	 * coalesced and batch listeners get them in a single call.
+	 */
+	@Test
+	public void testBatchedNotifications() throws Exception {
+		ITopologyService mockTopology = makeMockTopologyAllPortsAp();
+		replay(mockTopology);
+		deviceManager.topology = mockTopology;
+		deviceManager.notificationBatchIntervalMs = 60*1000;
+
+		final List<Collection<IDevice>> addedBatches = new ArrayList<Collection<IDevice>>();
+		final List<Collection<IDevice>> removedBatches = new ArrayList<Collection<IDevice>>();
+		IDeviceBatchListener batchListener = new IDeviceBatchListener() {
+			@Override
+			public String getName() { return "batchListener"; }
+			@Override
+			public boolean isCallbackOrderingPrereq(String type, String name) { return false; }
+			@Override
+			public boolean isCallbackOrderingPostreq(String type, String name) { return false; }
+			@Override
+			public void deviceAdded(IDevice device) { fail("per-device callback"); }
+			@Override
+			public void deviceRemoved(IDevice device) { fail("per-device callback"); }
+			@Override
+			public void deviceMoved(IDevice device) { fail("per-device callback"); }
+			@Override
+			public void deviceIPV4AddrChanged(IDevice device) { fail("per-device callback"); }
+			@Override
+			public void deviceIPV6AddrChanged(IDevice device) { fail("per-device callback"); }
+			@Override
+			public void deviceVlanChanged(IDevice device) { fail("per-device callback"); }
+			@Override
+			public void devicesChanged(Collection<IDevice> added,
+					Map<IDevice, EnumSet<IDeviceService.DeviceField>> changed,
+					Collection<IDevice> removed) {
+				addedBatches.add(added);
+				removedBatches.add(removed);
+				assertTrue(changed.isEmpty());
+			}
+		};
+		deviceManager.addListener(batchListener);
+
+		Entity e1a = new Entity(MacAddress.of(1L), VlanVid.ZERO, IPv4Address.of(1), IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1), new Date());
+		Entity e1b = new Entity(MacAddress.of(1L), VlanVid.ZERO, IPv4Address.of(2), IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1), new Date());
+		Entity e2 = new Entity(MacAddress.of(2L), VlanVid.ZERO, IPv4Address.of(3), IPv6Address.NONE, DatapathId.of(1L), OFPort.of(2), new Date());
+		Device d1 = deviceManager.learnDeviceByEntity(e1a);
+		deviceManager.learnDeviceByEntity(e1b);
+		deviceManager.learnDeviceByEntity(e2);
+		assertTrue(addedBatches.isEmpty());
+
+		deviceManager.flushNotifications();
+		assertEquals(1, addedBatches.size());
+		assertEquals(2, addedBatches.get(0).size());
+		assertTrue(removedBatches.get(0).isEmpty());
+		// the added device is reported in its latest state
+		for (IDevice d : addedBatches.get(0)) {
+			if (d.getDeviceKey().equals(d1.getDeviceKey())) {
+				assertEquals(2, d.getIPv4Addresses().length);
+			}
+		}
+		assertTrue(deviceManager.getListenerTimeNs().containsKey("batchListener"));
+
+		// nothing left to deliver
+		deviceManager.flushNotifications();
+		assertEquals(1, addedBatches.size());
+	}
+
+	@Test
+	public void testDeviceQueryPlanner() throws Exception {
+		ITopologyService mockTopology = createMock(ITopologyService.class);
+		deviceManager.topology = mockTopology;
+		expect(mockTopology.isAttachmentPointPort(DatapathId.of(anyLong()),
+				OFPort.of(anyShort()))).
+				andReturn(true).anyTimes();
+		expect(mockTopology.getClusterId(DatapathId.of(EasyMock.anyLong()))).andReturn(DatapathId.of(1L)).anyTimes();
+		replay(mockTopology);
+
+		Entity entity1 = new Entity(MacAddress.of(1L), VlanVid.ofVlan(1), IPv4Address.of(1), IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1), new Date());
+		Entity entity2 = new Entity(MacAddress.of(2L), VlanVid.ofVlan(2), IPv4Address.of(2), IPv6Address.NONE, DatapathId.of(1L), OFPort.of(2), new Date());
+		Device d1 = deviceManager.learnDeviceByEntity(entity1);
+		Device d2 = deviceManager.learnDeviceByEntity(entity2);
+
+		// IPv4 and attachment point are indexed by default
+		Iterator<? extends IDevice> iter =
+				deviceManager.queryDevices(MacAddress.NONE, null, IPv4Address.of(2), IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
+		assertTrue(iter.hasNext());
+		assertEquals(d2.getDeviceKey(), iter.next().getDeviceKey());
+		assertFalse(iter.hasNext());
+
+		iter = deviceManager.queryDevices(MacAddress.NONE, null, IPv4Address.NONE, IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1));
+		assertTrue(iter.hasNext());
+		assertEquals(d1.getDeviceKey(), iter.next().getDeviceKey());
+		assertFalse(iter.hasNext());
+
+		// a partial index match still filters on the remaining fields
+		iter = deviceManager.queryDevices(MacAddress.of(1L), null, IPv4Address.of(2), IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
+		assertFalse(iter.hasNext());
+		assertTrue(deviceManager.getQueryScanStats().isEmpty());
+
+		// no index on VLAN
+		iter = deviceManager.queryDevices(MacAddress.NONE, VlanVid.ofVlan(1), IPv4Address.NONE, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
+		assertEquals(d1.getDeviceKey(), iter.next().getDeviceKey());
+		assertEquals(Long.valueOf(1), deviceManager.getQueryScanStats().get(
+				EnumSet.of(IDeviceService.DeviceField.VLAN).toString()));
+
+		// an index added after learning is back-filled
+		deviceManager.addIndex(false, EnumSet.of(IDeviceService.DeviceField.VLAN));
+		iter = deviceManager.queryDevices(MacAddress.NONE, VlanVid.ofVlan(2), IPv4Address.NONE, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
+		assertEquals(d2.getDeviceKey(), iter.next().getDeviceKey());
+		assertFalse(iter.hasNext());
+		assertEquals(Long.valueOf(1), deviceManager.getQueryScanStats().get(
+				EnumSet.of(IDeviceService.DeviceField.VLAN).toString()));
+		assertTrue(deviceManager.indicesBeingFilled.isEmpty());
+
+		// adding it again keeps the published index
+		DeviceIndex vlanIndex = deviceManager.secondaryIndexMap.get(EnumSet.of(IDeviceService.DeviceField.VLAN));
+		deviceManager.addIndex(false, EnumSet.of(IDeviceService.DeviceField.VLAN));
+		assertSame(vlanIndex, deviceManager.secondaryIndexMap.get(EnumSet.of(IDeviceService.DeviceField.VLAN)));
+	}
+
 	protected void doTestDeviceClassQuery() throws Exception {
 		Entity entity1 = new Entity(MacAddress.of(1L), VlanVid.ofVlan(1), IPv4Address.of(1), IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1), new Date());
 		Entity entity2 = new Entity(MacAddress.of(2L), VlanVid.ofVlan(2), IPv4Address.of(2), IPv6Address.NONE, DatapathId.of(1L), OFPort.of(2), new Date());
@@ -3019,10 +3183,11 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
 	 * list. We don't return the key from the store however, we assert
 	 * that the key from the store matches the key in the representation.
 	 * If we have a null value (tombstone) we simply add the null value to
-	 * the list to return.
+	 * the list to return. Pending batched writes are flushed first.
 	 */
 	private List<DeviceSyncRepresentation> getEntriesFromStore()
 			throws Exception {
+		deviceManager.flushSyncStoreNow();
 		List<DeviceSyncRepresentation> entries =
 				new ArrayList<DeviceSyncRepresentation>();
 		IClosableIterator<Entry<String, Versioned<DeviceSyncRepresentation>>> iter =
@@ -3173,6 +3338,41 @@ public class DeviceManagerImplTest extends FloodlightTestCase {
 	}
 
 
+	/* Updates to the same device within the batch window are written to
+	 * the sync store once, and unchanged devices are not rewritten.
+	 */
+	@Test
+	public void testSyncStoreBatching() throws Exception {
+		ITopologyService mockTopology = makeMockTopologyAllPortsAp();
+		replay(mockTopology);
+		deviceManager.topology = mockTopology;
+		deviceManager.setSyncStoreWriteInterval(0);
+		deviceManager.setSyncStoreBatchInterval(60*1000);
+
+		Entity e1a = new Entity(MacAddress.of(1L), VlanVid.ofVlan(2), IPv4Address.of(3), IPv6Address.NONE, DatapathId.of(4L), OFPort.of(5), new Date(1000));
+		e1a.setActiveSince(new Date(1));
+		Entity e1b = new Entity(MacAddress.of(1L), VlanVid.ofVlan(2), IPv4Address.of(33), IPv6Address.NONE, DatapathId.of(4L), OFPort.of(5), new Date(2000));
+		e1b.setActiveSince(new Date(1));
+		Device d1 = deviceManager.learnDeviceByEntity(e1a);
+		deviceManager.learnDeviceByEntity(e1b);
+		String key = DeviceSyncRepresentation.computeKey(d1);
+
+		// nothing is written until the batch is flushed
+		assertNull(storeClient.get(key).getValue());
+
+		List<DeviceSyncRepresentation> entries = getEntriesFromStore();
+		assertEquals(1, entries.size());
+		assertEquals(2, entries.get(0).getEntities().size());
+		assertEntityEquals(e1a, entries.get(0).getEntities().get(0));
+		assertEntityEquals(e1b, entries.get(0).getEntities().get(1));
+
+		// seeing the same entity again does not rewrite the device
+		IVersion version = storeClient.get(key).getVersion();
+		deviceManager.learnDeviceByEntity(e1b);
+		deviceManager.flushSyncStoreNow();
+		assertEquals(version, storeClient.get(key).getVersion());
+	}
+
 	private void assertDeviceIps(IPv4Address[] expected, IDevice d) {
 		List<IPv4Address> expectedList = Arrays.asList(expected);
 		Collections.sort(expectedList);
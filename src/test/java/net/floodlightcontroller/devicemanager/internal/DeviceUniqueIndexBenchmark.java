@@ -0,0 +1,87 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import static net.floodlightcontroller.test.BenchmarkUtils.usedMemory;
+import static org.junit.Assert.assertEquals;
+
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv6Address;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.VlanVid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
+
+/**
+ * Compares the packed MAC/VLAN index with the IndexedEntity-keyed map
+ * it replaces. Reports lookups/sec and approximate bytes/host.
+ * Not part of the unit tests, see {@link net.floodlightcontroller.test.BenchmarkUtils}.
+ */
+public class DeviceUniqueIndexBenchmark {
+    protected static Logger log = LoggerFactory.getLogger(DeviceUniqueIndexBenchmark.class);
+
+    @Test
+    public void benchmarkMacVlanIndex() {
+        final int hosts = 200000;
+        final int lookups = 2000000;
+        EnumSet<DeviceField> keyFields = EnumSet.of(DeviceField.MAC, DeviceField.VLAN);
+        Entity[] entities = new Entity[hosts];
+        for (int i = 0; i < hosts; i++) {
+            entities[i] = new Entity(MacAddress.of(0x020000000000L + i), VlanVid.ofVlan(i % 4000 + 1),
+                    IPv4Address.NONE, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO, Entity.NO_DATE);
+        }
+
+        long before = usedMemory();
+        ConcurrentHashMap<IndexedEntity, Long> legacy = new ConcurrentHashMap<IndexedEntity, Long>();
+        for (int i = 0; i < hosts; i++) {
+            legacy.put(new IndexedEntity(keyFields, entities[i]), Long.valueOf(i + 1000));
+        }
+        long legacyBytes = usedMemory() - before;
+
+        before = usedMemory();
+        DeviceUniqueIndex idx = new DeviceUniqueIndex(keyFields);
+        for (int i = 0; i < hosts; i++) {
+            idx.updateIndex(entities[i], Long.valueOf(i + 1000));
+        }
+        long packedBytes = usedMemory() - before;
+
+        long found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (legacy.get(new IndexedEntity(keyFields, entities[i % hosts])) != null) found++;
+        }
+        long legacyNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (idx.findByEntity(entities[i % hosts]) != null) found++;
+        }
+        long packedNs = System.nanoTime() - start;
+
+        assertEquals(2L * lookups, found);
+        log.info("IndexedEntity index: {} lookups/sec, ~{} bytes/host",
+                (long) (lookups / (legacyNs / 1e9)), legacyBytes / hosts);
+        log.info("Packed MAC/VLAN index: {} lookups/sec, ~{} bytes/host",
+                (long) (lookups / (packedNs / 1e9)), packedBytes / hosts);
+    }
+}
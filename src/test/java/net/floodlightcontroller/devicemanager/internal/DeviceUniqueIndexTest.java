@@ -24,6 +24,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.junit.Test;
 import org.projectfloodlight.openflow.types.DatapathId;
@@ -32,6 +33,8 @@ import org.projectfloodlight.openflow.types.IPv6Address;
 import org.projectfloodlight.openflow.types.MacAddress;
 import org.projectfloodlight.openflow.types.OFPort;
 import org.projectfloodlight.openflow.types.VlanVid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import net.floodlightcontroller.devicemanager.IDeviceService.DeviceField;
 import junit.framework.TestCase;
@@ -42,6 +45,7 @@ import junit.framework.TestCase;
  *
  */
 public class DeviceUniqueIndexTest extends TestCase {
+    protected static Logger log = LoggerFactory.getLogger(DeviceUniqueIndexTest.class);
     protected Entity e1a;
     protected Entity e1b;
     protected Device d1;
@@ -174,4 +178,76 @@ public class DeviceUniqueIndexTest extends TestCase {
         // anyways. We can now add d1 ;-)
         assertEquals(true, idx3.updateIndex(d1, 1L));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testNullVlanDistinctFromUntagged() {
+        DeviceUniqueIndex idx = new DeviceUniqueIndex(
+                                            EnumSet.of(DeviceField.MAC,
+                                                       DeviceField.VLAN));
+        Entity untagged = new Entity(MacAddress.of(5L), VlanVid.ZERO, IPv4Address.NONE, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO, Entity.NO_DATE);
+        Entity noVlan = new Entity(MacAddress.of(5L), null, IPv4Address.NONE, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO, Entity.NO_DATE);
+        Entity vlan4095 = new Entity(MacAddress.of(5L), VlanVid.ofVlan(4095), IPv4Address.NONE, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO, Entity.NO_DATE);
+        Entity broadcast = new Entity(MacAddress.BROADCAST, null, IPv4Address.NONE, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO, Entity.NO_DATE);
+
+        idx.updateIndex(untagged, 1L);
+        assertEquals(Long.valueOf(1L), idx.findByEntity(untagged));
+        assertEquals(null, idx.findByEntity(noVlan));
+        assertEquals(null, idx.findByEntity(vlan4095));
+        idx.updateIndex(noVlan, 2L);
+        idx.updateIndex(vlan4095, 3L);
+        idx.updateIndex(broadcast, 4L);
+        assertEquals(Long.valueOf(1L), idx.findByEntity(untagged));
+        assertEquals(Long.valueOf(2L), idx.findByEntity(noVlan));
+        assertEquals(Long.valueOf(3L), idx.findByEntity(vlan4095));
+        assertEquals(Long.valueOf(4L), idx.findByEntity(broadcast));
+        assertEquals(4, idx.size());
+
+        /* MAC-only key ignores the VLAN */
+        DeviceUniqueIndex macIdx = new DeviceUniqueIndex(EnumSet.of(DeviceField.MAC));
+        macIdx.updateIndex(untagged, 1L);
+        assertEquals(Long.valueOf(1L), macIdx.findByEntity(vlan4095));
+    }
+
+    /*
+     * The packed MAC/VLAN index finds, updates and removes the same devices
+     * as the IndexedEntity-keyed map it replaces
+     */
+    @Test
+    public void testMacVlanIndexMatchesIndexedEntity() {
+        final int hosts = 500;
+        EnumSet<DeviceField> keyFields = EnumSet.of(DeviceField.MAC, DeviceField.VLAN);
+        ConcurrentHashMap<IndexedEntity, Long> legacy = new ConcurrentHashMap<IndexedEntity, Long>();
+        DeviceUniqueIndex idx = new DeviceUniqueIndex(keyFields);
+        Entity[] entities = new Entity[hosts];
+        for (int i = 0; i < hosts; i++) {
+            entities[i] = new Entity(MacAddress.of(0x020000000000L + i / 2),
+                    i % 2 == 0 ? VlanVid.ofVlan(i % 4000 + 1) : null,
+                    IPv4Address.NONE, IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO, Entity.NO_DATE);
+            legacy.put(new IndexedEntity(keyFields, entities[i]), Long.valueOf(i + 1000));
+            assertTrue(idx.updateIndex(entities[i], Long.valueOf(i + 1000)));
+        }
+        assertEquals(legacy.size(), idx.size());
+
+        /* move every third entity to another device, remove every fifth */
+        for (int i = 0; i < hosts; i++) {
+            if (i % 5 == 0) {
+                legacy.remove(new IndexedEntity(keyFields, entities[i]));
+                idx.removeEntity(entities[i]);
+            } else if (i % 3 == 0) {
+                legacy.put(new IndexedEntity(keyFields, entities[i]), Long.valueOf(i + 5000));
+                idx.updateIndex(entities[i], Long.valueOf(i + 5000));
+            }
+        }
+        for (int i = 0; i < hosts; i++) {
+            assertEquals(legacy.get(new IndexedEntity(keyFields, entities[i])),
+                    idx.findByEntity(entities[i]));
+        }
+        assertEquals(legacy.size(), idx.size());
+
+        Set<Long> all = new HashSet<Long>();
+        for (Iterator<Long> it = idx.getAll(); it.hasNext();) {
+            all.add(it.next());
+        }
+        assertEquals(new HashSet<Long>(legacy.values()), all);
+    }
+}
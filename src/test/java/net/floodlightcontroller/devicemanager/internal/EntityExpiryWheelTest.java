@@ -0,0 +1,81 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.devicemanager.internal;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class EntityExpiryWheelTest {
+
+    @Test
+    public void testDueOrder() {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(10, 100, 1000);
+        wheel.schedule(1L, 1050);
+        wheel.schedule(2L, 1020);
+        wheel.schedule(3L, 500); // already expired
+        assertEquals(3, wheel.size());
+
+        List<Long> due = new ArrayList<Long>();
+        assertEquals(1, wheel.pollDue(1000, 100, due));
+        assertEquals(3L, (long) due.get(0));
+
+        due.clear();
+        assertFalse(wheel.hasDue(1015));
+        assertEquals(0, wheel.pollDue(1015, 100, due));
+        assertEquals(1, wheel.pollDue(1025, 100, due));
+        assertEquals(2L, (long) due.get(0));
+        assertEquals(1, wheel.pollDue(1059, 100, due));
+        assertEquals(1L, (long) due.get(1));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRescheduleOnlyEarlier() {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(10, 100, 0);
+        wheel.schedule(1L, 50);
+        wheel.schedule(1L, 80); // later; ignored
+        wheel.schedule(1L, 20); // earlier; moves the device
+        assertEquals(1, wheel.size());
+
+        List<Long> due = new ArrayList<Long>();
+        assertEquals(1, wheel.pollDue(25, 100, due));
+        // the stale entry at 50 is not returned again
+        assertEquals(0, wheel.pollDue(100, 100, due));
+
+        // schedule after handling; far future deadlines are clamped into
+        // the wheel
+        wheel.schedule(1L, 100000);
+        assertEquals(1, wheel.pollDue(1000, 100, due));
+    }
+
+    @Test
+    public void testBoundedPoll() {
+        EntityExpiryWheel wheel = new EntityExpiryWheel(10, 100, 0);
+        for (long k = 0; k < 25; k++) {
+            wheel.schedule(k, 5);
+        }
+        List<Long> due = new ArrayList<Long>();
+        assertEquals(10, wheel.pollDue(5, 10, due));
+        assertTrue(wheel.hasDue(5));
+        assertEquals(10, wheel.pollDue(5, 10, due));
+        assertEquals(5, wheel.pollDue(5, 10, due));
+        assertFalse(wheel.hasDue(5));
+        assertEquals(25, due.size());
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import static net.floodlightcontroller.firewall.FirewallClassifierTest.factory;
+import static net.floodlightcontroller.firewall.FirewallClassifierTest.randomPacket;
+import static net.floodlightcontroller.firewall.FirewallClassifierTest.randomRule;
+import static net.floodlightcontroller.firewall.FirewallClassifierTest.walk;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.routing.MatchDependencies;
+
+/**
+ * Times classifying packets against 10,000 rules by walking them and with
+ * the compiled classifier. Not part of the unit tests, see
+ * {@link net.floodlightcontroller.test.BenchmarkUtils}.
+ */
+public class FirewallClassifierBenchmark {
+    protected static Logger log = LoggerFactory.getLogger(FirewallClassifierBenchmark.class);
+
+    @Test
+    public void benchmarkClassify() {
+        Random rand = new Random(44);
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        for (int i = 0; i < 10000; i++) {
+            rules.add(randomRule(rand));
+        }
+        long start = System.nanoTime();
+        FirewallClassifier classifier = new FirewallClassifier(rules);
+        long buildNs = System.nanoTime() - start;
+
+        int packets = 2000;
+        List<Ethernet> eths = new ArrayList<Ethernet>(packets);
+        DatapathId[] sws = new DatapathId[packets];
+        OFPort[] ports = new OFPort[packets];
+        for (int i = 0; i < packets; i++) {
+            eths.add(randomPacket(rand));
+            sws[i] = DatapathId.of(1 + rand.nextInt(3));
+            ports[i] = OFPort.of(1 + rand.nextInt(4));
+        }
+
+        int[] walked = new int[packets];
+        start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            walked[i] = walk(rules, sws[i], ports[i], eths.get(i), new AllowDropPair(factory), new MatchDependencies());
+        }
+        long walkNs = System.nanoTime() - start;
+
+        int[] classified = new int[packets];
+        start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            classified[i] = classifier.classify(sws[i], ports[i], eths.get(i), factory);
+            if (classified[i] >= 0) {
+                classifier.getWildcards(classified[i], sws[i], ports[i], eths.get(i), factory);
+            }
+        }
+        long classifyNs = System.nanoTime() - start;
+
+        int matched = 0;
+        for (int i = 0; i < packets; i++) {
+            assertEquals(walked[i], classified[i]);
+            if (classified[i] >= 0) {
+                matched++;
+            }
+        }
+        log.info("Compiled {} rules into {} tuples in {} us; {} of {} packets matched a rule",
+                new Object[] { rules.size(), classifier.getTupleCount(), buildNs / 1000, matched, packets });
+        log.info("Walking the rules: {} ns/packet; classifier: {} ns/packet",
+                walkNs / packets, classifyNs / packets);
+    }
+}
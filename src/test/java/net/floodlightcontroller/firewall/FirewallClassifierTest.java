@@ -0,0 +1,265 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.firewall;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Data;
+import net.floodlightcontroller.packet.Ethernet;
+import net.floodlightcontroller.packet.ICMP;
+import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
+import net.floodlightcontroller.packet.UDP;
+import net.floodlightcontroller.routing.MatchDependencies;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv4AddressWithMask;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TransportPort;
+
+public class FirewallClassifierTest {
+    static final OFFactory factory = OFFactories.getFactory(OFVersion.OF_13);
+    private static final DatapathId SW = DatapathId.of(1);
+
+    private static Ethernet tcp(String src, String dst, int dstPort) {
+        return (Ethernet) new Ethernet()
+        .setDestinationMACAddress("00:11:22:33:44:55")
+        .setSourceMACAddress("00:44:33:22:11:00")
+        .setEtherType(EthType.IPv4)
+        .setPayload(
+                new IPv4()
+                .setTtl((byte) 128)
+                .setSourceAddress(src)
+                .setDestinationAddress(dst)
+                .setProtocol(IpProtocol.TCP)
+                .setPayload(new TCP()
+                .setSourcePort(40000)
+                .setDestinationPort(dstPort)
+                .setPayload(new Data(new byte[] {0x01}))));
+    }
+
+    private static FirewallRule tcpRule(String dst, int dstPort, FirewallRule.FirewallAction action) {
+        FirewallRule rule = new FirewallRule();
+        rule.any_dl_type = false;
+        rule.dl_type = EthType.IPv4;
+        rule.any_nw_proto = false;
+        rule.nw_proto = IpProtocol.TCP;
+        if (dst != null) {
+            rule.any_nw_dst = false;
+            rule.nw_dst_prefix_and_mask = IPv4AddressWithMask.of(dst);
+        }
+        if (dstPort != 0) {
+            rule.any_tp_dst = false;
+            rule.tp_dst = TransportPort.of(dstPort);
+        }
+        rule.action = action;
+        return rule;
+    }
+
+    /**
+     * What the firewall found before it was compiled: the first rule in
+     * order that matches, with the wildcards walking up to it built
+     */
+    static int walk(List<FirewallRule> rules, DatapathId sw, OFPort inPort, Ethernet eth,
+            AllowDropPair adp, MatchDependencies deps) {
+        for (int i = 0; i < rules.size(); i++) {
+            rules.get(i).addMatchDependencies(deps);
+            if (rules.get(i).matchesThisPacket(sw, inPort, eth, adp)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertSameAsWalk(List<FirewallRule> rules, FirewallClassifier classifier,
+            DatapathId sw, OFPort inPort, Ethernet eth) {
+        AllowDropPair adp = new AllowDropPair(factory);
+        MatchDependencies deps = new MatchDependencies();
+        int expected = walk(rules, sw, inPort, eth, adp, deps);
+        int index = classifier.classify(sw, inPort, eth, factory);
+        assertEquals(expected, index);
+        assertEquals(deps, classifier.getDependencies(index));
+        if (index >= 0) {
+            AllowDropPair wildcards = classifier.getWildcards(index, sw, inPort, eth, factory);
+            assertEquals(adp.allow.build(), wildcards.allow.build());
+            assertEquals(adp.drop.build(), wildcards.drop.build());
+        }
+    }
+
+    @Test
+    public void testFirstMatch() {
+        FirewallRule other = tcpRule("10.0.0.0/8", 0, FirewallRule.FirewallAction.DROP);
+        other.any_dpid = false;
+        other.dpid = DatapathId.of(2);
+        FirewallRule web = tcpRule("10.0.1.0/24", 80, FirewallRule.FirewallAction.ALLOW);
+        FirewallRule host = tcpRule("10.0.1.5/32", 0, FirewallRule.FirewallAction.DROP);
+        FirewallRule subnet = tcpRule("10.0.0.0/16", 0, FirewallRule.FirewallAction.ALLOW);
+        List<FirewallRule> rules = Arrays.asList(other, web, host, subnet);
+        FirewallClassifier classifier = new FirewallClassifier(rules);
+        assertEquals(4, classifier.size());
+
+        Ethernet eth = tcp("192.168.1.1", "10.0.1.5", 80);
+        assertEquals(1, classifier.classify(SW, OFPort.of(1), eth, factory));
+        /* the rule for another switch wildcards nothing */
+        AllowDropPair adp = classifier.getWildcards(1, SW, OFPort.of(1), eth, factory);
+        assertEquals(IPv4AddressWithMask.of("10.0.1.0/24"), adp.allow.getMasked(MatchField.IPV4_DST));
+        assertEquals(TransportPort.of(80), adp.allow.get(MatchField.TCP_DST));
+
+        assertEquals(0, classifier.classify(DatapathId.of(2), OFPort.of(1), eth, factory));
+        assertEquals(2, classifier.classify(SW, OFPort.of(1), tcp("192.168.1.1", "10.0.1.5", 22), factory));
+        assertEquals(3, classifier.classify(SW, OFPort.of(1), tcp("192.168.1.1", "10.0.2.5", 22), factory));
+        assertEquals(-1, classifier.classify(SW, OFPort.of(1), tcp("192.168.1.1", "10.1.0.1", 22), factory));
+        assertEquals(-1, FirewallClassifier.EMPTY.classify(SW, OFPort.of(1), eth, factory));
+
+        for (Ethernet e : Arrays.asList(eth, tcp("192.168.1.1", "10.0.1.5", 22), tcp("192.168.1.1", "10.0.2.5", 22),
+                tcp("192.168.1.1", "10.1.0.1", 22))) {
+            assertSameAsWalk(rules, classifier, SW, OFPort.of(1), e);
+            assertSameAsWalk(rules, classifier, DatapathId.of(2), OFPort.of(1), e);
+        }
+    }
+
+    private static final MacAddress[] MACS = new MacAddress[] {
+        MacAddress.of("00:00:00:00:00:01"), MacAddress.of("00:00:00:00:00:02"),
+        MacAddress.of("00:00:00:00:00:03"), MacAddress.of("00:00:00:00:00:04")
+    };
+
+    private static IPv4Address address(Random rand) {
+        return IPv4Address.of(10 << 24 | rand.nextInt(4) << 16 | rand.nextInt(16) << 8 | rand.nextInt(64));
+    }
+
+    static FirewallRule randomRule(Random rand) {
+        FirewallRule rule = new FirewallRule();
+        if (rand.nextInt(8) == 0) {
+            rule.any_dpid = false;
+            rule.dpid = DatapathId.of(1 + rand.nextInt(3));
+        }
+        if (rand.nextInt(8) == 0) {
+            rule.any_in_port = false;
+            rule.in_port = OFPort.of(1 + rand.nextInt(4));
+        }
+        if (rand.nextInt(16) == 0) {
+            rule.any_dl_src = false;
+            rule.dl_src = MACS[rand.nextInt(MACS.length)];
+        }
+        int type = rand.nextInt(32);
+        if (type == 0) {
+            return rule; /* matches everything */
+        } else if (type == 1) {
+            rule.any_dl_type = false;
+            rule.dl_type = EthType.ARP;
+            return rule;
+        }
+        rule.any_dl_type = false;
+        rule.dl_type = EthType.IPv4;
+        int[] lengths = new int[] { 8, 16, 24, 32, 32, 32 };
+        if (rand.nextInt(4) == 0) {
+            rule.any_nw_src = false;
+            rule.nw_src_prefix_and_mask = address(rand).withMaskOfLength(lengths[rand.nextInt(lengths.length)]);
+        }
+        if (rand.nextInt(4) != 0) {
+            rule.any_nw_dst = false;
+            rule.nw_dst_prefix_and_mask = address(rand).withMaskOfLength(lengths[rand.nextInt(lengths.length)]);
+        }
+        int proto = rand.nextInt(4);
+        if (proto < 3) {
+            rule.any_nw_proto = false;
+            rule.nw_proto = proto == 0 ? IpProtocol.TCP : proto == 1 ? IpProtocol.UDP : IpProtocol.ICMP;
+            if (proto < 2 && rand.nextInt(2) == 0) {
+                rule.any_tp_dst = false;
+                rule.tp_dst = TransportPort.of(1 + rand.nextInt(16));
+            }
+            if (proto < 2 && rand.nextInt(8) == 0) {
+                rule.any_tp_src = false;
+                rule.tp_src = TransportPort.of(1 + rand.nextInt(16));
+            }
+        }
+        rule.action = rand.nextBoolean() ? FirewallRule.FirewallAction.ALLOW : FirewallRule.FirewallAction.DROP;
+        return rule;
+    }
+
+    static Ethernet randomPacket(Random rand) {
+        Ethernet eth = new Ethernet()
+        .setSourceMACAddress(MACS[rand.nextInt(MACS.length)])
+        .setDestinationMACAddress(MACS[rand.nextInt(MACS.length)]);
+        if (rand.nextInt(16) == 0) {
+            eth.setEtherType(EthType.ARP);
+            eth.setPayload(new ARP()
+            .setHardwareType(ARP.HW_TYPE_ETHERNET)
+            .setProtocolType(ARP.PROTO_TYPE_IP)
+            .setOpCode(ARP.OP_REQUEST)
+            .setHardwareAddressLength((byte) 6)
+            .setProtocolAddressLength((byte) 4)
+            .setSenderHardwareAddress(eth.getSourceMACAddress())
+            .setSenderProtocolAddress(address(rand))
+            .setTargetHardwareAddress(MacAddress.NONE)
+            .setTargetProtocolAddress(address(rand)));
+            return eth;
+        }
+        IPv4 ip = new IPv4()
+        .setTtl((byte) 64)
+        .setSourceAddress(address(rand))
+        .setDestinationAddress(address(rand));
+        int proto = rand.nextInt(3);
+        if (proto == 0) {
+            ip.setProtocol(IpProtocol.TCP).setPayload(new TCP()
+            .setSourcePort(1 + rand.nextInt(16))
+            .setDestinationPort(1 + rand.nextInt(16))
+            .setPayload(new Data(new byte[] {0x01})));
+        } else if (proto == 1) {
+            ip.setProtocol(IpProtocol.UDP).setPayload(new UDP()
+            .setSourcePort(TransportPort.of(1 + rand.nextInt(16)))
+            .setDestinationPort(TransportPort.of(1 + rand.nextInt(16)))
+            .setPayload(new Data(new byte[] {0x01})));
+        } else {
+            ip.setProtocol(IpProtocol.ICMP).setPayload(new ICMP()
+            .setIcmpType((byte) 8)
+            .setPayload(new Data(new byte[] {0x01})));
+        }
+        eth.setEtherType(EthType.IPv4);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    /* the classifier finds what walking the rules does for random rules and packets */
+    @Test
+    public void testRandomRules() {
+        Random rand = new Random(44);
+        List<FirewallRule> rules = new ArrayList<FirewallRule>();
+        for (int i = 0; i < 200; i++) {
+            rules.add(randomRule(rand));
+        }
+        FirewallClassifier classifier = new FirewallClassifier(rules);
+        assertEquals(rules.size(), classifier.size());
+        for (int i = 0; i < 500; i++) {
+            assertSameAsWalk(rules, classifier, DatapathId.of(1 + rand.nextInt(3)), OFPort.of(1 + rand.nextInt(4)),
+                    randomPacket(rand));
+        }
+    }
+}
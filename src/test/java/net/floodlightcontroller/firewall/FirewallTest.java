@@ -477,6 +477,49 @@ public class FirewallTest extends FloodlightTestCase {
         assertEquals(RULE_MISS_COOKIE, decision.getDescriptor());
     }
 
+    @Test
+    public void testVerdictCache() throws Exception {
+        firewall.enableFirewall(true);
+
+        // decided once, then answered from the cache
+        this.setPacketIn(tcpPacket);
+        firewall.receive(sw, this.packetIn, cntx);
+        IRoutingDecision decision = IRoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION);
+        assertEquals(IRoutingDecision.RoutingAction.DROP, decision.getRoutingAction());
+        assertEquals(1, firewall.verdicts.size());
+
+        IRoutingDecision.rtStore.remove(cntx, IRoutingDecision.CONTEXT_DECISION);
+        firewall.receive(sw, this.packetIn, cntx);
+        decision = IRoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION);
+        assertEquals(IRoutingDecision.RoutingAction.DROP, decision.getRoutingAction());
+        assertEquals(RULE_MISS_COOKIE, decision.getDescriptor());
+        assertEquals(1, firewall.verdicts.size());
+
+        // adding a rule invalidates the cached verdict
+        FirewallRule rule = new FirewallRule();
+        rule.dl_type = EthType.IPv4;
+        rule.any_dl_type = false;
+        rule.nw_src_prefix_and_mask = IPv4AddressWithMask.of("192.168.1.1/32");
+        rule.any_nw_src = false;
+        rule.priority = 1;
+        firewall.addRule(rule);
+
+        IRoutingDecision.rtStore.remove(cntx, IRoutingDecision.CONTEXT_DECISION);
+        firewall.receive(sw, this.packetIn, cntx);
+        decision = IRoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION);
+        assertEquals(IRoutingDecision.RoutingAction.FORWARD_OR_FLOOD, decision.getRoutingAction());
+        assertEquals(AppCookie.makeCookie(APP_ID, rule.ruleid), decision.getDescriptor());
+
+        // and so does deleting it
+        firewall.deleteRule(rule.ruleid);
+
+        IRoutingDecision.rtStore.remove(cntx, IRoutingDecision.CONTEXT_DECISION);
+        firewall.receive(sw, this.packetIn, cntx);
+        decision = IRoutingDecision.rtStore.get(cntx, IRoutingDecision.CONTEXT_DECISION);
+        assertEquals(IRoutingDecision.RoutingAction.DROP, decision.getRoutingAction());
+        assertEquals(1, firewall.verdicts.size());
+    }
+
     @Test
     public void testOverlappingRules() throws Exception {
         firewall.enableFirewall(true);
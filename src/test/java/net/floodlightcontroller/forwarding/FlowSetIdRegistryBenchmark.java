@@ -0,0 +1,160 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.forwarding;
+
+import static net.floodlightcontroller.test.BenchmarkUtils.usedMemory;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.floodlightcontroller.core.types.NodePortTuple;
+import net.floodlightcontroller.forwarding.Forwarding.FlowSetIdRegistry;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.U64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the flowset registry with the set-of-sets registry it replaces
+ * on a port-down event. Reports removal time and approximate bytes/flowset.
+ * Not part of the unit tests, see {@link net.floodlightcontroller.test.BenchmarkUtils}.
+ */
+public class FlowSetIdRegistryBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(FlowSetIdRegistryBenchmark.class);
+
+    private static NodePortTuple npt(long sw, int port) {
+        return new NodePortTuple(DatapathId.of(sw), OFPort.of(port));
+    }
+
+    private static U64 id(long i) {
+        return U64.of(i << Forwarding.FLOWSET_SHIFT);
+    }
+
+    @Test
+    public void benchmarkPortDown() {
+        final int flowSets = 200000;
+        final int switches = 64;
+        final int ports = 48;
+        final int hops = 6;
+        NodePortTuple[][] paths = new NodePortTuple[flowSets][hops];
+        for (int f = 0; f < flowSets; f++) {
+            for (int h = 0; h < hops; h++) {
+                int k = (f * 31 + h * 977) % (switches * ports);
+                paths[f][h] = npt(k / ports + 1, k % ports + 1);
+            }
+        }
+        NodePortTuple failed = paths[0][0];
+
+        long before = usedMemory();
+        LegacyRegistry legacy = new LegacyRegistry();
+        for (int f = 0; f < flowSets; f++) {
+            for (NodePortTuple n : paths[f]) {
+                legacy.registerFlowSetId(n, id(f));
+            }
+        }
+        long legacyBytes = usedMemory() - before;
+
+        before = usedMemory();
+        FlowSetIdRegistry registry = new FlowSetIdRegistry();
+        for (int f = 0; f < flowSets; f++) {
+            for (NodePortTuple n : paths[f]) {
+                registry.registerFlowSetId(n, id(f));
+            }
+        }
+        long registryBytes = usedMemory() - before;
+
+        long start = System.nanoTime();
+        int legacyRemoved = 0;
+        for (U64 id : new ArrayList<U64>(legacy.getFlowSetIds(failed))) {
+            legacy.getNodePortTuples(id);
+            legacy.removeExpiredFlowSetId(id);
+            legacyRemoved++;
+        }
+        legacy.removeNodePortTuple(failed);
+        long legacyNs = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        int removed = 0;
+        for (U64 id : registry.getFlowSetIds(failed)) {
+            registry.getNodePortTuples(id);
+            registry.removeFlowSetId(id);
+            removed++;
+        }
+        registry.removeNodePortTuple(failed);
+        long registryNs = System.nanoTime() - start;
+
+        assertEquals(legacyRemoved, removed);
+        assertEquals(legacy.flowSetIdToNpts.size(), registry.getFlowSetCount());
+        assertEquals(0, registry.getFlowSetIds(failed).length);
+        log.info("Set-of-sets registry: port down removed {} flowsets in {} us, ~{} bytes/flowset",
+                new Object[] { legacyRemoved, legacyNs / 1000, legacyBytes / flowSets });
+        log.info("Indexed registry: port down removed {} flowsets in {} us, ~{} bytes/flowset",
+                new Object[] { removed, registryNs / 1000, registryBytes / flowSets });
+    }
+
+    /**
+     * The registry as it was before, for comparison
+     */
+    private static class LegacyRegistry {
+        final Map<NodePortTuple, Set<U64>> nptToFlowSetIds = new ConcurrentHashMap<>();
+        final Map<U64, Set<NodePortTuple>> flowSetIdToNpts = new ConcurrentHashMap<>();
+
+        void registerFlowSetId(NodePortTuple npt, U64 flowSetId) {
+            Set<U64> ids = nptToFlowSetIds.get(npt);
+            if (ids == null) {
+                ids = new HashSet<>();
+                nptToFlowSetIds.put(npt, ids);
+            }
+            ids.add(flowSetId);
+            Set<NodePortTuple> npts = flowSetIdToNpts.get(flowSetId);
+            if (npts == null) {
+                npts = new HashSet<>();
+                flowSetIdToNpts.put(flowSetId, npts);
+            }
+            npts.add(npt);
+        }
+
+        Set<U64> getFlowSetIds(NodePortTuple npt) {
+            return nptToFlowSetIds.get(npt);
+        }
+
+        Set<NodePortTuple> getNodePortTuples(U64 flowSetId) {
+            return flowSetIdToNpts.get(flowSetId);
+        }
+
+        void removeNodePortTuple(NodePortTuple npt) {
+            nptToFlowSetIds.remove(npt);
+            for (Set<NodePortTuple> npts : flowSetIdToNpts.values()) {
+                npts.remove(npt);
+            }
+        }
+
+        void removeExpiredFlowSetId(U64 flowSetId) {
+            flowSetIdToNpts.remove(flowSetId);
+            Iterator<Set<U64>> itr = nptToFlowSetIds.values().iterator();
+            while (itr.hasNext()) {
+                itr.next().remove(flowSetId);
+            }
+        }
+    }
+}
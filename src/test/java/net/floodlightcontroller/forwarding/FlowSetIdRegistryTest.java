@@ -0,0 +1,129 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.forwarding;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import net.floodlightcontroller.core.types.NodePortTuple;
+import net.floodlightcontroller.forwarding.Forwarding.FlowSetIdRegistry;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.U64;
+
+public class FlowSetIdRegistryTest {
+    private static NodePortTuple npt(long sw, int port) {
+        return new NodePortTuple(DatapathId.of(sw), OFPort.of(port));
+    }
+
+    private static U64 id(long i) {
+        return U64.of(i << Forwarding.FLOWSET_SHIFT);
+    }
+
+    @Test
+    public void testRegisterAndRemove() {
+        FlowSetIdRegistry registry = new FlowSetIdRegistry();
+        /* flowset 0 is a valid ID */
+        registry.registerFlowSetId(npt(1, 1), id(0));
+        registry.registerFlowSetId(npt(2, 1), id(0));
+        registry.registerFlowSetId(npt(2, 1), id(0));
+        registry.registerFlowSetId(npt(2, 1), id(1));
+        registry.registerFlowSetId(npt(3, 1), id(1));
+
+        assertEquals(Arrays.asList(npt(1, 1), npt(2, 1)), registry.getNodePortTuples(id(0)));
+        Set<U64> ids = new HashSet<U64>(Arrays.asList(registry.getFlowSetIds(npt(2, 1))));
+        assertEquals(new HashSet<U64>(Arrays.asList(id(0), id(1))), ids);
+        assertEquals(0, registry.getFlowSetIds(npt(4, 1)).length);
+        assertTrue(registry.getNodePortTuples(id(2)).isEmpty());
+
+        /* removing a port leaves the flowsets on other ports */
+        registry.removeNodePortTuple(npt(2, 1));
+        assertEquals(Arrays.asList(npt(1, 1)), registry.getNodePortTuples(id(0)));
+        assertEquals(Arrays.asList(npt(3, 1)), registry.getNodePortTuples(id(1)));
+        assertEquals(0, registry.getFlowSetIds(npt(2, 1)).length);
+
+        /* removing a flowset forgets ports left without flowsets */
+        registry.removeFlowSetId(id(0));
+        assertEquals(0, registry.getFlowSetIds(npt(1, 1)).length);
+        assertEquals(1, registry.getFlowSetCount());
+        assertEquals(1, registry.getNodePortTupleCount());
+
+        registry.removeNodePortTuple(npt(3, 1));
+        assertEquals(0, registry.getFlowSetCount());
+        assertEquals(0, registry.getNodePortTupleCount());
+    }
+
+    /**
+     * A port going down removes every flowset through it, and only those,
+     * from every other port
+     */
+    @Test
+    public void testPortDown() {
+        final int flowSets = 500;
+        final int hops = 4;
+        FlowSetIdRegistry registry = new FlowSetIdRegistry();
+        Map<NodePortTuple, Set<U64>> expected = new HashMap<NodePortTuple, Set<U64>>();
+        NodePortTuple failed = npt(1, 1);
+        for (int f = 0; f < flowSets; f++) {
+            for (int h = 0; h < hops; h++) {
+                int k = (f * 31 + h * 977) % 96;
+                NodePortTuple n = npt(k / 8 + 1, k % 8 + 1);
+                registry.registerFlowSetId(n, id(f));
+                if (!expected.containsKey(n)) {
+                    expected.put(n, new HashSet<U64>());
+                }
+                expected.get(n).add(id(f));
+            }
+        }
+        for (Entry<NodePortTuple, Set<U64>> e : expected.entrySet()) {
+            assertEquals(e.getValue(), new HashSet<U64>(Arrays.asList(registry.getFlowSetIds(e.getKey()))));
+        }
+
+        Set<U64> down = expected.remove(failed);
+        assertFalse(down.isEmpty());
+        for (U64 id : registry.getFlowSetIds(failed)) {
+            assertTrue(registry.getNodePortTuples(id).contains(failed));
+            registry.removeFlowSetId(id);
+        }
+        registry.removeNodePortTuple(failed);
+
+        assertEquals(0, registry.getFlowSetIds(failed).length);
+        assertEquals(flowSets - down.size(), registry.getFlowSetCount());
+        Iterator<Set<U64>> itr = expected.values().iterator();
+        while (itr.hasNext()) {
+            Set<U64> ids = itr.next();
+            ids.removeAll(down);
+            if (ids.isEmpty()) {
+                itr.remove();
+            }
+        }
+        assertEquals(expected.size(), registry.getNodePortTupleCount());
+        for (Entry<NodePortTuple, Set<U64>> e : expected.entrySet()) {
+            assertEquals(e.getValue(), new HashSet<U64>(Arrays.asList(registry.getFlowSetIds(e.getKey()))));
+            for (U64 id : e.getValue()) {
+                assertTrue(registry.getNodePortTuples(id).contains(e.getKey()));
+            }
+        }
+    }
+}
@@ -21,6 +21,7 @@ import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -45,6 +46,9 @@ import net.floodlightcontroller.devicemanager.test.MockDeviceManager;
 import net.floodlightcontroller.devicemanager.IDevice;
 import net.floodlightcontroller.devicemanager.IDeviceService;
 import net.floodlightcontroller.devicemanager.IEntityClassifierService;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LDUpdate;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.LinkType;
+import net.floodlightcontroller.linkdiscovery.ILinkDiscovery.UpdateOperation;
 import net.floodlightcontroller.linkdiscovery.ILinkDiscoveryService;
 import net.floodlightcontroller.linkdiscovery.internal.LinkDiscoveryManager;
 import net.floodlightcontroller.packet.Data;
@@ -55,8 +59,11 @@ import net.floodlightcontroller.packet.IPv6;
 import net.floodlightcontroller.packet.UDP;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.restserver.RestApiServer;
+import net.floodlightcontroller.routing.ForwardingBase.FlowInstallMode;
+import net.floodlightcontroller.routing.ForwardingBase.MatchMode;
 import net.floodlightcontroller.routing.IRoutingDecision.RoutingAction;
 import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.routing.MatchDependencies;
 import net.floodlightcontroller.routing.Path;
 import net.floodlightcontroller.routing.RoutingDecision;
 import net.floodlightcontroller.test.FloodlightTestCase;
@@ -70,6 +77,8 @@ import org.easymock.Capture;
 import org.easymock.CaptureType;
 import org.easymock.EasyMock;
 import org.junit.Test;
+import org.projectfloodlight.openflow.protocol.OFBarrierReply;
+import org.projectfloodlight.openflow.protocol.OFBarrierRequest;
 import org.projectfloodlight.openflow.protocol.OFFeaturesReply;
 import org.projectfloodlight.openflow.protocol.OFFlowMod;
 import org.projectfloodlight.openflow.protocol.match.Match;
@@ -100,6 +109,7 @@ import org.sdnplatform.sync.ISyncService;
 import org.sdnplatform.sync.test.MockSyncService;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class ForwardingTest extends FloodlightTestCase {
 	protected FloodlightContext cntx;
@@ -548,6 +558,167 @@ public class ForwardingTest extends FloodlightTestCase {
 		removeDeviceFromContext();
 	}
 	
+	@Test
+	public void testForwardMultiSwitchPathOrdered() throws Exception {
+		Forwarding.setFlowInstallModeForUnitTest(FlowInstallMode.BARRIER);
+		try {
+			learnDevices(DestDeviceToLearn.DEVICE1);
+
+			Capture<OFMessage> wc1 = EasyMock.newCapture(CaptureType.ALL);
+			Capture<OFMessage> wc2 = EasyMock.newCapture(CaptureType.ALL);
+
+			Path path = new Path(DatapathId.of(1L), DatapathId.of(2L));
+			List<NodePortTuple> nptList = new ArrayList<NodePortTuple>();
+			nptList.add(new NodePortTuple(DatapathId.of(1L), OFPort.of(1)));
+			nptList.add(new NodePortTuple(DatapathId.of(1L), OFPort.of(3)));
+			nptList.add(new NodePortTuple(DatapathId.of(2L), OFPort.of(1)));
+			nptList.add(new NodePortTuple(DatapathId.of(2L), OFPort.of(3)));
+			path.setPath(nptList);
+			reset(routingEngine);
+			expect(routingEngine.getPath(DatapathId.of(1L), OFPort.of(1), DatapathId.of(2L), OFPort.of(3))).andReturn(path).atLeastOnce();
+
+			SettableFuture<OFBarrierReply> barrier = SettableFuture.create();
+			expect(sw1.write(capture(wc1))).andReturn(true).anyTimes();
+			expect(sw2.write(capture(wc2))).andReturn(true).anyTimes();
+			expect(sw2.writeRequest(isA(OFBarrierRequest.class))).andReturn(barrier).once();
+
+			reset(topology);
+			expect(topology.getClusterId(DatapathId.of(1L))).andReturn(DatapathId.of(1L)).anyTimes();
+			expect(topology.getClusterId(DatapathId.of(2L))).andReturn(DatapathId.of(1L)).anyTimes();
+			expect(topology.isAttachmentPointPort(DatapathId.of(1L),  OFPort.of(1))).andReturn(true).anyTimes();
+			expect(topology.isAttachmentPointPort(DatapathId.of(2L),  OFPort.of(3))).andReturn(true).anyTimes();
+			expect(topology.isBroadcastAllowed(DatapathId.of(anyLong()), OFPort.of(anyShort()))).andReturn(true).anyTimes();
+			expect(topology.isEdge(DatapathId.of(1L), OFPort.of(1))).andReturn(true).anyTimes();
+			expect(topology.isEdge(DatapathId.of(2L), OFPort.of(3))).andReturn(true).anyTimes();
+
+			expect(routingEngine.isL3RoutingEnabled()).andReturn(false).atLeastOnce();
+			replay(sw1, sw2, routingEngine, topology);
+			forwarding.receive(sw1, this.packetIn, cntx);
+
+			/* the downstream flow is written; the first hop waits for its barrier */
+			assertTrue(wc2.getValue() instanceof OFFlowMod);
+			assertFalse(wc1.hasCaptured());
+
+			barrier.set(factory.buildBarrierReply().build());
+			verify(sw1, sw2, routingEngine);
+
+			/* flow-mod first, then the packet-out */
+			List<OFMessage> msglist = wc1.getValues();
+			assertEquals(2, msglist.size());
+			assertTrue(msglist.get(0) instanceof OFFlowMod);
+			assertEquals(OFMessageUtils.OFMessageIgnoreXid.of(packetOut), OFMessageUtils.OFMessageIgnoreXid.of(msglist.get(1)));
+
+			removeDeviceFromContext();
+		} finally {
+			Forwarding.setFlowInstallModeForUnitTest(FlowInstallMode.UNORDERED);
+		}
+	}
+
+	@Test
+	public void testForwardInFlightDuplicate() throws Exception {
+		forwarding.inFlightFlows = new InFlightFlowTable(1000, 16, 1024);
+		learnDevices(DestDeviceToLearn.DEVICE1);
+
+		Capture<OFMessage> wc1 = EasyMock.newCapture(CaptureType.ALL);
+		Capture<OFMessage> wc2 = EasyMock.newCapture(CaptureType.ALL);
+
+		Path path = new Path(DatapathId.of(1L), DatapathId.of(2L));
+		List<NodePortTuple> nptList = new ArrayList<NodePortTuple>();
+		nptList.add(new NodePortTuple(DatapathId.of(1L), OFPort.of(1)));
+		nptList.add(new NodePortTuple(DatapathId.of(1L), OFPort.of(3)));
+		nptList.add(new NodePortTuple(DatapathId.of(2L), OFPort.of(1)));
+		nptList.add(new NodePortTuple(DatapathId.of(2L), OFPort.of(3)));
+		path.setPath(nptList);
+		reset(routingEngine);
+		/* the duplicate packet-in is not routed */
+		expect(routingEngine.getPath(DatapathId.of(1L), OFPort.of(1), DatapathId.of(2L), OFPort.of(3))).andReturn(path).once();
+		expect(sw1.write(capture(wc1))).andReturn(true).anyTimes();
+		expect(sw2.write(capture(wc2))).andReturn(true).anyTimes();
+
+		reset(topology);
+		expect(topology.getClusterId(DatapathId.of(1L))).andReturn(DatapathId.of(1L)).anyTimes();
+		expect(topology.getClusterId(DatapathId.of(2L))).andReturn(DatapathId.of(1L)).anyTimes();
+		expect(topology.isAttachmentPointPort(DatapathId.of(1L),  OFPort.of(1))).andReturn(true).anyTimes();
+		expect(topology.isAttachmentPointPort(DatapathId.of(2L),  OFPort.of(3))).andReturn(true).anyTimes();
+		expect(topology.isBroadcastAllowed(DatapathId.of(anyLong()), OFPort.of(anyShort()))).andReturn(true).anyTimes();
+		expect(topology.isEdge(DatapathId.of(1L), OFPort.of(1))).andReturn(true).anyTimes();
+		expect(topology.isEdge(DatapathId.of(2L), OFPort.of(3))).andReturn(true).anyTimes();
+
+		expect(routingEngine.isL3RoutingEnabled()).andReturn(false).anyTimes();
+		replay(sw1, sw2, routingEngine, topology);
+		forwarding.receive(sw1, this.packetIn, cntx);
+		forwarding.receive(sw1, this.packetIn, cntx);
+		verify(sw1, sw2, routingEngine);
+
+		/* one flow per switch; a packet-out for each packet-in */
+		assertEquals(1, wc2.getValues().size());
+		List<OFMessage> msglist = wc1.getValues();
+		assertEquals(3, msglist.size());
+		assertTrue(msglist.get(0) instanceof OFFlowMod);
+		assertEquals(OFMessageUtils.OFMessageIgnoreXid.of(packetOut), OFMessageUtils.OFMessageIgnoreXid.of(msglist.get(1)));
+		assertEquals(OFMessageUtils.OFMessageIgnoreXid.of(packetOut), OFMessageUtils.OFMessageIgnoreXid.of(msglist.get(2)));
+
+		removeDeviceFromContext();
+	}
+
+	/* the distinct flows 100 UDP connections between the same hosts need */
+	private Set<Match> matchesForConnections() {
+		Set<Match> matches = new HashSet<Match>();
+		for (int port = 10000; port < 10100; port++) {
+			Ethernet eth = (Ethernet) new Ethernet()
+			.setDestinationMACAddress("00:11:22:33:44:55")
+			.setSourceMACAddress("00:44:33:22:11:00")
+			.setEtherType(EthType.IPv4)
+			.setPayload(
+					new IPv4()
+					.setTtl((byte) 128)
+					.setSourceAddress("192.168.1.1")
+					.setDestinationAddress("192.168.1.2")
+					.setPayload(new UDP()
+					.setSourcePort((short) port)
+					.setDestinationPort((short) 5001)
+					.setPayload(new Data(new byte[] {0x01}))));
+			FloodlightContext c = new FloodlightContext();
+			IFloodlightProviderService.bcStore.put(c, IFloodlightProviderService.CONTEXT_PI_PAYLOAD, eth);
+			/* as recorded by a firewall rule on the destination port */
+			MatchDependencies.get(c).add(MatchField.UDP_DST);
+			matches.add(forwarding.createMatchFromPacket(sw1, OFPort.of(1), packetIn, c));
+		}
+		return matches;
+	}
+
+	@Test
+	public void testAdaptiveMatch() throws Exception {
+		replay(sw1);
+		assertEquals(100, matchesForConnections().size());
+
+		Forwarding.setMatchModeForUnitTest(MatchMode.ADAPTIVE);
+		try {
+			Set<Match> matches = matchesForConnections();
+			assertEquals(1, matches.size());
+			Match expected = factory.buildMatch()
+					.setExact(MatchField.IN_PORT, OFPort.of(1))
+					.setExact(MatchField.ETH_SRC, MacAddress.of("00:44:33:22:11:00"))
+					.setExact(MatchField.ETH_DST, MacAddress.of("00:11:22:33:44:55"))
+					.setExact(MatchField.ETH_TYPE, EthType.IPv4)
+					.setExact(MatchField.IP_PROTO, IpProtocol.UDP)
+					.setExact(MatchField.UDP_DST, TransportPort.of(5001))
+					.build();
+			assertEquals(expected, matches.iterator().next());
+
+			/* a decision on a source prefix keeps only the prefix */
+			IFloodlightProviderService.bcStore.put(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD, (Ethernet) testPacket);
+			MatchDependencies.get(cntx).addPrefix(MatchField.IPV4_SRC, 24);
+			Match m = forwarding.createMatchFromPacket(sw1, OFPort.of(1), packetIn, cntx);
+			assertEquals(IPv4Address.of("192.168.1.0"), m.getMasked(MatchField.IPV4_SRC).getValue());
+			assertEquals(IPv4Address.ofCidrMaskLength(24), m.getMasked(MatchField.IPV4_SRC).getMask());
+			assertTrue(m.isFullyWildcarded(MatchField.IPV4_DST));
+			assertTrue(m.isFullyWildcarded(MatchField.UDP_SRC));
+		} finally {
+			Forwarding.setMatchModeForUnitTest(MatchMode.EXACT);
+		}
+	}
+
 	@Test
 	public void testForwardMultiSwitchPathIPv6() throws Exception {
 		learnDevicesIPv6(DestDeviceToLearn.DEVICE1);
@@ -1086,4 +1257,76 @@ public class ForwardingTest extends FloodlightTestCase {
 		forwarding.deleteFlowsByDescriptor(descriptors);
 		verify(routingEngine);
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void testCoverFlowSets() throws Exception {
+		List<Masked<U64>> cookies = Forwarding.coverFlowSets(new long[] { 9, 3, 0, 1, 2, 5, 6, 7 });
+		assertEquals(4, cookies.size());
+
+		U64 appMask = AppCookie.getAppFieldMask();
+		long flowSetMask = 0xfffffffL << Forwarding.FLOWSET_SHIFT;
+		/* 0-3, 5, 6-7 and 9 */
+		long[][] blocks = new long[][] { { 0, 4 }, { 5, 1 }, { 6, 2 }, { 9, 1 } };
+		for (int i = 0; i < blocks.length; i++) {
+			long start = blocks[i][0];
+			long size = blocks[i][1];
+			assertEquals(U64.of(start << Forwarding.FLOWSET_SHIFT).or(AppCookie.makeCookie(Forwarding.FORWARDING_APP_ID, 0)),
+					cookies.get(i).getValue());
+			assertEquals(U64.of(flowSetMask & ~((size - 1) << Forwarding.FLOWSET_SHIFT)).or(appMask),
+					cookies.get(i).getMask());
+		}
+	}
+
+	@Test
+	public void testLinkDownFlowRemoval() throws Exception {
+		NodePortTuple s1p1 = new NodePortTuple(DatapathId.of(1L), OFPort.of(101));
+		NodePortTuple s1p2 = new NodePortTuple(DatapathId.of(1L), OFPort.of(102));
+		NodePortTuple s2p1 = new NodePortTuple(DatapathId.of(2L), OFPort.of(201));
+		NodePortTuple s2p3 = new NodePortTuple(DatapathId.of(2L), OFPort.of(203));
+		NodePortTuple s2p4 = new NodePortTuple(DatapathId.of(2L), OFPort.of(204));
+		U64 id10 = U64.of(1000L << Forwarding.FLOWSET_SHIFT);
+		U64 id11 = U64.of(1001L << Forwarding.FLOWSET_SHIFT);
+		U64 id12 = U64.of(1002L << Forwarding.FLOWSET_SHIFT);
+		for (U64 id : new U64[] { id10, id11 }) {
+			for (NodePortTuple npt : new NodePortTuple[] { s1p1, s1p2, s2p1, s2p3 }) {
+				Forwarding.flowSetIdRegistry.registerFlowSetId(npt, id);
+			}
+		}
+		Forwarding.flowSetIdRegistry.registerFlowSetId(s2p3, id12);
+		Forwarding.flowSetIdRegistry.registerFlowSetId(s2p4, id12);
+
+		Capture<List<OFMessage>> wc1 = EasyMock.newCapture(CaptureType.ALL);
+		Capture<List<OFMessage>> wc2 = EasyMock.newCapture(CaptureType.ALL);
+		SettableFuture<OFBarrierReply> barrier1 = SettableFuture.create();
+		SettableFuture<OFBarrierReply> barrier2 = SettableFuture.create();
+		expect(sw1.write(capture(wc1))).andReturn(ImmutableList.<OFMessage>of()).once();
+		expect(sw2.write(capture(wc2))).andReturn(ImmutableList.<OFMessage>of()).once();
+		expect(sw1.writeRequest(isA(OFBarrierRequest.class))).andReturn(barrier1).once();
+		expect(sw2.writeRequest(isA(OFBarrierRequest.class))).andReturn(barrier2).once();
+		replay(sw1, sw2);
+
+		/* the port down and the link removal hit the same flowsets */
+		List<LDUpdate> updates = new ArrayList<LDUpdate>();
+		updates.add(new LDUpdate(DatapathId.of(1L), OFPort.of(101), UpdateOperation.PORT_DOWN));
+		updates.add(new LDUpdate(DatapathId.of(1L), OFPort.of(102), DatapathId.of(2L), OFPort.of(201),
+				U64.ZERO, LinkType.DIRECT_LINK, UpdateOperation.LINK_REMOVED));
+		forwarding.linkDiscoveryUpdate(updates);
+		barrier1.set(factory.buildBarrierReply().build());
+		barrier2.set(factory.buildBarrierReply().build());
+		verify(sw1, sw2);
+
+		/* flowsets 1000 and 1001 are removed by a single masked delete per switch */
+		List<OFMessage> expected = new ArrayList<OFMessage>();
+		expected.add(factory.buildFlowDelete()
+				.setCookie(id10.or(AppCookie.makeCookie(Forwarding.FORWARDING_APP_ID, 0)))
+				.setCookieMask(U64.of(0xffffffeL << Forwarding.FLOWSET_SHIFT).or(AppCookie.getAppFieldMask()))
+				.build());
+		assertTrue(messageListsEqualIgnoreXid(wc1.getValue(), expected));
+		assertTrue(messageListsEqualIgnoreXid(wc2.getValue(), expected));
+
+		assertEquals(0, Forwarding.flowSetIdRegistry.getFlowSetIds(s1p1).length);
+		assertTrue(Forwarding.flowSetIdRegistry.getNodePortTuples(id10).isEmpty());
+		assertEquals(Arrays.asList(id12), Arrays.asList(Forwarding.flowSetIdRegistry.getFlowSetIds(s2p3)));
+		Forwarding.flowSetIdRegistry.removeFlowSetId(id12);
+	}
+}
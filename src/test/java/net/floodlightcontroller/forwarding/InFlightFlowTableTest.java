@@ -0,0 +1,134 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.forwarding;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.floodlightcontroller.core.types.NodePortTuple;
+import net.floodlightcontroller.forwarding.InFlightFlowTable.Key;
+import net.floodlightcontroller.forwarding.InFlightFlowTable.Setup;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.projectfloodlight.openflow.protocol.OFFactories;
+import org.projectfloodlight.openflow.protocol.OFFactory;
+import org.projectfloodlight.openflow.protocol.OFPacketIn;
+import org.projectfloodlight.openflow.protocol.OFPacketInReason;
+import org.projectfloodlight.openflow.protocol.OFVersion;
+import org.projectfloodlight.openflow.protocol.match.MatchField;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+
+public class InFlightFlowTableTest {
+    private OFFactory factory = OFFactories.getFactory(OFVersion.OF_13);
+    private List<OFPacketIn> forwarded;
+    private List<OFPort> forwardedPorts;
+    private List<OFPacketIn> dropped;
+    private InFlightFlowTable.DuplicateHandler handler;
+
+    @Before
+    public void setUp() {
+        forwarded = new ArrayList<OFPacketIn>();
+        forwardedPorts = new ArrayList<OFPort>();
+        dropped = new ArrayList<OFPacketIn>();
+        handler = new InFlightFlowTable.DuplicateHandler() {
+            @Override
+            public void forward(Key key, OFPacketIn pi, OFPort outPort) {
+                forwarded.add(pi);
+                forwardedPorts.add(outPort);
+            }
+
+            @Override
+            public void dropped(Key key, OFPacketIn pi) {
+                dropped.add(pi);
+            }
+        };
+    }
+
+    private Key key(long dst) {
+        return new Key(new NodePortTuple(DatapathId.of(1), OFPort.of(1)),
+                factory.buildMatch()
+                .setExact(MatchField.IN_PORT, OFPort.of(1))
+                .setExact(MatchField.ETH_DST, MacAddress.of(dst))
+                .build());
+    }
+
+    private OFPacketIn packetIn(int xid) {
+        return factory.buildPacketIn()
+                .setXid(xid)
+                .setReason(OFPacketInReason.NO_MATCH)
+                .setData(new byte[] { 1, 2, 3 })
+                .build();
+    }
+
+    @Test
+    public void testDuplicatesQueueUntilInstalled() {
+        InFlightFlowTable table = new InFlightFlowTable(10000, 2, 100);
+        Setup setup = table.admit(key(1), packetIn(1), handler);
+        assertNotNull(setup);
+        setup.setOutPort(OFPort.of(3));
+
+        /* another flow is routed on its own */
+        assertNotNull(table.admit(key(2), packetIn(2), handler));
+
+        /* duplicates queue up to the limit, then are dropped */
+        assertNull(table.admit(key(1), packetIn(3), handler));
+        assertNull(table.admit(key(1), packetIn(4), handler));
+        assertNull(table.admit(key(1), packetIn(5), handler));
+        assertTrue(forwarded.isEmpty());
+        assertEquals(1, dropped.size());
+        assertEquals(5, dropped.get(0).getXid());
+
+        /* installing releases the queue, and later duplicates go straight out */
+        table.installed(setup, handler);
+        assertNull(table.admit(key(1), packetIn(6), handler));
+        assertEquals(3, forwarded.size());
+        assertEquals(3, forwarded.get(0).getXid());
+        assertEquals(4, forwarded.get(1).getXid());
+        assertEquals(6, forwarded.get(2).getXid());
+        for (OFPort p : forwardedPorts) {
+            assertEquals(OFPort.of(3), p);
+        }
+    }
+
+    @Test
+    public void testAbandonAndExpiry() {
+        InFlightFlowTable table = new InFlightFlowTable(10000, 4, 100);
+        Setup setup = table.admit(key(1), packetIn(1), handler);
+        assertNull(table.admit(key(1), packetIn(2), handler));
+
+        /* an abandoned setup drops its queue and lets the next packet-in route */
+        table.abandon(setup, handler);
+        assertEquals(1, dropped.size());
+        assertEquals(0, table.size());
+        assertNotNull(table.admit(key(1), packetIn(3), handler));
+
+        /* with no window, every packet-in starts a setup of its own */
+        table = new InFlightFlowTable(0, 4, 100);
+        assertNotNull(table.admit(key(1), packetIn(4), handler));
+        assertNotNull(table.admit(key(1), packetIn(5), handler));
+
+        /* past capacity, packet-ins are routed without being tracked */
+        table = new InFlightFlowTable(10000, 4, 1);
+        assertNotNull(table.admit(key(1), packetIn(6), handler));
+        assertNotNull(table.admit(key(2), packetIn(7), handler));
+        assertNotNull(table.admit(key(2), packetIn(8), handler));
+        assertEquals(1, table.size());
+    }
+}
@@ -5,6 +5,7 @@ import net.floodlightcontroller.core.internal.IOFSwitchService;
 import net.floodlightcontroller.core.module.FloodlightModuleContext;
 import net.floodlightcontroller.core.types.NodePortTuple;
 import net.floodlightcontroller.packet.*;
+import net.floodlightcontroller.routing.L3RoutingManager;
 import net.floodlightcontroller.routing.VirtualGatewayInstance;
 import net.floodlightcontroller.routing.VirtualGatewayInterface;
 import net.floodlightcontroller.test.FloodlightTestCase;
@@ -146,6 +147,38 @@ public class L3RoutingTest extends FloodlightTestCase {
     }
 
 
+    @Test
+    public void testGatewayLookupFollowsConfigChanges() throws Exception {
+        L3RoutingManager manager = new L3RoutingManager();
+        manager.removeAllVirtualGateways();
+        manager.addVirtualGateway(gateway);
+
+        assertEquals(gateway, manager.getVirtualGateway(DatapathId.of(1L)).get());
+        assertEquals(gateway, manager.getVirtualGateway(new NodePortTuple(DatapathId.of(2L), OFPort.of(1))).get());
+        assertEquals(gateway, manager.getVirtualGateway(IPv4AddressWithMask.of("192.168.1.0/24")).get());
+        assertFalse(manager.getVirtualGateway(DatapathId.of(3L)).isPresent());
+        assertEquals("interface-1",
+                manager.findGatewayInterface(gateway, IPv4Address.of("10.0.0.25")).get().getInterfaceName());
+        assertTrue(manager.isGatewayInterfaceAddress(gateway, IPv4Address.of("20.0.0.1")));
+
+        // Members and interfaces changed in place are seen by the next lookup
+        gateway.addSwitchMember(DatapathId.of(3L));
+        gateway.removeSwitchMember(DatapathId.of(1L));
+        assertEquals(gateway, manager.getVirtualGateway(DatapathId.of(3L)).get());
+        assertFalse(manager.getVirtualGateway(DatapathId.of(1L)).isPresent());
+
+        // The most specific interface subnet wins
+        gateway.addInterface(new VirtualGatewayInterface("interface-3", "10.0.0.129", "255.255.255.128"));
+        assertEquals("interface-3",
+                manager.findGatewayInterface(gateway, IPv4Address.of("10.0.0.200")).get().getInterfaceName());
+        assertEquals("interface-1",
+                manager.findGatewayInterface(gateway, IPv4Address.of("10.0.0.25")).get().getInterfaceName());
+        assertFalse(manager.findGatewayInterface(gateway, IPv4Address.of("30.0.0.1")).isPresent());
+
+        manager.removeVirtualGateway(gateway.getName());
+        assertFalse(manager.getVirtualGateway(DatapathId.of(3L)).isPresent());
+    }
+
     @Test
     public void testBuildGatewayInstance() throws Exception {
         // Create gateway Instance
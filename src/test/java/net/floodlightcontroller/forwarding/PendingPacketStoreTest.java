@@ -0,0 +1,107 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.forwarding;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.floodlightcontroller.forwarding.PendingPacketStore.DropReason;
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.IPv4Address;
+
+public class PendingPacketStoreTest {
+    private List<Ethernet> dropped;
+    private List<DropReason> reasons;
+    private PendingPacketStore.DropListener listener;
+
+    @Before
+    public void setUp() {
+        dropped = new ArrayList<Ethernet>();
+        reasons = new ArrayList<DropReason>();
+        listener = new PendingPacketStore.DropListener() {
+            @Override
+            public void dropped(IPv4Address dst, Ethernet eth, DropReason reason) {
+                dropped.add(eth);
+                reasons.add(reason);
+            }
+        };
+    }
+
+    private static IPv4Address ip(int i) {
+        return IPv4Address.of(10, 0, 0, i);
+    }
+
+    @Test
+    public void testReleaseByDestination() {
+        PendingPacketStore store = new PendingPacketStore(60000, 2, 1000, listener);
+        Ethernet a1 = new Ethernet(), a2 = new Ethernet(), a3 = new Ethernet(), b1 = new Ethernet();
+        store.add(ip(1), a1, 100);
+        store.add(ip(2), b1, 100);
+        store.add(ip(1), a2, 100);
+        assertEquals(3, store.size());
+
+        /* a full destination drops its oldest packet */
+        store.add(ip(1), a3, 100);
+        assertEquals(1, dropped.size());
+        assertSame(a1, dropped.get(0));
+        assertEquals(Arrays.asList(DropReason.QUEUE_FULL), reasons);
+
+        List<Ethernet> released = store.release(ip(1));
+        assertEquals(2, released.size());
+        assertSame(a2, released.get(0));
+        assertSame(a3, released.get(1));
+        assertTrue(store.release(ip(1)).isEmpty());
+        assertEquals(1, store.size());
+        assertEquals(100, store.getBytes());
+        assertSame(b1, store.release(ip(2)).get(0));
+        assertEquals(0, store.getBytes());
+    }
+
+    @Test
+    public void testMemoryCapAndExpiry() throws Exception {
+        PendingPacketStore store = new PendingPacketStore(60000, 10, 250, listener);
+        Ethernet a = new Ethernet(), b = new Ethernet(), c = new Ethernet();
+        store.add(ip(1), a, 100);
+        store.add(ip(2), b, 100);
+        /* the oldest packet of any destination makes room */
+        store.add(ip(3), c, 100);
+        assertEquals(1, dropped.size());
+        assertSame(a, dropped.get(0));
+        assertEquals(Arrays.asList(DropReason.MEMORY), reasons);
+        assertTrue(store.release(ip(1)).isEmpty());
+        assertEquals(200, store.getBytes());
+
+        /* a packet bigger than the cap is not held */
+        store.add(ip(4), new Ethernet(), 251);
+        assertEquals(2, store.size());
+
+        store = new PendingPacketStore(1, 10, 1000, listener);
+        dropped.clear();
+        reasons.clear();
+        store.add(ip(1), a, 100);
+        Thread.sleep(5);
+        assertTrue(store.release(ip(1)).isEmpty());
+        assertEquals(1, dropped.size());
+        assertSame(a, dropped.get(0));
+        assertEquals(Arrays.asList(DropReason.EXPIRED), reasons);
+        assertEquals(0, store.size());
+    }
+}
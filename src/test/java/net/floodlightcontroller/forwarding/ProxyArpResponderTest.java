@@ -0,0 +1,130 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.forwarding;
+
+import static org.easymock.EasyMock.*;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import net.floodlightcontroller.devicemanager.IDevice;
+import net.floodlightcontroller.devicemanager.IDeviceService;
+import net.floodlightcontroller.packet.ARP;
+import net.floodlightcontroller.packet.Ethernet;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.DatapathId;
+import org.projectfloodlight.openflow.types.EthType;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv6Address;
+import org.projectfloodlight.openflow.types.MacAddress;
+import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.VlanVid;
+
+public class ProxyArpResponderTest {
+    private static final MacAddress REQUESTER_MAC = MacAddress.of("00:00:00:00:00:01");
+    private static final MacAddress TARGET_MAC = MacAddress.of("00:00:00:00:00:02");
+    private static final IPv4Address REQUESTER_IP = IPv4Address.of("10.0.0.1");
+    private static final IPv4Address TARGET_IP = IPv4Address.of("10.0.0.2");
+
+    private static Ethernet arpRequest(short vlan, IPv4Address sender) {
+        return (Ethernet) new Ethernet()
+                .setSourceMACAddress(REQUESTER_MAC)
+                .setDestinationMACAddress(MacAddress.BROADCAST)
+                .setEtherType(EthType.ARP)
+                .setVlanID(vlan)
+                .setPayload(
+                        new ARP()
+                        .setHardwareType(ARP.HW_TYPE_ETHERNET)
+                        .setProtocolType(ARP.PROTO_TYPE_IP)
+                        .setOpCode(ARP.OP_REQUEST)
+                        .setHardwareAddressLength((byte) 6)
+                        .setProtocolAddressLength((byte) 4)
+                        .setSenderHardwareAddress(REQUESTER_MAC)
+                        .setSenderProtocolAddress(sender)
+                        .setTargetHardwareAddress(MacAddress.NONE)
+                        .setTargetProtocolAddress(TARGET_IP));
+    }
+
+    private static IDevice device(MacAddress mac) {
+        IDevice d = createMock(IDevice.class);
+        expect(d.getMACAddress()).andReturn(mac).anyTimes();
+        replay(d);
+        return d;
+    }
+
+    private static IDeviceService deviceService(short vlan, List<IDevice> devices) {
+        IDeviceService deviceService = createMock(IDeviceService.class);
+        deviceService.queryDevices(MacAddress.NONE, VlanVid.ofVlan(vlan), TARGET_IP,
+                IPv6Address.NONE, DatapathId.NONE, OFPort.ZERO);
+        expectLastCall().andReturn(devices.iterator()).anyTimes();
+        replay(deviceService);
+        return deviceService;
+    }
+
+    @Test
+    public void testReplyFromDeviceTable() {
+        ProxyArpResponder responder = new ProxyArpResponder(
+                deviceService((short) 10, Arrays.asList(device(TARGET_MAC))), null);
+        Ethernet request = arpRequest((short) 10, REQUESTER_IP);
+        assertTrue(responder.isEnabledFor(request));
+
+        Ethernet reply = (Ethernet) responder.getReply(request);
+        assertNotNull(reply);
+        assertEquals(TARGET_MAC, reply.getSourceMACAddress());
+        assertEquals(REQUESTER_MAC, reply.getDestinationMACAddress());
+        assertEquals(10, reply.getVlanID());
+        ARP arp = (ARP) reply.getPayload();
+        assertEquals(ARP.OP_REPLY, arp.getOpCode());
+        assertEquals(TARGET_MAC, arp.getSenderHardwareAddress());
+        assertEquals(TARGET_IP, arp.getSenderProtocolAddress());
+        assertEquals(REQUESTER_MAC, arp.getTargetHardwareAddress());
+        assertEquals(REQUESTER_IP, arp.getTargetProtocolAddress());
+    }
+
+    @Test
+    public void testMisses() {
+        /* unknown target */
+        ProxyArpResponder responder = new ProxyArpResponder(
+                deviceService((short) 0, Collections.<IDevice>emptyList()), null);
+        assertNull(responder.getReply(arpRequest((short) 0, REQUESTER_IP)));
+
+        /* address claimed by two hosts */
+        responder = new ProxyArpResponder(deviceService((short) 0,
+                Arrays.asList(device(TARGET_MAC), device(MacAddress.of("00:00:00:00:00:03")))), null);
+        assertNull(responder.getReply(arpRequest((short) 0, REQUESTER_IP)));
+
+        /* address probes and gratuitous ARP are left to the hosts */
+        responder = new ProxyArpResponder(
+                deviceService((short) 0, Arrays.asList(device(TARGET_MAC))), null);
+        assertNull(responder.getReply(arpRequest((short) 0, IPv4Address.NONE)));
+        assertNull(responder.getReply(arpRequest((short) 0, TARGET_IP)));
+    }
+
+    @Test
+    public void testVlanEnablement() {
+        ProxyArpResponder responder = new ProxyArpResponder(createMock(IDeviceService.class),
+                Collections.singleton(VlanVid.ofVlan(10)));
+        assertTrue(responder.isEnabledFor(arpRequest((short) 10, REQUESTER_IP)));
+        assertFalse(responder.isEnabledFor(arpRequest((short) 0, REQUESTER_IP)));
+        assertFalse(responder.isEnabledFor(arpRequest((short) 20, REQUESTER_IP)));
+
+        Ethernet reply = arpRequest((short) 10, REQUESTER_IP);
+        ((ARP) reply.getPayload()).setOpCode(ARP.OP_REPLY);
+        assertFalse(responder.isEnabledFor(reply));
+    }
+}
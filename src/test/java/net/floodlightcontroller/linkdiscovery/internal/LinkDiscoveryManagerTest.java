@@ -57,6 +57,7 @@ import net.floodlightcontroller.packet.UDP;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.restserver.RestApiServer;
 import net.floodlightcontroller.routing.IRoutingService;
+import net.floodlightcontroller.storage.IResultSet;
 import net.floodlightcontroller.storage.IStorageSourceService;
 import net.floodlightcontroller.storage.memory.MemoryStorageSource;
 import net.floodlightcontroller.test.FloodlightTestCase;
@@ -201,6 +202,39 @@ public class LinkDiscoveryManagerTest extends FloodlightTestCase {
         assertEquals(U64.of(26), info.addObservedLatency(U64.of(20))); /* avg = 26; diff = 0; 0/20 = 0/10 = 0% !>= 25% --> no update */
     }
     
+    @Test
+    public void testLinkLatencyPercentile() throws Exception {
+        LinkDiscoveryManager.LATENCY_HISTORY_SIZE = 5;
+        LinkDiscoveryManager.LATENCY_HISTOGRAM_SIZE = 5;
+        LinkDiscoveryManager.LATENCY_UPDATE_THRESHOLD = 0.25;
+        LinkDiscoveryManager.LATENCY_PERCENTILE = 50;
+        try {
+            LinkInfo info = new LinkInfo(new Date(), new Date(), null);
+
+            /* Initial latency is retained until the history is full */
+            assertEquals(U64.of(1), info.addObservedLatencyNs(1500000));
+            assertEquals(U64.of(1), info.addObservedLatencyNs(900000));
+            assertEquals(U64.of(1), info.addObservedLatencyNs(40000000)); /* jitter spike */
+            assertEquals(U64.of(1), info.addObservedLatencyNs(1200000));
+
+            /* Median of 0.9, 1.2, 1.5, 2.0, 40ms is 1.5ms, not the 9ms average */
+            assertEquals(U64.of(1), info.addObservedLatencyNs(2000000));
+            assertEquals(900000, info.getLatencyMinNs());
+            assertEquals(1500000, info.getLatencyP50Ns());
+            assertEquals(40000000, info.getLatencyP99Ns());
+
+            /* Spike is evicted; median moves to 3ms, exceeding the threshold */
+            info.addObservedLatencyNs(3000000);
+            info.addObservedLatencyNs(3000000);
+            info.addObservedLatencyNs(3000000);
+            assertEquals(U64.of(3), info.addObservedLatencyNs(3000000));
+            assertEquals(2000000, info.getLatencyMinNs());
+        } finally {
+            LinkDiscoveryManager.LATENCY_HISTOGRAM_SIZE = 100;
+            LinkDiscoveryManager.LATENCY_PERCENTILE = 0;
+        }
+    }
+
     @Test
     public void testAddOrUpdateLink() throws Exception {
         LinkDiscoveryManager linkDiscovery = getLinkDiscoveryManager();
@@ -224,6 +258,56 @@ public class LinkDiscoveryManagerTest extends FloodlightTestCase {
         assertTrue(linkDiscovery.switchLinks.get(lt.getSrc()).iterator().next().getLatency().equals(latency));
     }
 
+    @Test
+    public void testLinkStorageCoalesced() throws Exception {
+        LinkDiscoveryManager linkDiscovery = getLinkDiscoveryManager();
+        linkDiscovery.flushLinkStorage();
+        assertEquals(0, linkDiscovery.getPendingLinkStorageCount());
+
+        Link lt = new Link(DatapathId.of(1L), OFPort.of(2), DatapathId.of(2L), OFPort.of(1), U64.ZERO);
+        Link lt2 = new Link(DatapathId.of(2L), OFPort.of(2), DatapathId.of(3L), OFPort.of(1), U64.ZERO);
+        linkDiscovery.addOrUpdateLink(lt, new LinkInfo(new Date(), new Date(), null));
+        linkDiscovery.flushLinkStorage();
+        assertEquals(Collections.singletonMap("00:00:00:00:00:00:00:01-2-00:00:00:00:00:00:00:02-1",
+                "00:00:00:00:00:00:00:01"), getStoredLinks(linkDiscovery));
+
+        linkDiscovery.addOrUpdateLink(lt, new LinkInfo(new Date(), new Date(), null));
+        linkDiscovery.addOrUpdateLink(lt, new LinkInfo(new Date(), new Date(), null));
+        linkDiscovery.addOrUpdateLink(lt2, new LinkInfo(new Date(), new Date(), null));
+
+        /* Repeated updates to the same link are buffered as one row */
+        assertEquals(2, linkDiscovery.getPendingLinkStorageCount());
+
+        /* A delete replaces the buffered update */
+        linkDiscovery.deleteLinks(Collections.singletonList(lt), "Test");
+        assertEquals(2, linkDiscovery.getPendingLinkStorageCount());
+
+        linkDiscovery.flushLinkStorage();
+        assertEquals(0, linkDiscovery.getPendingLinkStorageCount());
+
+        /* Only the last operation on each link reached the table */
+        assertEquals(Collections.singletonMap("00:00:00:00:00:00:00:02-2-00:00:00:00:00:00:00:03-1",
+                "00:00:00:00:00:00:00:02"), getStoredLinks(linkDiscovery));
+    }
+
+    /**
+     * @return the ids of the rows in the link table, with their source switch,
+     *         once the storage writes submitted so far are done
+     */
+    private Map<String, String> getStoredLinks(LinkDiscoveryManager linkDiscovery) throws Exception {
+        Map<String, String> links = new HashMap<String, String>();
+        IResultSet rs = linkDiscovery.getStorageSource()
+                .executeQueryAsync("controller_link", null, null, null).get();
+        try {
+            while (rs.next()) {
+                links.put(rs.getString("id"), rs.getString("src_switch_id"));
+            }
+        } finally {
+            rs.close();
+        }
+        return links;
+    }
+
     @Test
     public void testDeleteLink() throws Exception {
         LinkDiscoveryManager linkDiscovery = getLinkDiscoveryManager();
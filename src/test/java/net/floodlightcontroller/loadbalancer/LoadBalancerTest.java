@@ -29,6 +29,7 @@ import static org.junit.Assert.*;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -52,6 +53,7 @@ import org.projectfloodlight.openflow.types.IpProtocol;
 import org.projectfloodlight.openflow.types.MacAddress;
 import org.projectfloodlight.openflow.types.OFBufferId;
 import org.projectfloodlight.openflow.types.OFPort;
+import org.projectfloodlight.openflow.types.TransportPort;
 import org.projectfloodlight.openflow.types.U64;
 import org.projectfloodlight.openflow.types.VlanVid;
 import org.projectfloodlight.openflow.protocol.OFPacketInReason;
@@ -80,6 +82,7 @@ import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.ICMP;
 import net.floodlightcontroller.packet.IPacket;
 import net.floodlightcontroller.packet.IPv4;
+import net.floodlightcontroller.packet.TCP;
 import net.floodlightcontroller.restserver.IRestApiService;
 import net.floodlightcontroller.restserver.RestApiServer;
 import net.floodlightcontroller.routing.IRoutingService;
@@ -850,6 +853,44 @@ public class LoadBalancerTest extends FloodlightTestCase {
 		assertTrue(map.size()==4);
 	}
 
+	@Test
+	public void testMemberDeviceIndex() {
+		testCreateVip();
+		testCreatePool();
+		testCreateMember();
+
+		reset(topology);
+		expect(topology.isBroadcastAllowed(DatapathId.of(anyLong()), OFPort.of(anyShort()))).andReturn(true).anyTimes();
+		expect(topology.getClusterId(DatapathId.of(1L))).andReturn(DatapathId.of(1L)).anyTimes();
+		expect(topology.isAttachmentPointPort(DatapathId.of(1L), OFPort.of(3))).andReturn(true).anyTimes();
+		expect(topology.isAttachmentPointPort(DatapathId.of(1L), OFPort.of(9))).andReturn(true).anyTimes();
+		replay(topology);
+
+		// member1 (10.0.0.3) appears after it was created
+		assertFalse(lb.memberIpToDeviceKey.containsKey(member1.address));
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:03"),
+				VlanVid.ZERO, IPv4Address.of("10.0.0.3"), IPv6Address.NONE,
+				DatapathId.of(1), OFPort.of(3));
+		assertTrue(lb.memberIpToDeviceKey.containsKey(member1.address));
+
+		// its MAC and attachment point come from the index
+		lb.collectSwitchPortBandwidth(pool1);
+		assertEquals("00:00:00:00:00:03", member1.macString);
+		assertEquals(DatapathId.of(1), lb.memberIdToSwitchPort.get(member1.id).getNodeId());
+		assertEquals(OFPort.of(3), lb.memberIdToSwitchPort.get(member1.id).getPortId());
+
+		// devices unrelated to members are not indexed
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:09"),
+				VlanVid.ZERO, IPv4Address.of("10.0.0.9"), IPv6Address.NONE,
+				DatapathId.of(1), OFPort.of(9));
+		assertFalse(lb.memberIpToDeviceKey.containsKey(IPv4Address.of("10.0.0.9").getInt()));
+
+		// and are no longer once no member has the address
+		lb.removeMember(member1.id);
+		assertFalse(lb.memberIdToSwitchPort.containsKey(member1.id));
+		assertFalse(lb.memberIpToDeviceKey.containsKey(member1.address));
+	}
+
 	@Test
 	public void testSetMemberWeight() {		
 		testCreateVip();
@@ -1064,4 +1105,224 @@ public class LoadBalancerTest extends FloodlightTestCase {
 		assertTrue(noMembers==null);
 
 	}
+
+	private static Path path(NodePortTuple... hops) {
+		Path p = new Path(hops[0].getNodeId(), hops[hops.length - 1].getNodeId());
+		p.setPath(Arrays.asList(hops));
+		return p;
+	}
+
+	private static NodePortTuple npt(long dpid, int port) {
+		return new NodePortTuple(DatapathId.of(dpid), OFPort.of(port));
+	}
+
+	private static int prefixEntries(Map<String, OFMessage> entries, String prefix) {
+		int count = 0;
+		for (String name : entries.keySet()) {
+			if (name.contains("-prefix-" + prefix))
+				count++;
+		}
+		return count;
+	}
+
+	private String sendTcp(IOFSwitch sw, String client, int srcPort, short flags) {
+		Ethernet eth = (Ethernet) new Ethernet()
+				.setSourceMACAddress("00:00:00:00:00:11")
+				.setDestinationMACAddress(LBVip.LB_PROXY_MAC)
+				.setEtherType(EthType.IPv4)
+				.setVlanID((short) 0)
+				.setPriorityCode((byte) 0)
+				.setPayload(
+						new IPv4()
+						.setSourceAddress(client)
+						.setDestinationAddress("10.0.0.200")
+						.setProtocol(IpProtocol.TCP)
+						.setPayload(new TCP()
+								.setSourcePort(srcPort)
+								.setDestinationPort(100)
+								.setFlags(flags)));
+		OFPacketIn pi = factory.buildPacketIn()
+				.setBufferId(OFBufferId.NO_BUFFER)
+				.setMatch(factory.buildMatch().setExact(MatchField.IN_PORT, OFPort.of(1)).build())
+				.setData(eth.serialize())
+				.setReason(OFPacketInReason.NO_MATCH)
+				.build();
+		cntx = new FloodlightContext();
+		IFloodlightProviderService.bcStore.put(cntx, IFloodlightProviderService.CONTEXT_PI_PAYLOAD, eth);
+		lb.receive(sw, pi, cntx);
+
+		IPClient c = lb.new IPClient();
+		c.ipAddress = IPv4Address.of(client);
+		c.nw_proto = IpProtocol.TCP;
+		c.srcPort = TransportPort.of(srcPort);
+		c.targetPort = TransportPort.of(100);
+		return lb.clientToMember.get(c, System.nanoTime());
+	}
+
+	/*
+	 * clients come in at sw1 port 1 and 2, the members are on sw2 port 3 and 4,
+	 * sw1 port 5 is linked to sw2 port 6; sw2 port 3 may be an ingress port too
+	 */
+	private IOFSwitch setUpProactiveSwitches() {
+		IOFSwitch sw1 = EasyMock.createNiceMock(IOFSwitch.class);
+		expect(sw1.getId()).andReturn(DatapathId.of(1L)).anyTimes();
+		expect(sw1.getOFFactory()).andReturn(factory).anyTimes();
+		expect(sw1.write(EasyMock.anyObject(OFMessage.class))).andReturn(true).anyTimes();
+		IOFSwitch sw2 = EasyMock.createNiceMock(IOFSwitch.class);
+		expect(sw2.getId()).andReturn(DatapathId.of(2L)).anyTimes();
+		expect(sw2.getOFFactory()).andReturn(factory).anyTimes();
+		expect(sw2.write(EasyMock.anyObject(OFMessage.class))).andReturn(true).anyTimes();
+		replay(sw1, sw2);
+		Map<DatapathId, IOFSwitch> switches = new HashMap<DatapathId, IOFSwitch>(2);
+		switches.put(DatapathId.of(1L), sw1);
+		switches.put(DatapathId.of(2L), sw2);
+		getMockSwitchService().setSwitches(switches);
+		sfp.switchAdded(DatapathId.of(1L));
+		sfp.switchAdded(DatapathId.of(2L));
+
+		reset(topology);
+		expect(topology.isBroadcastAllowed(DatapathId.of(anyLong()), OFPort.of(anyShort()))).andReturn(true).anyTimes();
+		expect(topology.getClusterId(DatapathId.of(1L))).andReturn(DatapathId.of(1L)).anyTimes();
+		expect(topology.getClusterId(DatapathId.of(2L))).andReturn(DatapathId.of(1L)).anyTimes();
+		expect(topology.isAttachmentPointPort(DatapathId.of(1L), OFPort.of(1))).andReturn(true).anyTimes();
+		expect(topology.isAttachmentPointPort(DatapathId.of(2L), OFPort.of(3))).andReturn(true).anyTimes();
+		expect(topology.isAttachmentPointPort(DatapathId.of(2L), OFPort.of(4))).andReturn(true).anyTimes();
+		replay(topology);
+
+		for (int in = 1; in <= 2; in++) {
+			for (int out = 3; out <= 4; out++) {
+				expect(routingEngine.getPath(DatapathId.of(1L), OFPort.of(in), DatapathId.of(2L), OFPort.of(out)))
+				.andReturn(path(npt(1, in), npt(1, 5), npt(2, 6), npt(2, out))).anyTimes();
+			}
+		}
+		for (int out = 3; out <= 4; out++) {
+			expect(routingEngine.getPath(DatapathId.of(2L), OFPort.of(out), DatapathId.of(1L), OFPort.of(1)))
+			.andReturn(path(npt(2, out), npt(2, 6), npt(1, 5), npt(1, 1))).anyTimes();
+		}
+		expect(routingEngine.getPath(DatapathId.of(2L), OFPort.of(3), DatapathId.of(2L), OFPort.of(4)))
+		.andReturn(path(npt(2, 3), npt(2, 4))).anyTimes();
+		replay(routingEngine);
+		return sw1;
+	}
+
+	@Test
+	public void testProactivePool() throws Exception {
+		testCreateVip();
+
+		/* Test plan:
+		 * - members are created before the device manager knows them: no flows, a
+		 *   packet-in installs them
+		 * - the flows of both ingress ports share the ones they have in common
+		 * - a rebalance moves a prefix: open connections keep their member until
+		 *   the migration ends, new ones go to the new member
+		 */
+		IOFSwitch sw1 = setUpProactiveSwitches();
+
+		lb.proactiveIngressPorts.add(npt(1, 1));
+		lb.proactiveIngressPorts.add(npt(1, 2));
+
+		LBPool pool = poolsResource.jsonToPool("{\"id\":\"4\",\"name\":\"pool4\",\"protocol\":\"tcp\",\"lb_method\":\"PROACTIVE\",\"vip_id\":\"2\"}");
+		assertEquals(LBPool.PROACTIVE, pool.lbMethod);
+		lb.createPool(pool);
+		LBMember m1 = membersResource.jsonToMember("{\"id\":\"7\",\"address\":\"10.0.0.5\",\"port\":\"100\",\"pool_id\":\"4\"}");
+		LBMember m2 = membersResource.jsonToMember("{\"id\":\"8\",\"address\":\"10.0.0.6\",\"port\":\"100\",\"pool_id\":\"4\"}");
+		lb.createMember(m1);
+		lb.createMember(m2);
+		lb.endPrefixMigration(pool.id, pool.prefixes);
+		assertEquals("[0.0.0.0/1, 128.0.0.0/1]", pool.prefixes.getPrefixes().toString());
+		assertTrue(lb.prefixFlowsMissing.contains(pool.id));
+		assertEquals(0, prefixEntries(sfp.getEntries(DatapathId.of(1L)), ""));
+
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:05"), VlanVid.ZERO, IPv4Address.of("10.0.0.5"),
+				IPv6Address.NONE, DatapathId.of(2L), OFPort.of(3));
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:06"), VlanVid.ZERO, IPv4Address.of("10.0.0.6"),
+				IPv6Address.NONE, DatapathId.of(2L), OFPort.of(4));
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:11"), VlanVid.ZERO, IPv4Address.of("10.0.0.1"),
+				IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1));
+
+		// the packet-in finds flows missing and installs the split
+		assertEquals(m1.id, sendTcp(sw1, "10.0.0.1", 4000, (short) 0x02));
+		assertFalse(lb.prefixFlowsMissing.contains(pool.id));
+		assertEquals(6, lb.prefixFlows.size()); // 2 prefixes, from 2 ingress ports and back
+		// sw1: requests rewritten at each ingress port, replies passing by
+		assertEquals(6, prefixEntries(sfp.getEntries(DatapathId.of(1L)), ""));
+		// sw2: requests of both ingress ports share a flow, replies are rewritten
+		assertEquals(4, prefixEntries(sfp.getEntries(DatapathId.of(2L)), ""));
+
+		// 1:3, a quarter of the clients move from m1 to m2
+		lb.setMemberWeight(m2.id, "3");
+		assertTrue(lb.prefixMigrations.containsKey(pool.id));
+		assertEquals("[0.0.0.0/2, 64.0.0.0/2, 128.0.0.0/1]", pool.prefixes.getPrefixes().toString());
+		Map<String, OFMessage> sw1Entries = sfp.getEntries(DatapathId.of(1L));
+		assertEquals(0, prefixEntries(sw1Entries, "0.0.0.0-1-"));
+		assertEquals(3, prefixEntries(sw1Entries, "0.0.0.0-2-"));
+		assertEquals(0, prefixEntries(sw1Entries, "64.0.0.0-2-"));
+		assertEquals(3, prefixEntries(sw1Entries, "128.0.0.0-1-"));
+		assertEquals(4, prefixEntries(sfp.getEntries(DatapathId.of(2L)), ""));
+
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:11"), VlanVid.ZERO, IPv4Address.of("100.0.0.1"),
+				IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1));
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:11"), VlanVid.ZERO, IPv4Address.of("100.0.0.2"),
+				IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1));
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:11"), VlanVid.ZERO, IPv4Address.of("100.0.0.3"),
+				IPv6Address.NONE, DatapathId.of(1L), OFPort.of(1));
+
+		// an open connection of a moved prefix keeps its member, a new one does not
+		assertEquals(m1.id, sendTcp(sw1, "100.0.0.1", 4001, (short) 0x10));
+		assertEquals(m2.id, sendTcp(sw1, "100.0.0.2", 4002, (short) 0x02));
+
+		lb.endPrefixMigration(pool.id, pool.prefixes);
+		assertFalse(lb.prefixMigrations.containsKey(pool.id));
+		assertEquals(3, prefixEntries(sfp.getEntries(DatapathId.of(1L)), "64.0.0.0-2-member-" + m2.id));
+		assertEquals(m2.id, sendTcp(sw1, "100.0.0.3", 4003, (short) 0x10));
+
+		lb.removePool(pool.id);
+		assertTrue(lb.prefixFlows.isEmpty());
+		assertEquals(0, prefixEntries(sfp.getEntries(DatapathId.of(1L)), ""));
+		assertEquals(0, prefixEntries(sfp.getEntries(DatapathId.of(2L)), ""));
+	}
+
+	@Test
+	public void testProactivePoolVipChanges() throws Exception {
+		testCreateVip();
+		setUpProactiveSwitches();
+
+		// member m1 is at an ingress port itself: no route to install, none missing
+		lb.proactiveIngressPorts.add(npt(1, 1));
+		lb.proactiveIngressPorts.add(npt(1, 2));
+		lb.proactiveIngressPorts.add(npt(2, 3));
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:05"), VlanVid.ZERO, IPv4Address.of("10.0.0.5"),
+				IPv6Address.NONE, DatapathId.of(2L), OFPort.of(3));
+		deviceManager.learnEntity(MacAddress.of("00:00:00:00:00:06"), VlanVid.ZERO, IPv4Address.of("10.0.0.6"),
+				IPv6Address.NONE, DatapathId.of(2L), OFPort.of(4));
+
+		LBPool pool = poolsResource.jsonToPool("{\"id\":\"4\",\"name\":\"pool4\",\"protocol\":\"tcp\",\"lb_method\":\"PROACTIVE\",\"vip_id\":\"2\"}");
+		lb.createPool(pool);
+		lb.createMember(membersResource.jsonToMember("{\"id\":\"7\",\"address\":\"10.0.0.5\",\"port\":\"100\",\"pool_id\":\"4\"}"));
+		lb.createMember(membersResource.jsonToMember("{\"id\":\"8\",\"address\":\"10.0.0.6\",\"port\":\"100\",\"pool_id\":\"4\"}"));
+		lb.endPrefixMigration(pool.id, pool.prefixes);
+		assertFalse(lb.prefixFlowsMissing.contains(pool.id));
+		assertEquals(8, lb.prefixFlows.size()); // 2 prefixes, from 3 ingress ports and back
+		assertEquals(6, prefixEntries(sfp.getEntries(DatapathId.of(1L)), ""));
+
+		// a second pool makes the VIP reactive: the first pool's flows go
+		LBPool other = poolsResource.jsonToPool("{\"id\":\"5\",\"name\":\"pool5\",\"protocol\":\"tcp\",\"lb_method\":\"WRR\",\"vip_id\":\"2\"}");
+		lb.createPool(other);
+		assertTrue(lb.prefixFlows.isEmpty());
+		assertEquals(0, prefixEntries(sfp.getEntries(DatapathId.of(1L)), ""));
+		assertEquals(0, prefixEntries(sfp.getEntries(DatapathId.of(2L)), ""));
+
+		// and come back once it is removed
+		lb.removePool(other.id);
+		assertEquals(8, lb.prefixFlows.size());
+		assertEquals(6, prefixEntries(sfp.getEntries(DatapathId.of(1L)), ""));
+
+		// removing the VIP removes them for good
+		lb.removeVip("2");
+		assertNull(pool.prefixes);
+		assertFalse(lb.prefixMigrations.containsKey(pool.id));
+		assertTrue(lb.prefixFlows.isEmpty());
+		assertEquals(0, prefixEntries(sfp.getEntries(DatapathId.of(1L)), ""));
+		assertEquals(0, prefixEntries(sfp.getEntries(DatapathId.of(2L)), ""));
+	}
 }
@@ -0,0 +1,79 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import static net.floodlightcontroller.loadbalancer.MaglevTableTest.clients;
+import static net.floodlightcontroller.loadbalancer.MaglevTableTest.ids;
+import static net.floodlightcontroller.loadbalancer.MaglevTableTest.weights;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.HashMap;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.U64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+
+/**
+ * Compares Maglev picks with weighted round-robin ones, and times building
+ * the table. Not part of the unit tests, see {@link net.floodlightcontroller.test.BenchmarkUtils}.
+ */
+public class MaglevTableBenchmark {
+	protected static Logger log = LoggerFactory.getLogger(MaglevTableBenchmark.class);
+
+	@Test
+	public void benchmarkPickMember() {
+		int members = 16;
+		int picks = 1000000;
+		IPClient[] clients = clients(new LoadBalancer(), 4096);
+
+		LBPool maglev = new LBPool();
+		maglev.lbMethod = LBPool.MAGLEV;
+		maglev.members.addAll(ids(members));
+		long start = System.nanoTime();
+		maglev.maglev = new MaglevTable(maglev.members, weights(members, (short) 1));
+		long buildNs = System.nanoTime() - start;
+
+		LBPool wrr = new LBPool();
+		wrr.lbMethod = LBPool.WEIGHTED_RR;
+		wrr.members.addAll(ids(members));
+		HashMap<String, Short> weights = new HashMap<String, Short>();
+		for (String id : wrr.members) {
+			weights.put(id, (short) 1);
+		}
+
+		HashMap<String, U64> bandwidth = new HashMap<String, U64>();
+		HashMap<String, Short> status = new HashMap<String, Short>();
+		HashMap<String, Short> noWeights = new HashMap<String, Short>();
+
+		start = System.nanoTime();
+		for (int i = 0; i < picks; i++) {
+			assertNotNull(maglev.pickMember(clients[i & (clients.length - 1)], bandwidth, noWeights, status));
+		}
+		long maglevNs = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < picks; i++) {
+			assertNotNull(wrr.pickMember(clients[i & (clients.length - 1)], bandwidth, weights, status));
+		}
+		long wrrNs = System.nanoTime() - start;
+
+		log.info("{} members: Maglev table built in {} ms, {} picks/s; weighted round-robin {} picks/s",
+				new Object[] { members, buildNs / 1000000, picks * 1000000000L / maglevNs,
+						picks * 1000000000L / wrrNs });
+	}
+}
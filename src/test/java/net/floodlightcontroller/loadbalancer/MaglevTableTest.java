@@ -0,0 +1,154 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IpProtocol;
+import org.projectfloodlight.openflow.types.TransportPort;
+import org.projectfloodlight.openflow.types.U64;
+
+import net.floodlightcontroller.loadbalancer.LoadBalancer.IPClient;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+public class MaglevTableTest extends FloodlightTestCase {
+	static List<String> ids(int n) {
+		List<String> ids = new ArrayList<String>();
+		for (int i = 1; i <= n; i++) {
+			ids.add(String.valueOf(i));
+		}
+		return ids;
+	}
+
+	static List<Short> weights(int n, short weight) {
+		List<Short> weights = new ArrayList<Short>();
+		for (int i = 0; i < n; i++) {
+			weights.add(weight);
+		}
+		return weights;
+	}
+
+	@Test
+	public void testWeights() {
+		MaglevTable table = new MaglevTable(Arrays.asList("a", "b", "c"),
+				Arrays.asList((short) 1, (short) 1, (short) 2));
+		int size = table.size();
+		assertEquals(size / 4, table.getSlotCount("a"), 2);
+		assertEquals(size / 4, table.getSlotCount("b"), 2);
+		assertEquals(size / 2, table.getSlotCount("c"), 2);
+
+		MaglevTable empty = new MaglevTable(new ArrayList<String>(), new ArrayList<Short>());
+		assertNull(empty.get(42, 0));
+	}
+
+	@Test
+	public void testDisruption() {
+		List<String> ids = ids(10);
+		MaglevTable before = new MaglevTable(ids, weights(10, (short) 1));
+		ids.remove("4");
+		MaglevTable after = new MaglevTable(ids, weights(9, (short) 1));
+
+		// flows of the removed member are spread over the others, and few others move
+		int moved = 0;
+		int kept = 0;
+		for (long slot = 0; slot < before.size(); slot++) {
+			String member = before.get(slot << 1, 0);
+			if (!member.equals("4")) {
+				kept++;
+				if (!member.equals(after.get(slot << 1, 0))) {
+					moved++;
+				}
+			}
+		}
+		assertTrue("moved " + moved + " of " + kept, moved < kept / 100);
+	}
+
+	@Test
+	public void testAffinity() {
+		LoadBalancer lb = new LoadBalancer();
+		LBAffinity affinity = new LBAffinity(2, 1000);
+		IPClient c1 = client(lb, 1), c2 = client(lb, 2), c3 = client(lb, 3);
+
+		affinity.put(c1, "1", 0);
+		affinity.put(c2, "2", 0);
+		assertEquals("1", affinity.get(client(lb, 1), 0));
+
+		// bounded: c2 is the least recently used
+		affinity.put(c3, "3", 0);
+		assertEquals(2, affinity.size());
+		assertNull(affinity.get(c2, 0));
+
+		// idle for longer than a second
+		long later = 2000L * 1000 * 1000;
+		assertEquals(2, affinity.expire(later));
+		assertNull(affinity.get(c1, later));
+	}
+
+	private static IPClient client(LoadBalancer lb, int srcPort) {
+		IPClient client = lb.new IPClient();
+		client.ipAddress = IPv4Address.of("10.0.0.1");
+		client.nw_proto = IpProtocol.TCP;
+		client.srcPort = TransportPort.of(srcPort);
+		client.targetPort = TransportPort.of(80);
+		return client;
+	}
+
+	/**
+	 * @return clients spread over the address space, on distinct ports
+	 */
+	static IPClient[] clients(LoadBalancer lb, int n) {
+		IPClient[] clients = new IPClient[n];
+		for (int i = 0; i < clients.length; i++) {
+			clients[i] = lb.new IPClient();
+			clients[i].ipAddress = IPv4Address.of(0x0a000000 + i * 7919);
+			clients[i].nw_proto = IpProtocol.TCP;
+			clients[i].srcPort = TransportPort.of(1024 + i);
+			clients[i].targetPort = TransportPort.of(80);
+		}
+		return clients;
+	}
+
+	@Test
+	public void testPickMember() {
+		int members = 16;
+		IPClient[] clients = clients(new LoadBalancer(), 4096);
+		LBPool maglev = new LBPool();
+		maglev.lbMethod = LBPool.MAGLEV;
+		maglev.members.addAll(ids(members));
+		maglev.maglev = new MaglevTable(maglev.members, weights(members, (short) 1));
+
+		HashMap<String, U64> bandwidth = new HashMap<String, U64>();
+		HashMap<String, Short> status = new HashMap<String, Short>();
+		HashMap<String, Short> noWeights = new HashMap<String, Short>();
+		int[] counts = new int[members + 1];
+		for (IPClient client : clients) {
+			counts[Integer.parseInt(maglev.pickMember(client, bandwidth, noWeights, status))]++;
+		}
+
+		// the same client always goes to the same member, and every member gets some
+		assertEquals(maglev.pickMember(clients[0], bandwidth, noWeights, status),
+				maglev.pickMember(clients[0], bandwidth, noWeights, status));
+		for (int i = 1; i <= members; i++) {
+			assertTrue(counts[i] > 0);
+		}
+	}
+}
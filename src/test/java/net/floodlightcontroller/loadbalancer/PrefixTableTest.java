@@ -0,0 +1,100 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.loadbalancer;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.floodlightcontroller.loadbalancer.PrefixTable.Prefix;
+import net.floodlightcontroller.test.FloodlightTestCase;
+
+public class PrefixTableTest extends FloodlightTestCase {
+
+	private static long covered(List<Prefix> prefixes) {
+		long addresses = 0;
+		for (Prefix p : prefixes) {
+			addresses += 1L << (32 - p.getMaskBits());
+		}
+		return addresses;
+	}
+
+	@Test
+	public void testSplit() {
+		PrefixTable table = new PrefixTable(Arrays.asList("a", "b", "c"),
+				Arrays.asList((short) 1, (short) 1, (short) 2));
+		assertEquals(16, table.getBucketCount("a"));
+		assertEquals(16, table.getBucketCount("b"));
+		assertEquals(32, table.getBucketCount("c"));
+
+		// one prefix each, largest first, covering every address once
+		List<Prefix> prefixes = table.getPrefixes();
+		assertEquals("[0.0.0.0/1, 128.0.0.0/2, 192.0.0.0/2]", prefixes.toString());
+		assertEquals("c", prefixes.get(0).getMemberId());
+		assertEquals(1L << 32, covered(prefixes));
+		assertEquals("c", table.get(0x0a000001));
+		assertEquals("a", table.get(0x80000001));
+		assertEquals("b", table.get(0xc0a80001));
+
+		// 22 + 21 + 21 buckets, as many prefixes as one bits
+		table = new PrefixTable(Arrays.asList("a", "b", "c"),
+				Arrays.asList((short) 1, (short) 1, (short) 1));
+		assertEquals(22, table.getBucketCount("a"));
+		assertEquals(9, table.getPrefixes().size());
+		assertEquals(1L << 32, covered(table.getPrefixes()));
+
+		PrefixTable empty = new PrefixTable(new ArrayList<String>(), new ArrayList<Short>());
+		assertNull(empty.get(42));
+		assertTrue(empty.getPrefixes().isEmpty());
+	}
+
+	@Test
+	public void testRebalance() {
+		List<String> ids = new ArrayList<String>(Arrays.asList("a", "b", "c", "d"));
+		List<Short> weights = new ArrayList<Short>(Arrays.asList((short) 1, (short) 1, (short) 1, (short) 1));
+		PrefixTable before = new PrefixTable(ids, weights);
+		assertEquals(before, before.rebalance(ids, weights));
+
+		// d goes down: only its clients move
+		weights.set(3, (short) 0);
+		PrefixTable after = before.rebalance(ids, weights);
+		int moved = 0;
+		for (int b = 0; b < 64; b++) {
+			int address = b << 26;
+			if (!before.get(address).equals(after.get(address))) {
+				assertEquals("d", before.get(address));
+				moved++;
+			}
+		}
+		assertEquals(16, moved);
+		assertEquals(0, after.getBucketCount("d"));
+		assertEquals(1L << 32, covered(after.getPrefixes()));
+
+		for (Prefix p : after.getPrefixes()) {
+			assertEquals(before.get(p.getAddress()).equals("d"), after.moved(p, before));
+		}
+
+		// clients that had no member have no connections to keep
+		PrefixTable first = new PrefixTable(ids, Arrays.asList((short) 0, (short) 0, (short) 0, (short) 0))
+				.rebalance(ids, weights);
+		for (Prefix p : first.getPrefixes()) {
+			assertFalse(first.moved(p, new PrefixTable(new ArrayList<String>(), new ArrayList<Short>())));
+		}
+	}
+}
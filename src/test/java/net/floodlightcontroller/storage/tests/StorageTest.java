@@ -23,9 +23,11 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -545,6 +547,69 @@ public abstract class StorageTest extends FloodlightTestCase {
         verify(mockListener);
     }
     
+    @Test
+    public void testBatchNotification() {
+        // A batch is reported to the listener as a single notification
+        IStorageSourceListener mockListener = createMock(IStorageSourceListener.class);
+        Set<Object> expectedKeys = new HashSet<Object>();
+        expectedKeys.add("111-11-1111");
+        expectedKeys.add("222-22-2222");
+        mockListener.rowsModified(PERSON_TABLE_NAME, expectedKeys);
+        mockListener.rowsDeleted(PERSON_TABLE_NAME, expectedKeys);
+
+        replay(mockListener);
+
+        storageSource.addListener(PERSON_TABLE_NAME, mockListener);
+
+        List<Map<String,Object>> rows = new ArrayList<Map<String,Object>>();
+        for (Object key : expectedKeys) {
+            Map<String,Object> row = new HashMap<String,Object>();
+            row.put(PERSON_SSN, key);
+            row.put(PERSON_FIRST_NAME, "Tennis");
+            rows.add(row);
+        }
+        storageSource.updateRows(PERSON_TABLE_NAME, rows);
+        storageSource.deleteRows(PERSON_TABLE_NAME, expectedKeys);
+
+        verify(mockListener);
+    }
+
+    @Test
+    public void testResultSetSaveNotification() {
+        // Saving a result set, or deleting matching rows, notifies once per batch
+        IStorageSourceListener mockListener = createMock(IStorageSourceListener.class);
+        mockListener.rowsModified(PERSON_TABLE_NAME,
+                new HashSet<Object>(Arrays.asList("777-77-7777", "888-88-8888")));
+        mockListener.rowsDeleted(PERSON_TABLE_NAME,
+                new HashSet<Object>(Arrays.asList("111-11-1111", "222-22-2222", "333-33-3333", "444-44-4444")));
+        mockListener.rowsDeleted(PERSON_TABLE_NAME,
+                new HashSet<Object>(Arrays.asList("555-55-5555", "666-66-6666")));
+
+        replay(mockListener);
+
+        storageSource.addListener(PERSON_TABLE_NAME, mockListener);
+
+        IPredicate predicate = new OperatorPredicate(PERSON_AGE, OperatorPredicate.Operator.GT, 50);
+        IResultSet resultSet = storageSource.executeQuery(PERSON_TABLE_NAME, null, predicate, null);
+        while (resultSet.next()) {
+            resultSet.setString(PERSON_FIRST_NAME, "Tennis");
+        }
+        resultSet.save();
+        resultSet.close();
+
+        resultSet = storageSource.executeQuery(PERSON_TABLE_NAME, PERSON_COLUMN_LIST, null, new RowOrdering(PERSON_SSN));
+        for (int i = 0; i < 4; i++) {
+            resultSet.next();
+            resultSet.deleteRow();
+        }
+        resultSet.save();
+        resultSet.close();
+
+        storageSource.deleteMatchingRows(PERSON_TABLE_NAME, new OperatorPredicate(PERSON_AGE, OperatorPredicate.Operator.LT, 40));
+
+        verify(mockListener);
+    }
+
     public void waitForFuture(Future<?> future) {
         try
         {
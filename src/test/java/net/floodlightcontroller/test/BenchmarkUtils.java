@@ -0,0 +1,35 @@
+/**
+*    Licensed under the Apache License, Version 2.0 (the "License"); you may
+*    not use this file except in compliance with the License. You may obtain
+*    a copy of the License at
+*
+*         http://www.apache.org/licenses/LICENSE-2.0
+*
+*    Unless required by applicable law or agreed to in writing, software
+*    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+*    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+*    License for the specific language governing permissions and limitations
+*    under the License.
+**/
+
+package net.floodlightcontroller.test;
+
+/**
+ * Helpers for the *Benchmark classes. Benchmarks are not part of the unit
+ * test run, as their names match neither the ant nor the surefire test
+ * patterns; run one by hand with
+ * java org.junit.runner.JUnitCore &lt;benchmark class&gt;
+ */
+public class BenchmarkUtils {
+    /**
+     * @return the heap in use after a few collections, to estimate the
+     *         footprint of what is allocated between two calls
+     */
+    public static long usedMemory() {
+        Runtime rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+}
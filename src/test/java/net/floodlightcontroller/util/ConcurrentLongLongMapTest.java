@@ -0,0 +1,117 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class ConcurrentLongLongMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        ConcurrentLongLongMap map = new ConcurrentLongLongMap();
+        assertEquals(ConcurrentLongLongMap.NO_VALUE, map.get(1));
+        assertEquals(ConcurrentLongLongMap.NO_VALUE, map.put(1, 10));
+        assertEquals(10, map.get(1));
+        assertEquals(10, map.put(1, 11));
+        assertEquals(11, map.get(1));
+        assertEquals(11, map.putIfAbsent(1, 12));
+        assertEquals(11, map.get(1));
+        assertEquals(1, map.size());
+
+        assertFalse(map.remove(1, 10));
+        assertTrue(map.remove(1, 11));
+        assertFalse(map.containsKey(1));
+        assertEquals(0, map.size());
+
+        /* A removed key can be added back */
+        assertEquals(ConcurrentLongLongMap.NO_VALUE, map.putIfAbsent(1, 13));
+        assertEquals(13, map.get(1));
+        assertEquals(13, map.remove(1));
+        assertEquals(ConcurrentLongLongMap.NO_VALUE, map.remove(1));
+
+        /* Zero and negative keys are ordinary keys */
+        map.put(0, 0);
+        map.put(-1, -1);
+        assertEquals(0, map.get(0));
+        assertEquals(-1, map.get(-1));
+    }
+
+    @Test
+    public void testGrowAndChurn() {
+        ConcurrentLongLongMap map = new ConcurrentLongLongMap();
+        for (long i = 0; i < 10000; i++) {
+            map.put(i << 16, i);
+        }
+        assertEquals(10000, map.size());
+        for (long i = 0; i < 10000; i++) {
+            assertEquals(i, map.get(i << 16));
+        }
+
+        /* Tombstones from removals are reclaimed on rebuild */
+        int capacity = map.capacity();
+        for (int round = 0; round < 10; round++) {
+            for (long i = 0; i < 10000; i++) {
+                map.remove((i << 16) | round);
+                map.put((i << 16) | (round + 1), i);
+            }
+        }
+        assertEquals(10000, map.size());
+        assertTrue(map.capacity() <= capacity * 2);
+
+        long[] values = map.values();
+        Arrays.sort(values);
+        assertEquals(10000, values.length);
+        assertEquals(0, values[0]);
+        assertEquals(9999, values[9999]);
+        assertEquals(10000, map.keys().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedValue() {
+        new ConcurrentLongLongMap().put(1, ConcurrentLongLongMap.NO_VALUE);
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+        final ConcurrentLongLongMap map = new ConcurrentLongLongMap();
+        final int n = 50000;
+        final boolean[] failed = new boolean[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int pass = 0; pass < 20; pass++) {
+                    for (long i = 0; i < n; i++) {
+                        long v = map.get(i);
+                        /* Either not yet inserted or the right value */
+                        if (v != ConcurrentLongLongMap.NO_VALUE && v != i * 2) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (long i = 0; i < n; i++) {
+            map.put(i, i * 2);
+        }
+        reader.join();
+        assertFalse(failed[0]);
+        assertEquals(n, map.size());
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.projectfloodlight.openflow.types.IPv4Address;
+import org.projectfloodlight.openflow.types.IPv4AddressWithMask;
+
+public class IPv4PrefixTrieTest {
+
+    @Test
+    public void testLongestMatch() {
+        IPv4PrefixTrie<String> trie = new IPv4PrefixTrie<String>();
+        assertNull(trie.longestMatch(IPv4Address.of("10.0.0.1")));
+
+        assertNull(trie.put(IPv4AddressWithMask.of("10.0.0.0/8"), "a"));
+        assertNull(trie.put(IPv4AddressWithMask.of("10.1.0.0/16"), "b"));
+        /* host bits are ignored */
+        assertNull(trie.put(IPv4AddressWithMask.of("10.1.2.3/24"), "c"));
+        assertNull(trie.put(IPv4AddressWithMask.of("10.1.2.3/32"), "d"));
+        assertEquals("a", trie.put(IPv4AddressWithMask.of("10.0.0.0/8"), "a2"));
+        assertEquals(4, trie.size());
+
+        assertEquals("a2", trie.longestMatch(IPv4Address.of("10.200.0.1")));
+        assertEquals("b", trie.longestMatch(IPv4Address.of("10.1.200.1")));
+        assertEquals("c", trie.longestMatch(IPv4Address.of("10.1.2.4")));
+        assertEquals("d", trie.longestMatch(IPv4Address.of("10.1.2.3")));
+        assertNull(trie.longestMatch(IPv4Address.of("11.0.0.1")));
+
+        assertEquals("c", trie.get(IPv4AddressWithMask.of("10.1.2.0/24")));
+        assertNull(trie.get(IPv4AddressWithMask.of("10.1.2.0/25")));
+        assertEquals(Arrays.asList("a2", "b", "c", "d"), trie.allMatches(IPv4Address.of("10.1.2.3")));
+
+        /* a default route matches everything */
+        trie.put(IPv4AddressWithMask.of("0.0.0.0/0"), "default");
+        assertEquals("default", trie.longestMatch(IPv4Address.of("11.0.0.1")));
+        assertEquals(Arrays.asList("default", "a2"), trie.allMatches(IPv4Address.of("10.0.0.1")));
+    }
+}
@@ -0,0 +1,80 @@
+/**
+ *    Licensed under the Apache License, Version 2.0 (the "License"); you may
+ *    not use this file except in compliance with the License. You may obtain
+ *    a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ *    WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ *    License for the specific language governing permissions and limitations
+ *    under the License.
+ **/
+
+package net.floodlightcontroller.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class LongHashSetTest {
+
+    @Test
+    public void testAddContainsRemove() {
+        LongHashSet set = new LongHashSet();
+        assertTrue(set.isEmpty());
+        assertTrue(set.add(5));
+        assertFalse(set.add(5));
+        assertTrue(set.contains(5));
+        assertFalse(set.contains(6));
+
+        /* Zero is an ordinary element */
+        assertFalse(set.contains(0));
+        assertTrue(set.add(0));
+        assertTrue(set.contains(0));
+        assertEquals(2, set.size());
+
+        long[] values = set.toArray();
+        Arrays.sort(values);
+        assertArrayEquals(new long[] { 0, 5 }, values);
+
+        assertTrue(set.remove(0));
+        assertFalse(set.remove(0));
+        assertTrue(set.remove(5));
+        assertFalse(set.remove(5));
+        assertTrue(set.isEmpty());
+    }
+
+    @Test
+    public void testChurnAgainstHashSet() {
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<Long>();
+        Random r = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            /* a small key range forces long probe chains and many removals */
+            long v = (r.nextInt(2000) - 1000) << 28;
+            if (r.nextBoolean()) {
+                assertEquals(expected.add(v), set.add(v));
+            } else {
+                assertEquals(expected.remove(v), set.remove(v));
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        for (long v : set.toArray()) {
+            assertTrue(expected.contains(v));
+        }
+        for (Long v : expected) {
+            assertTrue(set.contains(v));
+        }
+
+        set.clear();
+        assertEquals(0, set.size());
+        assertEquals(0, set.toArray().length);
+    }
+}
@@ -152,4 +152,28 @@ public class OFMessageDamperTest {
         doWrite(true, sw2, hello2);
     }
     
+    @Test
+    public void testBoundedPerSwitch() throws IOException, InterruptedException {
+        int timeout = 50;
+        int sleepTime = 60;
+        damper = new OFMessageDamper(10,
+                                     EnumSet.of(OFType.ECHO_REQUEST),
+                                     timeout);
+
+        for (int i = 0; i < 25; i++) {
+            doWrite(true, sw1, factory.buildEchoRequest().setXid(i).setData(new byte[] { (byte) i }).build());
+            assertTrue(damper.size(sw1) <= 10);
+        }
+        assertEquals(0, damper.size(sw2));
+
+        // the most recent messages are still dampened
+        doWrite(false, sw1, factory.buildEchoRequest().setXid(100).setData(new byte[] { 24 }).build());
+
+        Thread.sleep(sleepTime);
+        doWrite(true, sw1, factory.buildEchoRequest().setXid(101).setData(new byte[] { 24 }).build());
+        doWrite(true, sw1, echoRequst1);
+        doWrite(false, sw1, echoRequst1Clone);
+        assertTrue(damper.size(sw1) <= 10);
+    }
+    
 }